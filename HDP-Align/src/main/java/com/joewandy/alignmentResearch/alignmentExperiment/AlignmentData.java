@@ -47,7 +47,16 @@ public class AlignmentData {
 	
 	public GroundTruth getGroundTruth() {
 		return groundTruth;
-	}	
+	}
+
+	/**
+	 * Discards the grouping of all files, see {@link AlignmentFile#clearGrouping()}
+	 */
+	public void clearGrouping() {
+		for (AlignmentFile file : alignmentDataList) {
+			file.clearGrouping();
+		}
+	}
 	
 	public int getNoOfFiles() {
 		return alignmentDataList.size();
@@ -48,6 +48,16 @@ public class AlignmentMethodParam {
 	private boolean hdpSpeedUp;
 	private int hdpSpeedUpNumSample;
 	private int hdpRefFileIdx;
+	private boolean hdpMassPruning;
+	private double hdpMassPruningStdev;
+	private int hdpNumChains;
+	private boolean hdpStreamSamples;
+	private int hdpSampleThinning;
+	private int hdpCheckpointInterval;
+	private int hdpSplitMergeMoves;
+	private String hdpInitialisation;
+	private double hdpSpeedUpMinVisitRate;
+	private double hdpCoClusteringThreshold;
 	
 	// for other HDP stuff
 	private String identificationDatabase;
@@ -330,6 +340,86 @@ public class AlignmentMethodParam {
 		this.hdpRefFileIdx = hdpRefFileIdx;
 	}
 	
+	public boolean isHdpMassPruning() {
+		return hdpMassPruning;
+	}
+
+	public void setHdpMassPruning(boolean hdpMassPruning) {
+		this.hdpMassPruning = hdpMassPruning;
+	}
+
+	public double getHdpMassPruningStdev() {
+		return hdpMassPruningStdev;
+	}
+
+	public void setHdpMassPruningStdev(double hdpMassPruningStdev) {
+		this.hdpMassPruningStdev = hdpMassPruningStdev;
+	}
+
+	public int getHdpNumChains() {
+		return hdpNumChains;
+	}
+
+	public void setHdpNumChains(int hdpNumChains) {
+		this.hdpNumChains = hdpNumChains;
+	}
+
+	public boolean isHdpStreamSamples() {
+		return hdpStreamSamples;
+	}
+
+	public void setHdpStreamSamples(boolean hdpStreamSamples) {
+		this.hdpStreamSamples = hdpStreamSamples;
+	}
+
+	public int getHdpSampleThinning() {
+		return hdpSampleThinning;
+	}
+
+	public void setHdpSampleThinning(int hdpSampleThinning) {
+		this.hdpSampleThinning = hdpSampleThinning;
+	}
+
+	public int getHdpCheckpointInterval() {
+		return hdpCheckpointInterval;
+	}
+
+	public void setHdpCheckpointInterval(int hdpCheckpointInterval) {
+		this.hdpCheckpointInterval = hdpCheckpointInterval;
+	}
+
+	public int getHdpSplitMergeMoves() {
+		return hdpSplitMergeMoves;
+	}
+
+	public void setHdpSplitMergeMoves(int hdpSplitMergeMoves) {
+		this.hdpSplitMergeMoves = hdpSplitMergeMoves;
+	}
+
+	public String getHdpInitialisation() {
+		return hdpInitialisation;
+	}
+
+	public void setHdpInitialisation(String hdpInitialisation) {
+		this.hdpInitialisation = hdpInitialisation;
+	}
+
+	public double getHdpSpeedUpMinVisitRate() {
+		return hdpSpeedUpMinVisitRate;
+	}
+
+	public void setHdpSpeedUpMinVisitRate(double hdpSpeedUpMinVisitRate) {
+		this.hdpSpeedUpMinVisitRate = hdpSpeedUpMinVisitRate;
+	}
+
+	public double getHdpCoClusteringThreshold() {
+		return hdpCoClusteringThreshold;
+	}
+
+	public void setHdpCoClusteringThreshold(double hdpCoClusteringThreshold) {
+		this.hdpCoClusteringThreshold = hdpCoClusteringThreshold;
+	}
+
 	public String getIdentificationDatabase() {
 		return identificationDatabase;
 	}
@@ -1,47 +1,181 @@
 package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
 
-import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.joewandy.alignmentResearch.model.HDPMetabolite;
-import com.rits.cloning.Cloner;
+import com.joewandy.alignmentResearch.model.Feature;
 
-public class HDPAlignmentResults implements Serializable {
-	
-	private static final long serialVersionUID = 398275171032368664L;
+/**
+ * Counts how often each set of peaks is put into the same mass cluster across samples.
+ * The sets are keyed by their sorted sequence IDs in an open-addressing hash table,
+ * so storing a set that has been seen before allocates nothing.
+ */
+public class HDPAlignmentResults {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private HDPMassClusterFeatures[] keys;	// distinct sets in insertion order
+	private int[] counts;
+	private int size;
+	private int[] table;					// 1 + position in keys, or 0 for an empty slot
+
+	// scratch space for store(Collection)
+	private Feature[] sortBuffer;
+	private int[] idBuffer;
 
-	private Map<HDPMassClusterFeatures, Integer> counts;
-	
 	public HDPAlignmentResults() {
-		this.counts = new HashMap<HDPMassClusterFeatures, Integer>();
+		this.keys = new HDPMassClusterFeatures[INITIAL_CAPACITY];
+		this.counts = new int[INITIAL_CAPACITY];
+		this.table = new int[2*INITIAL_CAPACITY];
 	}
 
 	public int getCount(HDPMassClusterFeatures item) {
-		Integer featuresCount = counts.get(item);
-		if (featuresCount == null) {
+		int pos = find(item.getSequenceIDs(), item.size(), item.getFingerprint());
+		if (pos == -1) {
 			return 0;
 		}
-		return featuresCount;
+		return counts[pos];
 	}
-		
+
 	public void store(HDPMassClusterFeatures item) {
-		Integer currentCount = counts.get(item);
-		if (currentCount == null) {
-			counts.put(item, 1);
+		store(item, 1);
+	}
+
+	/**
+	 * Counts the peaks of a mass cluster once. A key is only created the first time a set of peaks is seen.
+	 * @param features The peaks in the mass cluster
+	 */
+	public void store(Collection<Feature> features) {
+		int len = features.size();
+		if (idBuffer == null || idBuffer.length < len) {
+			idBuffer = new int[Math.max(len, 16)];
+			sortBuffer = new Feature[idBuffer.length];
+		}
+
+		// insertion sort by sequence ID, mass clusters hold at most one peak per file
+		int m = 0;
+		for (Feature f : features) {
+			int id = f.getSequenceID();
+			int pos = m;
+			while (pos > 0 && idBuffer[pos-1] > id) {
+				idBuffer[pos] = idBuffer[pos-1];
+				sortBuffer[pos] = sortBuffer[pos-1];
+				pos--;
+			}
+			idBuffer[pos] = id;
+			sortBuffer[pos] = f;
+			m++;
+		}
+
+		long fingerprint = HDPMassClusterFeatures.fingerprint(idBuffer, len);
+		int pos = find(idBuffer, len, fingerprint);
+		if (pos != -1) {
+			counts[pos]++;
+		} else {
+			Feature[] sortedFeatures = Arrays.copyOf(sortBuffer, len);
+			int[] sortedIDs = Arrays.copyOf(idBuffer, len);
+			insert(new HDPMassClusterFeatures(sortedFeatures, sortedIDs, fingerprint), 1);
+		}
+		Arrays.fill(sortBuffer, 0, len, null);
+	}
+
+	/**
+	 * Adds the counts from another set of results, e.g. from an independent chain
+	 * @param other The results to add
+	 */
+	public void merge(HDPAlignmentResults other) {
+		for (int pos = 0; pos < other.size; pos++) {
+			store(other.keys[pos], other.counts[pos]);
+		}
+	}
+
+	public void store(HDPMassClusterFeatures item, int count) {
+		int pos = find(item.getSequenceIDs(), item.size(), item.getFingerprint());
+		if (pos != -1) {
+			counts[pos] += count;
+		} else {
+			insert(item, count);
+		}
+	}
+
+	/**
+	 * Returns the number of distinct sets of peaks
+	 */
+	public int size() {
+		return size;
+	}
+
+	public List<Entry<HDPMassClusterFeatures, Integer>> getEntries() {
+		List<Entry<HDPMassClusterFeatures, Integer>> entries = new ArrayList<Entry<HDPMassClusterFeatures, Integer>>(size);
+		for (int pos = 0; pos < size; pos++) {
+			entries.add(new SimpleImmutableEntry<HDPMassClusterFeatures, Integer>(keys[pos], counts[pos]));
+		}
+		return entries;
+	}
+
+	/**
+	 * Builds the pairwise co-clustering probabilities of the peaks from the counts so far
+	 * @param numPeaks The number of peaks across files
+	 * @param samplesTaken The number of samples the counts were accumulated over
+	 * @return The sparse matrix indexed by sequence ID
+	 */
+	public HDPCoClusteringMatrix getCoClusteringMatrix(int numPeaks, int samplesTaken) {
+		return new HDPCoClusteringMatrix(this, numPeaks, samplesTaken);
+	}
+
+	/**
+	 * Finds the position of a set of peaks in keys
+	 * @return The position, or -1 if not found
+	 */
+	private int find(int[] ids, int len, long fingerprint) {
+		int mask = table.length-1;
+		for (int slot = slotOf(fingerprint, mask); table[slot] != 0; slot = (slot+1) & mask) {
+			int pos = table[slot]-1;
+			if (keys[pos].matches(ids, len, fingerprint)) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(HDPMassClusterFeatures item, int count) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2*size);
+			counts = Arrays.copyOf(counts, 2*size);
+		}
+		keys[size] = item;
+		counts[size] = count;
+		size++;
+		// keep the load factor at most 1/2
+		if (2*size > table.length) {
+			rehash(2*table.length);
 		} else {
-			int newCount = currentCount+1;
-			counts.put(item, newCount);
+			putSlot(size-1);
+		}
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		for (int pos = 0; pos < size; pos++) {
+			putSlot(pos);
 		}
 	}
-	
-	public Set<Entry<HDPMassClusterFeatures, Integer>> getEntries() {
-		return counts.entrySet();
+
+	private void putSlot(int pos) {
+		int mask = table.length-1;
+		int slot = slotOf(keys[pos].getFingerprint(), mask);
+		while (table[slot] != 0) {
+			slot = (slot+1) & mask;
+		}
+		table[slot] = pos+1;
 	}
-	
-}
\ No newline at end of file
+
+	private static int slotOf(long fingerprint, int mask) {
+		return ((int) (fingerprint ^ (fingerprint >>> 32))) & mask;
+	}
+
+}
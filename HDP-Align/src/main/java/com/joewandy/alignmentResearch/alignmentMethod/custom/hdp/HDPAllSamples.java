@@ -26,6 +26,10 @@ public class HDPAllSamples implements Serializable {
 		HDPSingleSample resultsSample = new HDPSingleSample(metabolites);
 		samplingResults.add(resultsSample);
 	}
+
+	public void store(HDPSingleSample resultsSample) {
+		samplingResults.add(resultsSample);
+	}
 	
 	public List<HDPSingleSample> getSamplingResults() {
 		return samplingResults;
@@ -0,0 +1,251 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary checkpoint of a HDP mass-RT Gibbs chain, laid out in a single buffer that is written
+ * to and read from the file channel in one go. The file is not memory-mapped, as a mapping keeps
+ * the file open until it is garbage collected and on Windows that makes the replacing move fail.
+ * All sampler state is kept as primitive arrays, with peaks indexed by their sequence ID.
+ * The fields are filled in and consumed by {@link HDPMassRTClustering}.
+ */
+public class HDPCheckpoint {
+
+	private static final int MAGIC = 0x48445043; // "HDPC"
+	private static final int VERSION = 2;
+
+	// the input data this checkpoint belongs to
+	int totalPeaks;
+	long dataFingerprint;
+	int[] fileN;					// no. of peaks in each file
+
+	// sampler progress
+	int sweep;						// no. of completed samples
+	byte[] randomState;				// serialised random generator
+	int hdpMetaboliteId;
+	double[] movementScore;			// adaptive scan order state per peak, empty if not used
+	int[] visitCount;
+	int scheduledSweeps;
+
+	// metabolites
+	int[] metaboliteId;
+	double[] ti;
+	double[] si;
+	int[] massClusterSeqId;
+	int[] metaboliteA;				// no. of mass clusters in each metabolite
+	int[] massClusterId;			// flattened across metabolites
+	double[] massClusterTheta;
+	double[] massClusterSum;
+
+	// RT clusters
+	int[] fileK;					// no. of RT clusters in each file
+	int[] topZ;						// flattened across files
+	double[] tjk;
+	double[] sumZ;
+
+	// peak assignments, indexed by sequence ID
+	int[] peakRTCluster;			// position of the RT cluster within the peak's file
+	int[] peakMassCluster;			// position of the mass cluster within the parent metabolite
+
+	// accumulated results
+	double[] metaboliteCountTrace;
+	int samplesTaken;
+	int[] resultCounts;				// count of each aligned peak set
+	int[] resultSizes;				// size of each aligned peak set
+	int[] resultPeaks;				// sequence IDs of all the aligned peak sets, flattened
+
+	/**
+	 * Writes this checkpoint. The file is written next to the target first, forced to disk
+	 * and then moved into place, so an interrupted write never replaces a good checkpoint.
+	 * @param path The checkpoint file
+	 * @throws IOException
+	 */
+	public void write(String path) throws IOException {
+
+		File target = new File(path);
+		File temp = new File(path + ".tmp");
+		try (
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			FileChannel channel = raf.getChannel();
+		) {
+			raf.setLength(0);
+			long size = size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("HDP checkpoint of " + size + " bytes is too large");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(totalPeaks);
+			buffer.putLong(dataFingerprint);
+			putInts(buffer, fileN);
+			buffer.putInt(sweep);
+			putBytes(buffer, randomState);
+			buffer.putInt(hdpMetaboliteId);
+			putDoubles(buffer, movementScore);
+			putInts(buffer, visitCount);
+			buffer.putInt(scheduledSweeps);
+			putInts(buffer, metaboliteId);
+			putDoubles(buffer, ti);
+			putDoubles(buffer, si);
+			putInts(buffer, massClusterSeqId);
+			putInts(buffer, metaboliteA);
+			putInts(buffer, massClusterId);
+			putDoubles(buffer, massClusterTheta);
+			putDoubles(buffer, massClusterSum);
+			putInts(buffer, fileK);
+			putInts(buffer, topZ);
+			putDoubles(buffer, tjk);
+			putDoubles(buffer, sumZ);
+			putInts(buffer, peakRTCluster);
+			putInts(buffer, peakMassCluster);
+			putDoubles(buffer, metaboliteCountTrace);
+			buffer.putInt(samplesTaken);
+			putInts(buffer, resultCounts);
+			putInts(buffer, resultSizes);
+			putInts(buffer, resultPeaks);
+			assert(!buffer.hasRemaining());
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+	}
+
+	/**
+	 * Reads a checkpoint
+	 * @param path The checkpoint file
+	 * @return The checkpoint
+	 * @throws IOException if the file cannot be read or is not a checkpoint
+	 */
+	public static HDPCheckpoint read(String path) throws IOException {
+
+		try (
+			RandomAccessFile raf = new RandomAccessFile(path, "r");
+			FileChannel channel = raf.getChannel();
+		) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(path + " is too large to be a HDP checkpoint");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("Unexpected end of HDP checkpoint " + path);
+				}
+			}
+			buffer.flip();
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+				throw new IOException(path + " is not a HDP checkpoint");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported HDP checkpoint version " + version);
+			}
+			HDPCheckpoint cp = new HDPCheckpoint();
+			cp.totalPeaks = buffer.getInt();
+			cp.dataFingerprint = buffer.getLong();
+			cp.fileN = getInts(buffer);
+			cp.sweep = buffer.getInt();
+			cp.randomState = getBytes(buffer);
+			cp.hdpMetaboliteId = buffer.getInt();
+			cp.movementScore = getDoubles(buffer);
+			cp.visitCount = getInts(buffer);
+			cp.scheduledSweeps = buffer.getInt();
+			cp.metaboliteId = getInts(buffer);
+			cp.ti = getDoubles(buffer);
+			cp.si = getDoubles(buffer);
+			cp.massClusterSeqId = getInts(buffer);
+			cp.metaboliteA = getInts(buffer);
+			cp.massClusterId = getInts(buffer);
+			cp.massClusterTheta = getDoubles(buffer);
+			cp.massClusterSum = getDoubles(buffer);
+			cp.fileK = getInts(buffer);
+			cp.topZ = getInts(buffer);
+			cp.tjk = getDoubles(buffer);
+			cp.sumZ = getDoubles(buffer);
+			cp.peakRTCluster = getInts(buffer);
+			cp.peakMassCluster = getInts(buffer);
+			cp.metaboliteCountTrace = getDoubles(buffer);
+			cp.samplesTaken = buffer.getInt();
+			cp.resultCounts = getInts(buffer);
+			cp.resultSizes = getInts(buffer);
+			cp.resultPeaks = getInts(buffer);
+			return cp;
+		} catch (RuntimeException e) {
+			// truncated or corrupted file
+			throw new IOException("Cannot read HDP checkpoint " + path, e);
+		}
+
+	}
+
+	private long size() {
+		long size = 4 + 4 + 4 + 8 + 4 + 4 + 4 + 4;
+		size += 4 + randomState.length;
+		size += intsSize(fileN) + doublesSize(movementScore) + intsSize(visitCount);
+		size += intsSize(metaboliteId) + doublesSize(ti) + doublesSize(si);
+		size += intsSize(massClusterSeqId) + intsSize(metaboliteA) + intsSize(massClusterId);
+		size += doublesSize(massClusterTheta) + doublesSize(massClusterSum);
+		size += intsSize(fileK) + intsSize(topZ) + doublesSize(tjk) + doublesSize(sumZ);
+		size += intsSize(peakRTCluster) + intsSize(peakMassCluster);
+		size += doublesSize(metaboliteCountTrace);
+		size += intsSize(resultCounts) + intsSize(resultSizes) + intsSize(resultPeaks);
+		return size;
+	}
+
+	private static long intsSize(int[] arr) {
+		return 4 + 4L*arr.length;
+	}
+
+	private static long doublesSize(double[] arr) {
+		return 4 + 8L*arr.length;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] arr) {
+		buffer.putInt(arr.length);
+		buffer.put(arr);
+	}
+
+	private static void putInts(ByteBuffer buffer, int[] arr) {
+		buffer.putInt(arr.length);
+		buffer.asIntBuffer().put(arr);
+		buffer.position(buffer.position() + 4*arr.length);
+	}
+
+	private static void putDoubles(ByteBuffer buffer, double[] arr) {
+		buffer.putInt(arr.length);
+		buffer.asDoubleBuffer().put(arr);
+		buffer.position(buffer.position() + 8*arr.length);
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer) {
+		byte[] arr = new byte[buffer.getInt()];
+		buffer.get(arr);
+		return arr;
+	}
+
+	private static int[] getInts(ByteBuffer buffer) {
+		int[] arr = new int[buffer.getInt()];
+		buffer.asIntBuffer().get(arr);
+		buffer.position(buffer.position() + 4*arr.length);
+		return arr;
+	}
+
+	private static double[] getDoubles(ByteBuffer buffer) {
+		double[] arr = new double[buffer.getInt()];
+		buffer.asDoubleBuffer().get(arr);
+		buffer.position(buffer.position() + 8*arr.length);
+		return arr;
+	}
+
+}
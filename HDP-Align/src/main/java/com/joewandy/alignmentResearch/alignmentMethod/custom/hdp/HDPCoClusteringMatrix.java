@@ -0,0 +1,197 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.joewandy.alignmentResearch.util.GrowableIntArray;
+
+/**
+ * Symmetric peak-by-peak matrix of the posterior probability that two peaks are in the same
+ * mass cluster, stored in compressed sparse row form and indexed by the peaks' sequence IDs.
+ * Both (i, j) and (j, i) are stored, so all the peaks co-clustered with a peak are found in
+ * O(row nnz). The diagonal is not stored.
+ */
+public class HDPCoClusteringMatrix {
+
+	private final int numPeaks;
+	private final int samplesTaken;
+	private final int[] rowPtr;		// row i is in [rowPtr[i], rowPtr[i+1])
+	private final int[] colIdx;		// sorted within each row
+	private final int[] counts;		// no. of samples where the pair shares a mass cluster
+
+	/**
+	 * Builds the matrix from the accumulated counts of co-clustered peak sets
+	 * @param results The counts of each set of peaks put together in a mass cluster
+	 * @param numPeaks The number of peaks across files
+	 * @param samplesTaken The number of samples the counts were accumulated over
+	 */
+	public HDPCoClusteringMatrix(HDPAlignmentResults results, int numPeaks, int samplesTaken) {
+
+		this.numPeaks = numPeaks;
+		this.samplesTaken = samplesTaken;
+		List<Entry<HDPMassClusterFeatures, Integer>> entries = results.getEntries();
+
+		// count the pairs in each row, a pair can appear in several sets
+		int[] rowSize = new int[numPeaks+1];
+		for (Entry<HDPMassClusterFeatures, Integer> e : entries) {
+			int[] ids = e.getKey().getSequenceIDs();
+			for (int id : ids) {
+				rowSize[id] += ids.length-1;
+			}
+		}
+		int[] start = new int[numPeaks+1];
+		for (int i = 0; i < numPeaks; i++) {
+			start[i+1] = start[i] + rowSize[i];
+		}
+
+		// scatter the pairs, each packed as (column, count) so a row can be sorted in place
+		long[] pairs = new long[start[numPeaks]];
+		int[] fill = Arrays.copyOf(start, numPeaks);
+		for (Entry<HDPMassClusterFeatures, Integer> e : entries) {
+			int[] ids = e.getKey().getSequenceIDs();
+			long count = e.getValue();
+			for (int i : ids) {
+				for (int j : ids) {
+					if (i != j) {
+						pairs[fill[i]++] = (((long) j) << 32) | count;
+					}
+				}
+			}
+		}
+
+		// sort each row by column and sum the duplicates
+		this.rowPtr = new int[numPeaks+1];
+		GrowableIntArray cols = new GrowableIntArray(pairs.length);
+		GrowableIntArray vals = new GrowableIntArray(pairs.length);
+		for (int i = 0; i < numPeaks; i++) {
+			Arrays.sort(pairs, start[i], start[i+1]);
+			int lastCol = -1;
+			for (int p = start[i]; p < start[i+1]; p++) {
+				int col = (int) (pairs[p] >>> 32);
+				int count = (int) pairs[p];
+				if (col == lastCol) {
+					vals.addTo(vals.size()-1, count);
+				} else {
+					cols.add(col);
+					vals.add(count);
+					lastCol = col;
+				}
+			}
+			rowPtr[i+1] = cols.size();
+		}
+		this.colIdx = cols.toArray();
+		this.counts = vals.toArray();
+
+	}
+
+	public int getNumPeaks() {
+		return numPeaks;
+	}
+
+	/**
+	 * Returns the number of stored entries, i.e. twice the number of co-clustered pairs
+	 */
+	public int getNnz() {
+		return colIdx.length;
+	}
+
+	/**
+	 * Returns the probability that two peaks are in the same mass cluster
+	 * @param i The sequence ID of the first peak
+	 * @param j The sequence ID of the second peak
+	 * @return The probability, 1 if i == j
+	 */
+	public double getProbability(int i, int j) {
+		if (i == j) {
+			return 1;
+		}
+		int pos = Arrays.binarySearch(colIdx, rowPtr[i], rowPtr[i+1], j);
+		if (pos < 0) {
+			return 0;
+		}
+		return toProbability(counts[pos]);
+	}
+
+	/**
+	 * Returns the sequence IDs of all the peaks ever co-clustered with a peak, in ascending order
+	 * @param i The sequence ID of the peak
+	 */
+	public int[] getNeighbours(int i) {
+		return Arrays.copyOfRange(colIdx, rowPtr[i], rowPtr[i+1]);
+	}
+
+	/**
+	 * Returns the co-clustering probabilities of a peak, in the same order as {@link #getNeighbours(int)}
+	 * @param i The sequence ID of the peak
+	 */
+	public double[] getProbabilities(int i) {
+		double[] probs = new double[rowPtr[i+1] - rowPtr[i]];
+		for (int p = rowPtr[i]; p < rowPtr[i+1]; p++) {
+			probs[p - rowPtr[i]] = toProbability(counts[p]);
+		}
+		return probs;
+	}
+
+	/**
+	 * Groups peaks into the connected components of the graph with an edge between
+	 * every pair of peaks co-clustered with probability at least threshold
+	 * @param threshold The minimum probability of an edge
+	 * @return The sequence IDs of the peaks in each component of 2 or more peaks
+	 */
+	public List<int[]> getConnectedComponents(double threshold) {
+
+		// union-find with path halving
+		int[] parent = new int[numPeaks];
+		for (int i = 0; i < numPeaks; i++) {
+			parent[i] = i;
+		}
+		for (int i = 0; i < numPeaks; i++) {
+			for (int p = rowPtr[i]; p < rowPtr[i+1]; p++) {
+				int j = colIdx[p];
+				if (j > i && toProbability(counts[p]) >= threshold) {
+					int ri = find(parent, i);
+					int rj = find(parent, j);
+					if (ri != rj) {
+						parent[Math.max(ri, rj)] = Math.min(ri, rj);
+					}
+				}
+			}
+		}
+
+		// the root is the smallest ID in each component, so components come out in order of their first peak
+		int[] componentOf = new int[numPeaks];
+		Arrays.fill(componentOf, -1);
+		List<GrowableIntArray> members = new ArrayList<GrowableIntArray>();
+		for (int i = 0; i < numPeaks; i++) {
+			int root = find(parent, i);
+			if (componentOf[root] == -1) {
+				componentOf[root] = members.size();
+				members.add(new GrowableIntArray());
+			}
+			members.get(componentOf[root]).add(i);
+		}
+		List<int[]> components = new ArrayList<int[]>();
+		for (GrowableIntArray component : members) {
+			if (component.size() > 1) {
+				components.add(component.toArray());
+			}
+		}
+		return components;
+
+	}
+
+	private double toProbability(int count) {
+		return ((double) count) / samplesTaken;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+}
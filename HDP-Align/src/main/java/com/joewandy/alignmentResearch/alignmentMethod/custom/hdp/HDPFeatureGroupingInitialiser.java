@@ -0,0 +1,154 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.joewandy.alignmentResearch.grouping.FeatureGroupingMethod;
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.Feature;
+import com.joewandy.alignmentResearch.model.FeatureGroup;
+import com.joewandy.alignmentResearch.model.HDPMetabolite;
+
+/**
+ * Initialises the HDP mass-RT clustering from the per-file groups of a feature grouping method, 
+ * e.g. {@link com.joewandy.alignmentResearch.grouping.GreedyFeatureGroupingMethod}. The groups are 
+ * greedily matched across files by their mean RT to form the metabolites, then the peaks of each
+ * metabolite are greedily matched across files by mass to form its mass clusters. The result is
+ * deterministic, so it is computed once and every call on the same files, e.g. one per chain, 
+ * gets its own metabolites built from it.
+ */
+public class HDPFeatureGroupingInitialiser implements HDPInitialiser {
+
+	private FeatureGroupingMethod groupingMethod;
+	private double massTol;
+	private double rtTol;
+	
+	// the peaks of each mass cluster of each metabolite, computed on the first call
+	private List<AlignmentFile> initialisedFor;
+	private List<List<List<Feature>>> massClusters;
+	
+	/**
+	 * Creates the initialiser
+	 * @param groupingMethod The method to group the peaks within each file
+	 * @param massTol Mass tolerance in ppm
+	 * @param rtTol Retention time tolerance in seconds, used to match groups across files
+	 */
+	public HDPFeatureGroupingInitialiser(FeatureGroupingMethod groupingMethod, double massTol, double rtTol) {
+		this.groupingMethod = groupingMethod;
+		this.massTol = massTol;
+		this.rtTol = rtTol;
+	}
+	
+	@Override
+	public List<HDPMetabolite> initialise(List<AlignmentFile> dataList) {
+		
+		if (massClusters == null || initialisedFor != dataList) {
+			massClusters = computeMassClusters(dataList);
+			initialisedFor = dataList;
+		}
+		
+		List<HDPMetabolite> metabolites = new ArrayList<HDPMetabolite>();
+		for (List<List<Feature>> rows : massClusters) {
+			HDPMetabolite met = new HDPMetabolite(metabolites.size());
+			for (List<Feature> row : rows) {
+				int a = met.addMassCluster();
+				for (Feature f : row) {
+					met.addPeak(f, a);
+				}
+			}
+			metabolites.add(met);
+		}
+		System.out.println("Grouping initialisation: " + metabolites.size() + " metabolites");
+		return metabolites;
+		
+	}
+	
+	/**
+	 * Groups the peaks within each file, then matches the groups and their peaks across files
+	 * @param dataList The input files
+	 * @return The peaks of each mass cluster of each metabolite
+	 */
+	private List<List<List<Feature>>> computeMassClusters(List<AlignmentFile> dataList) {
+		
+		// group the peaks within each file
+		List<List<Set<Feature>>> fileGroups = new ArrayList<List<Set<Feature>>>();
+		double[][] groupRts = new double[dataList.size()][];
+		for (int j = 0; j < dataList.size(); j++) {
+			List<Set<Feature>> groups = getGroups(dataList.get(j));
+			groupRts[j] = new double[groups.size()];
+			for (int g = 0; g < groups.size(); g++) {
+				double sum = 0;
+				for (Feature f : groups.get(g)) {
+					sum += f.getRt();
+				}
+				groupRts[j][g] = sum / groups.get(g).size();
+			}
+			fileGroups.add(groups);
+		}
+		groupingMethod.close();
+		
+		// match the groups across files into metabolites
+		int[][] metOfGroup = HDPGreedyInitialiser.join(null, groupRts, massTol, rtTol);
+		List<List<List<Feature>>> metPeaks = new ArrayList<List<List<Feature>>>();
+		for (int j = 0; j < dataList.size(); j++) {
+			for (int g = 0; g < fileGroups.get(j).size(); g++) {
+				int i = metOfGroup[j][g];
+				while (metPeaks.size() <= i) {
+					List<List<Feature>> peaks = new ArrayList<List<Feature>>();
+					for (int rep = 0; rep < dataList.size(); rep++) {
+						peaks.add(new ArrayList<Feature>());
+					}
+					metPeaks.add(peaks);
+				}
+				metPeaks.get(i).get(j).addAll(fileGroups.get(j).get(g));
+			}
+		}
+		
+		// match the peaks of each metabolite across files into mass clusters
+		List<List<List<Feature>>> result = new ArrayList<List<List<Feature>>>();
+		for (List<List<Feature>> peaks : metPeaks) {
+			result.add(HDPGreedyInitialiser.joinPeaks(peaks, massTol, Double.POSITIVE_INFINITY));
+		}
+		return result;
+		
+	}
+	
+	/**
+	 * Groups the peaks of a file, each peak is put into exactly one group
+	 * @param data The file
+	 * @return The groups
+	 */
+	private List<Set<Feature>> getGroups(AlignmentFile data) {
+		
+		List<Set<Feature>> groups = new ArrayList<Set<Feature>>();
+		Set<Feature> grouped = new HashSet<Feature>();
+		
+		// a ZZProb left by an earlier grouping with other parameters would be reused by the grouping method
+		data.clearGrouping();
+		for (FeatureGroup group : groupingMethod.group(data)) {
+			Set<Feature> members = new HashSet<Feature>();
+			for (Feature f : group.getFeatures()) {
+				if (grouped.add(f)) {
+					members.add(f);
+				}
+			}
+			if (!members.isEmpty()) {
+				groups.add(members);
+			}
+		}
+		
+		// anything left out by the grouping method goes into its own group
+		for (Feature f : data.getFeatures()) {
+			if (!grouped.contains(f)) {
+				Set<Feature> members = new HashSet<Feature>();
+				members.add(f);
+				groups.add(members);
+			}
+		}
+		return groups;
+		
+	}
+	
+}
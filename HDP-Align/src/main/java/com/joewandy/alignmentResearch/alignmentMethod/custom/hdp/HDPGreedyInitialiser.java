@@ -0,0 +1,210 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.Feature;
+import com.joewandy.alignmentResearch.model.HDPMetabolite;
+import com.joewandy.alignmentResearch.util.ArrayMathUtil;
+
+/**
+ * Initialises the HDP mass-RT clustering from a greedy mass and RT matching of peaks across files,
+ * similar to the join aligner of MZmine. Each aligned row becomes a metabolite with one mass cluster, 
+ * co-eluting ions are then merged into the same metabolite by the Gibbs sweeps.
+ */
+public class HDPGreedyInitialiser implements HDPInitialiser {
+
+	private double massTol;
+	private double rtTol;
+	
+	/**
+	 * Creates the initialiser
+	 * @param massTol Mass tolerance in ppm
+	 * @param rtTol Retention time tolerance in seconds
+	 */
+	public HDPGreedyInitialiser(double massTol, double rtTol) {
+		this.massTol = massTol;
+		this.rtTol = rtTol;
+	}
+	
+	@Override
+	public List<HDPMetabolite> initialise(List<AlignmentFile> dataList) {
+		
+		List<List<Feature>> peaks = new ArrayList<List<Feature>>();
+		for (AlignmentFile file : dataList) {
+			peaks.add(file.getFeatures());
+		}
+		List<List<Feature>> rows = joinPeaks(peaks, massTol, rtTol);
+		
+		List<HDPMetabolite> metabolites = new ArrayList<HDPMetabolite>();
+		for (List<Feature> row : rows) {
+			HDPMetabolite met = new HDPMetabolite(metabolites.size());
+			int a = met.addMassCluster();
+			for (Feature f : row) {
+				met.addPeak(f, a);
+			}
+			metabolites.add(met);
+		}
+		System.out.println("Greedy initialisation: " + metabolites.size() + " metabolites");
+		return metabolites;
+		
+	}
+	
+	/**
+	 * Greedily matches peaks across files by mass and RT
+	 * @param peaks The peaks of each file
+	 * @param massTol Mass tolerance in ppm
+	 * @param rtTol Retention time tolerance in seconds
+	 * @return The aligned rows, with at most one peak from each file
+	 */
+	static List<List<Feature>> joinPeaks(List<List<Feature>> peaks, double massTol, double rtTol) {
+		
+		double[][] masses = new double[peaks.size()][];
+		double[][] rts = new double[peaks.size()][];
+		for (int j = 0; j < peaks.size(); j++) {
+			List<Feature> filePeaks = peaks.get(j);
+			masses[j] = new double[filePeaks.size()];
+			rts[j] = new double[filePeaks.size()];
+			for (int n = 0; n < filePeaks.size(); n++) {
+				masses[j][n] = filePeaks.get(n).getMass();
+				rts[j][n] = filePeaks.get(n).getRt();
+			}
+		}
+		
+		int[][] rowOfPeak = join(masses, rts, massTol, rtTol);
+		List<List<Feature>> rows = new ArrayList<List<Feature>>();
+		for (int j = 0; j < peaks.size(); j++) {
+			for (int n = 0; n < peaks.get(j).size(); n++) {
+				int row = rowOfPeak[j][n];
+				while (rows.size() <= row) {
+					rows.add(new ArrayList<Feature>());
+				}
+				rows.get(row).add(peaks.get(j).get(n));
+			}
+		}
+		return rows;
+		
+	}
+	
+	/**
+	 * Greedily joins items across files into rows. Files are added one at a time: every item
+	 * is scored against the rows within tolerance, then the item-row pairs are taken in order of 
+	 * decreasing score as long as neither is matched yet. Unmatched items start new rows.
+	 * @param masses The mass of each item in each file, or null to match by RT only
+	 * @param rts The RT of each item in each file
+	 * @param massTol Mass tolerance in ppm
+	 * @param rtTol Retention time tolerance in seconds
+	 * @return The row of each item in each file
+	 */
+	static int[][] join(double[][] masses, double[][] rts, double massTol, double rtTol) {
+		
+		boolean useMass = masses != null;
+		List<double[]> rowSums = new ArrayList<double[]>(); // sum of mass, sum of RT, count
+		int[][] rowOfItem = new int[rts.length][];
+		for (int j = 0; j < rts.length; j++) {
+			
+			// rows sorted by their mean mass, or mean RT if not using the mass
+			final double[] rowKeys = new double[rowSums.size()];
+			Integer[] order = new Integer[rowSums.size()];
+			for (int r = 0; r < rowSums.size(); r++) {
+				double[] sums = rowSums.get(r);
+				rowKeys[r] = useMass ? sums[0]/sums[2] : sums[1]/sums[2];
+				order[r] = r;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer r1, Integer r2) {
+					return Double.compare(rowKeys[r1], rowKeys[r2]);
+				}
+			});
+			double[] sortedKeys = new double[order.length];
+			for (int pos = 0; pos < order.length; pos++) {
+				sortedKeys[pos] = rowKeys[order[pos]];
+			}
+			
+			// score all the item-row pairs within tolerance
+			List<Candidate> candidates = new ArrayList<Candidate>();
+			for (int n = 0; n < rts[j].length; n++) {
+				double key = useMass ? masses[j][n] : rts[j][n];
+				double window = useMass ? key * massTol / 1E6 * 1.01 : rtTol;
+				int pos = ArrayMathUtil.lowerBound(sortedKeys, key - window);
+				for (; pos < sortedKeys.length && sortedKeys[pos] <= key + window; pos++) {
+					int r = order[pos];
+					double[] sums = rowSums.get(r);
+					double rtDiff = Math.abs(rts[j][n] - sums[1]/sums[2]);
+					if (rtDiff > rtTol) {
+						continue;
+					}
+					double score = 1 - (rtTol > 0 ? rtDiff/rtTol : 0);
+					if (useMass) {
+						double rowMass = sums[0]/sums[2];
+						double ppm = Math.abs(masses[j][n] - rowMass) / rowMass * 1E6;
+						if (ppm > massTol) {
+							continue;
+						}
+						score += 1 - (massTol > 0 ? ppm/massTol : 0);
+					}
+					candidates.add(new Candidate(score, n, r));
+				}
+			}
+			Collections.sort(candidates);
+			
+			// take the best pairs first
+			rowOfItem[j] = new int[rts[j].length];
+			Arrays.fill(rowOfItem[j], -1);
+			boolean[] rowTaken = new boolean[rowSums.size()];
+			for (Candidate c : candidates) {
+				if (rowOfItem[j][c.item] == -1 && !rowTaken[c.row]) {
+					rowOfItem[j][c.item] = c.row;
+					rowTaken[c.row] = true;
+				}
+			}
+			for (int n = 0; n < rts[j].length; n++) {
+				if (rowOfItem[j][n] == -1) {
+					rowOfItem[j][n] = rowSums.size();
+					rowSums.add(new double[3]);
+				}
+				double[] sums = rowSums.get(rowOfItem[j][n]);
+				sums[0] += useMass ? masses[j][n] : 0;
+				sums[1] += rts[j][n];
+				sums[2]++;
+			}
+			
+		}
+		return rowOfItem;
+		
+	}
+	
+	private static class Candidate implements Comparable<Candidate> {
+		
+		private final double score;
+		private final int item;
+		private final int row;
+		
+		private Candidate(double score, int item, int row) {
+			this.score = score;
+			this.item = item;
+			this.row = row;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			// best score first, ties broken by position so the result is deterministic
+			int res = Double.compare(other.score, score);
+			if (res != 0) {
+				return res;
+			}
+			res = Integer.compare(item, other.item);
+			if (res != 0) {
+				return res;
+			}
+			return Integer.compare(row, other.row);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,21 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.List;
+
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.HDPMetabolite;
+
+/**
+ * Provides the initial state of the HDP mass-RT Gibbs sampler. The peaks of each initial
+ * metabolite in a file are put into one RT cluster.
+ */
+public interface HDPInitialiser {
+
+	/**
+	 * Groups all the peaks into initial metabolites and mass clusters
+	 * @param dataList The input files
+	 * @return The metabolites, each peak must be in exactly one of their mass clusters
+	 */
+	public List<HDPMetabolite> initialise(List<AlignmentFile> dataList);
+	
+}
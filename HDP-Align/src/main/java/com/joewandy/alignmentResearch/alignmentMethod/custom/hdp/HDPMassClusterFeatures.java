@@ -1,29 +1,100 @@
 package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
 
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Set;
 
 import com.joewandy.alignmentResearch.model.Feature;
 
+/**
+ * A set of peaks put together in the same mass cluster, identified by the sorted
+ * sequence IDs of its peaks. The 64-bit fingerprint of the IDs is computed once,
+ * so hashing and comparing keys never touches the Feature objects.
+ */
 public class HDPMassClusterFeatures {
 
-	private Set<Feature> features;
-	
-	public HDPMassClusterFeatures(Set<Feature> features) {
-		this.features = Collections.unmodifiableSet(features);
+	private final Feature[] features;		// sorted by sequence ID
+	private final int[] sequenceIDs;		// sorted
+	private final long fingerprint;
+
+	public HDPMassClusterFeatures(Collection<Feature> features) {
+		this.features = features.toArray(new Feature[features.size()]);
+		Arrays.sort(this.features, new Comparator<Feature>() {
+			@Override
+			public int compare(Feature f1, Feature f2) {
+				return Integer.compare(f1.getSequenceID(), f2.getSequenceID());
+			}
+		});
+		this.sequenceIDs = new int[this.features.length];
+		for (int m = 0; m < this.features.length; m++) {
+			sequenceIDs[m] = this.features[m].getSequenceID();
+		}
+		this.fingerprint = fingerprint(sequenceIDs, sequenceIDs.length);
+	}
+
+	/**
+	 * Constructs a key from peaks that are already sorted by sequence ID
+	 */
+	HDPMassClusterFeatures(Feature[] sortedFeatures, int[] sortedIDs, long fingerprint) {
+		this.features = sortedFeatures;
+		this.sequenceIDs = sortedIDs;
+		this.fingerprint = fingerprint;
 	}
 
 	public Set<Feature> getFeatures() {
-		return features;
+		return new HashSet<Feature>(Arrays.asList(features));
+	}
+
+	public int[] getSequenceIDs() {
+		return sequenceIDs;
+	}
+
+	public int size() {
+		return sequenceIDs.length;
+	}
+
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Checks whether this key holds exactly the first len sorted sequence IDs in ids
+	 */
+	boolean matches(int[] ids, int len, long fingerprint) {
+		if (this.fingerprint != fingerprint || sequenceIDs.length != len) {
+			return false;
+		}
+		for (int m = 0; m < len; m++) {
+			if (sequenceIDs[m] != ids[m]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the 64-bit fingerprint of the first len sorted sequence IDs
+	 */
+	static long fingerprint(int[] ids, int len) {
+		long h = len;
+		for (int m = 0; m < len; m++) {
+			h = (h ^ ids[m]) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 29;
+		}
+		// murmur3 finaliser
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
 	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result
-				+ ((features == null) ? 0 : features.hashCode());
-		return result;
+		return (int) (fingerprint ^ (fingerprint >>> 32));
 	}
 
 	@Override
@@ -35,17 +106,12 @@ public class HDPMassClusterFeatures {
 		if (getClass() != obj.getClass())
 			return false;
 		HDPMassClusterFeatures other = (HDPMassClusterFeatures) obj;
-		if (features == null) {
-			if (other.features != null)
-				return false;
-		} else if (!features.equals(other.features))
-			return false;
-		return true;
+		return matches(other.sequenceIDs, other.sequenceIDs.length, other.fingerprint);
 	}
 
 	@Override
 	public String toString() {
-		return "HDPResultItem size=" + features.size() + " [features=" + features + "]";
+		return "HDPResultItem size=" + features.length + " [features=" + Arrays.toString(features) + "]";
 	}
-	
+
 }
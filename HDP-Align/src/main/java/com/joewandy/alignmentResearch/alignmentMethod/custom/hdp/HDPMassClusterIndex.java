@@ -0,0 +1,129 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import com.joewandy.alignmentResearch.model.HDPMassCluster;
+import com.joewandy.alignmentResearch.model.HDPMetabolite;
+
+/**
+ * Index of all non-empty mass clusters across metabolites, sorted by the
+ * posterior predictive mean of their log mass. Used to prune the mass clusters
+ * that need to be scored for a peak during Gibbs sampling.
+ */
+public class HDPMassClusterIndex {
+
+	private final double componentPrec;
+	private final double hyperparamMean;
+	private final double hyperparamPrec;
+
+	private NavigableSet<Entry> entries;
+	private Map<HDPMassCluster, Entry> entryOfCluster;
+	private int entrySeqId;
+
+	/**
+	 * Constructs an empty index
+	 * @param componentPrec Mixture component precision
+	 * @param hyperparamMean Hyperparameter mean of the mixture component mean
+	 * @param hyperparamPrec Hyperparameter precision of the mixture component mean
+	 */
+	public HDPMassClusterIndex(double componentPrec, double hyperparamMean, double hyperparamPrec) {
+		this.componentPrec = componentPrec;
+		this.hyperparamMean = hyperparamMean;
+		this.hyperparamPrec = hyperparamPrec;
+		this.entries = new TreeSet<Entry>(new EntryComparator());
+		this.entryOfCluster = new HashMap<HDPMassCluster, Entry>();
+	}
+
+	/**
+	 * Re-indexes a mass cluster after peaks have been added to or removed from it.
+	 * Empty mass clusters are dropped from the index.
+	 * @param met The parent metabolite
+	 * @param mc The mass cluster
+	 */
+	public void update(HDPMetabolite met, HDPMassCluster mc) {
+		Entry entry = entryOfCluster.remove(mc);
+		if (entry != null) {
+			entries.remove(entry);
+		}
+		if (mc.getCountPeaks() > 0) {
+			double beta = hyperparamPrec + (componentPrec*mc.getCountPeaks());
+			double centre = (1/beta) * ((hyperparamPrec*hyperparamMean) + (componentPrec*mc.getSumPeaks()));
+			Entry newEntry = new Entry(centre, entrySeqId++, met, mc);
+			entries.add(newEntry);
+			entryOfCluster.put(mc, newEntry);
+		}
+	}
+
+	/**
+	 * Drops a mass cluster from the index, used when its metabolite is replaced
+	 * @param mc The mass cluster
+	 */
+	public void remove(HDPMassCluster mc) {
+		Entry entry = entryOfCluster.remove(mc);
+		if (entry != null) {
+			entries.remove(entry);
+		}
+	}
+
+	/**
+	 * Returns all the indexed mass clusters with predictive mean inside [lower, upper]
+	 * @param lower The lower bound of log mass
+	 * @param upper The upper bound of log mass
+	 * @return The matching entries, in ascending order of predictive mean
+	 */
+	public Iterable<Entry> query(double lower, double upper) {
+		Entry from = new Entry(lower, Integer.MIN_VALUE, null, null);
+		Entry to = new Entry(upper, Integer.MAX_VALUE, null, null);
+		return entries.subSet(from, true, to, true);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public static class Entry {
+
+		private final double centre;
+		private final int seqId;
+		private final HDPMetabolite metabolite;
+		private final HDPMassCluster massCluster;
+
+		private Entry(double centre, int seqId, HDPMetabolite metabolite, HDPMassCluster massCluster) {
+			this.centre = centre;
+			this.seqId = seqId;
+			this.metabolite = metabolite;
+			this.massCluster = massCluster;
+		}
+
+		public double getCentre() {
+			return centre;
+		}
+
+		public HDPMetabolite getMetabolite() {
+			return metabolite;
+		}
+
+		public HDPMassCluster getMassCluster() {
+			return massCluster;
+		}
+
+	}
+
+	private static class EntryComparator implements Comparator<Entry> {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			int res = Double.compare(e1.centre, e2.centre);
+			if (res != 0) {
+				return res;
+			}
+			return Integer.compare(e1.seqId, e2.seqId);
+		}
+
+	}
+
+}
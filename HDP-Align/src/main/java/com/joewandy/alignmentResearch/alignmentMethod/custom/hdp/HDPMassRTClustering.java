@@ -1,31 +1,41 @@
 package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
 
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.addArray;
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.append;
 import static com.joewandy.alignmentResearch.util.ArrayMathUtil.computeLogLikelihood;
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.expArray;
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.logArray;
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.max;
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.normalise;
+import static com.joewandy.alignmentResearch.util.ArrayMathUtil.ensureCapacity;
+import static com.joewandy.alignmentResearch.util.ArrayMathUtil.expNormalise;
+import static com.joewandy.alignmentResearch.util.ArrayMathUtil.logSumExp;
 import static com.joewandy.alignmentResearch.util.ArrayMathUtil.sample;
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.subsArray;
+import static com.joewandy.alignmentResearch.util.ArrayMathUtil.sampleGumbelMax;
 import static com.joewandy.alignmentResearch.util.ArrayMathUtil.sum;
-import static com.joewandy.alignmentResearch.util.ArrayMathUtil.toDouble;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.math3.random.RandomData;
 import org.apache.commons.math3.random.RandomDataImpl;
+import org.apache.commons.math3.random.Well19937c;
+import org.apache.commons.math3.special.Gamma;
 
 import com.joewandy.alignmentResearch.alignmentMethod.AlignmentMethodParam;
+import com.joewandy.alignmentResearch.grouping.FeatureGroupingMethod;
+import com.joewandy.alignmentResearch.grouping.GreedyFeatureGroupingMethod;
+import com.joewandy.alignmentResearch.main.MultiAlignConstants;
 import com.joewandy.alignmentResearch.model.AlignmentFile;
-import com.joewandy.alignmentResearch.model.DpResult;
 import com.joewandy.alignmentResearch.model.Feature;
 import com.joewandy.alignmentResearch.model.HDPAnnotation;
 import com.joewandy.alignmentResearch.model.HDPClustering;
@@ -33,6 +43,8 @@ import com.joewandy.alignmentResearch.model.HDPClusteringParam;
 import com.joewandy.alignmentResearch.model.HDPFile;
 import com.joewandy.alignmentResearch.model.HDPMassCluster;
 import com.joewandy.alignmentResearch.model.HDPMetabolite;
+import com.joewandy.alignmentResearch.util.GrowableDoubleArray;
+import com.joewandy.alignmentResearch.util.GrowableIntArray;
 
 public class HDPMassRTClustering implements HDPClustering {
 
@@ -40,20 +52,41 @@ public class HDPMassRTClustering implements HDPClustering {
 	private List<HDPFile> hdpFiles;					// input files to be processed
 	private List<HDPMetabolite> hdpMetabolites;		// inferred metabolites
 	private int hdpMetaboliteId;					// sequence ID for metabolites
-	private final RandomData randomData;			// random data generator	
+	private Well19937c randomGenerator;				// source of randomness, kept to save its state
+	private RandomData randomData;					// random data generator	
 	private HDPSampleHandler sampleHandler;		// stores the samples obtained from Gibbs sampling
 	private HDPSampleProcessor sampleProcessor;	// process the samples after Gibbs sampling is done
-	private String hdpClusteringResultsPath;		// path to previous clustering results to load, if any
+	private String hdpClusteringResultsPath;		// path to the checkpoint of this chain, if any
 
-	// experimental hack to ignore peaks during gibbs update
-	private Map<Feature, Integer> singletonCount;		
-	private Set<Feature> ignoreSet; 	
+	// optional index to prune the mass clusters scored for each peak
+	private HDPMassClusterIndex massClusterIndex;
+	private double[] prunedHitLike;			// likelihood of the scored mass clusters, by metabolite position
+	private int[] prunedHitCount;			// peaks in the scored mass clusters, by metabolite position
+	private GrowableIntArray prunedHits;	// positions of the metabolites touched by the last window query
+	private double prunedNewLike;			// likelihood of the new mass cluster of the last peak
+	private double prunedPeakLike;			// likelihood taken for each peak in a skipped mass cluster
+	
+	// acceptance of the optional split-merge moves
+	private int rtSplitMergeProposed;
+	private int rtSplitMergeAccepted;
+	private int metSplitMergeProposed;
+	private int metSplitMergeAccepted;
+	private boolean splitMergeRepair;		// true during burn-in, see acceptSplitMerge
+	
+	// optional adaptive scan order, to update settled peaks less often
+	private HDPScanScheduler scanScheduler;
+	
+	// scratch buffers reused by every Gibbs update, grown as needed
+	private double[] metaboliteMassLike;
+	private double[] metabolitePostScratch;
+	private double[] clusterPostScratch;
+	private double[] massTermScratch;
 	
 	// TODO: move all these into HDPMetabolite
 	private int I;									// how many metabolites are there?
-	private List<Integer> fi;						// no. of RT clusters in each metabolite
-	private List<Double> ti;						// RT value of each metabolite
-	private List<Double> si;						// sum of RT clusters' time in each metabolite
+	private GrowableIntArray fi;					// no. of RT clusters in each metabolite
+	private GrowableDoubleArray ti;					// RT value of each metabolite
+	private GrowableDoubleArray si;					// sum of RT clusters' time in each metabolite
 			
 	/**
 	 * Constructs an instance of HDP clustering by mass and RT
@@ -61,22 +94,61 @@ public class HDPMassRTClustering implements HDPClustering {
 	 * @param methodParam Alignment method parameters
 	 */
 	public HDPMassRTClustering(List<AlignmentFile> dataList, AlignmentMethodParam methodParam) {
+		this(dataList, methodParam, new Well19937c(), createInitialiser(methodParam));
+	}
+
+	/**
+	 * Constructs an instance of HDP clustering by mass and RT with a fixed random seed, 
+	 * used when running several independent chains
+	 * @param dataList The list of files to be processed
+	 * @param methodParam Alignment method parameters
+	 * @param seed The seed for the random data generator of this chain
+	 */
+	public HDPMassRTClustering(List<AlignmentFile> dataList, AlignmentMethodParam methodParam, long seed) {
+		this(dataList, methodParam, new Well19937c(seed), createInitialiser(methodParam));
+	}
+
+	/**
+	 * Constructs an instance of HDP clustering by mass and RT with a fixed random seed and 
+	 * an initialiser shared with other chains
+	 * @param dataList The list of files to be processed
+	 * @param methodParam Alignment method parameters
+	 * @param seed The seed for the random data generator of this chain
+	 * @param initialiser The initialiser from {@link #createInitialiser(AlignmentMethodParam)}, or null
+	 */
+	HDPMassRTClustering(List<AlignmentFile> dataList, AlignmentMethodParam methodParam, long seed, 
+			HDPInitialiser initialiser) {
+		this(dataList, methodParam, new Well19937c(seed), initialiser);
+	}
 
-		this.randomData = new RandomDataImpl();
-		this.singletonCount = new HashMap<Feature, Integer>();
-		this.ignoreSet = new HashSet<Feature>();
+	private HDPMassRTClustering(List<AlignmentFile> dataList, AlignmentMethodParam methodParam, 
+			Well19937c randomGenerator, HDPInitialiser initialiser) {
+
+		this.randomGenerator = randomGenerator;
+		this.randomData = new RandomDataImpl(randomGenerator);
 		
 		// set HDP parameters
 		this.hdpParam = new HDPClusteringParam();
 		setHdpParam(dataList, methodParam);
 		this.hdpClusteringResultsPath = methodParam.getHdpClusteringResultsPath();
+		if (hdpClusteringResultsPath != null) {
+			// checkpoints only keep the accumulated counts, so samples are processed as they are drawn
+			hdpParam.setStreamSamples(true);
+		}
 		
 		// assign a sequential ID to all peaks to store the result later
 		initialiseSequenceID(dataList);
 		this.hdpMetabolites = new ArrayList<HDPMetabolite>();
 		
-		// put all peaks into 1 RT cluster, 1 metabolite, 1 mass cluster
-		initialiseGibbsSampling(dataList);
+		// put all peaks into 1 RT cluster, 1 metabolite, 1 mass cluster, unless an initialiser is chosen
+		if (initialiser == null) {
+			initialiseGibbsSampling(dataList);
+		} else {
+			initialiseGibbsSampling(dataList, initialiser.initialise(dataList));
+		}
+		if (hdpParam.isMassPruning()) {
+			initialiseMassClusterIndex();
+		}
 
 		// setup sample handler, call this only after gibbs sampling has been initialised
 		int totalPeaks = 0;
@@ -84,12 +156,19 @@ public class HDPMassRTClustering implements HDPClustering {
 			totalPeaks += file.getFeaturesCount();
 		}
 		this.sampleHandler = new HDPSampleHandler(totalPeaks, hdpMetabolites);
+		if (hdpParam.isSpeedUpHacks()) {
+			this.scanScheduler = new HDPScanScheduler(totalPeaks, hdpParam.getSpeedUpNumSample(), 
+					hdpParam.getSpeedUpMinVisitRate());
+		}
 		
 		// setup sample processor
 		double massTol = methodParam.getHdpMassTol();
 		String idDatabase = methodParam.getIdentificationDatabase();
 		String mode = methodParam.getMode();
 		this.sampleProcessor = new HDPSampleProcessor(massTol, idDatabase, mode);
+		if (hdpParam.isStreamSamples()) {
+			sampleHandler.streamTo(sampleProcessor, hdpParam.getSampleThinning());
+		}
 
 	}
 
@@ -98,20 +177,31 @@ public class HDPMassRTClustering implements HDPClustering {
 	 */
 	public void runClustering() {
 		
-		// if path to previous clustering results is provided, then try to load it
-		boolean loadSuccess = false;
-		if (hdpClusteringResultsPath != null) {			
-			loadSuccess = sampleHandler.initialiseResultsFromPath(hdpClusteringResultsPath);
+		// if a checkpoint of this chain is available, then continue from there
+		int startSample = 0;
+		if (hdpClusteringResultsPath != null) {
+			startSample = resumeFromCheckpoint();
 		}
 		
-		if (!loadSuccess) {
+		if (startSample < hdpParam.getNsamps()) {
+			
+			// split-merge moves can't keep the RT clusters of a reference file fixed to their metabolites
+			int splitMergeMoves = hdpParam.getSplitMergeMoves();
+			if (splitMergeMoves > 0 && hdpParam.getRefFileIdx() != -1) {
+				System.out.println("Split-merge moves are not used with a reference file");
+				splitMergeMoves = 0;
+			}
 			
-			// need to run a new clustering here
 			double totalTime = 0;
-			for (int s = 0; s < hdpParam.getNsamps(); s++) {
+			for (int s = startSample; s < hdpParam.getNsamps(); s++) {
 				
 				long startTime = System.currentTimeMillis();
 				int peaksProcessed = assignPeakMassRt();
+				splitMergeRepair = (s+1) <= hdpParam.getBurnIn();
+				for (int m = 0; m < splitMergeMoves; m++) {
+					splitMergeRTClusters();
+					splitMergeMetabolites();
+				}
 				updateParametersMassRt();
 				long endTime = System.currentTimeMillis();
 				double timeTaken = (endTime - startTime) / 1000.0;
@@ -124,20 +214,59 @@ public class HDPMassRTClustering implements HDPClustering {
 				}
 				sampleHandler.storeSample(s, peaksProcessed, timeTaken, hdpParam, last);
 				
+				// periodically save the state of this chain
+				if (hdpClusteringResultsPath != null) {
+					int interval = hdpParam.getCheckpointInterval();
+					if (last || (interval > 0 && (s+1) % interval == 0)) {
+						saveCheckpoint(s+1);
+					}
+				}
+				
 			}
 			System.out.println(String.format("TOTAL TIME = %5.2fs", totalTime));
+			if (scanScheduler != null) {
+				double[] rates = scanScheduler.getVisitRates();
+				double minRate = rates.length == 0 ? 0 : rates[0];
+				for (double rate : rates) {
+					minRate = Math.min(minRate, rate);
+				}
+				System.out.println(String.format("Peak visit rate mean = %.3f, min = %.3f", 
+						sum(rates) / rates.length, minRate));
+			}
+			if (splitMergeMoves > 0) {
+				System.out.println(String.format("Split-merge accepted %d/%d RT cluster and %d/%d metabolite proposals", 
+						rtSplitMergeAccepted, rtSplitMergeProposed, metSplitMergeAccepted, metSplitMergeProposed));
+			}
 
-			// if path is provided, then try to save this clustering results
-			if (hdpClusteringResultsPath != null) {
-				sampleHandler.persistResultsToPath(hdpClusteringResultsPath);
+			// process the results, unless they have already been processed as they were drawn
+			if (!hdpParam.isStreamSamples()) {
+				HDPAllSamples resultsList = sampleHandler.getSamplingResults();
+				sampleProcessor.processSample(resultsList);
 			}
+			if (sampleProcessor.getIdDatabase() != null) {
+				System.out.println(sampleProcessor.getIdDatabase());
+			}
+			
+		} else {
+			
+			// a finished chain has been reloaded, so only annotate its final state with the current settings 
+			sampleProcessor.annotateSample(new HDPSingleSample(hdpMetabolites));
 			
 		}
 		
-		// process the results, regardless of whether it's loaded or new clustering results
-		HDPAllSamples resultsList = sampleHandler.getSamplingResults();
-		sampleProcessor.processSample(resultsList);
-		
+	}
+	
+	/**
+	 * Sets the checkpoint file of this chain
+	 * @param hdpClusteringResultsPath The checkpoint file
+	 */
+	public void setHdpClusteringResultsPath(String hdpClusteringResultsPath) {
+		this.hdpClusteringResultsPath = hdpClusteringResultsPath;
+		if (hdpClusteringResultsPath != null && !hdpParam.isStreamSamples()) {
+			// as in the constructor, checkpoints need the samples processed as they are drawn
+			hdpParam.setStreamSamples(true);
+			sampleHandler.streamTo(sampleProcessor, hdpParam.getSampleThinning());
+		}
 	}
 	
 	/**
@@ -154,6 +283,21 @@ public class HDPMassRTClustering implements HDPClustering {
 		return sampleProcessor.getSamplesTaken();
 	}
 
+	/**
+	 * Returns the number of metabolites in each post burn-in sample, used for convergence diagnostics
+	 */
+	public double[] getMetaboliteCountTrace() {
+		return sampleHandler.getMetaboliteCountTrace();
+	}
+
+	/**
+	 * Returns the fraction of samples in which each peak has been updated, indexed by sequence ID,
+	 * or null if the adaptive scan order is not used
+	 */
+	public double[] getVisitRates() {
+		return scanScheduler == null ? null : scanScheduler.getVisitRates();
+	}
+
 	/**
 	 * Returns annotations on features for ionisation products
 	 */
@@ -222,7 +366,14 @@ public class HDPMassRTClustering implements HDPClustering {
 
 		hdpParam.setSpeedUpHacks(methodParam.isHdpSpeedUp());
 		hdpParam.setSpeedUpNumSample(methodParam.getHdpSpeedUpNumSample());
+		hdpParam.setSpeedUpMinVisitRate(methodParam.getHdpSpeedUpMinVisitRate());
 		hdpParam.setRefFileIdx(methodParam.getHdpRefFileIdx());
+		hdpParam.setMassPruning(methodParam.isHdpMassPruning());
+		hdpParam.setMassPruningStdev(methodParam.getHdpMassPruningStdev());
+		hdpParam.setStreamSamples(methodParam.isHdpStreamSamples());
+		hdpParam.setSampleThinning(methodParam.getHdpSampleThinning());
+		hdpParam.setCheckpointInterval(methodParam.getHdpCheckpointInterval());
+		hdpParam.setSplitMergeMoves(methodParam.getHdpSplitMergeMoves());
 				
 	}
 	
@@ -259,9 +410,9 @@ public class HDPMassRTClustering implements HDPClustering {
 
 		// sample initial metabolite RT
 		this.I = 1;
-		this.fi = new ArrayList<Integer>();
-		this.ti = new ArrayList<Double>();
-		this.si = new ArrayList<Double>();
+		this.fi = new GrowableIntArray();
+		this.ti = new GrowableDoubleArray();
+		this.si = new GrowableDoubleArray();
 		for (int i = 0; i < this.I; i++) {
 			double rt = randomData.nextGaussian(hdpParam.getMu_0(), 
 					Math.sqrt(1/hdpParam.getSigma_0_prec()));
@@ -269,7 +420,7 @@ public class HDPMassRTClustering implements HDPClustering {
 			appendTi(rt);
 			appendSi(0.0);
 			hdpMetaboliteId = i;
-			this.hdpMetabolites.add(new HDPMetabolite(hdpMetaboliteId));
+			appendMetabolite(new HDPMetabolite(hdpMetaboliteId));
 		}
 		
 	    // assign peaks across files into 1 RT cluster per file, 1 metabolite
@@ -295,7 +446,7 @@ public class HDPMassRTClustering implements HDPClustering {
 				hdpFile.appendTopZ(0); // assign all RT clusters under 1 metabolite 
 				// 1 x K, sample initial the clusters' RT
 				int parentI = hdpFile.topZ(k);
-				double mu = this.ti.get(parentI);
+				double mu = ti(parentI);
 				double prec = hdpParam.getDelta_prec();
 				double tjk = sampleNewClusterRt(mu, prec, j);
 				hdpFile.appendTjk(tjk);
@@ -324,6 +475,130 @@ public class HDPMassRTClustering implements HDPClustering {
 		
 	}
 
+	/**
+	 * Builds the initial state from the metabolites and mass clusters given by an initialiser.
+	 * The peaks of a metabolite in each file are put into one RT cluster, with its RT at the 
+	 * mean RT of the peaks, and the metabolite RT is at the mean RT of its RT clusters.
+	 * @param dataList The list of input files
+	 * @param initialMetabolites The initial metabolites, covering all peaks
+	 */
+	private void initialiseGibbsSampling(List<AlignmentFile> dataList, List<HDPMetabolite> initialMetabolites) {
+		
+		this.I = initialMetabolites.size();
+		this.fi = new GrowableIntArray(I);
+		this.ti = new GrowableDoubleArray(I);
+		this.si = new GrowableDoubleArray(I);
+		Map<Feature, Integer> metaboliteOfPeak = new HashMap<Feature, Integer>();
+		for (int i = 0; i < this.I; i++) {
+			HDPMetabolite met = initialMetabolites.get(i);
+			assert(met.peakDataSize() > 0 && met.getEmptyMassClusters().isEmpty());
+			met.setId(i);
+			for (Feature f : met.getPeakData()) {
+				metaboliteOfPeak.put(f, i);
+			}
+			updateMassClusterTheta(met);
+			appendFi(0);
+			appendTi(0.0);
+			appendSi(0.0);
+			appendMetabolite(met);
+		}
+		hdpMetaboliteId = this.I;
+		
+		// 1 RT cluster for each metabolite present in a file
+		hdpFiles = new ArrayList<HDPFile>();
+		for (int j = 0; j < dataList.size(); j++) {
+			
+			HDPFile hdpFile = new HDPFile(j);
+			hdpFile.addFeatures(dataList.get(j).getFeatures());
+			Map<Integer, Integer> clusterOfMetabolite = new HashMap<Integer, Integer>();
+			for (int n = 0; n < hdpFile.N(); n++) {
+				Feature f = hdpFile.getFeature(n);
+				int i = metaboliteOfPeak.get(f);
+				Integer k = clusterOfMetabolite.get(i);
+				if (k == null) {
+					k = hdpFile.K();
+					hdpFile.increaseK();
+					hdpFile.appendTopZ(i);
+					hdpFile.appendTjk(0.0);
+					hdpFile.appendCountZ(0);
+					hdpFile.appendSumZ(0.0);
+					increaseFi(i);
+					clusterOfMetabolite.put(i, k);
+				}
+				hdpFile.appendZ(k);
+				hdpFile.increaseCountZ(k);
+				hdpFile.addSumZ(k, f.getRt());
+			}
+			for (int k = 0; k < hdpFile.K(); k++) {
+				double tjk = hdpFile.sumZ(k) / hdpFile.countZ(k);
+				hdpFile.setTjk(k, tjk);
+				addSi(hdpFile.topZ(k), tjk);
+			}
+			hdpFiles.add(hdpFile);
+			
+		}
+		
+		for (int i = 0; i < this.I; i++) {
+			setTi(i, si(i) / fi(i));
+		}
+
+		// the RT clusters of the reference file sit at their metabolite RT
+		if (hdpParam.getRefFileIdx() != -1) {
+			HDPFile refFile = hdpFiles.get(hdpParam.getRefFileIdx());
+			for (int k = 0; k < refFile.K(); k++) {
+				int i = refFile.topZ(k);
+				addSi(i, ti(i) - refFile.tjk(k));
+				refFile.setTjk(k, ti(i));
+			}
+		}
+		
+	}
+	
+	/**
+	 * Creates the initialiser chosen in the method parameters
+	 * @param methodParam Alignment method parameters
+	 * @return The initialiser, or null to put all peaks into 1 metabolite
+	 */
+	static HDPInitialiser createInitialiser(AlignmentMethodParam methodParam) {
+		String initialisation = methodParam.getHdpInitialisation();
+		if (MultiAlignConstants.HDP_INITIALISATION_GREEDY.equals(initialisation)) {
+			return new HDPGreedyInitialiser(methodParam.getHdpMassTol(), methodParam.getRtTolerance());
+		} else if (MultiAlignConstants.HDP_INITIALISATION_GROUPING.equals(initialisation)) {
+			FeatureGroupingMethod grouping = new GreedyFeatureGroupingMethod(methodParam.getGroupingRtTolerance(), 
+					methodParam.isUsePeakShape(), methodParam.getMinCorrSignal());
+			return new HDPFeatureGroupingInitialiser(grouping, methodParam.getHdpMassTol(), methodParam.getRtTolerance());
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the index of mass clusters used to prune the candidates scored for each peak.
+	 * Mass clusters with predictive mean more than massPruningStdev standard deviations away
+	 * from a peak are skipped. Each peak in a skipped mass cluster contributes between 0 and
+	 * B = sqrt(rho_prec/2pi) * exp(-massPruningStdev^2/2) to the (unnormalised) likelihood, 
+	 * so it is taken to contribute B/2, and the likelihood of every metabolite is within B/2
+	 * of the unpruned one.
+	 */
+	private void initialiseMassClusterIndex() {
+		
+		massClusterIndex = new HDPMassClusterIndex(hdpParam.getRho_prec(), 
+				hdpParam.getPsi_0(), hdpParam.getRho_0_prec());
+		prunedHitLike = new double[0];
+		prunedHitCount = new int[0];
+		prunedHits = new GrowableIntArray();
+		for (HDPMetabolite met : hdpMetabolites) {
+			for (HDPMassCluster mc : met.getMassClusters()) {
+				massClusterIndex.update(met, mc);
+			}
+		}
+
+		double k = hdpParam.getMassPruningStdev();
+		double peakBound = Math.sqrt(hdpParam.getRho_prec()/(2*Math.PI)) * Math.exp(-k*k/2);
+		prunedPeakLike = peakBound / 2;
+		System.out.println("massPruningStdev = " + k + ", max error of pruned likelihood = " + prunedPeakLike);
+		
+	}
+	
 	/**
 	 * Samples a new cluster RT given the parent metabolite
 	 * @param mu parent metabolite RT
@@ -346,12 +621,16 @@ public class HDPMassRTClustering implements HDPClustering {
 		
 	/**
 	 * Performs the actual Gibbs sampling here. Loop across all peaks in all files,
-	 * remove peak from model and reassign it.
+	 * remove peak from model and reassign it. With the adaptive scan order, only the
+	 * peaks picked by the scheduler are updated, except in full sweeps.
 	 * @return 
 	 */
 	private int assignPeakMassRt() {
 		
 		int peaksProcessed = 0;
+		if (scanScheduler != null) {
+			scanScheduler.startSweep();
+		}
 		
 		// TODO: loop across all files randomly
 		for (HDPFile hdpFile : hdpFiles) {
@@ -360,42 +639,27 @@ public class HDPMassRTClustering implements HDPClustering {
 			assert(hdpFile.N() == hdpFile.Zsize());
 			for (int n = 0; n < hdpFile.N(); n++) {
 				
-				// enable experimental hack to speed up gibbs update
-				if (hdpParam.isSpeedUpHacks()) {
-
-					Feature thisPeak = hdpFile.getFeatures().get(n);
-
-					// we will not process anything in the ignore set
-					if (ignoreSet.contains(thisPeak)) {
-						continue;
-					}
+				Feature thisPeak = hdpFile.getFeatures().get(n);
+				if (scanScheduler != null && !scanScheduler.shouldVisit(thisPeak, randomData)) {
+					continue;
+				}
 
-					int k = hdpFile.Z(n); 
-					int i = hdpFile.topZ(k);
-					HDPMetabolite met = hdpMetabolites.get(i);
-					assert(met.vSize() == met.peakDataSize());
-					
-					// track how many times this peak is assigned to a singleton cluster
-					boolean ignored = trackSingletonCount(thisPeak, met);
-					if (!ignored) {
-						// if not ignored, then perform the gibbs update as usual
-						removePeakFromModel(hdpFile, thisPeak, met, n, k, i);
-						reassignPeak(hdpFile, thisPeak, n);					
-						peaksProcessed++;
-					}
-																	
-				} else {
-					
-					// do old-fashioned update
-					Feature thisPeak = hdpFile.getFeatures().get(n);
-					int k = hdpFile.Z(n); 
-					int i = hdpFile.topZ(k);
-					HDPMetabolite met = hdpMetabolites.get(i);
-					assert(met.vSize() == met.peakDataSize());					
-					removePeakFromModel(hdpFile, thisPeak, met, n, k, i);
-					reassignPeak(hdpFile, thisPeak, n);					
-					peaksProcessed++;
-					
+				int k = hdpFile.Z(n); 
+				int i = hdpFile.topZ(k);
+				HDPMetabolite met = hdpMetabolites.get(i);
+				assert(met.vSize() == met.peakDataSize());
+				HDPMassCluster oldMassCluster = met.getMassClusterOfPeak(thisPeak);
+				boolean wasSingleton = oldMassCluster.getCountPeaks() == 1;
+				removePeakFromModel(hdpFile, thisPeak, met, n, k, i);
+				HDPMetabolite newMet = reassignPeak(hdpFile, thisPeak, n);					
+				peaksProcessed++;
+				
+				if (scanScheduler != null) {
+					// a singleton that stays a singleton hasn't moved, even though its mass cluster is new
+					HDPMassCluster newMassCluster = newMet.getMassClusterOfPeak(thisPeak);
+					boolean stayed = newMassCluster == oldMassCluster 
+							|| (wasSingleton && newMassCluster.getCountPeaks() == 1);
+					scanScheduler.recordVisit(thisPeak, !stayed);
 				}
 				
 			} // end loop across peaks randomly
@@ -423,6 +687,9 @@ public class HDPMassRTClustering implements HDPClustering {
 		hdpFile.decreaseCountZ(k);
 		hdpFile.subsSumZ(k, thisPeak.getRt());
 		HDPMassCluster massCluster = met.removePeak(thisPeak);
+		if (massClusterIndex != null) {
+			massClusterIndex.update(met, massCluster);
+		}
 		
 		// does this result in an empty mass cluster ?
 		if (massCluster.getCountPeaks() == 0) {
@@ -435,18 +702,9 @@ public class HDPMassRTClustering implements HDPClustering {
 		// does this result in an empty RT cluster ?
 		if (hdpFile.countZ(k) == 0) {
 			
-			// delete the RT cluster
-			hdpFile.decreaseK();
-			hdpFile.reindexZ(k);
-			
-			// update for bookkeeping
-			hdpFile.removeCountZ(k);
-			hdpFile.removeSumZ(k);
+			// delete the RT cluster, this also removes its assignment to the parent metabolite
 			double tij = hdpFile.tjk(k);
-			hdpFile.removeTjk(k);
-			
-			// remove assignment of cluster to parent metabolite
-			hdpFile.removeTopZ(k);
+			hdpFile.removeRTCluster(k);
 			
 			// decrease count of clusters under parent metabolite
 			decreaseFi(i);
@@ -455,23 +713,18 @@ public class HDPMassRTClustering implements HDPClustering {
 			// does this result in an empty metabolite ?
 			if (fi(i) == 0) {
 				
-				// delete the metabolite across all replicates
-				for (int rep = 0; rep < hdpFiles.size(); rep++) {
-					
-					HDPFile repFile = hdpFiles.get(rep);
-					repFile.reindexTopZ(i);
-					
-				}
+				// delete top-level info, the last metabolite is moved into position i
+				int last = removeMetabolite(i);
 				
-				// delete top-level info too
-				removeFi(i);
-				removeSi(i);
-				removeTi(i);
+				// relabel the RT clusters of the moved metabolite across all replicates
+				if (last != i) {
+					for (int rep = 0; rep < hdpFiles.size(); rep++) {
+						HDPFile repFile = hdpFiles.get(rep);
+						repFile.replaceTopZ(last, i);
+					}
+				}
 				this.I--;
 				
-				// delete mass clusters info related to this metabolite too
-				hdpMetabolites.remove(i);
-				
 			}
 			
 		}
@@ -489,46 +742,34 @@ public class HDPMassRTClustering implements HDPClustering {
 	 */
 	private HDPMetabolite reassignPeak(HDPFile hdpFile, Feature thisPeak, int n) {
 
-		// for current RT cluster, first compute the RT term
-		double[] rtTermLogLike = computeCurrentClusterRTLikelihood(
-				hdpFile, thisPeak);
-		
-		// then for every RT cluster, compute the likelihood of this peak to be in the mass clusters linked to it
-		double[] metaboliteMassLike = new double[I];
-		for (int metIndex = 0; metIndex < I; metIndex++) {
-			HDPMetabolite thisMetabolite = hdpMetabolites.get(metIndex);
-			double[] massTermLogPost = computeMassTermLogLikelihood(
-					thisPeak, thisMetabolite);
-			// marginalise over all the mass clusters by summing over them
-			metaboliteMassLike[metIndex] = sum(expArray(massTermLogPost));				
-		}								
-		// % 1 by K, stores the mass log likelihood linked to each RT cluster
-		double[] massTermLogLike = new double[hdpFile.K()];
-		for (int thisCluster = 0; thisCluster < hdpFile.K(); thisCluster++) {
-			int metIndex = hdpFile.topZ(thisCluster); // find the parent metabolite
-			massTermLogLike[thisCluster] = Math.log(metaboliteMassLike[metIndex]);					
+		// for every metabolite, compute the likelihood of this peak to be in the mass clusters linked to it,
+		// when pruning only the mass clusters near the peak are scored here and the loop below fills in the rest
+		metaboliteMassLike = ensureCapacity(metaboliteMassLike, I);
+		if (massClusterIndex != null) {
+			scorePrunedMassClusters(thisPeak);
+		} else {
+			for (int metIndex = 0; metIndex < I; metIndex++) {
+				metaboliteMassLike[metIndex] = exactMetaboliteMassLikelihood(thisPeak, metIndex);
+			}
 		}
 		
-		// finally, the likelihood of peak going into a current cluster eq #14 is the RT * mass terms
-		double[] currentClusterLogLike = addArray(rtTermLogLike, massTermLogLike);
-		
-		// now compute the likelihood for peak going into new cluster, eq #18    
-		// first, compute p( x_nj | existing metabolite )
-		double denum = sum(fiArray()) + hdpParam.getTop_alpha();
-		double[] currentMetabolitePost = new double[I];
-		
+		// compute the likelihood for peak going into new cluster, eq #18    
+		// first, compute p( x_nj | existing metabolite ), in log space
+		int numMet = I+1;
+		metabolitePostScratch = ensureCapacity(metabolitePostScratch, numMet);
+		double denum = fi.sum() + hdpParam.getTop_alpha();
+		double rtPrec = 1/(1/hdpParam.getGamma_prec() + 1/hdpParam.getDelta_prec());
 		for (int idx = 0; idx < I; idx++) {
 			double logPrior = Math.log(fi(idx) / denum);
 			// first compute the RT term
-			double mu = ti(idx);
-			double prec = 1/(1/hdpParam.getGamma_prec() + 1/hdpParam.getDelta_prec());
-			double rtLogLikelihood = computeLogLikelihood(thisPeak.getRt(), mu, prec);
+			double rtLogLikelihood = computeLogLikelihood(thisPeak.getRt(), ti(idx), rtPrec);
 			// then compute the mass term
+			if (massClusterIndex != null) {
+				metaboliteMassLike[idx] = prunedMetaboliteMassLikelihood(idx);
+			}
 			double massLogLikelihood = Math.log(metaboliteMassLike[idx]);
 			// multiply likelihood with prior to get the posterior p( d_jn | existing metabolite )
-			double logLikelihood = rtLogLikelihood + massLogLikelihood;
-			double logPosterior = logPrior + logLikelihood;
-			currentMetabolitePost[idx] = Math.exp(logPosterior);
+			metabolitePostScratch[idx] = logPrior + rtLogLikelihood + massLogLikelihood;
 		}
 		
 		// then compute p( d_jn | new metabolite ), eq #22
@@ -539,44 +780,40 @@ public class HDPMassRTClustering implements HDPClustering {
 		mu = hdpParam.getPsi_0();
 		prec = 1/(1/hdpParam.getRho_prec() + 1/hdpParam.getRho_0_prec()); 
 		double massLogLikelihood = computeLogLikelihood(thisPeak.getMass(), mu, prec);
-		double logLikelihood = rtLogLikelihood + massLogLikelihood;
-		double logNewMetabolitePost = logPrior + logLikelihood;
-		double newMetabolitePost = Math.exp(logNewMetabolitePost);
+		metabolitePostScratch[I] = logPrior + rtLogLikelihood + massLogLikelihood;
 		
 		// sum over for eq #18
-		double[] metabolitePost = append(currentMetabolitePost, newMetabolitePost);
-		double newClusterLogLike = Math.log(sum(metabolitePost));
+		double newClusterLogLike = logSumExp(metabolitePostScratch, numMet);
 					
-		// pick either existing or new RT cluster
-		// set the prior
-		int[] countZArr = hdpFile.countZArray();
-		double[] clusterPrior = append(toDouble(countZArr), hdpParam.getAlpha_rt());
-		clusterPrior = normalise(clusterPrior, sum(clusterPrior));
-		double[] clusterLogLike = append(currentClusterLogLike, newClusterLogLike);
-		double[] clusterLogPost = addArray(logArray(clusterPrior), clusterLogLike);
+		// pick either existing or new RT cluster, the prior is proportional to the RT cluster sizes and alpha_rt
+		// and the likelihood of a current cluster eq #14 is the RT * mass terms
+		int numClusters = hdpFile.K()+1;
+		clusterPostScratch = ensureCapacity(clusterPostScratch, numClusters);
+		double gammaPrec = hdpParam.getGamma_prec();
+		for (int thisCluster = 0; thisCluster < hdpFile.K(); thisCluster++) {
+			int metIndex = hdpFile.topZ(thisCluster); // find the parent metabolite
+			clusterPostScratch[thisCluster] = Math.log(hdpFile.countZ(thisCluster)) 
+					+ computeLogLikelihood(thisPeak.getRt(), hdpFile.tjk(thisCluster), gammaPrec)
+					+ Math.log(metaboliteMassLike[metIndex]);
+		}
+		clusterPostScratch[hdpFile.K()] = Math.log(hdpParam.getAlpha_rt()) + newClusterLogLike;
 		
 		// compute and sample from posterior
-		double[] clusterPost = expArray(subsArray(clusterLogPost, max(clusterLogPost)));
-		clusterPost = normalise(clusterPost, sum(clusterPost));
-		int k = sample(clusterPost, randomData);
+		expNormalise(clusterPostScratch, numClusters);
+		int k = sample(clusterPostScratch, numClusters, randomData);
 		if ((k+1) > hdpFile.K()) {
 			assignPeakToNewRTCluster(hdpFile, thisPeak, k,
-					metabolitePost);
+					metabolitePostScratch, numMet);
 		}
 		
 		// now given RT cluster k, we can assign peak to the mass clusters linked to k
 		// find the parent metabolite first  
 		int i = hdpFile.topZ(k);
 		
-		// for existing and new mass cluster
+		// pick the existing or new mass cluster, there are only a few so Gumbel-max saves normalising them
 		HDPMetabolite met = hdpMetabolites.get(i);
-		double[] massTermLogPost = computeMassTermLogLikelihood(
-				thisPeak, met);
-		
-		// pick the mass cluster
-		double[] post = expArray(subsArray(massTermLogPost, max(massTermLogPost)));
-		post = normalise(post, sum(post));
-		int a = sample(post, randomData);
+		int len = computeMassTermLogLikelihood(thisPeak, met);
+		int a = sampleGumbelMax(massTermScratch, len, randomData);
 		if ((a+1) > met.getA()) {
 			met.addMassCluster(); // make new mass cluster										
 		}
@@ -590,47 +827,14 @@ public class HDPMassRTClustering implements HDPClustering {
 	}
 	
 	/**
-	 * Tracks how many times a peak is assigned to a singleton cluster
-	 * @param thisPeak The peak to track
-	 * @param parentMet The parent metabolite
-	 */
-	private boolean trackSingletonCount(Feature thisPeak, HDPMetabolite parentMet) {
-
-		HDPMassCluster mc = parentMet.getMassClusterOfPeak(thisPeak);				
-		assert(mc.getCountPeaks() != 0);
-		Integer counter = singletonCount.get(thisPeak);
-		
-		if (counter == null) {
-			// never encounter this peak before
-			singletonCount.put(thisPeak, 1);
-		} else {
-		
-			if (mc.getCountPeaks() == 1) {
-				// increment count if this peak is in a singleton cluster
-				singletonCount.put(thisPeak, counter+1);
-				// if the peak stays single long enough, add him to ignore set
-				if (counter >= this.hdpParam.getSpeedUpNumSample()) {
-					ignoreSet.add(thisPeak);
-					return true;
-				}
-			} else {
-				// reset counter if this peak joins a non-singleton cluster
-				singletonCount.put(thisPeak, 0);
-			}
-			
-		}		
-		return false;
-
-	}
-
-	/**
-	 * Computes the posterior probability distribution of peak to be 
-	 * in the internal mass clusters of this metabolite
+	 * Computes the posterior probability distribution of peak to be in the internal 
+	 * mass clusters of this metabolite, i.e. the log prior and likelihood of the peak's 
+	 * log mass in the metabolite's DP mixture. The result is written to massTermScratch.
 	 * @param thisPeak The peak
 	 * @param thisMetabolite The metabolite
-	 * @return The posterior probability distribution (log)
+	 * @return The number of entries written, one per mass cluster plus a new one at the end
 	 */
-	private double[] computeMassTermLogLikelihood(Feature thisPeak,
+	private int computeMassTermLogLikelihood(Feature thisPeak,
 			HDPMetabolite thisMetabolite) {
 		
 		double x = thisPeak.getMassLog();
@@ -638,45 +842,136 @@ public class HDPMassRTClustering implements HDPClustering {
 		double hyperparamMean = hdpParam.getPsi_0();
 		double hyperparamPrec = hdpParam.getRho_0_prec();
 		double dpAlpha = hdpParam.getAlpha_mass();
-		int[] cCounts = thisMetabolite.faArray();
-		double[] cSums = thisMetabolite.saArray();
-		DpResult dpResult = getDpLogPriorLikelihood(x, componentPrec, hyperparamMean, hyperparamPrec, 
-				dpAlpha, cCounts, cSums);
+		List<HDPMassCluster> massClusters = thisMetabolite.getMassClusters();
+		int numFinite = massClusters.size();
+		massTermScratch = ensureCapacity(massTermScratch, numFinite+1);
+		
+		// for current mass clusters
+		int totalCount = 0;
+		for (int a = 0; a < numFinite; a++) {
+			HDPMassCluster mc = massClusters.get(a);
+			int count = mc.getCountPeaks();
+			totalCount += count;
+			if (mc.containsPeakFromFile(thisPeak.getFileID())) {
+				// hack to prevent peaks going into the same mass cluster if another peak from the same file is already there
+				massTermScratch[a] = Double.NEGATIVE_INFINITY;
+				continue;
+			}
+			double paramBeta = hyperparamPrec + (componentPrec*count);
+			double paramAlpha = (1/paramBeta) * ((hyperparamPrec*hyperparamMean) + (componentPrec*mc.getSumPeaks()));
+			double prec = 1/(1/paramBeta + 1/componentPrec);
+			massTermScratch[a] = Math.log(count) + computeLogLikelihood(x, paramAlpha, prec);
+		}
 		
-		// compute posterior probability
-		double[] massTermLogPrior = dpResult.getLogPrior();
-		double[] massTermLogLikelihood = dpResult.getLogLikelihood();
-		// hack to prevent peaks going into the same mass cluster if another peak from the same file is already there
-		massTermLogLikelihood = modifyTerms(thisPeak, thisMetabolite, massTermLogLikelihood);
-		double[] massTermLogPost = addArray(massTermLogPrior, massTermLogLikelihood);
+		// for new mass cluster
+		double prec = 1/(1/hyperparamPrec + 1/componentPrec);
+		massTermScratch[numFinite] = Math.log(dpAlpha) + computeLogLikelihood(x, hyperparamMean, prec);
 		
-		return massTermLogPost;
+		// normalise the prior
+		double logDenum = Math.log(totalCount + dpAlpha);
+		for (int a = 0; a <= numFinite; a++) {
+			massTermScratch[a] -= logDenum;
+		}
+		return numFinite+1;
+
+	}
 
+	/**
+	 * Computes the likelihood of peak to be in a metabolite, marginalised over all its mass clusters
+	 * @param thisPeak The peak
+	 * @param metIndex The metabolite position index
+	 * @return The likelihood
+	 */
+	private double exactMetaboliteMassLikelihood(Feature thisPeak, int metIndex) {
+		int len = computeMassTermLogLikelihood(thisPeak, hdpMetabolites.get(metIndex));
+		return Math.exp(logSumExp(massTermScratch, len));
 	}
 
 	/**
-	 * Computes the log likelihood of peak to be in the current RT
-	 * clusters in hdpFile
-	 * @param hdpFile The file containing the RT clusters
+	 * Scores the mass clusters within the pruning window of a peak using the mass cluster index, 
+	 * adding their likelihood and number of peaks to the entries of their metabolites. Only the
+	 * metabolites touched by the previous query are reset, so the cost depends on the number of 
+	 * candidates rather than the number of metabolites.
 	 * @param thisPeak The peak
-	 * @return The log likelihood distribution
 	 */
-	private double[] computeCurrentClusterRTLikelihood(HDPFile hdpFile,
-			Feature thisPeak) {
+	private void scorePrunedMassClusters(Feature thisPeak) {
 		
-		double[] tijArr = hdpFile.tjkArray();
-		double prec = hdpParam.getGamma_prec();
-		double[] rtTermLogLike = new double[tijArr.length];
-		assert(hdpFile.K()==rtTermLogLike.length);
+		double x = thisPeak.getMassLog();
+		double componentPrec = hdpParam.getRho_prec();
+		double hyperparamMean = hdpParam.getPsi_0();
+		double hyperparamPrec = hdpParam.getRho_0_prec();
+		double dpAlpha = hdpParam.getAlpha_mass();
 
-		for (int idx = 0; idx < tijArr.length; idx++) {
-			double tij = tijArr[idx];
-			double logLikelihood = computeLogLikelihood(thisPeak.getRt(), tij, prec);
-			rtTermLogLike[idx] = logLikelihood;
+		for (int h = 0; h < prunedHits.size(); h++) {
+			int metIndex = prunedHits.get(h);
+			if (metIndex < prunedHitLike.length) {
+				prunedHitLike[metIndex] = 0;
+				prunedHitCount[metIndex] = 0;
+			}
 		}
+		prunedHits.clear();
+		if (prunedHitLike.length < I) {
+			int newLength = Math.max(I, 2*prunedHitLike.length);
+			prunedHitLike = Arrays.copyOf(prunedHitLike, newLength);
+			prunedHitCount = Arrays.copyOf(prunedHitCount, newLength);
+		}
+		
+		// the predictive precision of any mass cluster is at least componentPrec/2
+		double window = hdpParam.getMassPruningStdev() * Math.sqrt(2/componentPrec);
+		for (HDPMassClusterIndex.Entry entry : massClusterIndex.query(x-window, x+window)) {
+			HDPMassCluster mc = entry.getMassCluster();
+			int metIndex = entry.getMetabolite().getPosition();
+			int count = mc.getCountPeaks();
+			if (prunedHitCount[metIndex] == 0) {
+				prunedHits.add(metIndex);
+			}
+			prunedHitCount[metIndex] += count;
+			// same hack as computeMassTermLogLikelihood, peaks from the same file can't go into the same mass cluster
+			if (mc.containsPeakFromFile(thisPeak.getFileID())) {
+				continue;
+			}
+			double paramBeta = hyperparamPrec + (componentPrec*count);
+			double prec = 1/(1/paramBeta + 1/componentPrec);
+			prunedHitLike[metIndex] += count * Math.exp(computeLogLikelihood(x, entry.getCentre(), prec));
+		}
+		
+		// the new mass cluster term is the same for every metabolite, only the prior differs
+		double newPrec = 1/(1/hyperparamPrec + 1/componentPrec);
+		prunedNewLike = dpAlpha * Math.exp(computeLogLikelihood(x, hyperparamMean, newPrec));
 		
-		return rtTermLogLike;
+	}
+	
+	/**
+	 * Computes the likelihood of the last peak given to scorePrunedMassClusters to be in a metabolite, 
+	 * marginalised over its mass clusters. The peaks in skipped mass clusters are added to the 
+	 * new mass cluster term, each with half the largest likelihood a skipped peak can have.
+	 * @param metIndex The metabolite position index
+	 * @return The likelihood
+	 */
+	private double prunedMetaboliteMassLikelihood(int metIndex) {
+		int count = hdpMetabolites.get(metIndex).peakDataSize();
+		int skipped = count - prunedHitCount[metIndex];
+		double like = prunedNewLike + prunedHitLike[metIndex] + skipped*prunedPeakLike;
+		return like / (count + hdpParam.getAlpha_mass());
+	}
 
+	/**
+	 * Computes the likelihood of peak to be in each metabolite, as done when reassigning it, 
+	 * used to check the pruned likelihood against the exact one
+	 * @param thisPeak The peak
+	 * @param pruned Whether to use the mass cluster index, which is only built when mass pruning is on
+	 * @return The likelihood of each metabolite
+	 */
+	double[] computeMetaboliteMassLikelihood(Feature thisPeak, boolean pruned) {
+		double[] like = new double[I];
+		if (pruned) {
+			scorePrunedMassClusters(thisPeak);
+		}
+		for (int metIndex = 0; metIndex < I; metIndex++) {
+			like[metIndex] = pruned ? prunedMetaboliteMassLikelihood(metIndex) 
+					: exactMetaboliteMassLikelihood(thisPeak, metIndex);
+		}
+		return like;
 	}
 
 	/**
@@ -685,11 +980,12 @@ public class HDPMassRTClustering implements HDPClustering {
 	 * @param hdpFile The file containing the peak
 	 * @param thisPeak The peak
 	 * @param k The new cluster index
-	 * @param metabolitePost The posterior probability distribution of peak
-	 * 		to be in existing metabolites and a new metabolite
+	 * @param metaboliteLogPost The unnormalised log posterior of peak
+	 * 		to be in existing metabolites and a new metabolite, overwritten
+	 * @param numMet The number of entries in metaboliteLogPost
 	 */
 	private void assignPeakToNewRTCluster(HDPFile hdpFile, Feature thisPeak,
-			int k, double[] metabolitePost) {
+			int k, double[] metaboliteLogPost, int numMet) {
 
 		// new cluster
 		hdpFile.increaseK();
@@ -702,8 +998,8 @@ public class HDPMassRTClustering implements HDPClustering {
 		hdpFile.appendTopZ(0);
 		
 		// decide which metabolite to assign the new cluster to
-		metabolitePost = normalise(metabolitePost, sum(metabolitePost));
-		int i = sample(metabolitePost, randomData);		
+		expNormalise(metaboliteLogPost, numMet);
+		int i = sample(metaboliteLogPost, numMet, randomData);
 		if ((i+1) <= this.I) {
 			assignPeakToCurrentMetabolite(hdpFile, k, i);						
 		} else {
@@ -756,7 +1052,7 @@ public class HDPMassRTClustering implements HDPClustering {
 		appendTi(newTi);
 		
 		// create empty mass cluster data structures for use later
-		hdpMetabolites.add(new HDPMetabolite(hdpMetaboliteId));
+		appendMetabolite(new HDPMetabolite(hdpMetaboliteId));
 		hdpMetaboliteId++;
 
 	}
@@ -776,6 +1072,9 @@ public class HDPMassRTClustering implements HDPClustering {
 
 		// assign the peak under mass cluster a
 		met.addPeak(thisPeak, a);
+		if (massClusterIndex != null) {
+			massClusterIndex.update(met, met.getMassClusterOfPeak(thisPeak));
+		}
 		
 		// assign the peak under RT cluster k
 		hdpFile.setZ(n, k);
@@ -787,89 +1086,6 @@ public class HDPMassRTClustering implements HDPClustering {
 
 	}
 
-	/**
-	 * Computes log prior and likelihood of a value x in a DP mixture
-	 * with some mean, a fixed precision, and concentration parameter dpAlpha.
-	 * @param x The value
-	 * @param componentPrec Mixture component precision
-	 * @param hyperparamMean Hyperparameter mean of the mixture component mean
-	 * @param hyperparamPrec Hyperparameter precision of the mixture component mean
-	 * @param dpAlpha DP concentration parameter
-	 * @param cCounts Arrays of counts of existing data points in current mixture components
-	 * @param cSums Sums of values of existing data points in current mixture components
-	 * @return
-	 */
-	private DpResult getDpLogPriorLikelihood(double x, double componentPrec, 
-			double hyperparamMean, double hyperparamPrec, double dpAlpha, 
-			int[] cCounts, double[] cSums) {
-
-		assert(cCounts.length == cSums.length);
-		int numFinite = cCounts.length; // count of finite clusters
-		int numInfinite = numFinite + 1; // count of finite cluster + the new one
-		int lastIndex = numInfinite - 1; // index of last array element
-		
-		// compute prior probability for K existing table and new table
-		double[] prior = new double[numInfinite]; 
-		for (int i = 0; i < numFinite; i++) {
-			prior[i] = cCounts[i];
-		}
-		prior[lastIndex] = dpAlpha;
-		prior = normalise(prior, sum(prior));
-		
-		// for current k
-		double[] paramBeta = new double[numInfinite];
-		double[] paramAlpha = new double[numInfinite];
-		for (int i = 0; i < numFinite; i++) {
-			paramBeta[i] = hyperparamPrec + (componentPrec*cCounts[i]);
-			paramAlpha[i] = (1/paramBeta[i]) * ((hyperparamPrec*hyperparamMean) + (componentPrec*cSums[i]));
-		}
-		
-		// for new k
-		double lastParamBeta = hyperparamPrec;
-		double lastParamAlpha = hyperparamMean;
-		paramBeta[lastIndex] = lastParamBeta;
-		paramAlpha[lastIndex] = lastParamAlpha;
-		
-		// compute log likelihood
-		double[] prec = new double[numInfinite];
-		double[] logLikelihood = new double[numInfinite];
-		double[] logPrior = new double[numInfinite];
-		for (int i = 0; i < numInfinite; i++) {
-			prec[i] = 1/(1/paramBeta[i]+1/componentPrec);
-			logLikelihood[i] = computeLogLikelihood(x, paramAlpha[i], prec[i]);
-			logPrior[i] = Math.log(prior[i]);
-		}
-		
-		DpResult dpResult = new DpResult(logPrior, logLikelihood);		
-		return dpResult;
-
-	}
-	
-	/**
-	 * Experimental hack to modify the likelihood to prevent a peak from
-	 * entering a mass cluster if another peak from the same file is already there first.
-	 * This is used to improve alignment performance, since we don't want to align peaks
-	 * from the same file together, so we don't want them to be in the same mass cluster.
-	 * @param thisPeak The peak
-	 * @param thisMetabolite The metabolite
-	 * @param logDistribution The original likelihood
-	 * @return The distribution The modified likelihood
-	 */
-	private double[] modifyTerms(Feature thisPeak,
-			HDPMetabolite thisMetabolite, double[] logDistribution) {
-
-		// get the indicator array, entries are either 0 or 1
-		int[] indicator = thisMetabolite.getMassClusterIndicator(thisPeak);					
-		assert(indicator.length == logDistribution.length);
-		for (int a = 0; a < indicator.length; a++) {
-			if (indicator[a] == 0) {
-				// we set the likelihood = 0, and log(0) = -infinity
-				logDistribution[a] = Double.NEGATIVE_INFINITY;
-			}
-		}		
-		return logDistribution;
-	
-	}
 	
 	/**
 	 * Updates component values based on existing data
@@ -912,27 +1128,715 @@ public class HDPMassRTClustering implements HDPClustering {
 	        
 	        // also update all the mass clusters linked to this metabolite		
 	        HDPMetabolite met = hdpMetabolites.get(i);		
-	        for (int a = 0; a < met.getA(); a++) {		
-	        	
-//	        	prec = hdpParam.getRho_0_prec() + (hdpParam.getRho_prec() + met.fa(a));		
-//	        	mu = (1/prec) * ( (hdpParam.getPsi_0()*hdpParam.getRho_0_prec()) + (hdpParam.getRho_prec() * met.sa(a)) );		
-//	        	double newTheta = randomData.nextGaussian(mu, Math.sqrt(1/prec)); 	
-
-	        	double sumMasses = 0;
-	        	int count = 0;
-	        	for (Feature f : met.getPeaksInMassCluster(a)) {
-	        		sumMasses += f.getMass();
-	        		count++;
-	        	}
-	        	double newTheta = sumMasses / count;
-	        	met.setTheta(a, Math.log(newTheta));
-	        	
-	        }		
+	        updateMassClusterTheta(met);
 	        
 		}
 				
 	}
 			
+	/**
+	 * Proposes to split an RT cluster in two or to merge two RT clusters of the same file,
+	 * using the restricted split-merge sampler of Jain & Neal (2004) with the peaks allocated
+	 * sequentially as in Dahl (2003). Two peaks are picked at random: if they share an RT cluster, 
+	 * it is split, otherwise their RT clusters are merged if they have the same parent metabolite.
+	 * The peaks stay in the same metabolite, so the mass clusters are not affected.
+	 */
+	private void splitMergeRTClusters() {
+		
+		HDPFile hdpFile = hdpFiles.get(nextIndex(hdpFiles.size()));
+		if (hdpFile.N() < 2) {
+			return;
+		}
+		int n1 = nextIndex(hdpFile.N());
+		int n2 = nextIndex(hdpFile.N()-1);
+		if (n2 >= n1) {
+			n2++;
+		}
+		int k1 = hdpFile.Z(n1);
+		int k2 = hdpFile.Z(n2);
+		int i = hdpFile.topZ(k1);
+		if (hdpFile.topZ(k2) != i) {
+			// moving peaks across metabolites is left to the metabolite moves
+			return;
+		}
+		rtSplitMergeProposed++;
+		
+		// the two chosen peaks first, then the rest of the peaks in both clusters in random order
+		GrowableIntArray others = new GrowableIntArray();
+		for (int n = 0; n < hdpFile.N(); n++) {
+			int k = hdpFile.Z(n);
+			if (n != n1 && n != n2 && (k == k1 || k == k2)) {
+				others.add(n);
+			}
+		}
+		int[] members = new int[others.size()+2];
+		members[0] = n1;
+		members[1] = n2;
+		System.arraycopy(shuffle(others.toArray()), 0, members, 2, others.size());
+		int[] labels = new int[members.length];
+		
+		double alphaRt = hdpParam.getAlpha_rt();
+		double topAlpha = hdpParam.getTop_alpha();
+		int totalClusters = fi.sum();
+		double metRt = ti(i);
+		if (k1 == k2) {
+			
+			// propose the split
+			double logForward = allocateRTClusterSplit(hdpFile, members, metRt, labels, false);
+			int[] counts = new int[2];
+			double[] sums = new double[2];
+			double[] newTjk = new double[2];
+			countRTClusterSplit(hdpFile, members, labels, counts, sums);
+			for (int g = 0; g < 2; g++) {
+				double prec = hdpParam.getDelta_prec() + counts[g]*hdpParam.getGamma_prec();
+				double mu = (1/prec) * (metRt*hdpParam.getDelta_prec() + hdpParam.getGamma_prec()*sums[g]);
+				newTjk[g] = randomData.nextGaussian(mu, Math.sqrt(1/prec));
+				logForward += computeLogLikelihood(newTjk[g], mu, prec);
+			}
+			
+			// the reverse merge only has to draw back the current cluster RT
+			double oldTjk = hdpFile.tjk(k1);
+			double prec = hdpParam.getDelta_prec() + members.length*hdpParam.getGamma_prec();
+			double mu = (1/prec) * (metRt*hdpParam.getDelta_prec() + hdpParam.getGamma_prec()*(sums[0]+sums[1]));
+			double logReverse = computeLogLikelihood(oldTjk, mu, prec);
+			
+			double logNew = Math.log(alphaRt) + Gamma.logGamma(counts[0]) + Gamma.logGamma(counts[1])
+					+ Math.log(fi(i)) - Math.log(topAlpha + totalClusters)
+					+ rtClusterLogJoint(hdpFile, members, labels, 0, newTjk[0], metRt)
+					+ rtClusterLogJoint(hdpFile, members, labels, 1, newTjk[1], metRt);
+			double logOld = Gamma.logGamma(members.length) 
+					+ rtClusterLogJoint(hdpFile, members, labels, -1, oldTjk, metRt);
+			if (!acceptSplitMerge(logNew, logOld, logReverse, logForward)) {
+				return;
+			}
+			
+			// the second group goes into a new RT cluster under the same metabolite
+			hdpFile.increaseK();
+			hdpFile.appendCountZ(counts[1]);
+			hdpFile.appendSumZ(sums[1]);
+			hdpFile.appendTopZ(i);
+			hdpFile.appendTjk(newTjk[1]);
+			int newK = hdpFile.K()-1;
+			hdpFile.setCountZ(k1, counts[0]);
+			hdpFile.setSumZ(k1, sums[0]);
+			hdpFile.setTjk(k1, newTjk[0]);
+			for (int m = 0; m < members.length; m++) {
+				if (labels[m] == 1) {
+					hdpFile.setZ(members[m], newK);
+				}
+			}
+			increaseFi(i);
+			addSi(i, newTjk[0] + newTjk[1] - oldTjk);
+			
+		} else {
+			
+			// the reverse split has to reproduce the current clusters and their RTs
+			for (int m = 0; m < members.length; m++) {
+				labels[m] = hdpFile.Z(members[m]) == k1 ? 0 : 1;
+			}
+			double logReverse = allocateRTClusterSplit(hdpFile, members, metRt, labels, true);
+			int[] counts = new int[2];
+			double[] sums = new double[2];
+			double[] oldTjk = new double[] { hdpFile.tjk(k1), hdpFile.tjk(k2) };
+			countRTClusterSplit(hdpFile, members, labels, counts, sums);
+			for (int g = 0; g < 2; g++) {
+				double prec = hdpParam.getDelta_prec() + counts[g]*hdpParam.getGamma_prec();
+				double mu = (1/prec) * (metRt*hdpParam.getDelta_prec() + hdpParam.getGamma_prec()*sums[g]);
+				logReverse += computeLogLikelihood(oldTjk[g], mu, prec);
+			}
+			
+			// propose the merge
+			double prec = hdpParam.getDelta_prec() + members.length*hdpParam.getGamma_prec();
+			double mu = (1/prec) * (metRt*hdpParam.getDelta_prec() + hdpParam.getGamma_prec()*(sums[0]+sums[1]));
+			double newTjk = randomData.nextGaussian(mu, Math.sqrt(1/prec));
+			double logForward = computeLogLikelihood(newTjk, mu, prec);
+
+			double logNew = Gamma.logGamma(members.length) 
+					+ rtClusterLogJoint(hdpFile, members, labels, -1, newTjk, metRt);
+			double logOld = Math.log(alphaRt) + Gamma.logGamma(counts[0]) + Gamma.logGamma(counts[1])
+					+ Math.log(fi(i)-1) - Math.log(topAlpha + totalClusters-1)
+					+ rtClusterLogJoint(hdpFile, members, labels, 0, oldTjk[0], metRt)
+					+ rtClusterLogJoint(hdpFile, members, labels, 1, oldTjk[1], metRt);
+			if (!acceptSplitMerge(logNew, logOld, logReverse, logForward)) {
+				return;
+			}
+			
+			// move all peaks into k1 and delete k2
+			for (int m = 0; m < members.length; m++) {
+				if (labels[m] == 1) {
+					hdpFile.setZ(members[m], k1);
+				}
+			}
+			hdpFile.setCountZ(k1, members.length);
+			hdpFile.setSumZ(k1, sums[0]+sums[1]);
+			hdpFile.setTjk(k1, newTjk);
+			hdpFile.setCountZ(k2, 0);
+			hdpFile.removeRTCluster(k2);
+			decreaseFi(i);
+			addSi(i, newTjk - oldTjk[0] - oldTjk[1]);
+			
+		}
+		rtSplitMergeAccepted++;
+		
+	}
+	
+	/**
+	 * Sequentially allocates peaks to the two halves of an RT cluster split, with the cluster RTs
+	 * integrated out. The first two peaks are the anchors of the two halves.
+	 * @param hdpFile The file containing the peaks
+	 * @param members The peak position indices
+	 * @param metRt The RT of the parent metabolite
+	 * @param labels The half of each peak, filled in unless replaying
+	 * @param replay If true, computes the probability of producing the given labels instead of sampling
+	 * @return The log probability of the allocation
+	 */
+	private double allocateRTClusterSplit(HDPFile hdpFile, int[] members, double metRt, 
+			int[] labels, boolean replay) {
+		
+		double gammaPrec = hdpParam.getGamma_prec();
+		double deltaPrec = hdpParam.getDelta_prec();
+		int[] counts = new int[2];
+		double[] sums = new double[2];
+		double logProb = 0;
+		for (int m = 0; m < members.length; m++) {
+			double rt = hdpFile.getFeature(members[m]).getRt();
+			int g = m;
+			if (m >= 2) {
+				double[] logPost = new double[2];
+				for (int h = 0; h < 2; h++) {
+					double prec = deltaPrec + counts[h]*gammaPrec;
+					double mu = (1/prec) * (metRt*deltaPrec + gammaPrec*sums[h]);
+					double predPrec = 1/(1/prec + 1/gammaPrec);
+					logPost[h] = Math.log(counts[h]) + computeLogLikelihood(rt, mu, predPrec);
+				}
+				g = replay ? labels[m] : sampleHalf(logPost);
+				logProb += logHalfProbability(logPost, g);
+			}
+			labels[m] = g;
+			counts[g]++;
+			sums[g] += rt;
+		}
+		return logProb;
+		
+	}
+	
+	private void countRTClusterSplit(HDPFile hdpFile, int[] members, int[] labels, 
+			int[] counts, double[] sums) {
+		for (int m = 0; m < members.length; m++) {
+			counts[labels[m]]++;
+			sums[labels[m]] += hdpFile.getFeature(members[m]).getRt();
+		}
+	}
+	
+	/**
+	 * Computes the log density of an RT cluster's RT given its metabolite and of its peaks' RT
+	 * @param hdpFile The file containing the peaks
+	 * @param members The peak position indices
+	 * @param labels The half of each peak
+	 * @param g The half to use, or -1 for all the peaks
+	 * @param tjk The RT cluster's RT
+	 * @param metRt The RT of the parent metabolite
+	 * @return The log density
+	 */
+	private double rtClusterLogJoint(HDPFile hdpFile, int[] members, int[] labels, int g, 
+			double tjk, double metRt) {
+		double logJoint = computeLogLikelihood(tjk, metRt, hdpParam.getDelta_prec());
+		for (int m = 0; m < members.length; m++) {
+			if (g == -1 || labels[m] == g) {
+				double rt = hdpFile.getFeature(members[m]).getRt();
+				logJoint += computeLogLikelihood(rt, tjk, hdpParam.getGamma_prec());
+			}
+		}
+		return logJoint;
+	}
+	
+	/**
+	 * Proposes to split a metabolite in two or to merge two metabolites. Two RT clusters 
+	 * are picked at random across all files: if they share a metabolite, it is split, otherwise
+	 * their metabolites are merged. The RT clusters are allocated sequentially to the two halves
+	 * by RT, and the peaks of each resulting metabolite are then allocated sequentially 
+	 * to new mass clusters, in order of their sequence ID.
+	 */
+	private void splitMergeMetabolites() {
+		
+		int totalClusters = fi.sum();
+		if (totalClusters < 2) {
+			return;
+		}
+		int r1 = nextIndex(totalClusters);
+		int r2 = nextIndex(totalClusters-1);
+		if (r2 >= r1) {
+			r2++;
+		}
+		int[] c1 = findRTCluster(r1);
+		int[] c2 = findRTCluster(r2);
+		int i1 = hdpFiles.get(c1[0]).topZ(c1[1]);
+		int i2 = hdpFiles.get(c2[0]).topZ(c2[1]);
+		metSplitMergeProposed++;
+		
+		// the two chosen RT clusters first, then the rest in both metabolites in random order
+		List<int[]> others = new ArrayList<int[]>();
+		for (int j = 0; j < hdpFiles.size(); j++) {
+			HDPFile hdpFile = hdpFiles.get(j);
+			for (int k = 0; k < hdpFile.K(); k++) {
+				int i = hdpFile.topZ(k);
+				boolean anchor = (j == c1[0] && k == c1[1]) || (j == c2[0] && k == c2[1]);
+				if (!anchor && (i == i1 || i == i2)) {
+					others.add(new int[] { j, k });
+				}
+			}
+		}
+		int[] order = new int[others.size()];
+		for (int m = 0; m < order.length; m++) {
+			order[m] = m;
+		}
+		order = shuffle(order);
+		int[][] clusters = new int[others.size()+2][];
+		clusters[0] = c1;
+		clusters[1] = c2;
+		for (int m = 0; m < order.length; m++) {
+			clusters[m+2] = others.get(order[m]);
+		}
+		int[] labels = new int[clusters.length];
+		
+		double topAlpha = hdpParam.getTop_alpha();
+		if (i1 == i2) {
+			
+			// propose the split
+			HDPMetabolite met = hdpMetabolites.get(i1);
+			double logForward = allocateMetaboliteSplit(clusters, labels, false);
+			List<List<Feature>> groupPeaks = getMetaboliteSplitPeaks(clusters, labels);
+			HDPMetabolite[] newMets = new HDPMetabolite[] { 
+					new HDPMetabolite(met.getId()), new HDPMetabolite(hdpMetaboliteId) };
+			int[] counts = new int[2];
+			double[] sums = new double[2];
+			double[] newTi = new double[2];
+			countMetaboliteSplit(clusters, labels, counts, sums);
+			for (int g = 0; g < 2; g++) {
+				List<Feature> peaks = groupPeaks.get(g);
+				logForward += allocateMassClusters(newMets[g], peaks, new int[peaks.size()], false);
+				double prec = hdpParam.getSigma_0_prec() + counts[g]*hdpParam.getDelta_prec();
+				double mu = (1/prec) * (hdpParam.getMu_0()*hdpParam.getSigma_0_prec() + hdpParam.getDelta_prec()*sums[g]);
+				newTi[g] = randomData.nextGaussian(mu, Math.sqrt(1/prec));
+				logForward += computeLogLikelihood(newTi[g], mu, prec);
+			}
+			
+			// the reverse merge has to reproduce the current mass clusters and metabolite RT
+			List<Feature> allPeaks = sortBySequenceID(met.getPeakData());
+			double logReverse = allocateMassClusters(new HDPMetabolite(-1), allPeaks, 
+					getMassClusterLabels(met, allPeaks), true);
+			double prec = hdpParam.getSigma_0_prec() + clusters.length*hdpParam.getDelta_prec();
+			double mu = (1/prec) * (hdpParam.getMu_0()*hdpParam.getSigma_0_prec() + hdpParam.getDelta_prec()*(sums[0]+sums[1]));
+			logReverse += computeLogLikelihood(ti(i1), mu, prec);
+			
+			double logNew = Math.log(topAlpha) + Gamma.logGamma(counts[0]) + Gamma.logGamma(counts[1])
+					+ metaboliteRtLogJoint(clusters, labels, 0, newTi[0]) + massLogJoint(newMets[0])
+					+ metaboliteRtLogJoint(clusters, labels, 1, newTi[1]) + massLogJoint(newMets[1]);
+			double logOld = Gamma.logGamma(clusters.length) 
+					+ metaboliteRtLogJoint(clusters, labels, -1, ti(i1)) + massLogJoint(met);
+			if (!acceptSplitMerge(logNew, logOld, logReverse, logForward)) {
+				return;
+			}
+			
+			// the first half replaces the metabolite, the second half is a new metabolite
+			replaceMetabolite(i1, met, newMets[0], counts[0], newTi[0], sums[0]);
+			this.I++;
+			hdpMetaboliteId++;
+			appendFi(counts[1]);
+			appendTi(newTi[1]);
+			appendSi(sums[1]);
+			appendMetabolite(newMets[1]);
+			updateMassClusterTheta(newMets[1]);
+			if (massClusterIndex != null) {
+				for (HDPMassCluster mc : newMets[1].getMassClusters()) {
+					massClusterIndex.update(newMets[1], mc);
+				}
+			}
+			for (int m = 0; m < clusters.length; m++) {
+				if (labels[m] == 1) {
+					hdpFiles.get(clusters[m][0]).setTopZ(clusters[m][1], this.I-1);
+				}
+			}
+			
+		} else {
+			
+			// the reverse split has to reproduce the current metabolites
+			for (int m = 0; m < clusters.length; m++) {
+				labels[m] = hdpFiles.get(clusters[m][0]).topZ(clusters[m][1]) == i1 ? 0 : 1;
+			}
+			double logReverse = allocateMetaboliteSplit(clusters, labels, true);
+			HDPMetabolite[] oldMets = new HDPMetabolite[] { hdpMetabolites.get(i1), hdpMetabolites.get(i2) };
+			double[] oldTi = new double[] { ti(i1), ti(i2) };
+			int[] counts = new int[2];
+			double[] sums = new double[2];
+			countMetaboliteSplit(clusters, labels, counts, sums);
+			List<Feature> allPeaks = new ArrayList<Feature>();
+			for (int g = 0; g < 2; g++) {
+				List<Feature> peaks = sortBySequenceID(oldMets[g].getPeakData());
+				allPeaks.addAll(peaks);
+				logReverse += allocateMassClusters(new HDPMetabolite(-1), peaks, 
+						getMassClusterLabels(oldMets[g], peaks), true);
+				double prec = hdpParam.getSigma_0_prec() + counts[g]*hdpParam.getDelta_prec();
+				double mu = (1/prec) * (hdpParam.getMu_0()*hdpParam.getSigma_0_prec() + hdpParam.getDelta_prec()*sums[g]);
+				logReverse += computeLogLikelihood(oldTi[g], mu, prec);
+			}
+			
+			// propose the merge
+			allPeaks = sortBySequenceID(allPeaks);
+			HDPMetabolite newMet = new HDPMetabolite(oldMets[0].getId());
+			double logForward = allocateMassClusters(newMet, allPeaks, new int[allPeaks.size()], false);
+			double prec = hdpParam.getSigma_0_prec() + clusters.length*hdpParam.getDelta_prec();
+			double mu = (1/prec) * (hdpParam.getMu_0()*hdpParam.getSigma_0_prec() + hdpParam.getDelta_prec()*(sums[0]+sums[1]));
+			double newTi = randomData.nextGaussian(mu, Math.sqrt(1/prec));
+			logForward += computeLogLikelihood(newTi, mu, prec);
+			
+			double logNew = Gamma.logGamma(clusters.length) 
+					+ metaboliteRtLogJoint(clusters, labels, -1, newTi) + massLogJoint(newMet);
+			double logOld = Math.log(topAlpha) + Gamma.logGamma(counts[0]) + Gamma.logGamma(counts[1])
+					+ metaboliteRtLogJoint(clusters, labels, 0, oldTi[0]) + massLogJoint(oldMets[0])
+					+ metaboliteRtLogJoint(clusters, labels, 1, oldTi[1]) + massLogJoint(oldMets[1]);
+			if (!acceptSplitMerge(logNew, logOld, logReverse, logForward)) {
+				return;
+			}
+			
+			// the merged metabolite replaces the first one, then the second one is deleted
+			replaceMetabolite(i1, oldMets[0], newMet, clusters.length, newTi, sums[0]+sums[1]);
+			if (massClusterIndex != null) {
+				for (HDPMassCluster mc : oldMets[1].getMassClusters()) {
+					massClusterIndex.remove(mc);
+				}
+			}
+			for (int m = 0; m < clusters.length; m++) {
+				if (labels[m] == 1) {
+					hdpFiles.get(clusters[m][0]).setTopZ(clusters[m][1], i1);
+				}
+			}
+			int last = removeMetabolite(i2);
+			if (last != i2) {
+				for (int rep = 0; rep < hdpFiles.size(); rep++) {
+					HDPFile repFile = hdpFiles.get(rep);
+					repFile.replaceTopZ(last, i2);
+				}
+			}
+			this.I--;
+			
+		}
+		metSplitMergeAccepted++;
+		
+	}
+	
+	/**
+	 * Sequentially allocates RT clusters to the two halves of a metabolite split, with the
+	 * metabolite RTs integrated out. The first two RT clusters are the anchors of the two halves.
+	 * @param clusters The file and position index of each RT cluster
+	 * @param labels The half of each RT cluster, filled in unless replaying
+	 * @param replay If true, computes the probability of producing the given labels instead of sampling
+	 * @return The log probability of the allocation
+	 */
+	private double allocateMetaboliteSplit(int[][] clusters, int[] labels, boolean replay) {
+		
+		double deltaPrec = hdpParam.getDelta_prec();
+		double sigmaPrec = hdpParam.getSigma_0_prec();
+		int[] counts = new int[2];
+		double[] sums = new double[2];
+		double logProb = 0;
+		for (int m = 0; m < clusters.length; m++) {
+			double tjk = hdpFiles.get(clusters[m][0]).tjk(clusters[m][1]);
+			int g = m;
+			if (m >= 2) {
+				double[] logPost = new double[2];
+				for (int h = 0; h < 2; h++) {
+					double prec = sigmaPrec + counts[h]*deltaPrec;
+					double mu = (1/prec) * (hdpParam.getMu_0()*sigmaPrec + deltaPrec*sums[h]);
+					double predPrec = 1/(1/prec + 1/deltaPrec);
+					logPost[h] = Math.log(counts[h]) + computeLogLikelihood(tjk, mu, predPrec);
+				}
+				g = replay ? labels[m] : sampleHalf(logPost);
+				logProb += logHalfProbability(logPost, g);
+			}
+			labels[m] = g;
+			counts[g]++;
+			sums[g] += tjk;
+		}
+		return logProb;
+		
+	}
+	
+	private void countMetaboliteSplit(int[][] clusters, int[] labels, int[] counts, double[] sums) {
+		for (int m = 0; m < clusters.length; m++) {
+			counts[labels[m]]++;
+			sums[labels[m]] += hdpFiles.get(clusters[m][0]).tjk(clusters[m][1]);
+		}
+	}
+	
+	/**
+	 * Collects the peaks under each half of a metabolite split
+	 * @param clusters The file and position index of each RT cluster
+	 * @param labels The half of each RT cluster
+	 * @return The peaks of each half, in order of their sequence ID
+	 */
+	private List<List<Feature>> getMetaboliteSplitPeaks(int[][] clusters, int[] labels) {
+		
+		int[][] clusterLabels = new int[hdpFiles.size()][];
+		for (int j = 0; j < hdpFiles.size(); j++) {
+			clusterLabels[j] = new int[hdpFiles.get(j).K()];
+			Arrays.fill(clusterLabels[j], -1);
+		}
+		for (int m = 0; m < clusters.length; m++) {
+			clusterLabels[clusters[m][0]][clusters[m][1]] = labels[m];
+		}
+		List<List<Feature>> groupPeaks = new ArrayList<List<Feature>>();
+		groupPeaks.add(new ArrayList<Feature>());
+		groupPeaks.add(new ArrayList<Feature>());
+		for (int j = 0; j < hdpFiles.size(); j++) {
+			HDPFile hdpFile = hdpFiles.get(j);
+			for (int n = 0; n < hdpFile.N(); n++) {
+				int g = clusterLabels[j][hdpFile.Z(n)];
+				if (g != -1) {
+					groupPeaks.get(g).add(hdpFile.getFeature(n));
+				}
+			}
+		}
+		groupPeaks.set(0, sortBySequenceID(groupPeaks.get(0)));
+		groupPeaks.set(1, sortBySequenceID(groupPeaks.get(1)));
+		return groupPeaks;
+		
+	}
+	
+	/**
+	 * Computes the log density of a metabolite's RT and of its RT clusters' RT
+	 * @param clusters The file and position index of each RT cluster
+	 * @param labels The half of each RT cluster
+	 * @param g The half to use, or -1 for all the RT clusters
+	 * @param metRt The metabolite's RT
+	 * @return The log density
+	 */
+	private double metaboliteRtLogJoint(int[][] clusters, int[] labels, int g, double metRt) {
+		double logJoint = computeLogLikelihood(metRt, hdpParam.getMu_0(), hdpParam.getSigma_0_prec());
+		for (int m = 0; m < clusters.length; m++) {
+			if (g == -1 || labels[m] == g) {
+				double tjk = hdpFiles.get(clusters[m][0]).tjk(clusters[m][1]);
+				logJoint += computeLogLikelihood(tjk, metRt, hdpParam.getDelta_prec());
+			}
+		}
+		return logJoint;
+	}
+	
+	/**
+	 * Sequentially allocates peaks to the mass clusters of a metabolite, using the same 
+	 * conditional distribution as the Gibbs update. Peaks from the same file are not put into 
+	 * the same mass cluster.
+	 * @param met The metabolite receiving the peaks, which must be empty at the start
+	 * @param peaks The peaks to allocate
+	 * @param labels The mass cluster of each peak, filled in unless replaying
+	 * @param replay If true, computes the probability of producing the mass clusters given by labels
+	 * 		instead of sampling, where peaks with the same label share a mass cluster
+	 * @return The log probability of the allocation
+	 */
+	private double allocateMassClusters(HDPMetabolite met, List<Feature> peaks, int[] labels, boolean replay) {
+		
+		assert(met.getA() == 0);
+		int[] massClusterOfLabel = new int[peaks.size()];
+		Arrays.fill(massClusterOfLabel, -1);
+		double logProb = 0;
+		for (int m = 0; m < peaks.size(); m++) {
+			Feature f = peaks.get(m);
+			int len = computeMassTermLogLikelihood(f, met);
+			double logNorm = logSumExp(massTermScratch, len);
+			int a;
+			if (replay) {
+				a = massClusterOfLabel[labels[m]];
+				if (a == -1) {
+					a = met.getA();
+					massClusterOfLabel[labels[m]] = a;
+				}
+			} else {
+				a = sampleGumbelMax(massTermScratch, len, randomData);
+				labels[m] = a;
+			}
+			logProb += massTermScratch[a] - logNorm;
+			if ((a+1) > met.getA()) {
+				met.addMassCluster();
+			}
+			met.addPeak(f, a);
+		}
+		return logProb;
+		
+	}
+	
+	/**
+	 * Computes the log probability of the mass clusters of a metabolite under its DP mixture, 
+	 * with the mass cluster means integrated out
+	 * @param met The metabolite
+	 * @return The log probability, or -infinity if a mass cluster has two peaks from the same file
+	 */
+	private double massLogJoint(HDPMetabolite met) {
+		
+		double dpAlpha = hdpParam.getAlpha_mass();
+		double logJoint = Gamma.logGamma(dpAlpha) - Gamma.logGamma(dpAlpha + met.peakDataSize());
+		for (HDPMassCluster mc : met.getMassClusters()) {
+			logJoint += Math.log(dpAlpha) + Gamma.logGamma(mc.getCountPeaks());
+			Set<Integer> files = new HashSet<Integer>();
+			int count = 0;
+			double sum = 0;
+			for (Feature f : sortBySequenceID(mc.getPeakData())) {
+				if (!files.add(f.getFileID())) {
+					return Double.NEGATIVE_INFINITY;
+				}
+				double x = f.getMassLog();
+				double paramBeta = hdpParam.getRho_0_prec() + hdpParam.getRho_prec()*count;
+				double paramAlpha = (1/paramBeta) * (hdpParam.getRho_0_prec()*hdpParam.getPsi_0() + hdpParam.getRho_prec()*sum);
+				double prec = 1/(1/paramBeta + 1/hdpParam.getRho_prec());
+				logJoint += computeLogLikelihood(x, paramAlpha, prec);
+				count++;
+				sum += x;
+			}
+		}
+		return logJoint;
+		
+	}
+	
+	/**
+	 * Returns the position of the mass cluster of each peak in the metabolite
+	 */
+	private int[] getMassClusterLabels(HDPMetabolite met, List<Feature> peaks) {
+		Map<HDPMassCluster, Integer> massClusterPos = new HashMap<HDPMassCluster, Integer>();
+		for (int a = 0; a < met.getA(); a++) {
+			massClusterPos.put(met.getMassClusters().get(a), a);
+		}
+		int[] labels = new int[peaks.size()];
+		for (int m = 0; m < peaks.size(); m++) {
+			labels[m] = massClusterPos.get(met.getMassClusterOfPeak(peaks.get(m)));
+		}
+		return labels;
+	}
+	
+	/**
+	 * Puts a new metabolite into position i after an accepted split-merge move
+	 */
+	private void replaceMetabolite(int i, HDPMetabolite oldMet, HDPMetabolite newMet, 
+			int count, double metRt, double sumClusters) {
+		setMetabolite(i, newMet);
+		setFi(i, count);
+		setTi(i, metRt);
+		setSi(i, sumClusters);
+		updateMassClusterTheta(newMet);
+		if (massClusterIndex != null) {
+			for (HDPMassCluster mc : oldMet.getMassClusters()) {
+				massClusterIndex.remove(mc);
+			}
+			for (HDPMassCluster mc : newMet.getMassClusters()) {
+				massClusterIndex.update(newMet, mc);
+			}
+		}
+	}
+	
+	/**
+	 * Finds an RT cluster by its position across all files
+	 * @param r The position, from 0 to the total number of RT clusters - 1
+	 * @return The file and the position index of the RT cluster in that file
+	 */
+	private int[] findRTCluster(int r) {
+		for (int j = 0; j < hdpFiles.size(); j++) {
+			int K = hdpFiles.get(j).K();
+			if (r < K) {
+				return new int[] { j, r };
+			}
+			r -= K;
+		}
+		throw new IllegalArgumentException("No RT cluster at position " + r);
+	}
+	
+	/**
+	 * Metropolis-Hastings acceptance of a split-merge proposal.
+	 * <p>
+	 * The default initial state puts peaks from the same file into one mass cluster, which has
+	 * zero probability. During burn-in the moves also repair such states: while the current state
+	 * has zero probability, any proposal with a non-zero probability is accepted, ignoring the
+	 * reverse proposal. No samples are kept during burn-in, so this doesn't bias the results.
+	 * After burn-in the plain Metropolis-Hastings ratio is used, and a proposal that can't be
+	 * reversed or has zero probability itself is never accepted.
+	 * @param logNew The log joint probability of the proposed state, up to the terms it shares with the current state
+	 * @param logOld The log joint probability of the current state, up to the same terms
+	 * @param logReverse The log probability of proposing the current state from the proposed one
+	 * @param logForward The log probability of the proposal
+	 * @return true if the proposal is accepted
+	 */
+	private boolean acceptSplitMerge(double logNew, double logOld, double logReverse, double logForward) {
+		if (splitMergeRepair && logOld == Double.NEGATIVE_INFINITY) {
+			return logNew > Double.NEGATIVE_INFINITY;
+		}
+		double logAccept = logNew - logOld + logReverse - logForward;
+		if (Double.isNaN(logAccept)) {
+			// two impossible states, or an impossible reverse move out of one
+			return false;
+		}
+		return Math.log(randomData.nextUniform(0, 1)) < logAccept;
+	}
+	
+	private int sampleHalf(double[] logPost) {
+		return Math.log(randomData.nextUniform(0, 1)) < logHalfProbability(logPost, 0) ? 0 : 1;
+	}
+	
+	private double logHalfProbability(double[] logPost, int g) {
+		// log of 1 / (1 + exp(other - this)), without overflow
+		double diff = logPost[1-g] - logPost[g];
+		return diff > 0 ? -diff - Math.log1p(Math.exp(-diff)) : -Math.log1p(Math.exp(diff));
+	}
+	
+	/**
+	 * Returns a random integer from 0 to n-1
+	 */
+	private int nextIndex(int n) {
+		return n == 1 ? 0 : randomData.nextInt(0, n-1);
+	}
+	
+	/**
+	 * Shuffles the array in place
+	 * @return The array
+	 */
+	private int[] shuffle(int[] arr) {
+		for (int m = arr.length-1; m > 0; m--) {
+			int other = randomData.nextInt(0, m);
+			int temp = arr[m];
+			arr[m] = arr[other];
+			arr[other] = temp;
+		}
+		return arr;
+	}
+	
+	private List<Feature> sortBySequenceID(Collection<Feature> peaks) {
+		List<Feature> sorted = new ArrayList<Feature>(peaks);
+		Collections.sort(sorted, new Comparator<Feature>() {
+			@Override
+			public int compare(Feature f1, Feature f2) {
+				return f1.getSequenceID().compareTo(f2.getSequenceID());
+			}
+		});
+		return sorted;
+	}
+	
+	/**
+	 * Sets the mass clusters' theta to the log of the mean mass of their peaks
+	 */
+	private void updateMassClusterTheta(HDPMetabolite met) {
+		for (int a = 0; a < met.getA(); a++) {
+			
+//			prec = hdpParam.getRho_0_prec() + (hdpParam.getRho_prec() + met.fa(a));		
+//			mu = (1/prec) * ( (hdpParam.getPsi_0()*hdpParam.getRho_0_prec()) + (hdpParam.getRho_prec() * met.sa(a)) );		
+//			double newTheta = randomData.nextGaussian(mu, Math.sqrt(1/prec)); 	
+
+			double sumMasses = 0;
+			int count = 0;
+			for (Feature f : met.getPeaksInMassCluster(a)) {
+				sumMasses += f.getMass();
+				count++;
+			}
+			double newTheta = sumMasses / count;
+			met.setTheta(a, Math.log(newTheta));
+		}
+	}
+	
 	/**
 	 * Computes mass precision given the required precision in parts-per-million (ppm).
 	 * @param massTol The precision in ppm
@@ -992,43 +1896,336 @@ public class HDPMassRTClustering implements HDPClustering {
 	
 	}
 	
-	private int fi(int i) {
-		return this.fi.get(i);
+	/**
+	 * Restores this chain from its checkpoint file, if there's one that matches the input data
+	 * @return The number of samples already completed, or 0 if starting a new chain
+	 */
+	private int resumeFromCheckpoint() {
+
+		if (!new File(hdpClusteringResultsPath).exists()) {
+			return 0;
+		}
+		
+		System.out.println("Loading HDP checkpoint from " + hdpClusteringResultsPath);
+		try {
+			HDPCheckpoint checkpoint = HDPCheckpoint.read(hdpClusteringResultsPath);
+			if (restoreCheckpoint(checkpoint)) {
+				System.out.println("Resuming after sample " + checkpoint.sweep);
+				return checkpoint.sweep;
+			}
+			System.out.println("Checkpoint does not match the input data, starting a new chain");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+		return 0;
+		
+	}
+	
+	/**
+	 * Writes the current state of this chain to its checkpoint file
+	 * @param sweep The number of samples completed so far
+	 */
+	private void saveCheckpoint(int sweep) {
+		try {
+			createCheckpoint(sweep).write(hdpClusteringResultsPath);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copies the sampler state and the accumulated results into a checkpoint
+	 * @param sweep The number of samples completed so far
+	 * @return The checkpoint
+	 * @throws IOException if the random generator cannot be serialised
+	 */
+	private HDPCheckpoint createCheckpoint(int sweep) throws IOException {
+		
+		HDPCheckpoint cp = new HDPCheckpoint();
+		Feature[] peaks = getPeaksBySequenceID();
+		cp.totalPeaks = peaks.length;
+		cp.dataFingerprint = getDataFingerprint(peaks);
+		cp.sweep = sweep;
+		cp.hdpMetaboliteId = hdpMetaboliteId;
+
+		// drop the cached gaussian, so this chain and a resumed one continue with the same numbers
+		randomGenerator.clear();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+			output.writeObject(randomGenerator);
+		}
+		cp.randomState = bytes.toByteArray();
+		
+		// metabolites and their mass clusters
+		int totalA = 0;
+		for (HDPMetabolite met : hdpMetabolites) {
+			totalA += met.getA();
+		}
+		cp.metaboliteId = new int[I];
+		cp.ti = ti.toArray();
+		cp.si = si.toArray();
+		cp.massClusterSeqId = new int[I];
+		cp.metaboliteA = new int[I];
+		cp.massClusterId = new int[totalA];
+		cp.massClusterTheta = new double[totalA];
+		cp.massClusterSum = new double[totalA];
+		Map<HDPMassCluster, Integer> massClusterPos = new HashMap<HDPMassCluster, Integer>();
+		int pos = 0;
+		for (int i = 0; i < I; i++) {
+			HDPMetabolite met = hdpMetabolites.get(i);
+			cp.metaboliteId[i] = met.getId();
+			cp.massClusterSeqId[i] = met.getMassClusterSeqId();
+			cp.metaboliteA[i] = met.getA();
+			for (int a = 0; a < met.getA(); a++) {
+				HDPMassCluster mc = met.getMassClusters().get(a);
+				cp.massClusterId[pos] = mc.getId();
+				cp.massClusterTheta[pos] = mc.getTheta();
+				cp.massClusterSum[pos] = mc.getSumPeaks();
+				massClusterPos.put(mc, a);
+				pos++;
+			}
+		}
+		
+		// RT clusters and the peak assignments
+		int totalK = 0;
+		for (HDPFile hdpFile : hdpFiles) {
+			totalK += hdpFile.K();
+		}
+		cp.fileN = new int[hdpFiles.size()];
+		cp.fileK = new int[hdpFiles.size()];
+		cp.topZ = new int[totalK];
+		cp.tjk = new double[totalK];
+		cp.sumZ = new double[totalK];
+		cp.peakRTCluster = new int[peaks.length];
+		cp.peakMassCluster = new int[peaks.length];
+		pos = 0;
+		for (int j = 0; j < hdpFiles.size(); j++) {
+			HDPFile hdpFile = hdpFiles.get(j);
+			cp.fileN[j] = hdpFile.N();
+			cp.fileK[j] = hdpFile.K();
+			for (int k = 0; k < hdpFile.K(); k++) {
+				cp.topZ[pos] = hdpFile.topZ(k);
+				cp.tjk[pos] = hdpFile.tjk(k);
+				cp.sumZ[pos] = hdpFile.sumZ(k);
+				pos++;
+			}
+			for (int n = 0; n < hdpFile.N(); n++) {
+				Feature f = hdpFile.getFeature(n);
+				int k = hdpFile.Z(n);
+				HDPMetabolite met = hdpMetabolites.get(hdpFile.topZ(k));
+				cp.peakRTCluster[f.getSequenceID()] = k;
+				cp.peakMassCluster[f.getSequenceID()] = massClusterPos.get(met.getMassClusterOfPeak(f));
+			}
+		}
+		
+		// adaptive scan order
+		if (scanScheduler != null) {
+			cp.movementScore = scanScheduler.getMovementScores().clone();
+			cp.visitCount = scanScheduler.getVisitCounts().clone();
+			cp.scheduledSweeps = scanScheduler.getSweeps();
+		} else {
+			cp.movementScore = new double[0];
+			cp.visitCount = new int[0];
+		}
+		
+		// the results accumulated so far
+		cp.metaboliteCountTrace = sampleHandler.getMetaboliteCountTrace();
+		cp.samplesTaken = sampleProcessor.getSamplesTaken();
+		HDPAlignmentResults results = sampleProcessor.getAlignmentResults();
+		GrowableIntArray resultCounts = new GrowableIntArray();
+		GrowableIntArray resultSizes = new GrowableIntArray();
+		GrowableIntArray resultPeaks = new GrowableIntArray();
+		for (Entry<HDPMassClusterFeatures, Integer> e : results.getEntries()) {
+			int[] sequenceIDs = e.getKey().getSequenceIDs();
+			resultCounts.add(e.getValue());
+			resultSizes.add(sequenceIDs.length);
+			for (int id : sequenceIDs) {
+				resultPeaks.add(id);
+			}
+		}
+		cp.resultCounts = resultCounts.toArray();
+		cp.resultSizes = resultSizes.toArray();
+		cp.resultPeaks = resultPeaks.toArray();
+		
+		return cp;
+		
 	}
 	
-	private void setFi(int i, int newFi) {
-		this.fi.set(i, newFi);
+	/**
+	 * Replaces the sampler state and the accumulated results by the ones in the checkpoint
+	 * @param cp The checkpoint
+	 * @return false if the checkpoint was made from different input data
+	 * @throws IOException if the random generator cannot be deserialised
+	 * @throws ClassNotFoundException if the random generator cannot be deserialised
+	 */
+	private boolean restoreCheckpoint(HDPCheckpoint cp) throws IOException, ClassNotFoundException {
+		
+		Feature[] peaks = getPeaksBySequenceID();
+		if (cp.totalPeaks != peaks.length || cp.dataFingerprint != getDataFingerprint(peaks) 
+				|| cp.fileN.length != hdpFiles.size()) {
+			return false;
+		}
+		
+		try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(cp.randomState))) {
+			randomGenerator = (Well19937c) input.readObject();
+		}
+		randomData = new RandomDataImpl(randomGenerator);
+		hdpMetaboliteId = cp.hdpMetaboliteId;
+		
+		// metabolites and their mass clusters, the peaks are added below
+		I = cp.metaboliteId.length;
+		fi = new GrowableIntArray(I);
+		ti = new GrowableDoubleArray(I);
+		si = new GrowableDoubleArray(I);
+		hdpMetabolites.clear();
+		int pos = 0;
+		for (int i = 0; i < I; i++) {
+			appendFi(0);
+			appendTi(cp.ti[i]);
+			appendSi(cp.si[i]);
+			HDPMetabolite met = new HDPMetabolite(cp.metaboliteId[i]);
+			for (int a = 0; a < cp.metaboliteA[i]; a++) {
+				met.addMassCluster();
+				HDPMassCluster mc = met.getMassClusters().get(a);
+				mc.setId(cp.massClusterId[pos]);
+				mc.setTheta(cp.massClusterTheta[pos]);
+				pos++;
+			}
+			met.setMassClusterSeqId(cp.massClusterSeqId[i]);
+			appendMetabolite(met);
+		}
+		
+		// RT clusters and the peak assignments
+		pos = 0;
+		for (int j = 0; j < hdpFiles.size(); j++) {
+			HDPFile oldFile = hdpFiles.get(j);
+			HDPFile hdpFile = new HDPFile(oldFile.getId());
+			hdpFile.addFeatures(oldFile.getFeatures());
+			hdpFile.setK(cp.fileK[j]);
+			for (int k = 0; k < hdpFile.K(); k++) {
+				int i = cp.topZ[pos];
+				hdpFile.appendTopZ(i);
+				hdpFile.appendTjk(cp.tjk[pos]);
+				hdpFile.appendCountZ(0);
+				hdpFile.appendSumZ(cp.sumZ[pos]);
+				increaseFi(i);
+				pos++;
+			}
+			for (int n = 0; n < hdpFile.N(); n++) {
+				Feature f = hdpFile.getFeature(n);
+				int k = cp.peakRTCluster[f.getSequenceID()];
+				hdpFile.appendZ(k);
+				hdpFile.increaseCountZ(k);
+				HDPMetabolite met = hdpMetabolites.get(hdpFile.topZ(k));
+				met.addPeak(f, cp.peakMassCluster[f.getSequenceID()]);
+			}
+			hdpFiles.set(j, hdpFile);
+		}
+		
+		// use the saved sums rather than the recomputed ones, which may differ in the last bits
+		pos = 0;
+		for (HDPMetabolite met : hdpMetabolites) {
+			for (HDPMassCluster mc : met.getMassClusters()) {
+				mc.setSumPeaks(cp.massClusterSum[pos]);
+				pos++;
+			}
+		}
+		
+		// adaptive scan order, if it was used by the checkpointed chain too
+		if (scanScheduler != null && cp.movementScore.length == peaks.length) {
+			scanScheduler.restore(cp.movementScore, cp.visitCount, cp.scheduledSweeps);
+		}
+
+		if (hdpParam.isMassPruning()) {
+			initialiseMassClusterIndex();
+		}
+		
+		// the results accumulated so far
+		HDPAlignmentResults results = new HDPAlignmentResults();
+		pos = 0;
+		for (int r = 0; r < cp.resultCounts.length; r++) {
+			List<Feature> features = new ArrayList<Feature>();
+			for (int m = 0; m < cp.resultSizes[r]; m++) {
+				features.add(peaks[cp.resultPeaks[pos]]);
+				pos++;
+			}
+			results.store(new HDPMassClusterFeatures(features), cp.resultCounts[r]);
+		}
+		sampleProcessor.restoreAlignmentResults(results, cp.samplesTaken);
+		sampleHandler.restoreMetaboliteCountTrace(cp.metaboliteCountTrace);
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Returns all the peaks across files, indexed by their sequence ID
+	 */
+	private Feature[] getPeaksBySequenceID() {
+		int totalPeaks = 0;
+		for (HDPFile hdpFile : hdpFiles) {
+			totalPeaks += hdpFile.N();
+		}
+		Feature[] peaks = new Feature[totalPeaks];
+		for (HDPFile hdpFile : hdpFiles) {
+			for (Feature f : hdpFile.getFeatures()) {
+				peaks[f.getSequenceID()] = f;
+			}
+		}
+		return peaks;
+	}
+	
+	/**
+	 * Computes a hash of the masses and RTs of all peaks, used to check that 
+	 * a checkpoint belongs to the current input data
+	 */
+	private long getDataFingerprint(Feature[] peaks) {
+		long hash = 1;
+		for (Feature f : peaks) {
+			hash = 31*hash + Double.doubleToLongBits(f.getMass());
+			hash = 31*hash + Double.doubleToLongBits(f.getRt());
+		}
+		return hash;
+	}
+	
+	private int fi(int i) {
+		return this.fi.get(i);
 	}
 	
 	private void addFi(int i, int amount) {
-		int fi = this.fi.get(i);
-		fi += amount;
-		setFi(i, fi);
+		this.fi.addTo(i, amount);
 	}
 	
 	private void increaseFi(int i) {
-		int fi = this.fi.get(i);
-		fi++;
-		this.fi.set(i, fi);
+		this.fi.increment(i);
 	}
 	
 	private void decreaseFi(int i) {
-		int fi = this.fi.get(i);
-		fi--;
-		this.fi.set(i, fi);
+		this.fi.decrement(i);
+	}
+
+	private void setFi(int i, int count) {
+		this.fi.set(i, count);
 	}
 
 	private void appendFi(int count) {
 		this.fi.add(count);
 	}
-	
-	private void removeFi(int i) {
-		this.fi.remove(i);
+
+	private void appendMetabolite(HDPMetabolite met) {
+		met.setPosition(hdpMetabolites.size());
+		this.hdpMetabolites.add(met);
+	}
+
+	private void setMetabolite(int i, HDPMetabolite met) {
+		met.setPosition(i);
+		this.hdpMetabolites.set(i, met);
 	}
 	
 	public int[] fiArray() {
-		Integer[] temp = fi.toArray(new Integer[fi.size()]);
-		return ArrayUtils.toPrimitive(temp);
+		return fi.toArray();
 	}	
 	
 	private double ti(int i) {
@@ -1043,36 +2240,41 @@ public class HDPMassRTClustering implements HDPClustering {
 		this.ti.add(ti);
 	}
 	
-	private void removeTi(int i) {
-		this.ti.remove(i);
-	}
-	
-	private void setSi(int i, double si) {
-		this.si.set(i, si);
-	}
-	
 	private double si(int i) {
 		return this.si.get(i);
 	}
 	
 	private void addSi(int i, double amount) {
-		double si = this.si.get(i);
-		si += amount;
-		setSi(i, si);
+		this.si.addTo(i, amount);
 	}
 
 	private void subsSi(int i, double amount) {
-		double si = this.si.get(i);
-		si -= amount;
-		setSi(i, si);
+		this.si.subsFrom(i, amount);
+	}
+
+	private void setSi(int i, double amount) {
+		this.si.set(i, amount);
 	}
 
 	private void appendSi(double amount) {
 		this.si.add(amount);
 	}
 	
-	private void removeSi(int i) {
-		this.si.remove(i);
+	/**
+	 * Deletes the top-level info and mass clusters of metabolite i by moving the
+	 * last metabolite into its position
+	 * @param i The metabolite position index
+	 * @return The old position index of the metabolite now at i
+	 */
+	private int removeMetabolite(int i) {
+		int last = this.fi.swapRemove(i);
+		this.ti.swapRemove(i);
+		this.si.swapRemove(i);
+		HDPMetabolite lastMet = hdpMetabolites.remove(last);
+		if (last != i) {
+			setMetabolite(i, lastMet);
+		}
+		return last;
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.joewandy.alignmentResearch.alignmentMethod.AlignmentMethodParam;
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.Feature;
+import com.joewandy.alignmentResearch.model.HDPAnnotation;
+import com.joewandy.alignmentResearch.model.HDPClustering;
+import com.joewandy.alignmentResearch.model.HDPMetabolite;
+import com.joewandy.alignmentResearch.util.ArrayMathUtil;
+
+/**
+ * Runs several independent HDP mass-RT Gibbs chains in parallel, one per thread,
+ * and pools their post burn-in alignment counts. Annotations and the last sample
+ * are taken from the first chain.
+ */
+public class HDPMultiChainClustering implements HDPClustering {
+
+	private List<HDPMassRTClustering> chains;
+	private HDPAlignmentResults alignmentResults;
+	private int samplesTaken;
+
+	/**
+	 * Constructs the chains, each with its own random seed
+	 * @param dataList The list of files to be processed
+	 * @param methodParam Alignment method parameters
+	 * @param numChains The number of chains to run
+	 */
+	public HDPMultiChainClustering(List<AlignmentFile> dataList, AlignmentMethodParam methodParam, int numChains) {
+
+		assert(numChains > 0);
+
+		// chains are constructed serially as they all assign the same sequence IDs to the shared features,
+		// they share the initialiser so a deterministic initial state is only computed once
+		Random seeds = new Random();
+		String checkpointPath = methodParam.getHdpClusteringResultsPath();
+		HDPInitialiser initialiser = HDPMassRTClustering.createInitialiser(methodParam);
+		this.chains = new ArrayList<HDPMassRTClustering>();
+		for (int c = 0; c < numChains; c++) {
+			HDPMassRTClustering chain = new HDPMassRTClustering(dataList, methodParam, seeds.nextLong(), initialiser);
+			if (checkpointPath != null) {
+				// each chain keeps its own checkpoint
+				chain.setHdpClusteringResultsPath(checkpointPath + ".chain" + c);
+			}
+			chains.add(chain);
+		}
+		this.alignmentResults = new HDPAlignmentResults();
+
+	}
+
+	/**
+	 * Runs all chains to completion, then merges their results
+	 */
+	public void runClustering() {
+
+		int numThreads = Math.min(chains.size(), Runtime.getRuntime().availableProcessors());
+		System.out.println("Running " + chains.size() + " HDP chains on " + numThreads + " threads");
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final HDPMassRTClustering chain : chains) {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chain.runClustering();
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while running HDP chains", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("HDP chain failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// pool the counts from all chains
+		double[][] traces = new double[chains.size()][];
+		for (int c = 0; c < chains.size(); c++) {
+			HDPMassRTClustering chain = chains.get(c);
+			alignmentResults.merge(chain.getAlignmentResults());
+			samplesTaken += chain.getSamplesTaken();
+			traces[c] = chain.getMetaboliteCountTrace();
+		}
+
+		// chains that disagree but never move give an infinite R-hat, so report the chain means too
+		StringBuilder sb = new StringBuilder();
+		for (double[] trace : traces) {
+			double mean = trace.length == 0 ? Double.NaN : ArrayMathUtil.sum(trace) / trace.length;
+			sb.append(String.format(" %.2f", mean));
+		}
+		double rHat = ArrayMathUtil.potentialScaleReduction(traces);
+		System.out.println(String.format("Pooled %d samples from %d chains, mean I = [%s ], R-hat(I) = %.4f",
+				samplesTaken, chains.size(), sb.toString(), rHat));
+
+	}
+
+	/**
+	 * Returns the pooled probabilities of aligned features set
+	 */
+	public HDPAlignmentResults getAlignmentResults() {
+		return alignmentResults;
+	}
+
+	/**
+	 * Returns the number of samples taken across all chains
+	 */
+	public int getSamplesTaken() {
+		return samplesTaken;
+	}
+
+	public HDPAnnotation<Feature> getIonisationProductFeatureAnnotations() {
+		return chains.get(0).getIonisationProductFeatureAnnotations();
+	}
+
+	public HDPAnnotation<Feature> getMetaboliteFeatureAnnotations() {
+		return chains.get(0).getMetaboliteFeatureAnnotations();
+	}
+
+	public HDPAnnotation<HDPMetabolite> getMetaboliteAnnotations() {
+		return chains.get(0).getMetaboliteAnnotations();
+	}
+
+	public HDPAnnotation<Feature> getIsotopeFeatureAnnotations() {
+		return chains.get(0).getIsotopeFeatureAnnotations();
+	}
+
+	public HDPSingleSample getLastSample() {
+		return chains.get(0).getLastSample();
+	}
+
+}
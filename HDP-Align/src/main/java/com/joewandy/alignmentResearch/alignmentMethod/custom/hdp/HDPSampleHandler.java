@@ -1,110 +1,41 @@
 package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.List;
 
-import com.fasterxml.jackson.core.JsonGenerationException;
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.joewandy.alignmentResearch.model.HDPClusteringParam;
 import com.joewandy.alignmentResearch.model.HDPMetabolite;
+import com.joewandy.alignmentResearch.util.GrowableDoubleArray;
 
 public class HDPSampleHandler {
 	
 	private List<HDPMetabolite> hdpMetabolites;
 	private int totalPeaks;
 	private HDPAllSamples samplingResults;
+	private GrowableDoubleArray metaboliteCountTrace;
+	private HDPSampleProcessor streamProcessor;
+	private int sampleThinning;
 		
 	public HDPSampleHandler(int totalPeaks, List<HDPMetabolite> hdpMetabolites) {
 	
 		this.hdpMetabolites = hdpMetabolites;
 		this.samplingResults = new HDPAllSamples();
+		this.metaboliteCountTrace = new GrowableDoubleArray();
 		this.totalPeaks = totalPeaks;
 
 	}
 	
 	/**
-	 * Code broken!! Don't use yet
-	 * @param hdpClusteringResultsPath
-	 * @return
+	 * Passes every post burn-in sample to the processor as soon as it is drawn, 
+	 * instead of keeping all samples until the end
+	 * @param processor The sample processor
+	 * @param sampleThinning Keep every n-th post burn-in sample in the sampling results, 
+	 * 		or 0 to keep none of them
 	 */
-	public boolean initialiseResultsFromPath(String hdpClusteringResultsPath) {
-
-		System.out.println("Loading previous clustering results from " + hdpClusteringResultsPath);
-		File f = new File(hdpClusteringResultsPath);
-		if(!f.exists()) {
-			return false;
-		}
-		
-		// use json
-		boolean loadSuccess = false;
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			samplingResults = mapper.readValue(new File(hdpClusteringResultsPath),
-					HDPAllSamples.class);
-			loadSuccess = true;
-		} catch (JsonParseException e) {
-			e.printStackTrace();
-		} catch (JsonMappingException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// use java serialisation
-//		boolean loadSuccess = false;
-//		try (
-//			InputStream file = new FileInputStream(hdpClusteringResultsPath);
-//			InputStream buffer = new BufferedInputStream(file);
-//			ObjectInput input = new ObjectInputStream(buffer);
-//		) {
-//			samplingResults = (HDPAllSamples) input.readObject();
-//			loadSuccess = true;
-//		} catch (ClassNotFoundException ex) {
-//			ex.printStackTrace();
-//		} catch (IOException ex) {
-//			ex.printStackTrace();
-//		}
-		
-	    return loadSuccess;
-
+	public void streamTo(HDPSampleProcessor processor, int sampleThinning) {
+		this.streamProcessor = processor;
+		this.sampleThinning = sampleThinning;
 	}
 	
-	/**
-	 * Code broken!! Don't use yet
-	 * @param hdpClusteringResultsPath
-	 */
-	public void persistResultsToPath(String hdpClusteringResultsPath) {
-
-		System.out.println("Saving previous clustering results to " + hdpClusteringResultsPath);
-		
-		// use json
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			mapper.writeValue(new File(hdpClusteringResultsPath), samplingResults);
-		} catch (JsonGenerationException e) {
-			e.printStackTrace();
-		} catch (JsonMappingException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// use java serialisation
-//		try (
-//			OutputStream file = new FileOutputStream(hdpClusteringResultsPath);
-//			OutputStream buffer = new BufferedOutputStream(file);
-//			ObjectOutput output = new ObjectOutputStream(buffer);
-//		) {
-//			output.writeObject(samplingResults);
-//		} catch (IOException ex) {
-//			ex.printStackTrace();
-//		}
-	
-	}
-
 	public void storeSample(int s, int peaksProcessed, double timeTaken, HDPClusteringParam hdpParam, boolean lastSample) {
 
 		int I = hdpMetabolites.size();
@@ -113,7 +44,17 @@ public class HDPSampleHandler {
 		if ((s+1) > hdpParam.getBurnIn()) {
 			if (printMsg) {
 				System.out.print(String.format("Sample S#%05d ", (s+1)));		
-				samplingResults.store(hdpMetabolites);
+				if (streamProcessor != null) {
+					HDPSingleSample sample = new HDPSingleSample(hdpMetabolites);
+					streamProcessor.processSample(sample);
+					int postBurnIn = metaboliteCountTrace.size() + 1;
+					if (sampleThinning > 0 && postBurnIn % sampleThinning == 0) {
+						samplingResults.store(sample);
+					}
+				} else {
+					samplingResults.store(hdpMetabolites);
+				}
+				metaboliteCountTrace.add(I);
 			}
 		} else {
 			// ignore the burn-in samples
@@ -147,5 +88,16 @@ public class HDPSampleHandler {
 	public HDPAllSamples getSamplingResults() {
 		return samplingResults;
 	}
+
+	public double[] getMetaboliteCountTrace() {
+		return metaboliteCountTrace.toArray();
+	}
+
+	public void restoreMetaboliteCountTrace(double[] trace) {
+		metaboliteCountTrace.clear();
+		for (double count : trace) {
+			metaboliteCountTrace.add(count);
+		}
+	}
 			
 }
\ No newline at end of file
@@ -1,8 +1,10 @@
 package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -18,7 +20,8 @@ import com.joewandy.alignmentResearch.model.HDPMassCluster;
 import com.joewandy.alignmentResearch.model.HDPMetabolite;
 import com.joewandy.alignmentResearch.model.HDPPrecursorMass;
 import com.joewandy.alignmentResearch.precursorPrediction.AdductTransformComputer;
-import com.joewandy.mzmatch.query.CompoundQuery;
+import com.joewandy.alignmentResearch.util.ArrayMathUtil;
+import com.joewandy.mzmatch.query.CachedCompoundQuery;
 
 public class HDPSampleProcessor {
 	
@@ -28,7 +31,7 @@ public class HDPSampleProcessor {
 	private String mode;
 	private AdductTransformComputer adductCalc;
 	private List<String> adductList;
-	private CompoundQuery idDatabase;
+	private CachedCompoundQuery idDatabase;
 
 	private HDPSingleSample lastSample;
 	private HDPAlignmentResults alignmentResults;
@@ -40,13 +43,16 @@ public class HDPSampleProcessor {
 	private HDPAnnotation<Feature> metaboliteFeatureAnnotations;
 	private HDPAnnotation<HDPMetabolite> metaboliteAnnotations;
 	
+	// compound databases and their caches, shared by all the chains
+	private static final Map<String, CachedCompoundQuery> sharedDatabases = new HashMap<String, CachedCompoundQuery>();
+	
 	public HDPSampleProcessor(double ppm, String dbPath, String mode) {
 	
 		this.alignmentResults = new HDPAlignmentResults();
 		this.ppm = ppm;
 
 		if (dbPath != null) {
-			this.idDatabase = new HDPQueryKegg(dbPath);			
+			this.idDatabase = getSharedDatabase(dbPath);
 			this.metaboliteFeatureAnnotations = new HDPAnnotation<Feature>();
 			this.metaboliteAnnotations = new HDPAnnotation<HDPMetabolite>();
 		}
@@ -91,6 +97,35 @@ public class HDPSampleProcessor {
 		
 	}	
 	
+	/**
+	 * Processes a single sample as soon as it is drawn, without keeping the previous samples
+	 * @param sample The sample to process
+	 */
+	public void processSample(HDPSingleSample sample) {
+		doProcess(sample);
+		lastSample = sample;
+	}
+	
+	/**
+	 * Annotates a sample without counting it in the alignment results, 
+	 * e.g. the final state of a chain reloaded from a checkpoint
+	 * @param sample The sample to annotate
+	 */
+	public void annotateSample(HDPSingleSample sample) {
+		annotate(sample.getMetabolites());
+		lastSample = sample;
+	}
+	
+	/**
+	 * Restores the alignment results accumulated before a checkpoint
+	 * @param alignmentResults The alignment results
+	 * @param samplesTaken The number of samples counted in the alignment results
+	 */
+	public void restoreAlignmentResults(HDPAlignmentResults alignmentResults, int samplesTaken) {
+		this.alignmentResults = alignmentResults;
+		this.samplesTaken = samplesTaken;
+	}
+	
 	private void doProcess(HDPSingleSample resultsSample) {
 				
 		samplesTaken++;
@@ -99,6 +134,19 @@ public class HDPSampleProcessor {
 		
 		// track alignment probabilities
 		updateAlignmentResults(metabolites);
+		annotate(metabolites);
+		
+	}
+	
+	private void annotate(List<HDPMetabolite> metabolites) {
+		
+		// metabolites are copied for every sample, so drop the ones keyed by the previous sample
+		if (metabolitePrecursors != null) {
+			metabolitePrecursors.clear();
+		}
+		if (metaboliteAnnotations != null) {
+			metaboliteAnnotations.clear();
+		}
 	
 		// annotate ionisation products
 		if (mode != null) {
@@ -122,10 +170,7 @@ public class HDPSampleProcessor {
 			// for all mass clusters
 			for (int a = 0; a < met.getA(); a++) {
 				// accumulate the frequencies of the set of peaks inside
-				List <Feature> peaksInside = met.getPeaksInMassCluster(a);
-				Set<Feature> features = new HashSet<Feature>(peaksInside);
-				HDPMassClusterFeatures item = new HDPMassClusterFeatures(features);
-				alignmentResults.store(item);					
+				alignmentResults.store(met.getMassClusters().get(a).getPeakData());
 			}
 			
 		}
@@ -134,28 +179,7 @@ public class HDPSampleProcessor {
 	
 	private void annotateIP(List<HDPMetabolite> metabolites) {
 
-		// precompute precursor masses for each mass cluster
-		Map<HDPMassCluster, List<Double>> precursorMap = new HashMap<HDPMassCluster, List<Double>>();
-		for (int i = 0; i < metabolites.size(); i++) {
-			
-			// for every mass cluster
-			HDPMetabolite met = metabolites.get(i);
-			for (int j = 0; j < met.getMassClusters().size(); j++) {				
-
-				// use the calculator to compute precursor masses under possible adduct transformations
-				HDPMassCluster mc = met.getMassClusters().get(j);				
-				double ionMass = Math.exp(mc.getTheta());
-				List<Double> precursorMasses = adductCalc.getPrecursorMass(ionMass);
-				assert(adductList.size() == precursorMasses.size());
-				
-				// store this for later use
-				precursorMap.put(mc, precursorMasses);
-
-			}
-			
-		}
-		
-		// then build the 'consensus' counts of precursor masses
+		// build the 'consensus' counts of precursor masses
 		for (int i = 0; i < metabolites.size(); i++) {
 			
 			// initialise the precursor map for each metablite
@@ -165,62 +189,7 @@ public class HDPSampleProcessor {
 				precursorList = new ArrayList<HDPPrecursorMass>();
 				metabolitePrecursors.put(met, precursorList);
 			}
-
-			// for all mass clusters inside this metabolite
-			for (int j = 0; j < met.getMassClusters().size(); j++) {
-				
-				// first determine all the possible precursor masses for this mass cluster
-				HDPMassCluster mc1 = met.getMassClusters().get(j);				
-				List<Double> precursorMasses1 = precursorMap.get(mc1);
-				
-				// then check if there's any other mass cluster sharing the same precursor mass
-				boolean found = false;
-				for (int k = j+1; k < met.getMassClusters().size(); k++) {
-					
-					HDPMassCluster mc2 = met.getMassClusters().get(k);				
-					List<Double> precursorMasses2 = precursorMap.get(mc2);
-
-					// if yes, then annotate both mass clusters
-					for (int c1 = 0; c1 < precursorMasses1.size(); c1++) {
-						// get the precomputed value
-						double precursorMass1 = precursorMasses1.get(c1);
-						if (precursorMass1 > 0) {
-						
-							// find the precursor mass object first
-							HDPPrecursorMass precursor = null;
-							for (HDPPrecursorMass pc : precursorList) {
-								if (pc.withinTolerance(precursorMass1)) {
-									precursor = pc;
-									break;
-								}
-							}
-							// make a new precursor mass if necessary
-							boolean newPc = false;
-							if (precursor == null) {
-								precursor = new HDPPrecursorMass(precursorMass1, this.ppm, this.idDatabase);
-								newPc = true;
-							}
-							// search for matching results in precursorMasses2 and annotate features if found
-							found = findAndAnnotateIP(precursor, precursorMasses2, mc1,
-									mc2, c1);
-							if (found) {
-								if (newPc) {
-									mc1.setPrecursorMass(precursor);
-									mc2.setPrecursorMass(precursor);
-									precursorList.add(precursor);								
-								} else {
-									precursor.incrementCount();
-								}
-								break;
-							}
-
-							
-						}						
-					}
-
-				}
-				
-			}
+			annotateIP(met, precursorList);
 						
 		}
 		
@@ -268,36 +237,196 @@ public class HDPSampleProcessor {
 				
 	}
 
-	private boolean findAndAnnotateIP(HDPPrecursorMass precursorMass1,
-			List<Double> precursorMasses2, HDPMassCluster mc1,
-			HDPMassCluster mc2, int c1) {
+	/**
+	 * Finds the pairs of mass clusters in a metabolite that share a precursor mass under 
+	 * some adduct types, and annotates their peaks with the adduct types. For every pair of mass 
+	 * clusters, the first adduct type of the first cluster with a match is used, together with the 
+	 * first matching adduct type of the second cluster. The precursor masses of all the mass clusters 
+	 * are sorted once, so the matches are found by binary search rather than by comparing all pairs.
+	 * @param met The metabolite
+	 * @param precursorList The consensus precursor masses of the metabolite, added to
+	 */
+	private void annotateIP(HDPMetabolite met, List<HDPPrecursorMass> precursorList) {
 		
-		for (int c2 = 0; c2 < precursorMasses2.size(); c2++) {
-	
-			double precursorMass2 = precursorMasses2.get(c2);
-			if (precursorMass2 < 0) {
-				continue;
+		// compute the precursor masses of each mass cluster under all the adduct types
+		List<HDPMassCluster> massClusters = met.getMassClusters();
+		int A = massClusters.size();
+		int nAdducts = adductList.size();
+		double[][] precursorMasses = new double[A][nAdducts];
+		for (int a = 0; a < A; a++) {
+			double ionMass = Math.exp(massClusters.get(a).getTheta());
+			adductCalc.getPrecursorMass(ionMass, precursorMasses[a]);
+		}
+		
+		// sort them by mass, keeping which mass cluster and adduct type each one comes from
+		int n = 0;
+		Integer[] order = new Integer[A*nAdducts];
+		for (int a = 0; a < A; a++) {
+			for (int c = 0; c < nAdducts; c++) {
+				if (precursorMasses[a][c] >= 0) {
+					order[n++] = a*nAdducts + c;
+				}
+			}
+		}
+		final double[][] pm = precursorMasses;
+		final int numAdducts = nAdducts;
+		Arrays.sort(order, 0, n, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(pm[o1 / numAdducts][o1 % numAdducts], pm[o2 / numAdducts][o2 % numAdducts]);
 			}
+		});
+		double[] sortedMass = new double[n];
+		int[] sortedCluster = new int[n];
+		int[] sortedAdduct = new int[n];
+		for (int m = 0; m < n; m++) {
+			sortedCluster[m] = order[m] / nAdducts;
+			sortedAdduct[m] = order[m] % nAdducts;
+			sortedMass[m] = precursorMasses[sortedCluster[m]][sortedAdduct[m]];
+		}
+		
+		// the consensus precursor masses, sorted by mass
+		PrecursorIndex precursorIndex = new PrecursorIndex(precursorList);
+		
+		int[] matchAdduct1 = new int[A];
+		int[] matchAdduct2 = new int[A];
+		HDPPrecursorMass[] matchPrecursor = new HDPPrecursorMass[A];
+		for (int j = 0; j < A; j++) {
 			
-			// check mass tolerance to determine if precursorMass2 is an adduct type
-			if (precursorMass1.withinTolerance(precursorMass2)) {
-				// if yes, then annotate peaks in both mass clusters with the respective adduct types
-				String adductType1 = adductList.get(c1);
-				for (Feature f1 : mc1.getPeakData()) {
-					ionisationProductFeatureAnnotations.annotate(f1, adductType1);
+			// for each adduct type of mass cluster j, find the mass clusters after j sharing the precursor mass
+			Arrays.fill(matchAdduct1, -1);
+			for (int c1 = 0; c1 < nAdducts; c1++) {
+				double precursorMass1 = precursorMasses[j][c1];
+				if (precursorMass1 <= 0) {
+					continue;
 				}
-				mc1.addMessage(adductType1);
-				String adductType2 = adductList.get(c2);
-				for (Feature f2 : mc2.getPeakData()) {
-					ionisationProductFeatureAnnotations.annotate(f2, adductType2);
-				}				
-				mc2.addMessage(adductType2);
-				return true;
+				HDPPrecursorMass precursor = precursorIndex.find(precursorMass1);
+				if (precursor == null) {
+					precursor = new HDPPrecursorMass(precursorMass1, this.ppm, this.idDatabase);
+				}
+				
+				// all the sorted precursor masses within tolerance of this precursor
+				double delta = precursor.getPpm() * 0.000001 * precursor.getMass();
+				int m = ArrayMathUtil.upperBound(sortedMass, n, precursor.getMass() - delta);
+				for (; m < n && sortedMass[m] < precursor.getMass() + delta; m++) {
+					int k = sortedCluster[m];
+					if (k <= j || !precursor.withinTolerance(sortedMass[m])) {
+						continue;
+					}
+					// keep the first adduct type of j with a match, then the first adduct type of k
+					if (matchAdduct1[k] == -1 || (matchAdduct1[k] == c1 && sortedAdduct[m] < matchAdduct2[k])) {
+						matchAdduct1[k] = c1;
+						matchAdduct2[k] = sortedAdduct[m];
+						matchPrecursor[k] = precursor;
+					}
+				}
+				
 			}
-
+			
+			// annotate both mass clusters of every matching pair
+			HDPMassCluster mc1 = massClusters.get(j);
+			for (int k = j+1; k < A; k++) {
+				if (matchAdduct1[k] == -1) {
+					continue;
+				}
+				HDPMassCluster mc2 = massClusters.get(k);
+				annotateIP(mc1, matchAdduct1[k], mc2, matchAdduct2[k]);
+				HDPPrecursorMass precursor = matchPrecursor[k];
+				if (precursorIndex.contains(precursor)) {
+					precursor.incrementCount();
+				} else {
+					mc1.setPrecursorMass(precursor);
+					mc2.setPrecursorMass(precursor);
+					precursorList.add(precursor);
+					precursorIndex.add(precursor);
+				}
+			}
+			Arrays.fill(matchPrecursor, null);
+			
 		}
-		return false;
-
+		
+	}
+	
+	/**
+	 * Annotates the peaks in two mass clusters sharing a precursor mass with their adduct types
+	 */
+	private void annotateIP(HDPMassCluster mc1, int c1, HDPMassCluster mc2, int c2) {
+		String adductType1 = adductList.get(c1);
+		for (Feature f1 : mc1.getPeakData()) {
+			ionisationProductFeatureAnnotations.annotate(f1, adductType1);
+		}
+		mc1.addMessage(adductType1);
+		String adductType2 = adductList.get(c2);
+		for (Feature f2 : mc2.getPeakData()) {
+			ionisationProductFeatureAnnotations.annotate(f2, adductType2);
+		}				
+		mc2.addMessage(adductType2);
+	}
+	
+	/**
+	 * The consensus precursor masses of a metabolite, sorted by mass to find the one matching 
+	 * a mass by binary search. Where several match, the one added first wins.
+	 */
+	private static class PrecursorIndex {
+		
+		private double[] masses;
+		private int[] positions;		// order of addition
+		private HDPPrecursorMass[] precursors;
+		private int size;
+		private Map<HDPPrecursorMass, Integer> positionOf;
+		private double maxPpm;
+		
+		public PrecursorIndex(List<HDPPrecursorMass> precursorList) {
+			this.masses = new double[Math.max(precursorList.size(), 4)];
+			this.positions = new int[masses.length];
+			this.precursors = new HDPPrecursorMass[masses.length];
+			this.positionOf = new IdentityHashMap<HDPPrecursorMass, Integer>();
+			for (HDPPrecursorMass pc : precursorList) {
+				add(pc);
+			}
+		}
+		
+		public boolean contains(HDPPrecursorMass pc) {
+			return positionOf.containsKey(pc);
+		}
+		
+		public void add(HDPPrecursorMass pc) {
+			if (size == masses.length) {
+				masses = Arrays.copyOf(masses, 2*size);
+				positions = Arrays.copyOf(positions, 2*size);
+				precursors = Arrays.copyOf(precursors, 2*size);
+			}
+			// insert in mass order
+			int pos = ArrayMathUtil.upperBound(masses, size, pc.getMass());
+			System.arraycopy(masses, pos, masses, pos+1, size-pos);
+			System.arraycopy(positions, pos, positions, pos+1, size-pos);
+			System.arraycopy(precursors, pos, precursors, pos+1, size-pos);
+			masses[pos] = pc.getMass();
+			positions[pos] = positionOf.size();
+			precursors[pos] = pc;
+			positionOf.put(pc, positionOf.size());
+			size++;
+			maxPpm = Math.max(maxPpm, pc.getPpm());
+		}
+		
+		/**
+		 * Returns the earliest added precursor mass with the mass within its tolerance, or null
+		 */
+		public HDPPrecursorMass find(double mass) {
+			// withinTolerance is relative to the precursor's own mass, so widen the search slightly
+			double tol = maxPpm * 0.000001;
+			int m = ArrayMathUtil.upperBound(masses, size, mass / (1 + tol) - 1e-9);
+			HDPPrecursorMass found = null;
+			int foundPos = Integer.MAX_VALUE;
+			for (; m < size && masses[m] <= mass / (1 - tol) + 1e-9; m++) {
+				if (positions[m] < foundPos && precursors[m].withinTolerance(mass)) {
+					found = precursors[m];
+					foundPos = positions[m];
+				}
+			}
+			return found;
+		}
+		
 	}
 	
 	private void annotateMetabolites(List<HDPMetabolite> metabolites) {
@@ -397,6 +526,28 @@ public class HDPSampleProcessor {
 		}
 	}
 
+	/**
+	 * Returns the cached compound database, or null if metabolites are not annotated
+	 */
+	public CachedCompoundQuery getIdDatabase() {
+		return idDatabase;
+	}
+	
+	/**
+	 * Loads a compound database the first time it's used, later calls return the same cached instance
+	 * @param dbPath The path to the database
+	 * @return The cached database
+	 */
+	private static synchronized CachedCompoundQuery getSharedDatabase(String dbPath) {
+		CachedCompoundQuery db = sharedDatabases.get(dbPath);
+		if (db == null) {
+			db = new CachedCompoundQuery(new HDPQueryKegg(dbPath), 
+					MultiAlignConstants.HDP_DB_CACHE_SIZE, MultiAlignConstants.HDP_DB_CACHE_BUCKET_PPM);
+			sharedDatabases.put(dbPath, db);
+		}
+		return db;
+	}
+	
 	public HDPAlignmentResults getAlignmentResults() {
 		return alignmentResults;
 	}
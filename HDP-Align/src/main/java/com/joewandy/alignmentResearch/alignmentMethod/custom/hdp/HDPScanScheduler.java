@@ -0,0 +1,110 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.random.RandomData;
+
+import com.joewandy.alignmentResearch.model.Feature;
+
+/**
+ * Adaptive scan order for the HDP mass-RT Gibbs sampler. Each peak keeps a movement score,
+ * the exponentially decaying average of how often its Gibbs update moved it to another mass cluster.
+ * In a partial sweep, a peak is updated with probability equal to its score, but never less than
+ * minVisitRate, so peaks that have settled are visited less often but are never dropped from inference.
+ * Every fullSweepInterval sweeps, all peaks are updated. Peaks are indexed by their sequence ID.
+ */
+public class HDPScanScheduler {
+
+	private static final double DECAY = 0.5;	// weight of the latest update in the movement score
+
+	private final int fullSweepInterval;
+	private final double minVisitRate;
+
+	private double[] movementScore;
+	private int[] visitCount;
+	private int sweeps;
+	private boolean fullSweep;
+
+	/**
+	 * Creates a scheduler where all peaks start with the maximum score
+	 * @param totalPeaks The number of peaks across files
+	 * @param fullSweepInterval Do a full sweep every this many sweeps
+	 * @param minVisitRate The minimum probability of updating a peak in a partial sweep
+	 */
+	public HDPScanScheduler(int totalPeaks, int fullSweepInterval, double minVisitRate) {
+		this.fullSweepInterval = Math.max(fullSweepInterval, 1);
+		this.minVisitRate = minVisitRate;
+		this.movementScore = new double[totalPeaks];
+		this.visitCount = new int[totalPeaks];
+		Arrays.fill(movementScore, 1.0);
+	}
+
+	/**
+	 * Starts the next sweep
+	 * @return true if this is a full sweep
+	 */
+	public boolean startSweep() {
+		fullSweep = (sweeps % fullSweepInterval) == 0;
+		sweeps++;
+		return fullSweep;
+	}
+
+	/**
+	 * Decides whether to update a peak in the current sweep
+	 * @param f The peak
+	 * @param randomData The random data generator of the chain
+	 * @return true if the peak should be updated
+	 */
+	public boolean shouldVisit(Feature f, RandomData randomData) {
+		if (fullSweep) {
+			return true;
+		}
+		double rate = Math.max(movementScore[f.getSequenceID()], minVisitRate);
+		return rate >= 1 || randomData.nextUniform(0, 1) < rate;
+	}
+
+	/**
+	 * Records the outcome of a Gibbs update of a peak
+	 * @param f The peak
+	 * @param moved true if the peak has moved to another mass cluster
+	 */
+	public void recordVisit(Feature f, boolean moved) {
+		int n = f.getSequenceID();
+		movementScore[n] = (1-DECAY)*movementScore[n] + (moved ? DECAY : 0);
+		visitCount[n]++;
+	}
+
+	/**
+	 * Returns the fraction of sweeps in which each peak has been updated
+	 */
+	public double[] getVisitRates() {
+		double[] rates = new double[visitCount.length];
+		for (int n = 0; n < visitCount.length; n++) {
+			rates[n] = sweeps == 0 ? 0 : ((double) visitCount[n]) / sweeps;
+		}
+		return rates;
+	}
+
+	public double[] getMovementScores() {
+		return movementScore;
+	}
+
+	public int[] getVisitCounts() {
+		return visitCount;
+	}
+
+	public int getSweeps() {
+		return sweeps;
+	}
+
+	/**
+	 * Restores the state saved in a checkpoint
+	 */
+	public void restore(double[] movementScore, int[] visitCount, int sweeps) {
+		assert(movementScore.length == this.movementScore.length);
+		this.movementScore = movementScore;
+		this.visitCount = visitCount;
+		this.sweeps = sweeps;
+	}
+
+}
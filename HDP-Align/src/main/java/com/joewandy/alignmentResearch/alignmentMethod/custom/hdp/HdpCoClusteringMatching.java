@@ -0,0 +1,85 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.List;
+
+import com.joewandy.alignmentResearch.alignmentMethod.FeatureMatching;
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.AlignmentList;
+import com.joewandy.alignmentResearch.model.AlignmentRow;
+import com.joewandy.alignmentResearch.model.Feature;
+
+/**
+ * Aligns peaks by the connected components of their pairwise co-clustering probabilities.
+ * Two peaks are linked if they are in the same mass cluster in at least threshold of the samples,
+ * so peaks that are often together but rarely all at once still end up in the same row.
+ * The score of a row is the mean co-clustering probability over its pairs of peaks.
+ */
+public class HdpCoClusteringMatching implements FeatureMatching {
+
+	private HDPAlignmentResults alignmentResults;
+	private List<AlignmentFile> dataList;
+	private int samplesTaken;
+	private double threshold;
+
+	/**
+	 * Constructs the matching from the accumulated HDP results
+	 * @param alignmentResults The counts of each set of peaks put together in a mass cluster
+	 * @param dataList The input files, with the sequence IDs assigned by the HDP clustering
+	 * @param samplesTaken The number of samples the counts were accumulated over
+	 * @param threshold The minimum co-clustering probability of two linked peaks
+	 */
+	public HdpCoClusteringMatching(HDPAlignmentResults alignmentResults, List<AlignmentFile> dataList,
+			int samplesTaken, double threshold) {
+		this.alignmentResults = alignmentResults;
+		this.dataList = dataList;
+		this.samplesTaken = samplesTaken;
+		this.threshold = threshold;
+	}
+
+	public AlignmentList getMatchedList() {
+
+		// the matrix is indexed by sequence ID
+		int numPeaks = 0;
+		for (AlignmentFile data : dataList) {
+			numPeaks += data.getFeaturesCount();
+		}
+		Feature[] peaks = new Feature[numPeaks];
+		for (AlignmentFile data : dataList) {
+			for (Feature f : data.getFeatures()) {
+				peaks[f.getSequenceID()] = f;
+			}
+		}
+		HDPCoClusteringMatrix matrix = alignmentResults.getCoClusteringMatrix(numPeaks, samplesTaken);
+
+		// add matched entries
+		AlignmentList matchedList = new AlignmentList("matched_list");
+		int rowId = 0;
+		for (int[] component : matrix.getConnectedComponents(threshold)) {
+			AlignmentRow merged = new AlignmentRow(matchedList, rowId++);
+			double sumProb = 0;
+			for (int a = 0; a < component.length; a++) {
+				merged.addAlignedFeature(peaks[component[a]]);
+				for (int b = a+1; b < component.length; b++) {
+					sumProb += matrix.getProbability(component[a], component[b]);
+				}
+			}
+			int numPairs = component.length * (component.length-1) / 2;
+			merged.setScore(sumProb / numPairs);
+			matchedList.addRow(merged);
+		}
+
+		// add everything else that's unmatched
+		for (AlignmentFile data : dataList) {
+			for (Feature f : data.getFeatures()) {
+				if (!f.isAligned()) {
+					AlignmentRow newRow = new AlignmentRow(matchedList, rowId++);
+					matchedList.addRow(newRow);
+					newRow.addAlignedFeature(f);
+				}
+			}
+		}
+		return matchedList;
+
+	}
+
+}
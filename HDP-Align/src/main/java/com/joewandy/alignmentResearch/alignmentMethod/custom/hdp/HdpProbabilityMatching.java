@@ -29,7 +29,7 @@ public class HdpProbabilityMatching implements FeatureMatching {
 		int rowId = 0;		
 		for (Entry<HDPMassClusterFeatures, Integer> match : alignmentResults.getEntries()) {
 			HDPMassClusterFeatures item = match.getKey();
-			int count = alignmentResults.getCount(item);
+			int count = match.getValue();
 			double prob = ((double)count) / samplesTaken;
 			AlignmentRow merged = new AlignmentRow(matchedList, rowId++);
 			Set<Feature> features = item.getFeatures();
@@ -19,7 +19,9 @@ import com.joewandy.alignmentResearch.alignmentMethod.FeatureMatching;
 import com.joewandy.alignmentResearch.alignmentMethod.custom.hdp.HDPAlignmentResults;
 import com.joewandy.alignmentResearch.alignmentMethod.custom.hdp.HDPMassRTClustering;
 import com.joewandy.alignmentResearch.alignmentMethod.custom.hdp.HDPAllSamples;
+import com.joewandy.alignmentResearch.alignmentMethod.custom.hdp.HDPMultiChainClustering;
 import com.joewandy.alignmentResearch.alignmentMethod.custom.hdp.HDPPrinter;
+import com.joewandy.alignmentResearch.alignmentMethod.custom.hdp.HdpCoClusteringMatching;
 import com.joewandy.alignmentResearch.alignmentMethod.custom.hdp.HdpProbabilityMatching;
 import com.joewandy.alignmentResearch.main.MultiAlignConstants;
 import com.joewandy.alignmentResearch.model.AlignmentFile;
@@ -76,9 +78,14 @@ public class HdpAlignment extends BaseAlignment implements AlignmentMethod {
 		if (MultiAlignConstants.SCORING_METHOD_HDP_MASS_RT_JAVA
 				.equals(this.param.getScoringMethod())) {
 
-			// run the HDP RT+mass clustering
-			HDPClustering clustering = new HDPMassRTClustering(dataList,
-					param);
+			// run the HDP RT+mass clustering, optionally as several parallel chains
+			HDPClustering clustering = null;
+			if (param.getHdpNumChains() > 1) {
+				clustering = new HDPMultiChainClustering(dataList, param, 
+						param.getHdpNumChains());
+			} else {
+				clustering = new HDPMassRTClustering(dataList, param);
+			}
 			clustering.runClustering();
 
 			// process the matching results
@@ -99,9 +106,14 @@ public class HdpAlignment extends BaseAlignment implements AlignmentMethod {
 
 		}
 		
-		// construct the actual feature matching here 
-		FeatureMatching matcher = new HdpProbabilityMatching(results,
-				dataList, samplesTaken);
+		// construct the actual feature matching here, either from the sets of peaks or from the linked pairs of peaks
+		FeatureMatching matcher = null;
+		if (param.getHdpCoClusteringThreshold() > 0) {
+			matcher = new HdpCoClusteringMatching(results, dataList, samplesTaken, 
+					param.getHdpCoClusteringThreshold());
+		} else {
+			matcher = new HdpProbabilityMatching(results, dataList, samplesTaken);
+		}
 		masterList = matcher.getMatchedList();	
 		return masterList;
 		
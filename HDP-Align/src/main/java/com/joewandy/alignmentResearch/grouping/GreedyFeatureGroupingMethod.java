@@ -17,6 +17,7 @@ import mzmatch.ipeak.sort.RelatedPeaks;
 import no.uib.cipr.matrix.DenseMatrix;
 import no.uib.cipr.matrix.Matrix;
 import no.uib.cipr.matrix.MatrixEntry;
+import no.uib.cipr.matrix.sparse.FlexCompRowMatrix;
 import peakml.IPeak;
 import peakml.IPeakSet;
 import peakml.io.Header;
@@ -27,7 +28,7 @@ import com.jmatio.io.MatFileWriter;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLDouble;
 import com.jmatio.types.MLSparse;
-import com.joewandy.alignmentResearch.matrix.LinkedSparseMatrix;
+import com.joewandy.alignmentResearch.matrix.SparseMatrixUtil;
 import com.joewandy.alignmentResearch.model.AlignmentFile;
 import com.joewandy.alignmentResearch.model.Feature;
 import com.joewandy.alignmentResearch.model.FeatureGroup;
@@ -199,7 +200,7 @@ public class GreedyFeatureGroupingMethod extends BaseFeatureGroupingMethod imple
 			if (data.getFeaturesCount() < 1000) {
 				Z = new DenseMatrix(data.getFeaturesCount(), fileGroups.size());				
 			} else {
-				Z = new LinkedSparseMatrix(data.getFeaturesCount(), fileGroups.size());				
+				Z = new FlexCompRowMatrix(data.getFeaturesCount(), fileGroups.size());				
 			}
 			for (int j = 0; j < fileGroups.size(); j++) {
 				FeatureGroup group = fileGroups.get(j);
@@ -212,10 +213,10 @@ public class GreedyFeatureGroupingMethod extends BaseFeatureGroupingMethod imple
 			System.out.println("Computing ZZprob");
 			if (data.getFeaturesCount() < 1000) {
 				ZZprob = new DenseMatrix(data.getFeaturesCount(), data.getFeaturesCount());
+				Z.transBmult(Z, ZZprob);		
 			} else {
-				ZZprob = new LinkedSparseMatrix(data.getFeaturesCount(), data.getFeaturesCount());				
+				ZZprob = SparseMatrixUtil.multTransSelf(Z);
 			}
-			Z.transBmult(Z, ZZprob);		
 			data.setZZProb(ZZprob);
 
 		}
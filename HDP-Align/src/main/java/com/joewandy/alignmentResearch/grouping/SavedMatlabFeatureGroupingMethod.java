@@ -12,7 +12,7 @@ import no.uib.cipr.matrix.Matrix;
 import com.jmatio.io.MatFileReader;
 import com.jmatio.types.MLDouble;
 import com.joewandy.alignmentResearch.main.MultiAlignConstants;
-import com.joewandy.alignmentResearch.matrix.LinkedSparseMatrix;
+import com.joewandy.alignmentResearch.matrix.SparseMatrixUtil;
 import com.joewandy.alignmentResearch.model.AlignmentFile;
 import com.joewandy.alignmentResearch.model.Feature;
 import com.joewandy.alignmentResearch.model.FeatureGroup;
@@ -77,10 +77,10 @@ public class SavedMatlabFeatureGroupingMethod extends BaseFeatureGroupingMethod
 
 				if (data.getFeaturesCount() < 10000) {
 					ZZprob = new DenseMatrix(data.getFeaturesCount(), data.getFeaturesCount());
+					Z.transBmult(Z, ZZprob);		
 				} else {
-					ZZprob = new LinkedSparseMatrix(data.getFeaturesCount(), data.getFeaturesCount());				
+					ZZprob = SparseMatrixUtil.multTransSelf(Z);
 				}
-				Z.transBmult(Z, ZZprob);		
 				data.setZZProb(ZZprob);
 				
 				// map this clustering results into FeatureGroups
@@ -48,8 +48,23 @@ public class MultiAlignConstants {
 	public static final double HDP_LOCAL_RT_CLUSTER_STDEV = 2;
 	public static final double HDP_MASS_TOLERANCE = 2;
 	public static final boolean HDP_SPEED_UP = false;
-	public static final int HDP_SPEED_UP_NUM_SAMPLE = 100;
+	public static final int HDP_SPEED_UP_NUM_SAMPLE = 10;
 	public static final int HDP_REF_FILE_IDX = -1; // not using any reference file
+	public static final boolean HDP_MASS_PRUNING = false;
+	public static final double HDP_MASS_PRUNING_STDEV = 10;
+	public static final int HDP_NUM_CHAINS = 1;
+	public static final boolean HDP_STREAM_SAMPLES = false;
+	public static final int HDP_SAMPLE_THINNING = 0;
+	public static final int HDP_CHECKPOINT_INTERVAL = 100;
+	public static final int HDP_SPLIT_MERGE_MOVES = 0;
+	public static final String HDP_INITIALISATION_SINGLE = "single";
+	public static final String HDP_INITIALISATION_GREEDY = "greedy";
+	public static final String HDP_INITIALISATION_GROUPING = "grouping";
+	public static final String HDP_INITIALISATION = HDP_INITIALISATION_SINGLE;
+	public static final double HDP_SPEED_UP_MIN_VISIT_RATE = 0.1;
+	public static final double HDP_CO_CLUSTERING_THRESHOLD = 0; // 0 aligns by the sets of peaks in mass clusters
+	public static final int HDP_DB_CACHE_SIZE = 10000;
+	public static final double HDP_DB_CACHE_BUCKET_PPM = 0.5;
 
 	public static final String SCORING_METHOD_HDP_MASS_RT_JAVA = "hdpmassrtjava";
 	public static final String SCORING_METHOD_HDP_RT_JAVA = "hdprtjava";
@@ -93,6 +108,15 @@ public class MultiAlignConstants {
 
 	// use my own performance measure
 	public static final String PERFORMANCE_MEASURE_COMBINATION = "combination";
+
+	// no. of ground truth groups per task when evaluating in parallel
+	public static final int LANGE_EVALUATION_CHUNK_SIZE = 1000;
+
+	// no. of configurations of a parameter sweep to run in parallel
+	public static final int SWEEP_THREADS = 1;
+	
+	// stop sweeping the alignment RT tolerance after this many values without improving F1, 0 to never stop
+	public static final int SWEEP_PATIENCE = 0;
 	
 	/**
 	 * Show setup dialog or not during MZMine alignment ?
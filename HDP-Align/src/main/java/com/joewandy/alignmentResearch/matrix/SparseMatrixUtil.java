@@ -0,0 +1,86 @@
+package com.joewandy.alignmentResearch.matrix;
+
+import java.util.Arrays;
+
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.MatrixEntry;
+import no.uib.cipr.matrix.sparse.CompRowMatrix;
+
+import com.joewandy.alignmentResearch.util.GrowableIntArray;
+
+public class SparseMatrixUtil {
+
+	/**
+	 * Computes Z*Z' in compressed sparse row form. For a cluster assignment matrix Z
+	 * (peaks by clusters), this is the peak-by-peak co-clustering matrix.
+	 * Only the non-zero entries of Z are visited, and the result is built row by row
+	 * with a dense accumulator, so the cost is O(nnz of the result).
+	 * @param Z The matrix
+	 * @return Z*Z'
+	 */
+	public static CompRowMatrix multTransSelf(Matrix Z) {
+
+		int numRows = Z.numRows();
+		int numCols = Z.numColumns();
+
+		// the non-zero entries of each row and of each column of Z
+		GrowableIntArray[] rowCols = new GrowableIntArray[numRows];
+		GrowableIntArray[] colRows = new GrowableIntArray[numCols];
+		for (MatrixEntry e : Z) {
+			if (e.get() == 0) {
+				continue;
+			}
+			if (rowCols[e.row()] == null) {
+				rowCols[e.row()] = new GrowableIntArray(1);
+			}
+			if (colRows[e.column()] == null) {
+				colRows[e.column()] = new GrowableIntArray();
+			}
+			rowCols[e.row()].add(e.column());
+			colRows[e.column()].add(e.row());
+		}
+
+		// row i of Z*Z' is the sum of Z(i,c) times column c of Z', over the non-zero columns c of row i
+		int[][] nz = new int[numRows][];
+		double[][] values = new double[numRows][];
+		double[] acc = new double[numRows];
+		boolean[] touched = new boolean[numRows];
+		GrowableIntArray touchedRows = new GrowableIntArray();
+		for (int i = 0; i < numRows; i++) {
+			touchedRows.clear();
+			if (rowCols[i] != null) {
+				for (int m = 0; m < rowCols[i].size(); m++) {
+					int c = rowCols[i].get(m);
+					double zic = Z.get(i, c);
+					for (int n = 0; n < colRows[c].size(); n++) {
+						int k = colRows[c].get(n);
+						if (!touched[k]) {
+							touched[k] = true;
+							touchedRows.add(k);
+						}
+						acc[k] += zic * Z.get(k, c);
+					}
+				}
+			}
+			int[] cols = touchedRows.toArray();
+			Arrays.sort(cols);
+			nz[i] = cols;
+			values[i] = new double[cols.length];
+			for (int m = 0; m < cols.length; m++) {
+				values[i][m] = acc[cols[m]];
+				acc[cols[m]] = 0;
+				touched[cols[m]] = false;
+			}
+		}
+
+		CompRowMatrix result = new CompRowMatrix(numRows, numRows, nz);
+		for (int i = 0; i < numRows; i++) {
+			for (int m = 0; m < nz[i].length; m++) {
+				result.set(i, nz[i][m], values[i][m]);
+			}
+		}
+		return result;
+
+	}
+
+}
@@ -6,10 +6,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import no.uib.cipr.matrix.Matrix;
@@ -19,6 +23,7 @@ import nu.xom.Element;
 import peakml.chemistry.PeriodicTable;
 
 import com.joewandy.alignmentResearch.comparator.FeatureIntensityComparator;
+import com.joewandy.alignmentResearch.util.ArrayMathUtil;
 
 public class AlignmentFile {
 
@@ -30,6 +35,7 @@ public class AlignmentFile {
 	private List<Feature> features;
 	private List<Feature> sortedFeatures; // sorted by intensity descending
 	private Matrix ZZProb;
+	private FeatureIndex index; // built on first query, null when stale
 	
 	public AlignmentFile(int id, String filename, List<Feature> features) {
 		this.id = id;
@@ -74,11 +80,21 @@ public class AlignmentFile {
 	}
 	
 	public void setZZProb(Matrix zZProb) {
-//		LinkedSparseMatrix temp = new LinkedSparseMatrix(zZProb);
-//		ZZProb = temp;
 		this.ZZProb = zZProb;
 	}
 
+	/**
+	 * Discards the result of any earlier grouping: the ZZProb matrix, which the grouping methods
+	 * reuse when present, and the group ID of every feature. Call this before grouping again
+	 * with different parameters.
+	 */
+	public void clearGrouping() {
+		this.ZZProb = null;
+		for (Feature feature : features) {
+			feature.clearGroupID();
+		}
+	}
+
 	public List<Feature> getFeatures() {
 		return features;
 	}
@@ -130,12 +146,7 @@ public class AlignmentFile {
 	}
 	
 	public Feature getFeatureByPeakID(int peakID) {
-		for (Feature feature : this.features) {
-			if (feature.getPeakID() == peakID) {
-				return feature;
-			}
-		}
-		return null;
+		return getIndex().byPeakID.get(peakID);
 	}
 
 	public Feature getFeatureByExample(Feature example) {
@@ -143,21 +154,33 @@ public class AlignmentFile {
 	}
 	
 	public Feature getFeatureByProperties(double mass, double rt, double intense) {
-		for (Feature feature : this.features) {
+		
+		// the first matching feature in the list, among the ones in the mass window
+		FeatureIndex idx = getIndex();
+		Feature found = null;
+		int foundPos = Integer.MAX_VALUE;
+		for (int i = ArrayMathUtil.upperBound(idx.masses, mass - EPSILON); 
+				i < idx.masses.length && idx.masses[i] < mass + EPSILON; i++) {
+			Feature feature = idx.byMass[i];
 			if (Math.abs(feature.getMass() - mass) < EPSILON && 
 					Math.abs(feature.getRt() - rt) < EPSILON && 
-					Math.abs(feature.getIntensity() - intense) < EPSILON) {
-				return feature;
+					Math.abs(feature.getIntensity() - intense) < EPSILON &&
+					idx.positions[i] < foundPos) {
+				found = feature;
+				foundPos = idx.positions[i];
 			}
 		}
-		return null;
+		return found;
+		
 	}
 	
 	public Feature removeFeatureByIndex(int index) {
+		invalidateIndex();
 		return features.remove(index);
 	}
 	
 	public void retainFeatures(Set<Feature> whiteList) {
+		invalidateIndex();
 		Iterator<Feature> it = this.features.iterator();
 		while (it.hasNext()) {
 			Feature nextFeature = it.next();
@@ -168,9 +191,19 @@ public class AlignmentFile {
 	}
 	
 	public void addFeatures(List<Feature> newFeatures) {
+		invalidateIndex();
 		this.features.addAll(newFeatures);
 	}
 	
+	/**
+	 * Discards the mass, RT and peak ID index of the features. Adding or removing features through this class
+	 * does this already, but it must be called after changing the list from getFeatures() directly,
+	 * or after changing the mass, RT or peak ID of any feature.
+	 */
+	public synchronized void invalidateIndex() {
+		this.index = null;
+	}
+	
 	/**
 	 * see http://stackoverflow.com/questions/122105/java-what-is-the-best-way-to-filter-a-collection
 	 * 
@@ -197,28 +230,31 @@ public class AlignmentFile {
 		double rtLower = referenceFeature.getRt() - rtTol/2;
 		double rtUpper = referenceFeature.getRt() + rtTol/2;		
 		
-		for (Feature toCheck : this.features) {
+		FeatureIndex idx = getIndex();
+		for (int i = ArrayMathUtil.upperBound(idx.masses, massLower); i < idx.masses.length; i++) {
+			Feature toCheck = idx.byMass[i];
+			double massToCheck = idx.masses[i];
+			if (!inRange(massToCheck, massLower, massUpper)) {
+				break;
+			}
 			if (toCheck.isAligned()) {
 				continue;
 			}
-			double massToCheck = toCheck.getMass();
 			double rtToCheck = toCheck.getRt();
-			if (inRange(massToCheck, massLower, massUpper)) {
-
-				// in the mass range
-				if (rtTol != -1) {
-					
-					// not in retention time range
-					 if (inRange(rtToCheck, rtLower, rtUpper)) {
-							result.add(toCheck);
-					 }
-					 
-				} else {
-
-					// not using retention time check
-					result.add(toCheck);					
+
+			// in the mass range
+			if (rtTol != -1) {
 				
-				}
+				// not in retention time range
+				 if (inRange(rtToCheck, rtLower, rtUpper)) {
+						result.add(toCheck);
+				 }
+				 
+			} else {
+
+				// not using retention time check
+				result.add(toCheck);					
+			
 			}
 		}
 
@@ -243,29 +279,32 @@ public class AlignmentFile {
 		double rtLower = referenceFeature.getRt() - rtTol/2;
 		double rtUpper = referenceFeature.getRt() + rtTol/2;		
 		
-		for (Feature toCheck : this.features) {
+		FeatureIndex idx = getIndex();
+		for (int i = ArrayMathUtil.upperBound(idx.masses, massLower); i < idx.masses.length; i++) {
+			Feature toCheck = idx.byMass[i];
+			double massToCheck = idx.masses[i];
+			if (!inRange(massToCheck, massLower, massUpper)) {
+				break;
+			}
 			// get all features in range, even if they have been aligned
 //			if (toCheck.isAligned()) {
 //				continue;
 //			}
-			double massToCheck = toCheck.getMass();
 			double rtToCheck = toCheck.getRt();
-			if (inRange(massToCheck, massLower, massUpper)) {
-
-				// in the mass range
-				if (rtTol != -1) {
-					
-					// not in retention time range
-					 if (inRange(rtToCheck, rtLower, rtUpper)) {
-							result.add(toCheck);
-					 }
-					 
-				} else {
-
-					// not using retention time check
-					result.add(toCheck);					
+
+			// in the mass range
+			if (rtTol != -1) {
 				
-				}
+				// not in retention time range
+				 if (inRange(rtToCheck, rtLower, rtUpper)) {
+						result.add(toCheck);
+				 }
+				 
+			} else {
+
+				// not using retention time check
+				result.add(toCheck);					
+			
 			}
 		}
 
@@ -287,11 +326,12 @@ public class AlignmentFile {
 		double massLower = referenceFeature.getMass() - delta/2;
 		double massUpper = referenceFeature.getMass() + delta/2;
 		
-		for (Feature toCheck : this.features) {
-			double massToCheck = toCheck.getMass();
-			if (inRange(massToCheck, massLower, massUpper)) {
-				result.add(toCheck);					 
+		FeatureIndex idx = getIndex();
+		for (int i = ArrayMathUtil.upperBound(idx.masses, massLower); i < idx.masses.length; i++) {
+			if (!inRange(idx.masses[i], massLower, massUpper)) {
+				break;
 			}
+			result.add(idx.byMass[i]);					 
 		}
 
 		return result;
@@ -323,14 +363,17 @@ public class AlignmentFile {
 		double rtLower = referenceFeature.getRt() - rtTol;
 		double rtUpper = referenceFeature.getRt() + rtTol;		
 		
-		for (Feature toCheck : this.features) {
+		FeatureIndex idx = getIndex();
+		for (int i = ArrayMathUtil.upperBound(idx.rts, rtLower); i < idx.rts.length; i++) {
+			Feature toCheck = idx.byRt[i];
+			double rtToCheck = idx.rts[i];
+			if (!inRange(rtToCheck, rtLower, rtUpper)) {
+				break;
+			}
 			if (toCheck.isGrouped()) {
 				continue;
 			}
-			double rtToCheck = toCheck.getRt();
-			 if (inRange(rtToCheck, rtLower, rtUpper)) {
-					result.add(toCheck);
-			 }
+			result.add(toCheck);
 		}
 
 		return result;
@@ -425,6 +468,14 @@ public class AlignmentFile {
 		return "SimpleAlignmentData [filename=" + filename + "]";
 	}
 
+	private synchronized FeatureIndex getIndex() {
+		// the size check catches features added or removed through getFeatures()
+		if (index == null || index.size != features.size()) {
+			index = new FeatureIndex(features);
+		}
+		return index;
+	}
+
 	private boolean inRange(double toCheck, double lowerRange, double upperRange) {
 		// TODO: double comparison ?
 		if (toCheck > lowerRange && toCheck < upperRange) {
@@ -498,4 +549,68 @@ public class AlignmentFile {
 		return maxRt;
 	}
 	
+	/**
+	 * The features sorted by mass (then RT) and by RT, and hashed by peak ID, so range queries
+	 * are a binary search followed by a scan over the features in range
+	 */
+	private static class FeatureIndex {
+		
+		private final int size;
+		private final Feature[] byMass;
+		private final double[] masses;
+		private final int[] positions;		// position in the feature list of each feature in byMass
+		private final Feature[] byRt;
+		private final double[] rts;
+		private final Map<Integer, Feature> byPeakID;
+		
+		public FeatureIndex(List<Feature> features) {
+			
+			this.size = features.size();
+			final Feature[] all = features.toArray(new Feature[size]);
+			
+			Integer[] massOrder = new Integer[size];
+			Integer[] rtOrder = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				massOrder[i] = i;
+				rtOrder[i] = i;
+			}
+			Arrays.sort(massOrder, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					int c = Double.compare(all[i1].getMass(), all[i2].getMass());
+					return c != 0 ? c : Double.compare(all[i1].getRt(), all[i2].getRt());
+				}
+			});
+			Arrays.sort(rtOrder, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Double.compare(all[i1].getRt(), all[i2].getRt());
+				}
+			});
+			
+			this.byMass = new Feature[size];
+			this.masses = new double[size];
+			this.positions = new int[size];
+			this.byRt = new Feature[size];
+			this.rts = new double[size];
+			for (int i = 0; i < size; i++) {
+				byMass[i] = all[massOrder[i]];
+				masses[i] = byMass[i].getMass();
+				positions[i] = massOrder[i];
+				byRt[i] = all[rtOrder[i]];
+				rts[i] = byRt[i].getRt();
+			}
+			
+			// keep the first feature with each peak ID, like a scan of the list would
+			this.byPeakID = new HashMap<Integer, Feature>();
+			for (Feature feature : all) {
+				if (!byPeakID.containsKey(feature.getPeakID())) {
+					byPeakID.put(feature.getPeakID(), feature);
+				}
+			}
+			
+		}
+		
+	}
+	
 }
@@ -1,12 +1,22 @@
 package com.joewandy.alignmentResearch.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.stat.descriptive.moment.Mean;
 import org.apache.commons.math3.stat.descriptive.moment.Variance;
@@ -18,6 +28,8 @@ import org.paukov.combinatorics.Generator;
 import org.paukov.combinatorics.ICombinatoricsVector;
 
 import com.joewandy.alignmentResearch.main.MultiAlignConstants;
+import com.joewandy.alignmentResearch.util.GrowableIntArray;
+import com.joewandy.alignmentResearch.util.LongHashSet;
 
 
 public class GroundTruth {
@@ -28,6 +40,13 @@ public class GroundTruth {
 	private boolean verbose;
 	private int gtCombinationSize;
 	
+	// for k = 2, pairs are packed into a long of the features' positions in gtFeatureIndex
+	private Map<Feature, Integer> gtFeatureIndex;
+	private int[] gtGroupOf;			// the ground truth group of each indexed feature, or -1
+	private boolean gtOverlapping;		// whether a feature is in more than one ground truth group
+	private long[] gPlusPairs;			// sorted, only kept when gtOverlapping
+	private long gPlusCount;
+	
 	public GroundTruth(List<FeatureGroup> groundTruthEntries, int gtCombinationSize, boolean verbose) {		
 		
 		this.groundTruth = groundTruthEntries;		
@@ -43,6 +62,12 @@ public class GroundTruth {
 		this.G = new HashSet<Feature>();
 		G.addAll(this.getAllUniqueFeatures());
 				
+		// pairs are counted from the groups directly
+		if (this.gtCombinationSize == 2) {
+			buildPairs(sizeMap);
+			return;
+		}
+		
 		// convert ground truth entries into a pairwise of aligned features
 		this.groundTruthPeaksets = new ArrayList<AlignedPeakset>();
 //		System.out.print("Generating all positive pairwise combinations ");
@@ -97,6 +122,84 @@ public class GroundTruth {
 		
 	}
 		
+	/**
+	 * Indexes the features in G for the k = 2 case, without materialising the pairs 
+	 * unless the ground truth groups overlap
+	 */
+	private void buildPairs(Map<Integer, Integer> sizeMap) {
+		
+		this.groundTruthPeaksets = null;
+		this.gtFeatureIndex = new HashMap<Feature, Integer>();
+		for (Feature f : G) {
+			gtFeatureIndex.put(f, gtFeatureIndex.size());
+		}
+		this.gtGroupOf = new int[gtFeatureIndex.size()];
+		Arrays.fill(gtGroupOf, -1);
+		this.gtOverlapping = false;
+		this.gPlusCount = 0;
+		long totalPairs = 0;
+		for (int i = 0; i < this.groundTruth.size(); i++) {
+			
+			// skip single entry ground truth
+			FeatureGroup g = this.groundTruth.get(i);
+			int size = g.getFeatureCount();
+			if (size < 2) {
+				continue;
+			}
+			
+			if (sizeMap.containsKey(size)) {
+				int count = sizeMap.get(size);
+				sizeMap.put(size, count+1);
+			} else {
+				sizeMap.put(size, 1);
+			}
+			
+			for (Feature f : g.getFeatures()) {
+				int index = gtFeatureIndex.get(f);
+				if (gtGroupOf[index] != -1) {
+					gtOverlapping = true;
+				}
+				gtGroupOf[index] = i;
+			}
+			totalPairs += choose2(size);
+			
+		}
+		
+		// a pair shared by several groups is only counted once in G+
+		if (gtOverlapping) {
+			LongHashSet pairs = new LongHashSet();
+			for (FeatureGroup g : this.groundTruth) {
+				if (g.getFeatureCount() < 2) {
+					continue;
+				}
+				int[] indices = new int[g.getFeatureCount()];
+				int n = 0;
+				for (Feature f : g.getFeatures()) {
+					indices[n++] = gtFeatureIndex.get(f);
+				}
+				for (int a = 0; a < indices.length; a++) {
+					for (int b = a+1; b < indices.length; b++) {
+						pairs.add(packPair(indices[a], indices[b]));
+					}
+				}
+			}
+			this.gPlusPairs = pairs.toArray();
+			Arrays.sort(gPlusPairs);
+			this.gPlusCount = gPlusPairs.length;
+		} else {
+			this.gPlusPairs = null;
+			this.gPlusCount = totalPairs;
+		}
+
+		// print debug message
+		if (verbose) {
+			System.out.println();
+			System.out.println("Initial ground truth sizes = " + sizeMap);
+			System.out.println("Total 2-combinations from ground truth = " + totalPairs);
+		}
+		
+	}
+		
 	public Set<Feature> getAllUniqueFeatures() {
 		Set<Feature> allGtFeatures = new HashSet<Feature>();
 		for (FeatureGroup g : this.groundTruth) {
@@ -151,8 +254,43 @@ public class GroundTruth {
 		
 		List<FeatureGroup> tool = convertToFeatureGroup(alignmentResult);
 		
+		/* 
+		 * Lange, et al. (2008):
+		 * 
+		 * We consider the set of consensus features from the tool that contain at
+		 * least two features and intersect with a given consensus feature from 
+		 * the ground truth.
+		 * 
+		 * Note: 'consensus feature' --> FeatureGroup here
+		 * 
+		 * The tool consensus features are indexed by their features once, so each
+		 * ground truth consensus feature only looks at the ones its features are in.
+		 */
+		Map<Feature, GrowableIntArray> toolGroupsOf = new HashMap<Feature, GrowableIntArray>();
+		for (int j = 0; j < tool.size(); j++) {
+			FeatureGroup toolConsensus = tool.get(j);
+			// ignore singleton alignments
+			if (toolConsensus.getFeatureCount() < 2) {
+				continue;
+			}
+			for (Feature f : toolConsensus.getFeatures()) {
+				GrowableIntArray groups = toolGroupsOf.get(f);
+				if (groups == null) {
+					groups = new GrowableIntArray(1);
+					toolGroupsOf.put(f, groups);
+				}
+				groups.add(j);
+			}
+		}
+		
 		// for every consensus feature in ground truth
 		int N = this.groundTruth.size();
+		int[] toolAllCounts = new int[N];
+		int[] toolMatchingCounts = new int[N];
+		int[] matchedGroups = new int[N];
+		evaluateLangeGroups(tool, toolGroupsOf, toolAllCounts, toolMatchingCounts, matchedGroups);
+		
+		// sum in order, so the result doesn't depend on the threads
 		int M = 0; 
 		double precision = 0;
 		double recall = 0;
@@ -160,44 +298,16 @@ public class GroundTruth {
 		int totalFp = 0;
 		int totalPositives = 0;
 		for (int i = 0; i < N; i++) {
-									
-			/* 
-			 * Lange, et al. (2008):
-			 * 
-			 * We consider the set of consensus features from the tool that contain at
-			 * least two features and intersect with a given consensus feature from 
-			 * the ground truth.
-			 * 
-			 * Note: 'consensus feature' --> FeatureGroup here
-			 */
 			
-			FeatureGroup gtConsensus = this.groundTruth.get(i);
-			
-			// -1 since ID means nothing for our purpose later
-			FeatureGroup toolAll = new FeatureGroup(-1); 
-			int m = 0;
-			for (FeatureGroup toolConsensus : tool) {
-				
-				// ignore singleton alignments
-				if (toolConsensus.getFeatureCount() < 2) {
-					continue;
-				}								
-				int count = getIntersectCount(toolConsensus, gtConsensus);
-				if (count > 0) {
-					toolAll.addFeatures(toolConsensus.getFeatures());
-					m++;
-				}
-				
-			}
-			int toolAllCount = toolAll.getFeatureCount();
+			int toolAllCount = toolAllCounts[i];
 			if (toolAllCount == 0) {
 				// skip if no matches at all
 				continue;
 			}				
 
-			// get intersection between tool and gold
-			Set<Feature> toolIntersect = getIntersection(toolAll, gtConsensus);			
-			int toolMatchingCount = toolIntersect.size();
+			int toolMatchingCount = toolMatchingCounts[i];
+			int m = matchedGroups[i];
+			FeatureGroup gtConsensus = this.groundTruth.get(i);
 			
 			int fp = toolAllCount - toolMatchingCount;
 			int tp = toolMatchingCount;
@@ -239,7 +349,108 @@ public class GroundTruth {
 
 	}
 
+	/**
+	 * Matches every ground truth consensus feature against the tool, split into chunks over the available processors
+	 * @param tool The tool consensus features
+	 * @param toolGroupsOf The positions in tool of the consensus features containing each feature
+	 * @param toolAllCounts Output, the size of the union of the matching tool consensus features
+	 * @param toolMatchingCounts Output, the size of the intersection of that union with the ground truth
+	 * @param matchedGroups Output, the number of matching tool consensus features
+	 */
+	private void evaluateLangeGroups(final List<FeatureGroup> tool, final Map<Feature, GrowableIntArray> toolGroupsOf,
+			final int[] toolAllCounts, final int[] toolMatchingCounts, final int[] matchedGroups) {
+
+		int N = this.groundTruth.size();
+		int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), 
+				N / MultiAlignConstants.LANGE_EVALUATION_CHUNK_SIZE);
+		if (numThreads <= 1) {
+			evaluateLangeGroups(0, N, tool, toolGroupsOf, toolAllCounts, toolMatchingCounts, matchedGroups);
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int start = 0; start < N; start += MultiAlignConstants.LANGE_EVALUATION_CHUNK_SIZE) {
+			final int from = start;
+			final int to = Math.min(N, start + MultiAlignConstants.LANGE_EVALUATION_CHUNK_SIZE);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					evaluateLangeGroups(from, to, tool, toolGroupsOf, toolAllCounts, toolMatchingCounts, matchedGroups);
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while evaluating alignment", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Alignment evaluation failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+	}
+
+	private void evaluateLangeGroups(int from, int to, List<FeatureGroup> tool, Map<Feature, GrowableIntArray> toolGroupsOf,
+			int[] toolAllCounts, int[] toolMatchingCounts, int[] matchedGroups) {
+
+		GrowableIntArray matched = new GrowableIntArray();
+		Set<Feature> toolAll = new HashSet<Feature>();
+		for (int i = from; i < to; i++) {
+
+			// the distinct tool consensus features intersecting with this one
+			FeatureGroup gtConsensus = this.groundTruth.get(i);
+			matched.clear();
+			for (Feature f : gtConsensus.getFeatures()) {
+				GrowableIntArray groups = toolGroupsOf.get(f);
+				if (groups != null) {
+					for (int n = 0; n < groups.size(); n++) {
+						matched.add(groups.get(n));
+					}
+				}
+			}
+			if (matched.size() == 0) {
+				continue;
+			}
+			int[] toolIDs = matched.toArray();
+			Arrays.sort(toolIDs);
+			int m = 0;
+			toolAll.clear();
+			for (int n = 0; n < toolIDs.length; n++) {
+				if (n > 0 && toolIDs[n] == toolIDs[n-1]) {
+					continue;
+				}
+				toolAll.addAll(tool.get(toolIDs[n]).getFeatures());
+				m++;
+			}
+
+			// get intersection between tool and gold
+			int toolMatchingCount = 0;
+			for (Feature f : gtConsensus.getFeatures()) {
+				if (toolAll.contains(f)) {
+					toolMatchingCount++;
+				}
+			}
+			
+			toolAllCounts[i] = toolAll.size();
+			toolMatchingCounts[i] = toolMatchingCount;
+			matchedGroups[i] = m;
+			
+		}
+		
+	}
+
 	public EvaluationResult evaluatePairwise(List<AlignmentRow> alignmentResult, int noOfFiles, double dmz, double drt) {
+		
+		if (this.gtCombinationSize == 2) {
+			return evaluatePairs(alignmentResult, noOfFiles, dmz, drt);
+		}
 				
 		// construct G+, the set of positive pairwise ground truth ==> things that should be aligned together
 		Set<AlignedPeakset> gPlus = new HashSet<AlignedPeakset>(this.groundTruthPeaksets);				
@@ -285,6 +496,253 @@ public class GroundTruth {
 
 	}
 	
+	/**
+	 * The k = 2 case of evaluatePairwise. When no feature is in more than one row or ground truth group,
+	 * the pairs are counted per row from the number of its features in G and in each ground truth group,
+	 * without enumerating them. Otherwise the distinct pairs are packed into longs and counted in a hash set.
+	 */
+	private EvaluationResult evaluatePairs(List<AlignmentRow> alignmentResult, int noOfFiles, double dmz, double drt) {
+		
+		// as with the k-combinations, the group IDs of the features in rows with pairs are reset
+		for (AlignmentRow row : alignmentResult) {
+			clearGroupIDs(row);
+		}
+		
+		long TP = 0;
+		long totalPositives = 0;
+		if (!gtOverlapping && !rowsOverlapping(alignmentResult)) {
+
+			int[] groupCounts = new int[this.groundTruth.size()];
+			GrowableIntArray touched = new GrowableIntArray();
+			for (AlignmentRow row : alignmentResult) {
+				
+				// skip single entry row
+				int n = row.getFeaturesCount();
+				if (n < 2) {
+					continue;
+				}
+				
+				// only pairs with a feature in G are counted, and only pairs in the same group are positive
+				int inG = 0;
+				touched.clear();
+				for (Feature f : row.getFeatures()) {
+					Integer index = gtFeatureIndex.get(f);
+					if (index == null) {
+						continue;
+					}
+					inG++;
+					int group = gtGroupOf[index];
+					if (group != -1) {
+						if (groupCounts[group] == 0) {
+							touched.add(group);
+						}
+						groupCounts[group]++;
+					}
+				}
+				totalPositives += choose2(n) - choose2(n - inG);
+				for (int m = 0; m < touched.size(); m++) {
+					int group = touched.get(m);
+					TP += choose2(groupCounts[group]);
+					groupCounts[group] = 0;
+				}
+				
+			}
+			
+		} else {
+			
+			LongHashSet t = new LongHashSet();
+			Map<Feature, Integer> toolOnlyIndex = new HashMap<Feature, Integer>();
+			for (AlignmentRow row : alignmentResult) {
+				TP += addPairs(row, t, toolOnlyIndex);
+			}
+			totalPositives = t.size();
+			
+		}
+		
+		long FP = totalPositives - TP;
+		long FN = gPlusCount - TP;
+		
+		// TN = big number, no need to compute
+		
+		double precision = (double)TP/(TP+FP);
+		double recall = (double)TP/(TP+FN);
+		
+		double f1 = (2*precision*recall) / (precision + recall);
+		double f05 = (1.25*precision*recall) / ((0.25*precision) + recall);
+		
+		double totalTpRatio = (double)TP / totalPositives;
+		double totalFpRatio = (double)FP / totalPositives;		
+		double totalPositiveRatio = (double)totalPositives / totalPositives;				
+				
+		EvaluationResult evalRes = computeAdditional(alignmentResult,
+				noOfFiles, precision, recall, TP, FP, FN, totalPositives,
+				f1, f05, totalTpRatio, totalFpRatio, totalPositiveRatio, dmz, drt, MultiAlignConstants.PERFORMANCE_MEASURE_COMBINATION);
+		
+		return evalRes;
+		
+	}
+	
+	/**
+	 * Adds the pairs of a row with at least one feature in G to a set of packed pairs
+	 * @param row The row
+	 * @param t The set of pairs so far
+	 * @param toolOnlyIndex The positions given to the features not in G so far, after the ones in G
+	 * @return The number of new pairs that are in G+
+	 */
+	private long addPairs(AlignmentRow row, LongHashSet t, Map<Feature, Integer> toolOnlyIndex) {
+		
+		// skip single entry row
+		int n = row.getFeaturesCount();
+		if (n < 2) {
+			return 0;
+		}
+		
+		int[] indices = new int[n];
+		int m = 0;
+		for (Feature f : row.getFeatures()) {
+			Integer index = gtFeatureIndex.get(f);
+			if (index == null) {
+				index = toolOnlyIndex.get(f);
+				if (index == null) {
+					index = gtFeatureIndex.size() + toolOnlyIndex.size();
+					toolOnlyIndex.put(f, index);
+				}
+			}
+			indices[m++] = index;
+		}
+		
+		long newPositives = 0;
+		int numGt = gtFeatureIndex.size();
+		for (int a = 0; a < n; a++) {
+			for (int b = a+1; b < n; b++) {
+				if (indices[a] >= numGt && indices[b] >= numGt) {
+					continue;
+				}
+				if (t.add(packPair(indices[a], indices[b])) && isPositivePair(indices[a], indices[b])) {
+					newPositives++;
+				}
+			}
+		}
+		return newPositives;
+		
+	}
+	
+	/**
+	 * Checks whether two features in G are in the same ground truth group
+	 */
+	private boolean isPositivePair(int a, int b) {
+		int numGt = gtFeatureIndex.size();
+		if (a >= numGt || b >= numGt) {
+			return false;
+		}
+		if (gtOverlapping) {
+			return Arrays.binarySearch(gPlusPairs, packPair(a, b)) >= 0;
+		}
+		return gtGroupOf[a] != -1 && gtGroupOf[a] == gtGroupOf[b];
+	}
+	
+	private boolean rowsOverlapping(List<AlignmentRow> alignmentResult) {
+		Set<Feature> seen = new HashSet<Feature>();
+		for (AlignmentRow row : alignmentResult) {
+			if (row.getFeaturesCount() < 2) {
+				continue;
+			}
+			for (Feature f : row.getFeatures()) {
+				if (!seen.add(f)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Clears the group IDs of the features of a row with at least one pair
+	 */
+	private static void clearGroupIDs(AlignmentRow row) {
+		if (row.getFeaturesCount() < 2) {
+			return;
+		}
+		for (Feature f : row.getFeatures()) {
+			f.clearGroupID();
+		}
+	}
+	
+	private static long packPair(int a, int b) {
+		int lo = Math.min(a, b);
+		int hi = Math.max(a, b);
+		return (((long) lo) << 32) | hi;
+	}
+	
+	private static long choose2(long n) {
+		return n*(n-1)/2;
+	}
+
+	/**
+	 * Evaluates the alignment at every distinct row score, as if the rows scoring below each 
+	 * threshold had been filtered out. The rows are sorted once and added from the highest score down, 
+	 * updating the counts incrementally, so the whole curve costs about as much as a single evaluation.
+	 * @param alignmentResult The aligned rows
+	 * @param noOfFiles The number of files aligned
+	 * @param dmz The mass tolerance
+	 * @param drt The RT tolerance
+	 * @param measureType The performance measure, Lange or combination
+	 * @param minScore Only rows scoring above this are evaluated
+	 * @return One result per distinct score in ascending order of the threshold, where each result
+	 * counts the rows scoring at least the threshold
+	 */
+	public List<EvaluationResult> evaluatePRCurve(List<AlignmentRow> alignmentResult, int noOfFiles, 
+			double dmz, double drt, String measureType, double minScore) {
+		
+		List<EvaluationResult> curve = new ArrayList<EvaluationResult>();
+		CurveCounts counts = null;
+		if (measureType.equals(MultiAlignConstants.PERFORMANCE_MEASURE_LANGE)) {
+			counts = new LangeCurveCounts();
+		} else if (measureType.equals(MultiAlignConstants.PERFORMANCE_MEASURE_COMBINATION)) {
+			if (this.gtCombinationSize == 2) {
+				counts = new PairCurveCounts();
+			} else {
+				counts = new PairwiseCurveCounts();
+			}
+		} else {
+			return curve;
+		}
+
+		List<AlignmentRow> sorted = new ArrayList<AlignmentRow>();
+		for (AlignmentRow row : alignmentResult) {
+			if (row.getScore() > minScore) {
+				sorted.add(row);
+			}
+		}
+		Collections.sort(sorted, new Comparator<AlignmentRow>() {
+			@Override
+			public int compare(AlignmentRow x, AlignmentRow y) {
+				return Double.compare(y.getScore(), x.getScore());
+			}
+		});
+		
+		// sweep the threshold downwards, adding all the rows with the same score before each evaluation
+		RowStats stats = new RowStats(noOfFiles);
+		int start = 0;
+		while (start < sorted.size()) {
+			double score = sorted.get(start).getScore();
+			int end = start;
+			while (end < sorted.size() && Double.compare(sorted.get(end).getScore(), score) == 0) {
+				AlignmentRow row = sorted.get(end);
+				counts.addRow(row);
+				stats.addRow(row);
+				end++;
+			}
+			EvaluationResult evalRes = counts.getResult(stats, dmz, drt);
+			evalRes.setTh(score);
+			curve.add(evalRes);
+			start = end;
+		}
+		Collections.reverse(curve);
+		return curve;
+		
+	}
+	
 	@Override
 	public String toString() {
 		return "SimpleGroundTruth [groundTruth=" + groundTruth.size() + " alignments]";
@@ -317,42 +775,47 @@ public class GroundTruth {
 	
 		List<AlignedPeakset> tool = new ArrayList<AlignedPeakset>();
 		for (AlignmentRow row : alignmentResult) {
+			addAlignedPeaksetCombinations(row, k, tool);
+		}
+		return tool;
+	
+	}
+	
+	private void addAlignedPeaksetCombinations(AlignmentRow row, int k, 
+			Collection<AlignedPeakset> tool) {
 
-			// skip single entry row
-			if (row.getFeaturesCount() < k) {
-				continue;
-			}
-			
-			Set<Feature> alignedFeatures = row.getFeatures();
-			for (Feature feature : alignedFeatures) {
-				feature.clearGroupID();
-			}
-			
-			// Create a simple combination generator to generate k-combinations of
-			// the initial vector
-			Set<Feature> features = row.getFeatures();			
-			Generator<Feature> gen = nChoosek(features, k);
-			for (ICombinatoricsVector<Feature> combination : gen) {
-
-				boolean valid = false;
-				for (Feature f : combination) {
-					if (G.contains(f)) {
-						valid = true;
-						break;						
-					}
-				}
-			
-				// only add into tool if any of the feature is present in G ?
-				if (valid) {
-					AlignedPeakset peakset = new AlignedPeakset(combination.getVector());
-					tool.add(peakset);					
+		// skip single entry row
+		if (row.getFeaturesCount() < k) {
+			return;
+		}
+		
+		Set<Feature> alignedFeatures = row.getFeatures();
+		for (Feature feature : alignedFeatures) {
+			feature.clearGroupID();
+		}
+		
+		// Create a simple combination generator to generate k-combinations of
+		// the initial vector
+		Set<Feature> features = row.getFeatures();			
+		Generator<Feature> gen = nChoosek(features, k);
+		for (ICombinatoricsVector<Feature> combination : gen) {
+
+			boolean valid = false;
+			for (Feature f : combination) {
+				if (G.contains(f)) {
+					valid = true;
+					break;						
 				}
-				
 			}
 		
+			// only add into tool if any of the feature is present in G ?
+			if (valid) {
+				AlignedPeakset peakset = new AlignedPeakset(combination.getVector());
+				tool.add(peakset);					
+			}
+			
 		}
-		return tool;
-	
+		
 	}
 	
 	private Generator<Feature> nChoosek(Set<Feature> features, int k) {
@@ -364,8 +827,8 @@ public class GroundTruth {
 
 	private EvaluationResult computeAdditional(
 			List<AlignmentRow> alignmentResult, int noOfFiles,
-			double precision, double recall, int totalTp, int totalFp, int totalFn,
-			int totalPositives, double f1, double f05, double totalTpRatio,
+			double precision, double recall, long totalTp, long totalFp, long totalFn,
+			long totalPositives, double f1, double f05, double totalTpRatio,
 			double totalFpRatio, double totalPositiveRatio, double dmz, double drt, String version) {
 		
 		int coverageCount = 0;		
@@ -419,6 +882,28 @@ public class GroundTruth {
 
 	}
 	
+	private EvaluationResult computeAdditional(RowStats stats,
+			double precision, double recall, long totalTp, long totalFp, long totalFn,
+			long totalPositives, double dmz, double drt, String version) {
+
+		double f1 = (2*precision*recall) / (precision + recall);
+		double f05 = (1.25*precision*recall) / ((0.25*precision) + recall);
+		
+		double totalTpRatio = (double)totalTp / totalPositives;
+		double totalFpRatio = (double)totalFp / totalPositives;		
+		double totalPositiveRatio = (double)totalPositives / totalPositives;				
+
+		double coverage = (double)stats.coverageCount / stats.rowCount;
+		EvaluationResult evalRes = new EvaluationResult(
+				dmz, drt,
+				precision, recall, f1, f05, 
+				totalTp, totalFp, totalFn, totalPositives, totalTpRatio, totalFpRatio, totalPositiveRatio,
+				stats.sdrtMedian.getMedian(), stats.sdrtSum / stats.rowCount, 
+				stats.mdrtMedian.getMedian(), stats.mdrtSum / stats.rowCount, coverage, version);
+		return evalRes;
+		
+	}
+	
 	private double[] listToArray(List<Double> list) {
 		double[] arr = new double[list.size()];
 		int counter = 0;
@@ -439,13 +924,9 @@ public class GroundTruth {
 		Set<Feature> set1 = group1.getFeatures();
 		Set<Feature> set2 = group2.getFeatures();
 		Set<Feature> intersect = new HashSet<Feature>();
-		for (Feature f1 : set1) {
-			for (Feature f2 : set2) {
-				boolean same = f1.equals(f2);
-				if (same) {
-					intersect.add(f2);
-					break;
-				}
+		for (Feature f2 : set2) {
+			if (set1.contains(f2)) {
+				intersect.add(f2);
 			}
 		}
 		return intersect;
@@ -463,4 +944,290 @@ public class GroundTruth {
 		return common.size();
 	}
 				
+	/**
+	 * The counts of an evaluation, updated as rows are added one at a time
+	 */
+	private abstract class CurveCounts {
+		
+		abstract void addRow(AlignmentRow row);
+		
+		abstract EvaluationResult getResult(RowStats stats, double dmz, double drt);
+		
+	}
+	
+	/**
+	 * Incremental version of {@link GroundTruth#evaluateLange(List, int, double, double)}. Each ground truth group 
+	 * keeps the union of the tool rows intersecting it, and a new row only updates the groups that its 
+	 * features belong to, found through an index from features to ground truth groups.
+	 */
+	private class LangeCurveCounts extends CurveCounts {
+
+		private Map<Feature, GrowableIntArray> gtGroupsOf;
+		private List<Set<Feature>> toolAll;
+		private int[] m;
+		private int[] tp;
+		private double[] precisionTerm;
+		private double[] recallTerm;
+		private int[] lastVisit;
+		private int rowCount;
+		
+		private double precisionSum;
+		private double recallSum;
+		private int totalTp;
+		private int totalPositives;
+		
+		public LangeCurveCounts() {
+			int N = groundTruth.size();
+			this.gtGroupsOf = new HashMap<Feature, GrowableIntArray>();
+			for (int i = 0; i < N; i++) {
+				for (Feature f : groundTruth.get(i).getFeatures()) {
+					GrowableIntArray groups = gtGroupsOf.get(f);
+					if (groups == null) {
+						groups = new GrowableIntArray(1);
+						gtGroupsOf.put(f, groups);
+					}
+					groups.add(i);
+				}
+			}
+			this.toolAll = new ArrayList<Set<Feature>>(Collections.nCopies(N, (Set<Feature>) null));
+			this.m = new int[N];
+			this.tp = new int[N];
+			this.precisionTerm = new double[N];
+			this.recallTerm = new double[N];
+			this.lastVisit = new int[N];
+			Arrays.fill(lastVisit, -1);
+		}
+		
+		@Override
+		public void addRow(AlignmentRow row) {
+			
+			// ignore singleton alignments
+			int rowID = rowCount++;
+			if (row.getFeaturesCount() < 2) {
+				return;
+			}
+			
+			for (Feature f : row.getFeatures()) {
+				GrowableIntArray groups = gtGroupsOf.get(f);
+				if (groups == null) {
+					continue;
+				}
+				for (int n = 0; n < groups.size(); n++) {
+					int i = groups.get(n);
+					if (lastVisit[i] == rowID) {
+						continue;
+					}
+					lastVisit[i] = rowID;
+					addToGroup(i, row);
+				}
+			}
+			
+		}
+
+		private void addToGroup(int i, AlignmentRow row) {
+
+			FeatureGroup gtConsensus = groundTruth.get(i);
+			Set<Feature> groupAll = toolAll.get(i);
+			if (groupAll == null) {
+				groupAll = new HashSet<Feature>();
+				toolAll.set(i, groupAll);
+			}
+			for (Feature f : row.getFeatures()) {
+				if (groupAll.add(f)) {
+					totalPositives++;
+					if (gtConsensus.getFeatures().contains(f)) {
+						tp[i]++;
+						totalTp++;
+					}
+				}
+			}
+			m[i]++;
+			
+			// replace the old terms of this group in the sums
+			int toolAllCount = groupAll.size();
+			precisionSum -= precisionTerm[i];
+			recallSum -= recallTerm[i];
+			precisionTerm[i] = ((double) tp[i]) / toolAllCount;
+			recallTerm[i] = ((double) tp[i]) / (m[i]*gtConsensus.getFeatureCount());
+			precisionSum += precisionTerm[i];
+			recallSum += recallTerm[i];
+
+		}
+		
+		@Override
+		public EvaluationResult getResult(RowStats stats, double dmz, double drt) {
+			int N = groundTruth.size();
+			double precision = precisionSum / N;
+			double recall = recallSum / N;
+			int totalFp = totalPositives - totalTp;
+			return computeAdditional(stats, precision, recall, totalTp, totalFp, 0, totalPositives, 
+					dmz, drt, MultiAlignConstants.PERFORMANCE_MEASURE_LANGE);
+		}
+		
+	}
+	
+	/**
+	 * Incremental version of {@link GroundTruth#evaluatePairwise(List, int, double, double)}. 
+	 * Each new combination from a row is looked up once in G+.
+	 */
+	private class PairwiseCurveCounts extends CurveCounts {
+		
+		private Set<AlignedPeakset> gPlus;
+		private Set<AlignedPeakset> t;
+		private List<AlignedPeakset> rowCombinations;
+		private int TP;
+		private int FP;
+		
+		public PairwiseCurveCounts() {
+			this.gPlus = new HashSet<AlignedPeakset>(groundTruthPeaksets);
+			this.t = new HashSet<AlignedPeakset>();
+			this.rowCombinations = new ArrayList<AlignedPeakset>();
+		}
+
+		@Override
+		public void addRow(AlignmentRow row) {
+			rowCombinations.clear();
+			addAlignedPeaksetCombinations(row, gtCombinationSize, rowCombinations);
+			for (AlignedPeakset peakset : rowCombinations) {
+				if (t.add(peakset)) {
+					if (gPlus.contains(peakset)) {
+						TP++;
+					} else {
+						FP++;
+					}
+				}
+			}
+		}
+
+		@Override
+		public EvaluationResult getResult(RowStats stats, double dmz, double drt) {
+			int FN = gPlus.size() - TP;
+			int totalPositives = t.size();
+			double precision = (double)TP/(TP+FP);
+			double recall = (double)TP/(TP+FN);
+			return computeAdditional(stats, precision, recall, TP, FP, FN, totalPositives, 
+					dmz, drt, MultiAlignConstants.PERFORMANCE_MEASURE_COMBINATION);
+		}
+		
+	}
+	
+	/**
+	 * Incremental version of the k = 2 case of {@link GroundTruth#evaluatePairwise(List, int, double, double)},
+	 * keeping the tool pairs packed in a primitive hash set
+	 */
+	private class PairCurveCounts extends CurveCounts {
+		
+		private LongHashSet t;
+		private Map<Feature, Integer> toolOnlyIndex;
+		private long TP;
+		
+		public PairCurveCounts() {
+			this.t = new LongHashSet();
+			this.toolOnlyIndex = new HashMap<Feature, Integer>();
+		}
+
+		@Override
+		public void addRow(AlignmentRow row) {
+			clearGroupIDs(row);
+			TP += addPairs(row, t, toolOnlyIndex);
+		}
+
+		@Override
+		public EvaluationResult getResult(RowStats stats, double dmz, double drt) {
+			long totalPositives = t.size();
+			long FP = totalPositives - TP;
+			long FN = gPlusCount - TP;
+			double precision = (double)TP/(TP+FP);
+			double recall = (double)TP/(TP+FN);
+			return computeAdditional(stats, precision, recall, TP, FP, FN, totalPositives, 
+					dmz, drt, MultiAlignConstants.PERFORMANCE_MEASURE_COMBINATION);
+		}
+		
+	}
+	
+	/**
+	 * The RT spread and coverage statistics of computeAdditional, updated as rows are added
+	 */
+	private static class RowStats {
+		
+		private int noOfFiles;
+		private int rowCount;
+		private int coverageCount;
+		private double sdrtSum;
+		private double mdrtSum;
+		private RunningMedian sdrtMedian;
+		private RunningMedian mdrtMedian;
+		
+		public RowStats(int noOfFiles) {
+			this.noOfFiles = noOfFiles;
+			this.sdrtMedian = new RunningMedian();
+			this.mdrtMedian = new RunningMedian();
+		}
+		
+		public void addRow(AlignmentRow row) {
+
+			if (row.getFeaturesCount() > noOfFiles/2) {
+				coverageCount++;
+			}
+
+			double[] rts = row.getFeatureRts();
+			Variance variance = new Variance();
+			double sdrt = Math.sqrt(variance.evaluate(rts));
+			Min min = new Min();
+			Max max = new Max();
+			double mdrt = max.evaluate(rts) - min.evaluate(rts);
+
+			sdrtSum += sdrt;
+			mdrtSum += mdrt;
+			sdrtMedian.add(sdrt);
+			mdrtMedian.add(mdrt);
+			rowCount++;
+			
+		}
+		
+	}
+	
+	/**
+	 * Median of a growing list of values, kept as a max-heap of the lower half and a min-heap of the upper half
+	 */
+	private static class RunningMedian {
+		
+		private PriorityQueue<Double> lower;
+		private PriorityQueue<Double> upper;
+		
+		public RunningMedian() {
+			this.lower = new PriorityQueue<Double>(11, Collections.reverseOrder());
+			this.upper = new PriorityQueue<Double>();
+		}
+		
+		public void add(double value) {
+			if (lower.isEmpty() || value <= lower.peek()) {
+				lower.add(value);
+			} else {
+				upper.add(value);
+			}
+			// lower holds the extra value when the count is odd
+			if (lower.size() > upper.size()+1) {
+				upper.add(lower.poll());
+			} else if (upper.size() > lower.size()) {
+				lower.add(upper.poll());
+			}
+		}
+		
+		/**
+		 * Returns the median the same way as {@link Median}, or NaN if empty
+		 */
+		public double getMedian() {
+			if (lower.isEmpty()) {
+				return Double.NaN;
+			}
+			double low = lower.peek();
+			if (lower.size() > upper.size()) {
+				return low;
+			}
+			return low + 0.5*(upper.peek() - low);
+		}
+		
+	}
+				
 }
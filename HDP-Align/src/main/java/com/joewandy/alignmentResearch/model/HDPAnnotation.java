@@ -47,6 +47,10 @@ public class HDPAnnotation<T> {
 		this.annotations.remove(key);
 	}
 	
+	public void clear() {
+		this.annotations.clear();
+	}
+	
 	public int size() {
 		return this.annotations.size();
 	}
@@ -22,6 +22,13 @@ public class HDPClusteringParam {
 	private boolean speedUpHacks;
 	private int speedUpNumSample;
 	private int refFileIdx;
+	private boolean massPruning;
+	private double massPruningStdev;
+	private boolean streamSamples;
+	private int sampleThinning;
+	private int checkpointInterval;
+	private int splitMergeMoves;
+	private double speedUpMinVisitRate;
 		
 	public int getNsamps() {
 		return nsamps;
@@ -142,5 +149,61 @@ public class HDPClusteringParam {
 	public void setRefFileIdx(int refFileIdx) {
 		this.refFileIdx = refFileIdx;
 	}
+
+	public boolean isMassPruning() {
+		return massPruning;
+	}
+
+	public void setMassPruning(boolean massPruning) {
+		this.massPruning = massPruning;
+	}
+
+	public double getMassPruningStdev() {
+		return massPruningStdev;
+	}
+
+	public void setMassPruningStdev(double massPruningStdev) {
+		this.massPruningStdev = massPruningStdev;
+	}
+
+	public boolean isStreamSamples() {
+		return streamSamples;
+	}
+
+	public void setStreamSamples(boolean streamSamples) {
+		this.streamSamples = streamSamples;
+	}
+
+	public int getSampleThinning() {
+		return sampleThinning;
+	}
+
+	public void setSampleThinning(int sampleThinning) {
+		this.sampleThinning = sampleThinning;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public int getSplitMergeMoves() {
+		return splitMergeMoves;
+	}
+
+	public void setSplitMergeMoves(int splitMergeMoves) {
+		this.splitMergeMoves = splitMergeMoves;
+	}
+
+	public double getSpeedUpMinVisitRate() {
+		return speedUpMinVisitRate;
+	}
+
+	public void setSpeedUpMinVisitRate(double speedUpMinVisitRate) {
+		this.speedUpMinVisitRate = speedUpMinVisitRate;
+	}
 	
 }
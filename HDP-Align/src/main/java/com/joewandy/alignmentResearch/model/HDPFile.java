@@ -3,27 +3,28 @@ package com.joewandy.alignmentResearch.model;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.lang.ArrayUtils;
+import com.joewandy.alignmentResearch.util.GrowableDoubleArray;
+import com.joewandy.alignmentResearch.util.GrowableIntArray;
 
 public class HDPFile {
 
 	private int id;
 	private List<Feature> features;
 	private int K;
-	private List<Integer> Z;		// peak to RT clusters assignment
-	private List<Integer> topZ; 	// RT clusters to metabolite assignment
-	private List<Double> tjk;		// RT clusters' time
-	private List<Integer> countZ;	// no. of peaks under each RT cluster
-	private List<Double> sumZ;		// sum of peak RT under each RT cluster
+	private GrowableIntArray Z;			// peak to RT clusters assignment
+	private GrowableIntArray topZ; 		// RT clusters to metabolite assignment
+	private GrowableDoubleArray tjk;	// RT clusters' time
+	private GrowableIntArray countZ;	// no. of peaks under each RT cluster
+	private GrowableDoubleArray sumZ;	// sum of peak RT under each RT cluster
 	
 	public HDPFile(int id) {
 		this.id = id;
 		this.features = new ArrayList<Feature>();
-		this.Z = new ArrayList<Integer>();
-		this.topZ = new ArrayList<Integer>();
-		this.tjk = new ArrayList<Double>();
-		this.countZ = new ArrayList<Integer>();
-		this.sumZ = new ArrayList<Double>();
+		this.Z = new GrowableIntArray();
+		this.topZ = new GrowableIntArray();
+		this.tjk = new GrowableDoubleArray();
+		this.countZ = new GrowableIntArray();
+		this.sumZ = new GrowableDoubleArray();
 	}
 
 	public int getId() {
@@ -94,14 +95,22 @@ public class HDPFile {
 		Z.add(k);
 	}
 	
-	public void reindexZ(int k) {
-		for (int n = 0; n < Z.size(); n++) {
-			int currentVal = Z(n);
-			if (currentVal > k) {
-				Z.set(n, currentVal-1);
-			}
+	/**
+	 * Deletes the empty RT cluster k. The last RT cluster is moved into position k
+	 * and peaks assigned to it are relabelled, so the remaining clusters stay contiguous.
+	 * @param k The RT cluster position index
+	 */
+	public void removeRTCluster(int k) {
+		assert(countZ(k) == 0);
+		int last = countZ.swapRemove(k);
+		sumZ.swapRemove(k);
+		tjk.swapRemove(k);
+		topZ.swapRemove(k);
+		if (last != k) {
+			Z.replaceAll(last, k);
 		}
-	}	
+		K--;
+	}
 			
 	public int topZ(int k) {
 		return topZ.get(k);
@@ -115,28 +124,19 @@ public class HDPFile {
 		topZ.add(i);
 	}	
 	
-	public void removeTopZ(int k) {
-		topZ.remove(k);
-	}
-	
-	public void reindexTopZ(int i) {
-		for (int k = 0; k < topZ.size(); k++) {
-			int currentVal = topZ(k);
-			if (currentVal > i) {
-				topZ.set(k, currentVal-1);
-			}
-		}
+	/**
+	 * Relabels all RT clusters assigned to metabolite index from to metabolite index to
+	 * @param from The old metabolite position index
+	 * @param to The new metabolite position index
+	 */
+	public void replaceTopZ(int from, int to) {
+		topZ.replaceAll(from, to);
 	}		
 	
 	public double tjk(int k) {
 		return tjk.get(k);
 	}
 	
-	public double[] tjkArray() {
-		Double[] temp = tjk.toArray(new Double[tjk.size()]);
-		return ArrayUtils.toPrimitive(temp);
-	}
-	
 	public void setTjk(int k, double ti) {
 		this.tjk.set(k, ti);
 	}
@@ -145,10 +145,6 @@ public class HDPFile {
 		this.tjk.add(ti);
 	}
 	
-	public void removeTjk(int k) {
-		this.tjk.remove(k);
-	}
-		
 	public int countZ(int k) {
 		return countZ.get(k);
 	}
@@ -158,30 +154,17 @@ public class HDPFile {
 	}	
 	
 	public void increaseCountZ(int k) {
-		int currCount = countZ(k);
-		int newCount = currCount + 1;
-		setCountZ(k, newCount);
+		countZ.increment(k);
 	}		
 
 	public void decreaseCountZ(int k) {
-		int currCount = countZ(k);
-		int newCount = currCount - 1;
-		setCountZ(k, newCount);
+		countZ.decrement(k);
 	}		
 	
 	public void appendCountZ(int count) {
 		countZ.add(count);
 	}
 	
-	public void removeCountZ(int k) {
-		countZ.remove(k);
-	}
-
-	public int[] countZArray() {
-		Integer[] temp = countZ.toArray(new Integer[countZ.size()]);
-		return ArrayUtils.toPrimitive(temp);
-	}
-	
 	public double sumZ(int k) {
 		return sumZ.get(k);
 	}
@@ -191,25 +174,17 @@ public class HDPFile {
 	}	
 
 	public void addSumZ(int k, double sum) {
-		double currSum = sumZ(k);
-		double newSum = currSum + sum;
-		setSumZ(k, newSum);
+		sumZ.addTo(k, sum);
 	}		
 
 	public void subsSumZ(int k, double sum) {
-		double currSum = sumZ(k);
-		double newSum = currSum - sum;
-		setSumZ(k, newSum);
+		sumZ.subsFrom(k, sum);
 	}		
 
 	public void appendSumZ(double sum) {
 		sumZ.add(sum);
 	}
 	
-	public void removeSumZ(int k) {
-		sumZ.remove(k);
-	}
-	
 	@Override
 	public int hashCode() {
 		final int prime = 31;
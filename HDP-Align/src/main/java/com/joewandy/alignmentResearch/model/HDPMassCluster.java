@@ -1,6 +1,7 @@
 package com.joewandy.alignmentResearch.model;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -15,6 +16,7 @@ public class HDPMassCluster implements Serializable {
 	private int countPeaks;
 	private double sumPeaks;
 	private Set<Feature> peakData;
+	private int[] fileCounts;		// no. of peaks from each file, indexed by file ID
 	private HDPPrecursorMass precursorMass;
 	private Set<String> messages;
 	
@@ -25,6 +27,7 @@ public class HDPMassCluster implements Serializable {
 	public HDPMassCluster(int id) {
 		this.id = id;
 		this.peakData = new HashSet<Feature>();
+		this.fileCounts = new int[0];
 		this.messages = new HashSet<String>();
 	}
 
@@ -35,6 +38,7 @@ public class HDPMassCluster implements Serializable {
 		this.countPeaks = another.countPeaks;
 		this.sumPeaks = another.sumPeaks;
 		this.peakData = new HashSet<Feature>(another.peakData);
+		this.fileCounts = another.fileCounts.clone();
 		if (another.precursorMass != null) {
 			this.precursorMass = new HDPPrecursorMass(another.precursorMass);			
 		}
@@ -87,6 +91,10 @@ public class HDPMassCluster implements Serializable {
 
 	public void setPeakData(Set<Feature> peakData) {
 		this.peakData = peakData;
+		this.fileCounts = new int[0];
+		for (Feature f : peakData) {
+			increaseFileCount(f.getFileID());
+		}
 	}
 
 	public Set<String> getMessages() {
@@ -105,12 +113,33 @@ public class HDPMassCluster implements Serializable {
 		countPeaks++;
 		sumPeaks += f.getMassLog();
 		peakData.add(f);
+		increaseFileCount(f.getFileID());
 	}	
 	
 	public void removeFeature(Feature f) {
 		countPeaks--;
 		sumPeaks -= f.getMassLog();
 		peakData.remove(f);
+		fileCounts[f.getFileID()]--;
+	}
+	
+	/**
+	 * Checks whether this mass cluster already holds a peak from the given file
+	 * @param fileID The file ID
+	 * @return true if there's at least one peak from fileID
+	 */
+	public boolean containsPeakFromFile(int fileID) {
+		if (fileID >= fileCounts.length) {
+			return false;
+		}
+		return fileCounts[fileID] > 0;
+	}
+	
+	private void increaseFileCount(int fileID) {
+		if (fileID >= fileCounts.length) {
+			fileCounts = Arrays.copyOf(fileCounts, fileID+1);
+		}
+		fileCounts[fileID]++;
 	}
 	
 	public boolean contains(Feature f) {
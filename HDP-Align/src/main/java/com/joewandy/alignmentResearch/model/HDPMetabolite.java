@@ -21,6 +21,7 @@ public class HDPMetabolite implements Serializable {
 	private List<HDPMassCluster> massClusters;		// list of mass clusters objects
 	private Map<Feature, HDPMassCluster> V;			// which peak assigned to which mass clusters
 	private List<Double> metaboliteMasses;
+	private transient int position;					// position in the sampler's list of metabolites
 	
 	// dummy constructor for jackson
 	public HDPMetabolite() {
@@ -33,11 +34,15 @@ public class HDPMetabolite implements Serializable {
 		this.peakData = new ArrayList<Feature>(another.peakData);
 		this.massClusterSeqId = another.massClusterSeqId;
 		this.massClusters = new ArrayList<HDPMassCluster>();
+		this.V = new HashMap<Feature, HDPMassCluster>();
 		for (HDPMassCluster mc : another.massClusters) {
 			HDPMassCluster copy = new HDPMassCluster(mc);
 			this.massClusters.add(copy);
+			// point the peaks to the copied mass clusters, not the originals
+			for (Feature f : copy.getPeakData()) {
+				V.put(f, copy);
+			}
 		}
-		this.V = new HashMap<Feature, HDPMassCluster>(another.V);
 		this.metaboliteMasses = new ArrayList<Double>(another.metaboliteMasses);
 	}
 	
@@ -69,6 +74,15 @@ public class HDPMetabolite implements Serializable {
 		this.massClusterSeqId = massClusterSeqId;
 	}
 
+	@JsonIgnore
+	public int getPosition() {
+		return position;
+	}
+
+	public void setPosition(int position) {
+		this.position = position;
+	}
+
 	public Map<Feature, HDPMassCluster> getV() {
 		return V;
 	}
@@ -267,8 +281,7 @@ public class HDPMetabolite implements Serializable {
 
 		int[] results = new int[getA()+1];
 		for (int a = 0; a < getA(); a++) {
-			List<Feature> peaksInside = getPeaksInMassCluster(a);
-			if (containsSameOrigin(peaksInside, thisPeak)) {
+			if (hasPeakFromSameFile(a, thisPeak)) {
 				results[a] = 0; // do not allow peaks from the same file to be put together in the same mass cluster
 			} else {
 				results[a] = 1;
@@ -281,13 +294,16 @@ public class HDPMetabolite implements Serializable {
 
 	}
 	
-	private boolean containsSameOrigin(List<Feature> features, Feature toFind) {
-		for (Feature inside : features) {
-			if (inside.getFileID().equals(toFind.getFileID())) {
-				return true;
-			}
-		}
-		return false;
+	/**
+	 * Checks whether mass cluster a already contains a peak from the same file as thisPeak
+	 * @param a The mass cluster position index
+	 * @param thisPeak The peak
+	 * @return true if a peak from the same file is already in a
+	 */
+	@JsonIgnore
+	public boolean hasPeakFromSameFile(int a, Feature thisPeak) {
+		HDPMassCluster massCluster = massClusters.get(a);
+		return massCluster.containsPeakFromFile(thisPeak.getFileID());
 	}
 	
 }
@@ -73,6 +73,7 @@ public class GlobalRetentionShiftNoise implements AlignmentNoise {
 					feature.setRt(newRt);					
 				}
 			}
+			file.invalidateIndex();
 		}
 
 	}
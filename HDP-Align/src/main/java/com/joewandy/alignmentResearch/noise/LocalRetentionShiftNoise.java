@@ -66,6 +66,7 @@ public class LocalRetentionShiftNoise implements AlignmentNoise {
 				double newRt = noisyRt(feature.getRt());
 				feature.setRt(newRt);
 			}
+			file.invalidateIndex();
 		}
 
 	}
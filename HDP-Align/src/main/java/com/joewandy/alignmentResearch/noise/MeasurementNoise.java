@@ -87,6 +87,7 @@ public class MeasurementNoise implements AlignmentNoise {
 				feature.setIntensity(newIntensity);
 				feature.setRt(newRt);
 			}
+			file.invalidateIndex();
 		}
 
 	}
@@ -60,6 +60,7 @@ public class MissingPeaksNoise implements AlignmentNoise {
 //					peakID++;
 				}
 			}
+			file.invalidateIndex();
 			// System.out.println("Removed " + counter + " features");
 			// System.out.println(file.getFilenameWithoutExtension() + " has " + file.getFeaturesCount() + " features");
 			
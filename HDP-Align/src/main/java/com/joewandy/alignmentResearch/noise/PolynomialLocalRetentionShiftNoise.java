@@ -72,6 +72,7 @@ public class PolynomialLocalRetentionShiftNoise implements AlignmentNoise {
 				double newRt = noisyRt(feature.getRt(), coeff1, coeff2, coeff3, coeff4);
 				feature.setRt(newRt);
 			}
+			file.invalidateIndex();
 		}
 
 	}
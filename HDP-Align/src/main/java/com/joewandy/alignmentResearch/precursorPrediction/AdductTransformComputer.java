@@ -275,6 +275,18 @@ public class AdductTransformComputer {
 				
 	}
 	
+	/**
+	 * Computes the precursor masses of an ion mass under all the adduct types, without boxing
+	 * @param ionMass The ion mass
+	 * @param results The precursor mass under each adduct type, in the order of adductList
+	 */
+	public void getPrecursorMass(double ionMass, double[] results) {
+		assert(results.length >= nAdducts);
+		for (int i = 0; i < nAdducts; i++) {
+			results[i] = ((ionMass*charge[i]) + electronMass[i] - adductMass[i]) / multiplicity[i];
+		}
+	}
+	
 	public double getPrecursorMass(double ionMass, String adductType) {
 		
 		// TODO: we can actually compute just a single precursor mass for this adductType ..
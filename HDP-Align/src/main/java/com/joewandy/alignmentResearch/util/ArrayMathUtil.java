@@ -4,6 +4,8 @@ import org.apache.commons.math3.random.RandomData;
 
 public class ArrayMathUtil {
 
+	private static final double HALF_LOG_2PI_NEG = -0.5 * Math.log(2*Math.PI);
+
 	public static double sum(double[] arr) {
 		double sum = 0;
 		for (double elem : arr) {
@@ -117,6 +119,118 @@ public class ArrayMathUtil {
 		}
 		return selectedIndex;
 	}
+	
+	/*
+	 * In-place kernels for the inner loop of the Gibbs samplers. They work on the first len 
+	 * elements of caller-provided scratch arrays, so nothing is allocated per call, and every
+	 * pass is a plain counted loop over primitive arrays that the JIT can unroll and vectorise.
+	 */
+	
+	/**
+	 * Computes log(sum(exp(arr))) over the first len elements, without overflow
+	 * @param arr The log values
+	 * @param len The number of elements to use
+	 * @return The log of the sum, or -infinity if all the elements are -infinity
+	 */
+	public static double logSumExp(double[] arr, int len) {
+		double max = max(arr, len);
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY) {
+			return max;
+		}
+		double sum = 0;
+		for (int i = 0; i < len; i++) {
+			sum += Math.exp(arr[i] - max);
+		}
+		return max + Math.log(sum);
+	}
+	
+	/**
+	 * Turns the first len log weights in arr into a normalised probability distribution, in place
+	 * @param arr The log weights, overwritten with the probabilities
+	 * @param len The number of elements to use
+	 * @return The log normalising constant, i.e. the log-sum-exp of the log weights
+	 */
+	public static double expNormalise(double[] arr, int len) {
+		double max = max(arr, len);
+		assert(max != Double.NEGATIVE_INFINITY);
+		double sum = 0;
+		for (int i = 0; i < len; i++) {
+			double w = Math.exp(arr[i] - max);
+			arr[i] = w;
+			sum += w;
+		}
+		double scale = 1 / sum;
+		for (int i = 0; i < len; i++) {
+			arr[i] *= scale;
+		}
+		return max + Math.log(sum);
+	}
+	
+	/**
+	 * Samples an index from the first len elements of a normalised distribution,
+	 * the same as {@link #sample(double[], RandomData)} without building the cumulative sum
+	 * @param distribution The probabilities
+	 * @param len The number of elements to use
+	 * @param randomData The random data generator
+	 * @return The sampled index
+	 */
+	public static int sample(double[] distribution, int len, RandomData randomData) {
+		double randomNumber = randomData.nextUniform(0, 1);
+		double cumsum = 0;
+		for (int i = 0; i < len; i++) {
+			cumsum += distribution[i];
+			if (randomNumber <= cumsum) {
+				return i;
+			}
+		}
+		// rounding left the total just below the random number
+		return len-1;
+	}
+	
+	/**
+	 * Samples an index from unnormalised log weights with the Gumbel-max trick, 
+	 * i.e. argmax(logWeights[i] + g[i]) with g[i] drawn from the standard Gumbel distribution.
+	 * This needs neither exponentiation nor normalisation, but draws one uniform per element.
+	 * @param logWeights The log weights, -infinity for disallowed indices
+	 * @param len The number of elements to use
+	 * @param randomData The random data generator
+	 * @return The sampled index
+	 */
+	public static int sampleGumbelMax(double[] logWeights, int len, RandomData randomData) {
+		int selectedIndex = 0;
+		double best = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < len; i++) {
+			// the lower bound excludes 0, so the log is always finite
+			double u = randomData.nextUniform(Double.MIN_VALUE, 1);
+			double perturbed = logWeights[i] - Math.log(-Math.log(u));
+			if (perturbed > best) {
+				best = perturbed;
+				selectedIndex = i;
+			}
+		}
+		return selectedIndex;
+	}
+	
+	/**
+	 * Returns the maximum of the first len elements
+	 */
+	public static double max(double[] arr, int len) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < len; i++) {
+			max = Math.max(max, arr[i]);
+		}
+		return max;
+	}
+	
+	/**
+	 * Returns arr if it can hold len elements, or a new array with room for len elements and some spare
+	 */
+	public static double[] ensureCapacity(double[] arr, int len) {
+		if (arr != null && arr.length >= len) {
+			return arr;
+		}
+		return new double[Math.max(len, 2*(arr == null ? 0 : arr.length))];
+	}
 		
 	public static double computeLogLikelihood(double x, double mu, double prec) {
 		/*
@@ -126,12 +240,98 @@ public class ArrayMathUtil {
 		 * 			= 0.5 log(prec) - 0.5 log(2pi) + ((-prec(x-mu)^2)/2)
 		 * 			= 0.5 log(prec) - 0.5 log(2pi) - 0.5 * prec * (x-mu)^2
 		 */
-		double logLikelihood = -0.5 * Math.log(2*Math.PI);
-		logLikelihood += 0.5 * Math.log(prec);
-		logLikelihood -= 0.5 * prec * Math.pow(x - mu, 2);
-		return logLikelihood;
+		double d = x - mu;
+		return HALF_LOG_2PI_NEG + 0.5 * Math.log(prec) - 0.5 * prec * d * d;
+	}
+		
+	/**
+	 * Computes the Gelman-Rubin potential scale reduction factor (R-hat) of a scalar 
+	 * traced across several chains. Values close to 1 suggest that the chains have converged.
+	 * @param chains The traces, one row per chain. Rows are truncated to the shortest trace.
+	 * @return The R-hat value, or NaN if there are fewer than 2 chains or 2 samples per chain
+	 */
+	public static double potentialScaleReduction(double[][] chains) {
+		int m = chains.length;
+		int n = Integer.MAX_VALUE;
+		for (double[] chain : chains) {
+			n = Math.min(n, chain.length);
+		}
+		if (m < 2 || n < 2) {
+			return Double.NaN;
+		}
+		double[] chainMeans = new double[m];
+		double withinVar = 0;
+		for (int c = 0; c < m; c++) {
+			double mean = 0;
+			for (int t = 0; t < n; t++) {
+				mean += chains[c][t];
+			}
+			mean /= n;
+			double var = 0;
+			for (int t = 0; t < n; t++) {
+				var += Math.pow(chains[c][t] - mean, 2);
+			}
+			chainMeans[c] = mean;
+			withinVar += var / (n-1);
+		}
+		withinVar /= m;
+		double grandMean = sum(chainMeans) / m;
+		double betweenVar = 0;
+		for (int c = 0; c < m; c++) {
+			betweenVar += Math.pow(chainMeans[c] - grandMean, 2);
+		}
+		betweenVar *= ((double) n) / (m-1);
+		if (withinVar == 0) {
+			return betweenVar == 0 ? 1.0 : Double.POSITIVE_INFINITY;
+		}
+		double pooledVar = ((n-1) * withinVar + betweenVar) / n;
+		return Math.sqrt(pooledVar / withinVar);
 	}
 		
+	/**
+	 * Returns the position of the first value greater than or equal to value in a sorted array,
+	 * or the length of the array if there is none
+	 */
+	public static int lowerBound(double[] sorted, double value) {
+		int lo = 0;
+		int hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Returns the position of the first value strictly greater than value in a sorted array,
+	 * or the length of the array if there is none
+	 */
+	public static int upperBound(double[] sorted, double value) {
+		return upperBound(sorted, sorted.length, value);
+	}
+	
+	/**
+	 * Returns the position of the first value strictly greater than value in the first n values
+	 * of a sorted array, or n if there is none
+	 */
+	public static int upperBound(double[] sorted, int n, double value) {
+		int lo = 0;
+		int hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] > value) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+	
 	public static double[] toDouble(int[] arr) {
 		double[] res = new double[arr.length];
 		for (int i = 0; i < arr.length; i++) {
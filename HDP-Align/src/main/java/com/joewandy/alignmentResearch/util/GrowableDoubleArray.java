@@ -0,0 +1,104 @@
+package com.joewandy.alignmentResearch.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive doubles, the counterpart of {@link GrowableIntArray}.
+ * Elements are removed by swapping the last element into the removed position.
+ */
+public class GrowableDoubleArray {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private double[] elements;
+	private int size;
+
+	public GrowableDoubleArray() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public GrowableDoubleArray(int initialCapacity) {
+		this.elements = new double[Math.max(initialCapacity, 1)];
+		this.size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double get(int i) {
+		assert(i < size);
+		return elements[i];
+	}
+
+	public void set(int i, double value) {
+		assert(i < size);
+		elements[i] = value;
+	}
+
+	public void add(double value) {
+		ensureCapacity(size+1);
+		elements[size] = value;
+		size++;
+	}
+
+	public void addTo(int i, double amount) {
+		assert(i < size);
+		elements[i] += amount;
+	}
+
+	public void subsFrom(int i, double amount) {
+		assert(i < size);
+		elements[i] -= amount;
+	}
+
+	/**
+	 * Removes the element at position i by moving the last element into it
+	 * @param i The position to remove
+	 * @return The old position of the element that now sits at i,
+	 * 		or i if the last element was removed
+	 */
+	public int swapRemove(int i) {
+		assert(i < size);
+		int last = size-1;
+		elements[i] = elements[last];
+		size--;
+		return last;
+	}
+
+	public double sum() {
+		double sum = 0;
+		for (int i = 0; i < size; i++) {
+			sum += elements[i];
+		}
+		return sum;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns the backing array without copying. Only the first size() entries are valid.
+	 */
+	public double[] elements() {
+		return elements;
+	}
+
+	public double[] toArray() {
+		return Arrays.copyOf(elements, size);
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > elements.length) {
+			int newCapacity = Math.max(elements.length * 2, minCapacity);
+			elements = Arrays.copyOf(elements, newCapacity);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.joewandy.alignmentResearch.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive ints, used to hold the Gibbs sampler state
+ * without boxing. Elements are removed by swapping the last element into the
+ * removed position, so removal is O(1) but does not preserve ordering.
+ */
+public class GrowableIntArray {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] elements;
+	private int size;
+
+	public GrowableIntArray() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public GrowableIntArray(int initialCapacity) {
+		this.elements = new int[Math.max(initialCapacity, 1)];
+		this.size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int get(int i) {
+		assert(i < size);
+		return elements[i];
+	}
+
+	public void set(int i, int value) {
+		assert(i < size);
+		elements[i] = value;
+	}
+
+	public void add(int value) {
+		ensureCapacity(size+1);
+		elements[size] = value;
+		size++;
+	}
+
+	public void addTo(int i, int amount) {
+		assert(i < size);
+		elements[i] += amount;
+	}
+
+	public void increment(int i) {
+		assert(i < size);
+		elements[i]++;
+	}
+
+	public void decrement(int i) {
+		assert(i < size);
+		elements[i]--;
+	}
+
+	/**
+	 * Removes the element at position i by moving the last element into it
+	 * @param i The position to remove
+	 * @return The old position of the element that now sits at i,
+	 * 		or i if the last element was removed
+	 */
+	public int swapRemove(int i) {
+		assert(i < size);
+		int last = size-1;
+		elements[i] = elements[last];
+		size--;
+		return last;
+	}
+
+	/**
+	 * Replaces every occurrence of a value by another
+	 * @param from The value to look for
+	 * @param to The replacement value
+	 */
+	public void replaceAll(int from, int to) {
+		for (int i = 0; i < size; i++) {
+			if (elements[i] == from) {
+				elements[i] = to;
+			}
+		}
+	}
+
+	public int sum() {
+		int sum = 0;
+		for (int i = 0; i < size; i++) {
+			sum += elements[i];
+		}
+		return sum;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns the backing array without copying. Only the first size() entries are valid.
+	 */
+	public int[] elements() {
+		return elements;
+	}
+
+	public int[] toArray() {
+		return Arrays.copyOf(elements, size);
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > elements.length) {
+			int newCapacity = Math.max(elements.length * 2, minCapacity);
+			elements = Arrays.copyOf(elements, newCapacity);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.joewandy.alignmentResearch.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs in an open-addressing hash table with linear probing,
+ * used to hold packed keys without boxing. Elements cannot be removed.
+ */
+public class LongHashSet {
+
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final long EMPTY = 0;
+
+	private long[] table;
+	private int size;
+	private boolean containsEmpty;	// the EMPTY value is kept out of the table
+
+	public LongHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LongHashSet(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < 2*expectedSize) {
+			capacity *= 2;
+		}
+		this.table = new long[capacity];
+		this.size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(long value) {
+		if (value == EMPTY) {
+			return containsEmpty;
+		}
+		int mask = table.length-1;
+		for (int slot = slotOf(value, mask); table[slot] != EMPTY; slot = (slot+1) & mask) {
+			if (table[slot] == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a value to the set
+	 * @return true if the value was not already in the set
+	 */
+	public boolean add(long value) {
+		if (value == EMPTY) {
+			if (containsEmpty) {
+				return false;
+			}
+			containsEmpty = true;
+			size++;
+			return true;
+		}
+		int mask = table.length-1;
+		int slot = slotOf(value, mask);
+		while (table[slot] != EMPTY) {
+			if (table[slot] == value) {
+				return false;
+			}
+			slot = (slot+1) & mask;
+		}
+		table[slot] = value;
+		size++;
+		// keep the load factor at most 1/2
+		if (2*size > table.length) {
+			rehash(2*table.length);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the values in the set, in no particular order
+	 */
+	public long[] toArray() {
+		long[] values = new long[size];
+		int n = 0;
+		if (containsEmpty) {
+			values[n++] = EMPTY;
+		}
+		for (long value : table) {
+			if (value != EMPTY) {
+				values[n++] = value;
+			}
+		}
+		return values;
+	}
+
+	public void clear() {
+		Arrays.fill(table, EMPTY);
+		containsEmpty = false;
+		size = 0;
+	}
+
+	private void rehash(int capacity) {
+		long[] old = table;
+		table = new long[capacity];
+		int mask = capacity-1;
+		for (long value : old) {
+			if (value != EMPTY) {
+				int slot = slotOf(value, mask);
+				while (table[slot] != EMPTY) {
+					slot = (slot+1) & mask;
+				}
+				table[slot] = value;
+			}
+		}
+	}
+
+	private static int slotOf(long value, int mask) {
+		// murmur3 finaliser, packed keys are far from uniform in the low bits
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		return ((int) value) & mask;
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.joewandy.mzmatch.query;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import peakml.chemistry.Molecule;
+
+/**
+ * Bounded LRU cache in front of another compound query. Masses are quantised into buckets
+ * of a fixed width in ppm, and all masses in the same bucket (queried with the same ppm and delta)
+ * share the result of the first query, so the result of a lookup may be off by up to one bucket width.
+ * The cache is thread-safe and can be shared, but calls to the backend are serialised.
+ */
+public class CachedCompoundQuery implements CompoundQuery {
+
+	private final CompoundQuery backend;
+	private final double bucketPpm;
+	private final Map<CacheKey, Set<Molecule>> cache;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a cache of query results
+	 * @param backend The query to cache
+	 * @param maxEntries The maximum number of results kept, the least recently used ones are evicted first
+	 * @param bucketPpm The width of each mass bucket in ppm
+	 */
+	public CachedCompoundQuery(CompoundQuery backend, final int maxEntries, double bucketPpm) {
+		assert(bucketPpm > 0);
+		this.backend = backend;
+		this.bucketPpm = bucketPpm;
+		this.cache = new LinkedHashMap<CacheKey, Set<Molecule>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CacheKey, Set<Molecule>> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the molecules within tolerance of the mass. The returned set is shared and must not be modified.
+	 */
+	public Set<Molecule> findCompoundsByMass(double mass, double ppm, double delta) throws Exception {
+
+		// buckets are equally spaced on the log scale, so each is bucketPpm wide anywhere
+		long bucket = (long) Math.floor(Math.log(mass) / (bucketPpm * 0.000001));
+		CacheKey key = new CacheKey(bucket, ppm, delta);
+		synchronized (cache) {
+			Set<Molecule> molecules = cache.get(key);
+			if (molecules != null) {
+				hits++;
+				return molecules;
+			}
+			misses++;
+		}
+
+		// query the centre of the bucket, so the result doesn't depend on which mass came first
+		double centre = Math.exp((bucket + 0.5) * bucketPpm * 0.000001);
+		Set<Molecule> molecules;
+		synchronized (backend) {
+			molecules = Collections.unmodifiableSet(backend.findCompoundsByMass(centre, ppm, delta));
+		}
+		synchronized (cache) {
+			cache.put(key, molecules);
+		}
+		return molecules;
+
+	}
+
+	public Set<Molecule> getResult() {
+		synchronized (backend) {
+			return backend.getResult();
+		}
+	}
+
+	public long getHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+
+	public long getMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (cache) {
+			long total = hits + misses;
+			double hitRate = total == 0 ? 0 : ((double) hits) / total;
+			return String.format("CachedCompoundQuery [entries=%d, hits=%d, misses=%d, hit rate=%.3f]",
+					cache.size(), hits, misses, hitRate);
+		}
+	}
+
+	private static class CacheKey {
+
+		private final long bucket;
+		private final double ppm;
+		private final double delta;
+
+		public CacheKey(long bucket, double ppm, double delta) {
+			this.bucket = bucket;
+			this.ppm = ppm;
+			this.delta = delta;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (int) (bucket ^ (bucket >>> 32));
+			long temp = Double.doubleToLongBits(ppm);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			temp = Double.doubleToLongBits(delta);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			CacheKey other = (CacheKey) obj;
+			return bucket == other.bucket
+					&& Double.doubleToLongBits(ppm) == Double.doubleToLongBits(other.ppm)
+					&& Double.doubleToLongBits(delta) == Double.doubleToLongBits(other.delta);
+		}
+
+	}
+
+}
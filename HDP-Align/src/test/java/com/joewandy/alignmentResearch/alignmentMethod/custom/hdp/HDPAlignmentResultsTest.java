@@ -0,0 +1,128 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.joewandy.alignmentResearch.model.Feature;
+
+/**
+ * Checks the counts of the open-addressing table in HDPAlignmentResults
+ */
+public class HDPAlignmentResultsTest extends TestCase {
+
+	private static final int NO_OF_PEAKS = 300;
+
+	public void testFingerprintCollisions() {
+
+		// keys with the same fingerprint but different peaks must be counted apart
+		HDPAlignmentResults results = new HDPAlignmentResults();
+		List<HDPMassClusterFeatures> keys = new ArrayList<HDPMassClusterFeatures>();
+		for (int m = 0; m < 50; m++) {
+			int[] ids = m % 2 == 0 ? new int[] { m } : new int[] { m, m+1 };
+			keys.add(new HDPMassClusterFeatures(new Feature[ids.length], ids, 42));
+		}
+		for (int m = 0; m < keys.size(); m++) {
+			results.store(keys.get(m), m+1);
+		}
+		results.store(keys.get(3));
+		assertEquals(keys.size(), results.size());
+		for (int m = 0; m < keys.size(); m++) {
+			int expected = m == 3 ? m+2 : m+1;
+			assertEquals(expected, results.getCount(keys.get(m)));
+		}
+
+		// same fingerprint and peaks, but not stored
+		assertEquals(0, results.getCount(new HDPMassClusterFeatures(new Feature[2], new int[] { 0, 2 }, 42)));
+
+	}
+
+	public void testResize() {
+
+		// well past the initial capacity of 1024 keys, so both the keys and the table grow several times
+		List<Feature> peaks = makePeaks();
+		HDPAlignmentResults results = new HDPAlignmentResults();
+		List<List<Feature>> sets = new ArrayList<List<Feature>>();
+		for (int a = 0; a < NO_OF_PEAKS; a++) {
+			for (int b = a+1; b < NO_OF_PEAKS && sets.size() < 5000; b += 7) {
+				List<Feature> set = new ArrayList<Feature>();
+				set.add(peaks.get(b));
+				set.add(peaks.get(a));
+				sets.add(set);
+				for (int c = 0; c <= sets.size() % 3; c++) {
+					results.store(set);
+				}
+			}
+		}
+		assertEquals(sets.size(), results.size());
+
+		// still found after growing, and the entries are in insertion order
+		List<Entry<HDPMassClusterFeatures, Integer>> entries = results.getEntries();
+		for (int s = 0; s < sets.size(); s++) {
+			HDPMassClusterFeatures key = new HDPMassClusterFeatures(sets.get(s));
+			int expected = (s+1) % 3 + 1;
+			assertEquals(expected, results.getCount(key));
+			assertEquals(key, entries.get(s).getKey());
+			assertEquals(expected, entries.get(s).getValue().intValue());
+		}
+
+	}
+
+	public void testCountsMatchHashMap() {
+
+		List<Feature> peaks = makePeaks();
+		Random random = new Random(1);
+		HDPAlignmentResults results = new HDPAlignmentResults();
+		HDPAlignmentResults other = new HDPAlignmentResults();
+		Map<HDPMassClusterFeatures, Integer> expected = new HashMap<HDPMassClusterFeatures, Integer>();
+		for (int n = 0; n < 20000; n++) {
+
+			// mass clusters of a few peaks out of a small pool, so most sets are seen many times
+			List<Feature> set = new ArrayList<Feature>();
+			int size = 1 + random.nextInt(4);
+			while (set.size() < size) {
+				Feature f = peaks.get(random.nextInt(40));
+				if (!set.contains(f)) {
+					set.add(f);
+				}
+			}
+
+			HDPMassClusterFeatures key = new HDPMassClusterFeatures(set);
+			Integer count = expected.get(key);
+			expected.put(key, count == null ? 1 : count+1);
+			if (n % 2 == 0) {
+				results.store(set);
+			} else {
+				other.store(key);
+			}
+
+		}
+		results.merge(other);
+
+		assertEquals(expected.size(), results.size());
+		for (Entry<HDPMassClusterFeatures, Integer> e : results.getEntries()) {
+			assertEquals(expected.get(e.getKey()), e.getValue());
+		}
+		for (Entry<HDPMassClusterFeatures, Integer> e : expected.entrySet()) {
+			assertEquals(e.getValue().intValue(), results.getCount(e.getKey()));
+		}
+
+	}
+
+	private static List<Feature> makePeaks() {
+		Random random = new Random(0);
+		List<Feature> peaks = new ArrayList<Feature>();
+		for (int n = 0; n < NO_OF_PEAKS; n++) {
+			Feature f = new Feature(n, 100 + random.nextDouble()*500, random.nextDouble()*1000, 1);
+			f.setSequenceID(n);
+			peaks.add(f);
+		}
+		return peaks;
+	}
+
+}
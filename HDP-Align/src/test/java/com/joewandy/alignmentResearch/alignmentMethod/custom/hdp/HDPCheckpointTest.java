@@ -0,0 +1,114 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.joewandy.alignmentResearch.alignmentMethod.AlignmentMethodParam;
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+
+/**
+ * Checks that a chain resumed from its checkpoint continues exactly as the same chain run without interruption
+ */
+public class HDPCheckpointTest extends TestCase {
+
+	private static final long SEED = 7;
+	private static final int NSAMPS = 8;
+	private static final int BURN_IN = 4;
+	private static final int INTERRUPTED_AT = 6;
+	private static final int CHECKPOINT_INTERVAL = 2;
+
+	private File interrupted;
+	private File uninterrupted;
+
+	@Override
+	protected void setUp() throws IOException {
+		interrupted = File.createTempFile("hdp-interrupted", ".checkpoint");
+		uninterrupted = File.createTempFile("hdp-uninterrupted", ".checkpoint");
+		assertTrue(interrupted.delete());
+		assertTrue(uninterrupted.delete());
+	}
+
+	@Override
+	protected void tearDown() {
+		interrupted.delete();
+		uninterrupted.delete();
+	}
+
+	public void testResumedChainMatchesUninterrupted() throws IOException {
+
+		// stop after some of the post burn-in samples, then resume with the full number of samples
+		runChain(INTERRUPTED_AT, interrupted);
+		HDPCheckpoint stopped = HDPCheckpoint.read(interrupted.getPath());
+		assertEquals(INTERRUPTED_AT, stopped.sweep);
+		assertEquals(INTERRUPTED_AT - BURN_IN, stopped.samplesTaken);
+		HDPMassRTClustering resumed = runChain(NSAMPS, interrupted);
+
+		HDPMassRTClustering whole = runChain(NSAMPS, uninterrupted);
+
+		HDPCheckpoint expected = HDPCheckpoint.read(uninterrupted.getPath());
+		HDPCheckpoint actual = HDPCheckpoint.read(interrupted.getPath());
+		assertEquals(NSAMPS, expected.sweep);
+		assertEquals(expected.sweep, actual.sweep);
+		assertTrue(Arrays.equals(expected.randomState, actual.randomState));
+		assertEquals(expected.hdpMetaboliteId, actual.hdpMetaboliteId);
+
+		// sampler state
+		assertTrue(Arrays.equals(expected.metaboliteId, actual.metaboliteId));
+		assertTrue(Arrays.equals(expected.ti, actual.ti));
+		assertTrue(Arrays.equals(expected.si, actual.si));
+		assertTrue(Arrays.equals(expected.massClusterSeqId, actual.massClusterSeqId));
+		assertTrue(Arrays.equals(expected.metaboliteA, actual.metaboliteA));
+		assertTrue(Arrays.equals(expected.massClusterId, actual.massClusterId));
+		assertTrue(Arrays.equals(expected.massClusterTheta, actual.massClusterTheta));
+		assertTrue(Arrays.equals(expected.massClusterSum, actual.massClusterSum));
+		assertTrue(Arrays.equals(expected.fileK, actual.fileK));
+		assertTrue(Arrays.equals(expected.topZ, actual.topZ));
+		assertTrue(Arrays.equals(expected.tjk, actual.tjk));
+		assertTrue(Arrays.equals(expected.sumZ, actual.sumZ));
+		assertTrue(Arrays.equals(expected.peakRTCluster, actual.peakRTCluster));
+		assertTrue(Arrays.equals(expected.peakMassCluster, actual.peakMassCluster));
+
+		// accumulated matches, the resumed chain stores the restored ones first so only the counts are compared
+		assertEquals(NSAMPS - BURN_IN, actual.samplesTaken);
+		assertEquals(expected.samplesTaken, actual.samplesTaken);
+		assertTrue(Arrays.equals(expected.metaboliteCountTrace, actual.metaboliteCountTrace));
+		assertEquals(matchCounts(expected), matchCounts(actual));
+		assertEquals(whole.getAlignmentResults().size(), resumed.getAlignmentResults().size());
+
+	}
+
+	private static HDPMassRTClustering runChain(int nsamps, File checkpoint) {
+		List<AlignmentFile> dataList = HDPMassRTClusteringTest.makeFiles(1);
+		AlignmentMethodParam param = HDPMassRTClusteringTest.makeParam(nsamps);
+		param.setGroupingBurnIn(BURN_IN);
+		param.setHdpSplitMergeMoves(1);
+		// saving a checkpoint drops the cached gaussian of the random generator, so both chains save at the same sweeps
+		param.setHdpCheckpointInterval(CHECKPOINT_INTERVAL);
+		HDPMassRTClustering clustering = new HDPMassRTClustering(dataList, param, SEED);
+		clustering.setHdpClusteringResultsPath(checkpoint.getPath());
+		clustering.runClustering();
+		return clustering;
+	}
+
+	/**
+	 * Returns how many samples matched each set of peaks, keyed by their sequence IDs
+	 */
+	private static Map<String, Integer> matchCounts(HDPCheckpoint cp) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		int pos = 0;
+		for (int r = 0; r < cp.resultCounts.length; r++) {
+			int[] peaks = Arrays.copyOfRange(cp.resultPeaks, pos, pos + cp.resultSizes[r]);
+			pos += cp.resultSizes[r];
+			Arrays.sort(peaks);
+			assertNull(counts.put(Arrays.toString(peaks), cp.resultCounts[r]));
+		}
+		return counts;
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.AlignmentList;
+import com.joewandy.alignmentResearch.model.AlignmentRow;
+import com.joewandy.alignmentResearch.model.Feature;
+
+/**
+ * Checks the co-clustering matrix and its connected components on a hand-built set of samples
+ */
+public class HDPCoClusteringMatrixTest extends TestCase {
+
+	private static final int NO_OF_PEAKS = 6;
+	private static final int SAMPLES_TAKEN = 10;
+
+	private List<Feature> peaks;
+	private HDPAlignmentResults results;
+
+	@Override
+	protected void setUp() {
+
+		peaks = new ArrayList<Feature>();
+		for (int n = 0; n < NO_OF_PEAKS; n++) {
+			Feature f = new Feature(n / 2, 100 + n, 10 * n, 1);
+			f.setFileID(n % 2);
+			f.setSequenceID(n);
+			peaks.add(f);
+		}
+
+		// the pairs 0-1, 0-2 and 1-2 are each in two of the sets, 4 is never with another peak
+		results = new HDPAlignmentResults();
+		store(4, 0, 1, 2);
+		store(3, 1, 0);
+		store(6, 2, 3);
+		store(10, 4);
+		store(1, 5, 1);
+
+	}
+
+	public void testCompressedSparseRows() {
+
+		HDPCoClusteringMatrix matrix = results.getCoClusteringMatrix(NO_OF_PEAKS, SAMPLES_TAKEN);
+		assertEquals(NO_OF_PEAKS, matrix.getNumPeaks());
+		assertEquals(10, matrix.getNnz());
+
+		// the counts of a pair are summed over all the sets containing it, and the matrix is symmetric
+		double[][] expected = new double[NO_OF_PEAKS][NO_OF_PEAKS];
+		expected[0][1] = 0.7;
+		expected[0][2] = 0.4;
+		expected[1][2] = 0.4;
+		expected[2][3] = 0.6;
+		expected[1][5] = 0.1;
+		for (int i = 0; i < NO_OF_PEAKS; i++) {
+			for (int j = 0; j < NO_OF_PEAKS; j++) {
+				double prob = i == j ? 1 : Math.max(expected[i][j], expected[j][i]);
+				assertEquals(prob, matrix.getProbability(i, j), 1e-12);
+			}
+		}
+
+		assertTrue(Arrays.equals(new int[] { 0, 2, 5 }, matrix.getNeighbours(1)));
+		assertTrue(Arrays.equals(new double[] { 0.7, 0.4, 0.1 }, matrix.getProbabilities(1)));
+		assertTrue(Arrays.equals(new int[] { 2 }, matrix.getNeighbours(3)));
+		assertEquals(0, matrix.getNeighbours(4).length);
+		assertEquals(0, matrix.getProbabilities(4).length);
+
+	}
+
+	public void testConnectedComponents() {
+
+		HDPCoClusteringMatrix matrix = results.getCoClusteringMatrix(NO_OF_PEAKS, SAMPLES_TAKEN);
+		assertComponents(matrix.getConnectedComponents(0.8));
+		assertComponents(matrix.getConnectedComponents(0.7), new int[] { 0, 1 });
+		assertComponents(matrix.getConnectedComponents(0.5), new int[] { 0, 1 }, new int[] { 2, 3 });
+		assertComponents(matrix.getConnectedComponents(0.4), new int[] { 0, 1, 2, 3 });
+		assertComponents(matrix.getConnectedComponents(0.1), new int[] { 0, 1, 2, 3, 5 });
+
+	}
+
+	public void testMatching() {
+
+		List<AlignmentFile> dataList = new ArrayList<AlignmentFile>();
+		for (int j = 0; j < 2; j++) {
+			List<Feature> features = new ArrayList<Feature>();
+			for (int n = j; n < NO_OF_PEAKS; n += 2) {
+				features.add(peaks.get(n));
+			}
+			dataList.add(new AlignmentFile(j, "file" + j + ".txt", features));
+		}
+
+		// a row for each component scored by the mean probability of its pairs, then the unmatched peaks
+		HdpCoClusteringMatching matching = new HdpCoClusteringMatching(results, dataList, SAMPLES_TAKEN, 0.4);
+		AlignmentList list = matching.getMatchedList();
+		List<AlignmentRow> rows = list.getRows();
+		assertEquals(3, rows.size());
+		assertEquals(4, rows.get(0).getFeaturesCount());
+		assertEquals((0.7 + 0.4 + 0.4 + 0.6) / 6, rows.get(0).getScore(), 1e-12);
+		for (int n = 0; n < 4; n++) {
+			assertTrue(rows.get(0).getFeatures().contains(peaks.get(n)));
+		}
+		assertEquals(1, rows.get(1).getFeaturesCount());
+		assertTrue(rows.get(1).getFeatures().contains(peaks.get(4)));
+		assertEquals(1, rows.get(2).getFeaturesCount());
+		assertTrue(rows.get(2).getFeatures().contains(peaks.get(5)));
+
+	}
+
+	private void store(int count, int... ids) {
+		List<Feature> features = new ArrayList<Feature>();
+		for (int id : ids) {
+			features.add(peaks.get(id));
+		}
+		results.store(new HDPMassClusterFeatures(features), count);
+	}
+
+	private static void assertComponents(List<int[]> actual, int[]... expected) {
+		assertEquals(expected.length, actual.size());
+		for (int c = 0; c < expected.length; c++) {
+			assertTrue(Arrays.equals(expected[c], actual.get(c)));
+		}
+	}
+
+}
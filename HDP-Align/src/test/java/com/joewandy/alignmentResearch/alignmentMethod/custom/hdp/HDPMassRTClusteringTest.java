@@ -0,0 +1,109 @@
+package com.joewandy.alignmentResearch.alignmentMethod.custom.hdp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.joewandy.alignmentResearch.alignmentMethod.AlignmentMethodParam;
+import com.joewandy.alignmentResearch.main.MultiAlignConstants;
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.Feature;
+
+/**
+ * Checks the mass likelihood of the pruned sampler against the unpruned one
+ */
+public class HDPMassRTClusteringTest extends TestCase {
+
+	private static final int NO_OF_FILES = 3;
+	private static final int COMPOUNDS = 60;
+
+	public void testPrunedMassLikelihoodWithinBound() {
+		for (double k : new double[] { 0.5, 1, 2, 4 }) {
+
+			List<AlignmentFile> dataList = makeFiles(1);
+			AlignmentMethodParam param = makeParam(4);
+			param.setHdpMassPruning(true);
+			param.setHdpMassPruningStdev(k);
+			HDPMassRTClustering clustering = new HDPMassRTClustering(dataList, param, 1);
+			clustering.runClustering();
+
+			// each peak in a skipped mass cluster is off by at most half the largest likelihood of a skipped peak
+			double bound = Math.sqrt(massPrec(MultiAlignConstants.HDP_MASS_TOLERANCE)/(2*Math.PI)) * Math.exp(-k*k/2) / 2;
+			int differing = 0;
+			for (AlignmentFile file : dataList) {
+				for (Feature peak : file.getFeatures()) {
+					double[] exact = clustering.computeMetaboliteMassLikelihood(peak, false);
+					double[] pruned = clustering.computeMetaboliteMassLikelihood(peak, true);
+					assertEquals(exact.length, pruned.length);
+					for (int i = 0; i < exact.length; i++) {
+						assertEquals(exact[i], pruned[i], bound + 1e-9*exact[i]);
+						if (Math.abs(exact[i] - pruned[i]) > 1e-9*exact[i]) {
+							differing++;
+						}
+					}
+				}
+			}
+
+			// otherwise the skipped mass clusters were never exercised
+			assertTrue(differing > 0);
+
+		}
+	}
+
+	/**
+	 * Makes files of the same compounds, each seen in most files with a few ppm of mass error and some RT drift
+	 */
+	static List<AlignmentFile> makeFiles(long seed) {
+		Random random = new Random(seed);
+		double[] masses = new double[COMPOUNDS];
+		double[] rts = new double[COMPOUNDS];
+		for (int c = 0; c < COMPOUNDS; c++) {
+			masses[c] = 200 + random.nextDouble()*5;
+			rts[c] = random.nextDouble()*600;
+		}
+		List<AlignmentFile> dataList = new ArrayList<AlignmentFile>();
+		for (int j = 0; j < NO_OF_FILES; j++) {
+			List<Feature> features = new ArrayList<Feature>();
+			for (int c = 0; c < COMPOUNDS; c++) {
+				if (random.nextDouble() < 0.2) {
+					continue;
+				}
+				double mass = masses[c] * (1 + random.nextGaussian()*1e-6);
+				double rt = rts[c] + random.nextGaussian()*2;
+				features.add(new Feature(features.size(), mass, rt, 1000));
+			}
+			dataList.add(new AlignmentFile(j, "file" + j + ".txt", features));
+		}
+		return dataList;
+	}
+
+	/**
+	 * Makes the parameters of a short chain with the default HDP settings and greedy initialisation
+	 * @param nsamps The number of samples, half of them burn-in
+	 */
+	static AlignmentMethodParam makeParam(int nsamps) {
+		AlignmentMethodParam param = new AlignmentMethodParam();
+		param.setGroupingNSamples(nsamps);
+		param.setGroupingBurnIn(nsamps/2);
+		param.setHdpAlphaRt(MultiAlignConstants.HDP_ALPHA_RT);
+		param.setHdpAlphaMass(MultiAlignConstants.HDP_ALPHA_MASS);
+		param.setHdpTopAlpha(MultiAlignConstants.HDP_TOP_ALPHA);
+		param.setHdpGlobalRtClusterStdev(MultiAlignConstants.HDP_GLOBAL_RT_CLUSTER_STDEV);
+		param.setHdpLocalRtClusterStdev(MultiAlignConstants.HDP_LOCAL_RT_CLUSTER_STDEV);
+		param.setHdpMassTol(MultiAlignConstants.HDP_MASS_TOLERANCE);
+		param.setHdpRefFileIdx(MultiAlignConstants.HDP_REF_FILE_IDX);
+		param.setHdpInitialisation(MultiAlignConstants.HDP_INITIALISATION_GREEDY);
+		param.setRtTolerance(10);
+		return param;
+	}
+
+	// the same mass precision as the sampler, where two standard deviations are the mass tolerance in ppm
+	private static double massPrec(double massTol) {
+		double logDiff = (Math.log(1000001) - Math.log(1000000)) * massTol;
+		double stdev = logDiff/2;
+		return 1.0 / (stdev*stdev);
+	}
+
+}
@@ -0,0 +1,282 @@
+package com.joewandy.alignmentResearch.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.joewandy.alignmentResearch.main.MultiAlignConstants;
+
+/**
+ * Checks the performance measures of GroundTruth on random alignments
+ */
+public class GroundTruthTest extends TestCase {
+
+	private static final int NO_OF_FILES = 4;
+	private static final int FEATURES_PER_FILE = 80;
+	private static final double DMZ = 1;
+	private static final double DRT = 2;
+
+	private List<List<Feature>> features;
+	private List<FeatureGroup> groundTruth;
+	private List<AlignmentRow> rows;
+
+	public void testLangeCurveMatchesThresholds() {
+		for (long seed = 0; seed < 10; seed++) {
+			makeAlignment(seed, false, false);
+			GroundTruth gt = new GroundTruth(groundTruth, 2, false);
+			assertCurveMatchesThresholds(gt, MultiAlignConstants.PERFORMANCE_MEASURE_LANGE);
+		}
+	}
+
+	public void testPairCurveMatchesThresholds() {
+		for (long seed = 0; seed < 10; seed++) {
+			makeAlignment(seed, seed % 2 == 1, seed % 3 == 1);
+			GroundTruth gt = new GroundTruth(groundTruth, 2, false);
+			assertCurveMatchesThresholds(gt, MultiAlignConstants.PERFORMANCE_MEASURE_COMBINATION);
+		}
+	}
+
+	public void testTripleCurveMatchesThresholds() {
+		for (long seed = 0; seed < 3; seed++) {
+			makeAlignment(seed, false, false);
+			GroundTruth gt = new GroundTruth(groundTruth, 3, false);
+			assertCurveMatchesThresholds(gt, MultiAlignConstants.PERFORMANCE_MEASURE_COMBINATION);
+		}
+	}
+
+	public void testLangeMatchesDefinition() {
+		for (long seed = 0; seed < 10; seed++) {
+			makeAlignment(seed, seed % 2 == 1, seed % 3 == 1);
+			GroundTruth gt = new GroundTruth(groundTruth, 2, false);
+			EvaluationResult evalRes = gt.evaluateLange(rows, NO_OF_FILES, DMZ, DRT);
+
+			// every ground truth consensus feature scans all the tool consensus features of at least two features
+			double precision = 0;
+			double recall = 0;
+			int totalTp = 0;
+			int totalPositives = 0;
+			for (FeatureGroup gtConsensus : groundTruth) {
+				Set<Feature> toolAll = new HashSet<Feature>();
+				int m = 0;
+				for (AlignmentRow row : rows) {
+					if (row.getFeaturesCount() >= 2 && !Collections.disjoint(row.getFeatures(), gtConsensus.getFeatures())) {
+						toolAll.addAll(row.getFeatures());
+						m++;
+					}
+				}
+				int toolAllCount = toolAll.size();
+				if (toolAllCount == 0) {
+					continue;
+				}
+				toolAll.retainAll(gtConsensus.getFeatures());
+				int toolMatchingCount = toolAll.size();
+				precision += (double) toolMatchingCount / toolAllCount;
+				recall += (double) toolMatchingCount / (m * gtConsensus.getFeatureCount());
+				totalTp += toolMatchingCount;
+				totalPositives += toolAllCount;
+			}
+			precision /= groundTruth.size();
+			recall /= groundTruth.size();
+
+			assertClose(precision, evalRes.getPrecision());
+			assertClose(recall, evalRes.getRecall());
+			assertClose(totalTp, evalRes.getTotalTp());
+			assertClose(totalPositives - totalTp, evalRes.getTotalFp());
+			assertClose(totalPositives, evalRes.getTotalPositives());
+		}
+	}
+
+	public void testPairsMatchDefinition() {
+		for (long seed = 0; seed < 12; seed++) {
+			// both the counting path and the hash set path, for overlapping rows or groups
+			makeAlignment(seed, seed % 2 == 1, seed % 3 == 1);
+			GroundTruth gt = new GroundTruth(groundTruth, 2, false);
+			EvaluationResult evalRes = gt.evaluatePairwise(rows, NO_OF_FILES, DMZ, DRT);
+
+			// G+ is every pair in a ground truth group, t every pair in a row with a feature in G
+			Set<Feature> G = new HashSet<Feature>();
+			Set<Set<Feature>> gPlus = new HashSet<Set<Feature>>();
+			for (FeatureGroup group : groundTruth) {
+				G.addAll(group.getFeatures());
+				addPairs(group.getFeatures(), null, gPlus);
+			}
+			Set<Set<Feature>> t = new HashSet<Set<Feature>>();
+			for (AlignmentRow row : rows) {
+				addPairs(row.getFeatures(), G, t);
+			}
+			Set<Set<Feature>> intersect = new HashSet<Set<Feature>>(t);
+			intersect.retainAll(gPlus);
+			int tp = intersect.size();
+
+			assertClose(tp, evalRes.getTotalTp());
+			assertClose(t.size() - tp, evalRes.getTotalFp());
+			assertClose(gPlus.size() - tp, evalRes.getTotalFn());
+			assertClose(t.size(), evalRes.getTotalPositives());
+			assertClose((double) tp / t.size(), evalRes.getPrecision());
+			assertClose((double) tp / gPlus.size(), evalRes.getRecall());
+		}
+	}
+
+	public void testPairsClearGroupIDs() {
+		for (long seed = 0; seed < 2; seed++) {
+			makeAlignment(seed, seed == 1, false);
+			GroundTruth gt = new GroundTruth(groundTruth, 2, false);
+			for (AlignmentRow row : rows) {
+				for (Feature f : row.getFeatures()) {
+					f.setGroupID(1);
+				}
+			}
+			gt.evaluatePairwise(rows, NO_OF_FILES, DMZ, DRT);
+			for (AlignmentRow row : rows) {
+				if (row.getFeaturesCount() >= 2) {
+					for (Feature f : row.getFeatures()) {
+						assertFalse(f.isGrouped());
+					}
+				}
+			}
+		}
+	}
+
+	private static void addPairs(Set<Feature> features, Set<Feature> G, Set<Set<Feature>> pairs) {
+		List<Feature> list = new ArrayList<Feature>(features);
+		for (int a = 0; a < list.size(); a++) {
+			for (int b = a+1; b < list.size(); b++) {
+				if (G == null || G.contains(list.get(a)) || G.contains(list.get(b))) {
+					Set<Feature> pair = new HashSet<Feature>();
+					pair.add(list.get(a));
+					pair.add(list.get(b));
+					pairs.add(pair);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the rows above every distinct score one at a time, as the curve used to be computed
+	 */
+	private void assertCurveMatchesThresholds(GroundTruth gt, String measureType) {
+
+		List<EvaluationResult> curve = gt.evaluatePRCurve(rows, NO_OF_FILES, DMZ, DRT, measureType, 0);
+
+		List<EvaluationResult> expected = new ArrayList<EvaluationResult>();
+		double th = 0;
+		while (true) {
+			List<AlignmentRow> filtered = new ArrayList<AlignmentRow>();
+			double minScore = Double.MAX_VALUE;
+			for (AlignmentRow row : rows) {
+				if (row.getScore() > th) {
+					filtered.add(row);
+					minScore = Math.min(minScore, row.getScore());
+				}
+			}
+			if (filtered.isEmpty()) {
+				break;
+			}
+			EvaluationResult evalRes = measureType.equals(MultiAlignConstants.PERFORMANCE_MEASURE_LANGE) ?
+					gt.evaluateLange(filtered, NO_OF_FILES, DMZ, DRT) : gt.evaluatePairwise(filtered, NO_OF_FILES, DMZ, DRT);
+			evalRes.setTh(minScore);
+			expected.add(evalRes);
+			th = minScore;
+		}
+
+		assertEquals(expected.size(), curve.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSameResult(expected.get(i), curve.get(i));
+		}
+
+	}
+
+	/**
+	 * Makes random files, a ground truth and an alignment of them, with scores on a coarse grid so rows share scores
+	 * @param seed The random seed
+	 * @param rowsOverlapping Whether a feature can be in more than one row
+	 * @param gtOverlapping Whether a feature can be in more than one ground truth group
+	 */
+	private void makeAlignment(long seed, boolean rowsOverlapping, boolean gtOverlapping) {
+
+		Random random = new Random(seed);
+		features = new ArrayList<List<Feature>>();
+		for (int f = 0; f < NO_OF_FILES; f++) {
+			List<Feature> file = new ArrayList<Feature>();
+			for (int p = 0; p < FEATURES_PER_FILE; p++) {
+				Feature feature = new Feature(p, 100 + random.nextDouble()*500, random.nextDouble()*1000, 1);
+				feature.setFileID(f);
+				file.add(feature);
+			}
+			features.add(file);
+		}
+
+		groundTruth = new ArrayList<FeatureGroup>();
+		boolean[][] inGroundTruth = new boolean[NO_OF_FILES][FEATURES_PER_FILE];
+		for (int p = 0; p < FEATURES_PER_FILE; p++) {
+			if (random.nextDouble() < 0.3) {
+				continue;
+			}
+			FeatureGroup group = new FeatureGroup(p);
+			for (int f = 0; f < NO_OF_FILES; f++) {
+				int q = random.nextDouble() < 0.8 ? p : random.nextInt(FEATURES_PER_FILE);
+				if ((inGroundTruth[f][q] && !gtOverlapping) || random.nextDouble() >= 0.7) {
+					continue;
+				}
+				group.addFeature(features.get(f).get(q));
+				inGroundTruth[f][q] = true;
+			}
+			if (group.getFeatureCount() > 0) {
+				groundTruth.add(group);
+			}
+		}
+
+		rows = new ArrayList<AlignmentRow>();
+		boolean[][] aligned = new boolean[NO_OF_FILES][FEATURES_PER_FILE];
+		int rowId = 0;
+		for (int p = 0; p < FEATURES_PER_FILE; p++) {
+			AlignmentRow row = new AlignmentRow(null, rowId++);
+			for (int f = 0; f < NO_OF_FILES; f++) {
+				int q = random.nextDouble() < 0.8 ? p : random.nextInt(FEATURES_PER_FILE);
+				if ((aligned[f][q] && !rowsOverlapping) || random.nextDouble() >= 0.85) {
+					continue;
+				}
+				row.addFeature(features.get(f).get(q));
+				aligned[f][q] = true;
+			}
+			if (row.getFeaturesCount() == 0) {
+				continue;
+			}
+			row.setScore(random.nextInt(12) / 10.0);
+			rows.add(row);
+		}
+
+	}
+
+	private static void assertSameResult(EvaluationResult expected, EvaluationResult actual) {
+		assertClose(expected.getTh(), actual.getTh());
+		assertClose(expected.getPrecision(), actual.getPrecision());
+		assertClose(expected.getRecall(), actual.getRecall());
+		assertClose(expected.getF1(), actual.getF1());
+		assertClose(expected.getF05(), actual.getF05());
+		assertClose(expected.getTotalTp(), actual.getTotalTp());
+		assertClose(expected.getTotalFp(), actual.getTotalFp());
+		assertClose(expected.getTotalFn(), actual.getTotalFn());
+		assertClose(expected.getTotalPositives(), actual.getTotalPositives());
+		assertClose(expected.getMedSdrt(), actual.getMedSdrt());
+		assertClose(expected.getMeanSdrt(), actual.getMeanSdrt());
+		assertClose(expected.getMedMdrt(), actual.getMedMdrt());
+		assertClose(expected.getMeanMdrt(), actual.getMeanMdrt());
+		assertClose(expected.getCoverage(), actual.getCoverage());
+	}
+
+	// NaN, e.g. the precision of an alignment without positives, only matches NaN
+	private static void assertClose(double expected, double actual) {
+		if (Double.isNaN(expected)) {
+			assertTrue("expected NaN but was " + actual, Double.isNaN(actual));
+		} else {
+			assertEquals(expected, actual, 1e-9);
+		}
+	}
+
+}
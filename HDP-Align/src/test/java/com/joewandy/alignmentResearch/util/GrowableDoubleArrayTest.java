@@ -0,0 +1,91 @@
+package com.joewandy.alignmentResearch.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks GrowableDoubleArray against an ArrayList doing the same operations
+ */
+public class GrowableDoubleArrayTest extends TestCase {
+
+	public void testGrowsFromCapacityOne() {
+		GrowableDoubleArray array = new GrowableDoubleArray(0);
+		for (int i = 0; i < 100; i++) {
+			array.add(i/2.0);
+		}
+		assertEquals(100, array.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i/2.0, array.get(i), 0);
+		}
+		assertTrue(array.elements().length >= 100);
+	}
+
+	public void testUpdates() {
+		GrowableDoubleArray array = new GrowableDoubleArray();
+		array.add(1.5);
+		array.add(2.5);
+		array.set(1, 4);
+		array.addTo(0, 0.25);
+		array.subsFrom(1, 1);
+		assertEquals("[1.75, 3.0]", array.toString());
+		assertEquals(4.75, array.sum(), 0);
+	}
+
+	public void testSwapRemove() {
+		GrowableDoubleArray array = new GrowableDoubleArray();
+		for (int i = 0; i < 4; i++) {
+			array.add(i + 0.5);
+		}
+		assertEquals(3, array.swapRemove(0));
+		assertEquals("[3.5, 1.5, 2.5]", array.toString());
+		assertEquals(2, array.swapRemove(2));
+		assertEquals("[3.5, 1.5]", array.toString());
+	}
+
+	public void testMatchesList() {
+		Random random = new Random(1);
+		GrowableDoubleArray array = new GrowableDoubleArray(2);
+		List<Double> expected = new ArrayList<Double>();
+		for (int n = 0; n < 10000; n++) {
+			int op = random.nextInt(4);
+			if (op < 2 || expected.isEmpty()) {
+				double value = random.nextDouble();
+				array.add(value);
+				expected.add(value);
+			} else if (op == 2) {
+				int i = random.nextInt(expected.size());
+				int last = array.swapRemove(i);
+				assertEquals(expected.size()-1, last);
+				double moved = expected.remove(last);
+				if (i != last) {
+					expected.set(i, moved);
+				}
+			} else {
+				int i = random.nextInt(expected.size());
+				array.subsFrom(i, 0.5);
+				expected.set(i, expected.get(i)-0.5);
+			}
+			assertEquals(expected.size(), array.size());
+		}
+		double[] values = array.toArray();
+		assertEquals(expected.size(), values.length);
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(expected.get(i), values[i], 0);
+			assertEquals(values[i], array.elements()[i], 0);
+		}
+	}
+
+	public void testClear() {
+		GrowableDoubleArray array = new GrowableDoubleArray();
+		array.add(1);
+		array.clear();
+		assertEquals(0, array.size());
+		assertEquals(0, array.sum(), 0);
+		array.add(2);
+		assertEquals("[2.0]", array.toString());
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.joewandy.alignmentResearch.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks GrowableIntArray against an ArrayList doing the same operations
+ */
+public class GrowableIntArrayTest extends TestCase {
+
+	public void testGrowsFromCapacityOne() {
+		GrowableIntArray array = new GrowableIntArray(0);
+		for (int i = 0; i < 100; i++) {
+			array.add(i*i);
+		}
+		assertEquals(100, array.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i*i, array.get(i));
+		}
+		assertTrue(array.elements().length >= 100);
+	}
+
+	public void testUpdates() {
+		GrowableIntArray array = new GrowableIntArray();
+		array.add(3);
+		array.add(5);
+		array.add(3);
+		array.set(1, 7);
+		array.addTo(0, 10);
+		array.increment(1);
+		array.decrement(2);
+		assertEquals("[13, 8, 2]", array.toString());
+		assertEquals(23, array.sum());
+		array.replaceAll(8, 2);
+		assertEquals("[13, 2, 2]", array.toString());
+		array.replaceAll(2, 0);
+		assertEquals("[13, 0, 0]", array.toString());
+	}
+
+	public void testSwapRemove() {
+
+		GrowableIntArray array = new GrowableIntArray();
+		for (int i = 0; i < 5; i++) {
+			array.add(10+i);
+		}
+
+		// the last element moves into the removed position
+		assertEquals(4, array.swapRemove(1));
+		assertEquals("[10, 14, 12, 13]", array.toString());
+
+		// removing the last element moves nothing
+		assertEquals(3, array.swapRemove(3));
+		assertEquals("[10, 14, 12]", array.toString());
+
+		assertEquals(2, array.swapRemove(0));
+		assertEquals(1, array.swapRemove(0));
+		assertEquals(0, array.swapRemove(0));
+		assertEquals(0, array.size());
+
+	}
+
+	public void testMatchesList() {
+		Random random = new Random(1);
+		GrowableIntArray array = new GrowableIntArray(2);
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int n = 0; n < 10000; n++) {
+			int op = random.nextInt(4);
+			if (op < 2 || expected.isEmpty()) {
+				int value = random.nextInt(100);
+				array.add(value);
+				expected.add(value);
+			} else if (op == 2) {
+				int i = random.nextInt(expected.size());
+				int last = array.swapRemove(i);
+				assertEquals(expected.size()-1, last);
+				int moved = expected.remove(last);
+				if (i != last) {
+					expected.set(i, moved);
+				}
+			} else {
+				int i = random.nextInt(expected.size());
+				array.addTo(i, 3);
+				expected.set(i, expected.get(i)+3);
+			}
+			assertEquals(expected.size(), array.size());
+		}
+		int[] values = array.toArray();
+		assertEquals(expected.size(), values.length);
+		int sum = 0;
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(expected.get(i).intValue(), values[i]);
+			assertEquals(values[i], array.elements()[i]);
+			sum += values[i];
+		}
+		assertEquals(sum, array.sum());
+	}
+
+	public void testClear() {
+		GrowableIntArray array = new GrowableIntArray();
+		array.add(1);
+		array.add(2);
+		array.clear();
+		assertEquals(0, array.size());
+		assertEquals(0, array.toArray().length);
+		array.add(5);
+		assertEquals("[5]", array.toString());
+	}
+
+}
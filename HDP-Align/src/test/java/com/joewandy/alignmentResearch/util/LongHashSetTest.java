@@ -0,0 +1,77 @@
+package com.joewandy.alignmentResearch.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks LongHashSet against a HashSet doing the same operations
+ */
+public class LongHashSetTest extends TestCase {
+
+	public void testZeroIsAValue() {
+		// zero marks the empty slots of the table, so it is kept apart
+		LongHashSet set = new LongHashSet();
+		assertFalse(set.contains(0));
+		assertTrue(set.add(0));
+		assertFalse(set.add(0));
+		assertTrue(set.contains(0));
+		assertEquals(1, set.size());
+		assertTrue(Arrays.equals(new long[] { 0 }, set.toArray()));
+	}
+
+	public void testMatchesHashSet() {
+
+		// packed keys like the ones in GroundTruth, a pair of ints in the two halves, and some negative values
+		Random random = new Random(1);
+		LongHashSet set = new LongHashSet(4);
+		Set<Long> expected = new HashSet<Long>();
+		for (int n = 0; n < 20000; n++) {
+			long value;
+			if (n % 3 == 0) {
+				value = ((long) random.nextInt(100) << 32) | random.nextInt(100);
+			} else if (n % 3 == 1) {
+				value = random.nextInt(200) - 100;
+			} else {
+				value = random.nextLong();
+			}
+			assertEquals(expected.add(value), set.add(value));
+			assertEquals(expected.size(), set.size());
+		}
+
+		for (long value : expected) {
+			assertTrue(set.contains(value));
+		}
+		for (int n = 0; n < 1000; n++) {
+			long value = random.nextLong();
+			assertEquals(expected.contains(value), set.contains(value));
+		}
+
+		long[] values = set.toArray();
+		assertEquals(expected.size(), values.length);
+		Set<Long> actual = new HashSet<Long>();
+		for (long value : values) {
+			actual.add(value);
+		}
+		assertEquals(expected, actual);
+
+	}
+
+	public void testClear() {
+		LongHashSet set = new LongHashSet();
+		for (long value = 0; value < 100; value++) {
+			set.add(value << 32);
+		}
+		set.clear();
+		assertEquals(0, set.size());
+		assertFalse(set.contains(0));
+		assertFalse(set.contains(1L << 32));
+		assertEquals(0, set.toArray().length);
+		assertTrue(set.add(1L << 32));
+		assertEquals(1, set.size());
+	}
+
+}
@@ -23,10 +23,7 @@ import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
 
 import com.joewandy.alignmentResearch.alignmentExperiment.AlignmentData;
 import com.joewandy.alignmentResearch.alignmentMethod.AlignmentMethod;
@@ -116,15 +113,9 @@ public class MultiAlign {
 		}
 		if (result != null) {
 			System.out.println("Computing performance evaluation");
-			EvaluationResult evalRes = null;
-			double lastThreshold = 0;
-			do {
-				evalRes = evaluatePR(result, options.measureType, lastThreshold);
-				if (evalRes != null) {
-					expResult.addResult(evalRes);
-					lastThreshold = evalRes.getTh();					
-				}
-			} while (evalRes != null);
+			for (EvaluationResult evalRes : evaluatePR(result, options.measureType)) {
+				expResult.addResult(evalRes);
+			}
 			
 		}
 		return expResult;
@@ -170,59 +161,38 @@ public class MultiAlign {
 		
 	}		
 
-	private EvaluationResult evaluatePR(AlignmentList result, String measureType, double threshold) {
+	private List<EvaluationResult> evaluatePR(AlignmentList result, String measureType) {
 		
-		EvaluationResult evalRes = null;
+		List<EvaluationResult> curve = new ArrayList<EvaluationResult>();
 		if (data.getGroundTruth() != null) {			
 			
 			int noOfFiles = data.getNoOfFiles();
 			GroundTruth gt = data.getGroundTruth();
 
-			Queue<AlignmentRow> pq = new PriorityQueue<AlignmentRow>(10, new AlignmentScoreComparator());
-			for (AlignmentRow row : result.getRows()) {
-				pq.add(row);
-			}
-			double lastScore = 0;
-			// filter out stuff lower than or equal to threshold
-			while (!pq.isEmpty()) {
-				AlignmentRow row = pq.peek();
-				if (row.getScore() > threshold) {
-					lastScore = row.getScore();
-					break;
-				} else {
-					AlignmentRow removed = pq.remove();
-				}
-			}
-				
-			if (pq.isEmpty()) {
-				return null;
-			}
-			
-			List<AlignmentRow> filtered = new ArrayList<AlignmentRow>(pq);
-			if (measureType.equals(MultiAlignConstants.PERFORMANCE_MEASURE_LANGE)) {
-				evalRes = gt.evaluateLange(filtered, noOfFiles, massTolerance, rtTolerance);								
-			} else if (measureType.equals(MultiAlignConstants.PERFORMANCE_MEASURE_COMBINATION)) {
-				evalRes = gt.evaluatePairwise(filtered, noOfFiles, massTolerance, rtTolerance);												
-			}
-			evalRes.setTh(lastScore);
+			// one result for every distinct positive score, in increasing order of threshold
+			curve = gt.evaluatePRCurve(result.getRows(), noOfFiles, massTolerance, rtTolerance, 
+					measureType, 0);
 			String note = alpha + ", " + groupingRtWindow;
-			evalRes.setNote(note);
+			for (EvaluationResult evalRes : curve) {
+				evalRes.setNote(note);
+			}
 			
 		}		
 		
-		String precStr = String.format("%.3f", evalRes.getPrecision());
-		String recStr = String.format("%.3f", evalRes.getRecall());
-		String f1Str = String.format("%.3f", evalRes.getF1());
-		
-		System.out.println("!PR, " + method + ", " + evalRes.getDmz() + ", " + evalRes.getDrt() + 
-				", " + precStr + ", " + recStr + ", " + f1Str + 
-				", " + evalRes.getTh());
+		for (EvaluationResult evalRes : curve) {
+			String precStr = String.format("%.3f", evalRes.getPrecision());
+			String recStr = String.format("%.3f", evalRes.getRecall());
+			String f1Str = String.format("%.3f", evalRes.getF1());
+			System.out.println("!PR, " + method + ", " + evalRes.getDmz() + ", " + evalRes.getDrt() + 
+					", " + precStr + ", " + recStr + ", " + f1Str + 
+					", " + evalRes.getTh());
+		}
 					
 		// RetentionTimePrinter rtp = new RetentionTimePrinter();
 		// rtp.printRt1(alignmentDataList.get(0), alignmentDataList.get(1));
 		// rtp.printRt2(alignmentDataList.get(0), alignmentDataList.get(1), result);
 				
-		return evalRes;
+		return curve;
 		
 	}		
 	
@@ -251,10 +221,4 @@ public class MultiAlign {
 		return feature.getIntensity() + " " + feature.getRt() + " " + feature.getMass() + " ";
 	}
 	
-	class AlignmentScoreComparator implements Comparator<AlignmentRow> {
-	    public int compare(AlignmentRow x, AlignmentRow y) {
-	        return Double.compare(x.getScore(), y.getScore());
-	    }
-	}
-	
 }
\ No newline at end of file
@@ -13,7 +13,7 @@ import com.joewandy.alignmentResearch.alignmentMethod.AlignmentMethodParam;
 		version = MultiAlignCmdOptions.VERSION, 
 		author = "Joe Wandy (j.wandy.1@research.gla.ac.uk)", 
 		description = "A simple feature-based alignment pipeline.")
-public class MultiAlignCmdOptions {
+public class MultiAlignCmdOptions implements Cloneable {
 
 	public static final String VERSION = "1.0";
 
@@ -70,6 +70,12 @@ public class MultiAlignCmdOptions {
 	@Option(name = "autoOptimiseGreedy", param = "", type = Option.Type.NO_ARGUMENT, level = Option.Level.SYSTEM, usage = "When this is set, automatically tries to some combinations of grouping rt windows")
 	public boolean autoOptimiseGreedy = false;
 
+	@Option(name = "sweepThreads", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. Number of parameter sweep configurations to run in parallel, each with its own copy of the data. MzMine based methods must be run with 1 thread. Default is 1.")
+	public int sweepThreads = MultiAlignConstants.SWEEP_THREADS;
+
+	@Option(name = "sweepPatience", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. In parameter sweeps, stop increasing the alignment RT tolerance after this many values without improving F1. Default is 0 (sweep all values).")
+	public int sweepPatience = MultiAlignConstants.SWEEP_PATIENCE;
+
 	
 	/*
 	 * Common alignment parameters
@@ -198,16 +204,48 @@ public class MultiAlignCmdOptions {
 	public double hdpMassTol = MultiAlignConstants.HDP_MASS_TOLERANCE;
 		
 	@Option(name="hdpSpeedUp", param="boolean", type=Option.Type.NO_ARGUMENT, 
-			usage="Enable various experimental speed-up hacks")
+			usage="Enable the adaptive scan order, where peaks that keep moving are updated more often than settled peaks")
 	public boolean hdpSpeedUp = MultiAlignConstants.HDP_SPEED_UP;
 
-	@Option(name = "hdpSpeedUpNumSample", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. No. of samples a peak can stay in a singleton cluster before removed from the model")
+	@Option(name = "hdpSpeedUpNumSample", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. With hdpSpeedUp, all peaks are updated every this many samples. Default is 10.")
 	public int hdpSpeedUpNumSample = MultiAlignConstants.HDP_SPEED_UP_NUM_SAMPLE;
 
 	@Option(name = "hdpRefFileIdx", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. Reference file index.")
 	public int hdpRefFileIdx = MultiAlignConstants.HDP_REF_FILE_IDX;
 
-	@Option(name = "hdpClusteringResultsPath", param = "filename", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "The output file for HDP clustering results.")
+	@Option(name="hdpMassPruning", param="boolean", type=Option.Type.NO_ARGUMENT, 
+			usage="Optional. Only score mass clusters within hdpMassPruningStdev standard deviations of a peak during Gibbs sampling")
+	public boolean hdpMassPruning = MultiAlignConstants.HDP_MASS_PRUNING;
+
+	@Option(name = "hdpMassPruningStdev", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. Window (in standard deviations of the mass cluster tolerance) used when hdpMassPruning is enabled")
+	public double hdpMassPruningStdev = MultiAlignConstants.HDP_MASS_PRUNING_STDEV;
+
+	@Option(name = "hdpNumChains", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. Number of independent HDP Gibbs chains to run in parallel. Post burn-in samples from all chains are pooled.")
+	public int hdpNumChains = MultiAlignConstants.HDP_NUM_CHAINS;
+
+	@Option(name="hdpStreamSamples", param="boolean", type=Option.Type.NO_ARGUMENT, 
+			usage="Optional. Process each post burn-in HDP sample as soon as it is drawn instead of storing all samples until the end")
+	public boolean hdpStreamSamples = MultiAlignConstants.HDP_STREAM_SAMPLES;
+
+	@Option(name = "hdpSampleThinning", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. With hdpStreamSamples, also keep every n-th post burn-in sample in memory (0 keeps only the last sample)")
+	public int hdpSampleThinning = MultiAlignConstants.HDP_SAMPLE_THINNING;
+
+	@Option(name = "hdpCheckpointInterval", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. Save a checkpoint of the HDP chain to hdpClusteringResultsPath every n samples")
+	public int hdpCheckpointInterval = MultiAlignConstants.HDP_CHECKPOINT_INTERVAL;
+
+	@Option(name = "hdpSplitMergeMoves", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. The number of split-merge proposals on RT clusters and on metabolites made after every Gibbs sweep. Default is 0 (no split-merge moves).")
+	public int hdpSplitMergeMoves = MultiAlignConstants.HDP_SPLIT_MERGE_MOVES;
+
+	@Option(name = "hdpInitialisation", param = "", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. The initial state of the HDP clustering: single (all peaks in one metabolite), greedy (greedy mass and RT matching across files) or grouping (per-file groups from groupingMethod, matched across files). Default is single.")
+	public String hdpInitialisation = MultiAlignConstants.HDP_INITIALISATION;
+
+	@Option(name = "hdpSpeedUpMinVisitRate", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. With hdpSpeedUp, the minimum probability of updating a peak in a partial sweep. Default is 0.1.")
+	public double hdpSpeedUpMinVisitRate = MultiAlignConstants.HDP_SPEED_UP_MIN_VISIT_RATE;
+
+	@Option(name = "hdpCoClusteringThreshold", param = "double", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Optional. If above 0, align the peaks linked by a co-clustering probability of at least this value across the HDP samples, instead of by the sets of peaks in each mass cluster. Default is 0.")
+	public double hdpCoClusteringThreshold = MultiAlignConstants.HDP_CO_CLUSTERING_THRESHOLD;
+
+	@Option(name = "hdpClusteringResultsPath", param = "filename", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Checkpoint file for the HDP chain. An existing checkpoint is resumed, or reloaded if the chain has finished.")
 	public String hdpClusteringResultsPath = null;	
 
 	@Option(name = "mode", param = "", type = Option.Type.REQUIRED_ARGUMENT, level = Option.Level.USER, usage = "Ionisation mode. If this is provided, then the model will also annotate peaks by possible adduct transformations.")
@@ -268,6 +306,18 @@ public class MultiAlignCmdOptions {
 	 */
 	public GenerativeModelParameter generativeParams = new GenerativeModelParameter();
 
+	/**
+	 * Returns a copy of these options, so some parameters can be changed for one run.
+	 * The generative model parameters are shared with the copy.
+	 */
+	public MultiAlignCmdOptions copy() {
+		try {
+			return (MultiAlignCmdOptions) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
 	public static AlignmentMethodParam getAlignmentMethodParam(MultiAlignCmdOptions options) {
 		AlignmentMethodParam param = new AlignmentMethodParam();
 		param.setUsePpm(options.usePpm);
@@ -300,6 +350,16 @@ public class MultiAlignCmdOptions {
 		param.setHdpSpeedUp(options.hdpSpeedUp);
 		param.setHdpSpeedUpNumSample(options.hdpSpeedUpNumSample);
 		param.setHdpRefFileIdx(options.hdpRefFileIdx);
+		param.setHdpMassPruning(options.hdpMassPruning);
+		param.setHdpMassPruningStdev(options.hdpMassPruningStdev);
+		param.setHdpNumChains(options.hdpNumChains);
+		param.setHdpStreamSamples(options.hdpStreamSamples);
+		param.setHdpSampleThinning(options.hdpSampleThinning);
+		param.setHdpCheckpointInterval(options.hdpCheckpointInterval);
+		param.setHdpSplitMergeMoves(options.hdpSplitMergeMoves);
+		param.setHdpInitialisation(options.hdpInitialisation);
+		param.setHdpSpeedUpMinVisitRate(options.hdpSpeedUpMinVisitRate);
+		param.setHdpCoClusteringThreshold(options.hdpCoClusteringThreshold);
 		param.setScoringMethod(options.scoringMethod);
 		param.setIdentificationDatabase(options.idDatabase);
 		param.setGroundTruthDatabase(options.gtDatabase);
@@ -0,0 +1,310 @@
+package com.joewandy.alignmentResearch.main.experiment;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.joewandy.alignmentResearch.alignmentExperiment.AlignmentData;
+import com.joewandy.alignmentResearch.main.MultiAlignCmdOptions;
+import com.joewandy.alignmentResearch.model.EvaluationResult;
+
+/**
+ * Runs the alignment for every combination of alignment m/z, alignment RT, grouping RT, alpha and
+ * minimum correlation. With one thread the data is loaded once and the configurations run in grid
+ * order. With more threads each line of the grid, i.e. all the alignment RT tolerances for one
+ * combination of the other parameters, is a task on a work-stealing pool with its own copy of the data.
+ * Every configuration starts from ungrouped data, so the results don't depend on the number of threads.
+ * Either way, results are added to the experiment result in grid order, as soon as all the
+ * configurations before them are done.
+ */
+public class ParameterSweep {
+
+	/**
+	 * Loads the data, once for a sequential sweep or once per line of the grid for a parallel one
+	 */
+	public interface DataLoader {
+		AlignmentData load() throws FileNotFoundException;
+	}
+
+	/**
+	 * Aligns and evaluates one configuration
+	 */
+	public interface Runner {
+		EvaluationResult run(MultiAlignCmdOptions options, AlignmentData data) throws FileNotFoundException;
+	}
+
+	private final MultiAlignCmdOptions baseOptions;
+	private final List<Configuration> configurations;	// in grid order, alignment RT varies second slowest
+	private final List<int[]> lines;
+	private final int[] lineOf;		// the line of each configuration
+	private final int numThreads;
+	private final int patience;
+
+	// configurations that are done but not yet added to the result, because an earlier one is still running
+	private EvaluationResult[] pending;
+	private boolean[] done;
+	private int nextToAdd;
+	private MultiAlignExpResult expResult;
+
+	/**
+	 * Creates a sweep over the grid of parameters
+	 * @param baseOptions The options shared by all configurations, never modified
+	 * @param alignmentMzs The alignment m/z tolerances
+	 * @param alignmentRts The alignment RT tolerances, in increasing order if patience is used
+	 * @param groupingRts The grouping RT windows
+	 * @param alphas The alphas
+	 * @param minCorrs The minimum correlations
+	 * @param numThreads The number of lines to run in parallel
+	 * @param patience Stop a line after this many alignment RT tolerances without improving its best F1, 0 to never stop
+	 */
+	public ParameterSweep(MultiAlignCmdOptions baseOptions, double[] alignmentMzs, double[] alignmentRts,
+			double[] groupingRts, double[] alphas, double[] minCorrs, int numThreads, int patience) {
+
+		this.baseOptions = baseOptions.copy();
+		this.numThreads = numThreads;
+		this.patience = patience;
+
+		this.configurations = new ArrayList<Configuration>();
+		for (double alignmentMz : alignmentMzs) {
+			for (double alignmentRt : alignmentRts) {
+				for (double groupingRt : groupingRts) {
+					for (double alpha : alphas) {
+						for (double minCorr : minCorrs) {
+							configurations.add(new Configuration(alignmentMz, alignmentRt, groupingRt, alpha, minCorr));
+						}
+					}
+				}
+			}
+		}
+
+		// the configurations sharing everything but the alignment RT, in order of alignment RT
+		int stride = groupingRts.length * alphas.length * minCorrs.length;
+		this.lines = new ArrayList<int[]>();
+		for (int m = 0; m < alignmentMzs.length; m++) {
+			for (int other = 0; other < stride; other++) {
+				int[] line = new int[alignmentRts.length];
+				for (int r = 0; r < alignmentRts.length; r++) {
+					line[r] = (m * alignmentRts.length + r) * stride + other;
+				}
+				lines.add(line);
+			}
+		}
+		this.lineOf = new int[configurations.size()];
+		for (int l = 0; l < lines.size(); l++) {
+			for (int c : lines.get(l)) {
+				lineOf[c] = l;
+			}
+		}
+
+	}
+
+	public int getConfigurationsCount() {
+		return configurations.size();
+	}
+
+	/**
+	 * Runs all the configurations
+	 * @param loader Loads the data, once per line when running in parallel
+	 * @param runner Aligns and evaluates each configuration
+	 * @param expResult The results of all configurations are added here, in grid order
+	 */
+	public void run(final DataLoader loader, final Runner runner, MultiAlignExpResult expResult)
+			throws FileNotFoundException {
+
+		this.pending = new EvaluationResult[configurations.size()];
+		this.done = new boolean[configurations.size()];
+		this.nextToAdd = 0;
+		this.expResult = expResult;
+
+		final long startTime = System.currentTimeMillis();
+		System.out.println("Running " + configurations.size() + " configurations in " + lines.size()
+				+ " lines on " + numThreads + " threads");
+
+		if (numThreads <= 1) {
+			runSequential(loader, runner);
+		} else {
+			runParallel(loader, runner);
+		}
+
+		final long endTime = System.currentTimeMillis();
+		System.out.println("Parameter sweep took " + (endTime - startTime) / 1000.0 + " seconds");
+
+	}
+
+	private void runParallel(final DataLoader loader, final Runner runner) throws FileNotFoundException {
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final int[] line : lines) {
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws FileNotFoundException {
+					runLine(line, loader, runner);
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while running parameter sweep", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof FileNotFoundException) {
+				throw (FileNotFoundException) e.getCause();
+			}
+			throw new RuntimeException("Parameter sweep failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+	}
+
+	private void runSequential(DataLoader loader, Runner runner) throws FileNotFoundException {
+
+		// the same data for every configuration, in the nested loop order of the grid
+		AlignmentData data = loader.load();
+		LineProgress[] progress = new LineProgress[lines.size()];
+		for (int l = 0; l < progress.length; l++) {
+			progress[l] = new LineProgress();
+		}
+		for (int c = 0; c < configurations.size(); c++) {
+			runConfiguration(c, progress[lineOf[c]], data, runner);
+		}
+
+	}
+
+	private void runLine(int[] line, DataLoader loader, Runner runner) throws FileNotFoundException {
+
+		AlignmentData data = loader.load();
+		LineProgress progress = new LineProgress();
+		for (int c : line) {
+			runConfiguration(c, progress, data, runner);
+		}
+
+	}
+
+	private void runConfiguration(int c, LineProgress progress, AlignmentData data, Runner runner)
+			throws FileNotFoundException {
+
+		// skip the rest of the line when it has stopped improving
+		if (patience > 0 && progress.sinceBest >= patience) {
+			complete(c, null);
+			return;
+		}
+
+		Configuration config = configurations.get(c);
+		System.out.println();
+		System.out.println(config);
+		System.out.println();
+
+		MultiAlignCmdOptions options = config.applyTo(baseOptions);
+		if (numThreads > 1) {
+			// all runs would write to the same file
+			options.output = null;
+		}
+
+		// the grouping methods reuse a ZZProb left on the data, which would belong to the grouping RT
+		// and min correlation of an earlier configuration, so every configuration groups from scratch
+		data.clearGrouping();
+		EvaluationResult evalRes = runner.run(options, data);
+		complete(c, evalRes);
+
+		if (evalRes != null && evalRes.getF1() > progress.bestF1) {
+			progress.bestF1 = evalRes.getF1();
+			progress.sinceBest = 0;
+		} else {
+			progress.sinceBest++;
+		}
+
+	}
+
+	private synchronized void complete(int c, EvaluationResult evalRes) {
+		pending[c] = evalRes;
+		done[c] = true;
+		while (nextToAdd < done.length && done[nextToAdd]) {
+			if (pending[nextToAdd] != null) {
+				expResult.addResult(pending[nextToAdd]);
+				pending[nextToAdd] = null;
+			}
+			nextToAdd++;
+		}
+	}
+
+	/**
+	 * The best F1 of a line so far, for the patience
+	 */
+	private static class LineProgress {
+		private double bestF1 = Double.NEGATIVE_INFINITY;
+		private int sinceBest = 0;
+	}
+
+	/**
+	 * One point in the grid of parameters
+	 */
+	public static class Configuration {
+
+		private final double alignmentMz;
+		private final double alignmentRt;
+		private final double groupingRt;
+		private final double alpha;
+		private final double minCorr;
+
+		public Configuration(double alignmentMz, double alignmentRt, double groupingRt, double alpha, double minCorr) {
+			this.alignmentMz = alignmentMz;
+			this.alignmentRt = alignmentRt;
+			this.groupingRt = groupingRt;
+			this.alpha = alpha;
+			this.minCorr = minCorr;
+		}
+
+		public double getAlignmentMz() {
+			return alignmentMz;
+		}
+
+		public double getAlignmentRt() {
+			return alignmentRt;
+		}
+
+		public double getGroupingRt() {
+			return groupingRt;
+		}
+
+		public double getAlpha() {
+			return alpha;
+		}
+
+		public double getMinCorr() {
+			return minCorr;
+		}
+
+		/**
+		 * Returns a copy of the options with the parameters of this configuration
+		 */
+		public MultiAlignCmdOptions applyTo(MultiAlignCmdOptions options) {
+			MultiAlignCmdOptions copy = options.copy();
+			copy.alignmentMzTol = alignmentMz;
+			copy.alignmentRtTol = alignmentRt;
+			copy.alpha = alpha;
+			copy.groupingRtWindow = groupingRt;
+			copy.minCorrSignal = minCorr;
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return "--- alignmentMz = " + alignmentMz + " alignmentRt = " + alignmentRt
+					+ " groupingRt = " + groupingRt + " minCorrSignal = " + minCorr
+					+ " alpha = " + alpha + " ---";
+		}
+
+	}
+
+}
@@ -80,49 +80,37 @@ public class StandardExperiment extends MultiAlignBaseExp implements
 		// pick n files randomly to 'train'
 		MultiAlignExpResult tempResult = new MultiAlignExpResult("training");
 		System.out.println("\n##################  TRAINING PHASE ################## ");
-		AlignmentData data = getData(options, trainingSet);
+		AlignmentData data = null;
 
 		EvaluationResult evalRes = null;
 		if (options.alignmentMzTol != -1 && options.alignmentRtTol != -1) {
 			// if specified from the command line, then use it
+			data = getData(options, trainingSet);
 			evalRes = doAlign(options, data, i);			
 			if (evalRes != null) {
 				tempResult.addResult(evalRes);								
 			}
 		} else {
-			// otherwise do parameter scans
+			// otherwise do parameter scans, the training set is loaded once, or once per line of the grid when running in parallel
 			System.out.println("Running parameter scans");
 			System.out.println();
-			for (double alignmentMz : ALL_ALIGNMENT_MZ) {
-				for (double alignmentRt : ALL_ALIGNMENT_RT) {
-					for (int k = 0; k < groupingRts.length; k++) {
-						for (int j = 0; j < alphas.length; j++) {
-							for (int l = 0; l < minCorrs.length; l++) {
-	
-								System.out.println();
-								System.out.println("--- alignmentMz = "
-										+ alignmentMz + " alignmentRt = "
-										+ alignmentRt + " groupingRt = "
-										+ groupingRts[k] + " minCorrSignal = "
-										+ minCorrs[l] + " alpha = " + alphas[j]
-										+ " ---");
-								System.out.println();
-	
-								options.alignmentMzTol = alignmentMz;
-								options.alignmentRtTol = alignmentRt;
-								options.alpha = alphas[j];
-								options.groupingRtWindow = groupingRts[k];
-								options.minCorrSignal = minCorrs[l];
-								evalRes = doAlign(options, data, i);
-								if (evalRes != null) {
-									tempResult.addResult(evalRes);								
-								}
-							}
-						}
-					}
-	
+			final MultiAlignCmdOptions sweepOptions = options;
+			final int[] sweepSet = trainingSet;
+			final int sweepIndex = i;
+			ParameterSweep sweep = new ParameterSweep(options, ALL_ALIGNMENT_MZ, ALL_ALIGNMENT_RT, 
+					groupingRts, alphas, minCorrs, options.sweepThreads, options.sweepPatience);
+			sweep.run(new ParameterSweep.DataLoader() {
+				@Override
+				public AlignmentData load() throws FileNotFoundException {
+					return getData(sweepOptions, sweepSet);
 				}
-			}
+			}, new ParameterSweep.Runner() {
+				@Override
+				public EvaluationResult run(MultiAlignCmdOptions runOptions, AlignmentData runData) 
+						throws FileNotFoundException {
+					return doAlign(runOptions, runData, sweepIndex);
+				}
+			}, tempResult);
 		}
 
 		// report the result on another set of random n files
@@ -0,0 +1,109 @@
+package com.joewandy.alignmentResearch.main.experiment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.MatrixEntry;
+
+import com.joewandy.alignmentResearch.alignmentExperiment.AlignmentData;
+import com.joewandy.alignmentResearch.grouping.GreedyFeatureGroupingMethod;
+import com.joewandy.alignmentResearch.main.MultiAlignCmdOptions;
+import com.joewandy.alignmentResearch.model.AlignmentFile;
+import com.joewandy.alignmentResearch.model.EvaluationResult;
+import com.joewandy.alignmentResearch.model.Feature;
+
+/**
+ * Checks that a parameter sweep gives the same results on one thread, where all configurations
+ * share the data, as on several threads, where each line of the grid loads its own copy
+ */
+public class ParameterSweepTest extends TestCase {
+
+	private static final double[] ALIGNMENT_MZS = { 0.05, 0.1 };
+	private static final double[] ALIGNMENT_RTS = { 10, 20, 30 };
+	private static final double[] GROUPING_RTS = { 2, 6 };
+	private static final double[] ALPHAS = { 0.5 };
+	private static final double[] MIN_CORRS = { 0.8 };
+
+	public void testGroupingSequentialMatchesParallel() throws Exception {
+
+		List<String> sequential = runSweep(1);
+		List<String> parallel = runSweep(3);
+		assertEquals(ALIGNMENT_MZS.length * ALIGNMENT_RTS.length * GROUPING_RTS.length, sequential.size());
+		assertEquals(sequential, parallel);
+
+		// the grouping RT must make a difference, or a stale grouping would go unnoticed
+		assertFalse(sequential.get(0).equals(sequential.get(1)));
+
+	}
+
+	/**
+	 * Runs the sweep, grouping the data in every configuration
+	 * @return The grouping found by each configuration, in grid order
+	 */
+	private List<String> runSweep(int numThreads) throws Exception {
+
+		ParameterSweep sweep = new ParameterSweep(new MultiAlignCmdOptions(), ALIGNMENT_MZS, ALIGNMENT_RTS,
+				GROUPING_RTS, ALPHAS, MIN_CORRS, numThreads, 0);
+		MultiAlignExpResult expResult = new MultiAlignExpResult("");
+		sweep.run(new ParameterSweep.DataLoader() {
+			@Override
+			public AlignmentData load() {
+				return makeData();
+			}
+		}, new ParameterSweep.Runner() {
+			@Override
+			public EvaluationResult run(MultiAlignCmdOptions options, AlignmentData data) {
+				GreedyFeatureGroupingMethod grouping = new GreedyFeatureGroupingMethod(
+						options.groupingRtWindow, false, options.minCorrSignal);
+				grouping.group(data.getAlignmentDataList());
+				return summarise(options, data);
+			}
+		}, expResult);
+
+		List<String> notes = new ArrayList<String>();
+		for (EvaluationResult evalRes : expResult.getEvaluationResults()) {
+			notes.add(evalRes.getDmz() + ", " + evalRes.getDrt() + ", " + evalRes.getNote());
+		}
+		return notes;
+
+	}
+
+	private static AlignmentData makeData() {
+		Random random = new Random(1);
+		List<AlignmentFile> files = new ArrayList<AlignmentFile>();
+		for (int j = 0; j < 2; j++) {
+			List<Feature> features = new ArrayList<Feature>();
+			for (int n = 0; n < 50; n++) {
+				features.add(new Feature(n, 100 + 400 * random.nextDouble(), 100 * random.nextDouble(), 1000));
+			}
+			files.add(new AlignmentFile(j, "file" + j + ".txt", features));
+		}
+		return new AlignmentData(files, null);
+	}
+
+	/**
+	 * Describes the grouping of each file by the entries of its ZZProb and the group of each feature
+	 */
+	private static EvaluationResult summarise(MultiAlignCmdOptions options, AlignmentData data) {
+		StringBuilder sb = new StringBuilder();
+		for (AlignmentFile file : data.getAlignmentDataList()) {
+			Matrix ZZProb = file.getZZProb();
+			for (MatrixEntry e : ZZProb) {
+				if (e.get() != 0) {
+					sb.append(e.row() + ":" + e.column() + " ");
+				}
+			}
+			for (Feature feature : file.getFeatures()) {
+				sb.append(feature.getGroupID() + " ");
+			}
+		}
+		EvaluationResult evalRes = new EvaluationResult(options.alignmentMzTol, options.alignmentRtTol,
+				0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, "");
+		evalRes.setNote(options.groupingRtWindow + ", " + sb.toString());
+		return evalRes;
+	}
+
+}
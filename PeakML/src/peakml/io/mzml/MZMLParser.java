@@ -23,6 +23,7 @@ package peakml.io.mzml;
 
 // java
 import java.io.*;
+import java.nio.*;
 
 import org.w3c.dom.*;
 
@@ -70,6 +71,11 @@ public abstract class MZMLParser
 		final ChromatographyMS<Centroid> cms = new ChromatographyMS<Centroid>();
 		
 		class Listener implements XmlParserListener {
+			// the decoded arrays are reused for all spectra
+			private Base64Codec codec = new Base64Codec();
+			private DoubleBuffer massbuffer = null;
+			private DoubleBuffer intensitybuffer = null;
+			
 			public void onDocument(Document document, String xpath) throws XmlParserException
 			{
 				Node parent = document.getChildNodes().item(0);
@@ -133,8 +139,8 @@ public abstract class MZMLParser
 					}
 					
 					// retrieve the raw data
-					double masses[] = null;
-					double intensities[] = null;
+					DoubleBuffer masses = null;
+					DoubleBuffer intensities = null;
 					
 					NodeList data = XmlTools.getNodesByTagName(document, "binaryDataArray");
 					for (int nodeid=0; nodeid<data.getLength(); ++nodeid)
@@ -193,27 +199,26 @@ public abstract class MZMLParser
 						
 						// extract the data
 						Node binary = XmlTools.getNodeByTagName(node, "binary");
-						double array[] = ByteArray.toDoubleArray(
-								Base64.decode(binary.getTextContent()),
-								ByteArray.ENDIAN_LITTLE,
-								precision
-							);
-						if (type == MASSES)
-							masses = array;
-						else if (type == INTENSITIES)
-							intensities = array;
+						try {
+							if (type == MASSES)
+								masses = massbuffer = codec.decodeDoubles(binary.getTextContent(), ByteOrder.LITTLE_ENDIAN, precision, massbuffer);
+							else if (type == INTENSITIES)
+								intensities = intensitybuffer = codec.decodeDoubles(binary.getTextContent(), ByteOrder.LITTLE_ENDIAN, precision, intensitybuffer);
+						} catch (IllegalArgumentException e) {
+							throw new XmlParserException(e.getMessage());
+						}
 					}
 					
 					// validity check
-					if (masses==null || masses.length!=default_array_length)
+					if (masses==null || masses.remaining()!=default_array_length)
 						throw new XmlParserException("corrupt mass data");
-					if (intensities==null || intensities.length!=default_array_length)
+					if (intensities==null || intensities.remaining()!=default_array_length)
 						throw new XmlParserException("corrupt intensity data");
 					
 					// create the spectrum
 					PeakData<Centroid> peakdata = new PeakData<Centroid>(Centroid.factory, default_array_length);
 					for (int i=0; i<default_array_length; ++i)
-						peakdata.set(i, -1, -1, masses[i], intensities[i]);
+						peakdata.set(i, -1, -1, masses.get(i), intensities.get(i));
 					Spectrum<Centroid> spectrum = new Spectrum<Centroid>(peakdata, polarity);
 					spectrum.setRetentionTime(retentiontime);
 					
@@ -23,6 +23,7 @@ package peakml.io.mzml;
 
 // java
 import java.io.*;
+import java.nio.*;
 
 // libraries
 import domsax.*;
@@ -116,6 +117,8 @@ public abstract class MZMLWriter
 				new XmlAttribute("defaultDataProcessingRef", "0")
 			);
 		// TODO export the ms>1 spectra too!
+		Base64Codec codec = new Base64Codec();
+		StringBuilder base64 = new StringBuilder();
 		for (Spectrum<Centroid> spectrum : cms)
 		{
 			Polarity polarity = spectrum.getPolarity();
@@ -125,9 +128,7 @@ public abstract class MZMLWriter
 			// compensate the Spectrum behaviour
 			for (int i=0; i<masses.length; ++i)
 				masses[i] -= proton;
-			byte massdata[] = ByteArray.toByteArray(masses, ByteArray.ENDIAN_LITTLE, 64);
 			double intensities[] = spectrum.getPeakData().getIntensities();
-			byte intensitydata[] = ByteArray.toByteArray(intensities, ByteArray.ENDIAN_LITTLE, 64);
 			
 			double stats_masses[] = Statistical.stats(masses);
 			
@@ -164,22 +165,26 @@ public abstract class MZMLWriter
 			
 			// masses
 			xml.writeTag("binaryDataArray", XmlWriter.Tag.OPEN,
-					new XmlAttribute("encodedLength", Integer.toString(massdata.length))
+					new XmlAttribute("encodedLength", Integer.toString(8*masses.length))
 				);
 			cvParam(xml, "MS", "MS:1000523", "64-bit float", "");
 			cvParam(xml, "MS", "MS:1000576", "no compression", "");
 			cvParam(xml, "MS", "MS:1000514", "m/z array", "");
-			xml.writeElement("binary", Base64.encodeBytes(massdata, Base64.DONT_BREAK_LINES));
+			base64.setLength(0);
+			codec.encodeDoubles(DoubleBuffer.wrap(masses), ByteOrder.LITTLE_ENDIAN, 64, base64);
+			xml.writeElement("binary", base64.toString());
 			xml.writeTag("binaryDataArray", XmlWriter.Tag.CLOSE);
 			
 			// intensities
 			xml.writeTag("binaryDataArray", XmlWriter.Tag.OPEN,
-					new XmlAttribute("encodedLength", Integer.toString(intensitydata.length))
+					new XmlAttribute("encodedLength", Integer.toString(8*intensities.length))
 				);
 			cvParam(xml, "MS", "MS:1000523", "64-bit float", "");
 			cvParam(xml, "MS", "MS:1000576", "no compression", "");
 			cvParam(xml, "MS", "MS:1000515", "intensity array", "");
-			xml.writeElement("binary", Base64.encodeBytes(intensitydata, Base64.DONT_BREAK_LINES));
+			base64.setLength(0);
+			codec.encodeDoubles(DoubleBuffer.wrap(intensities), ByteOrder.LITTLE_ENDIAN, 64, base64);
+			xml.writeElement("binary", base64.toString());
 			xml.writeTag("binaryDataArray", XmlWriter.Tag.CLOSE);
 			
 			// close the spectrum and its properties
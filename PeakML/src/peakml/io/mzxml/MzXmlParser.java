@@ -23,6 +23,7 @@ package peakml.io.mzxml;
 
 // java
 import java.io.*;
+import java.nio.*;
 
 import org.w3c.dom.*;
 
@@ -76,6 +77,26 @@ public abstract class MzXmlParser
 			public double minintensity = -1;
 			public double maxintensity = 0;
 			
+			// the decoded arrays are reused for all spectra
+			private Base64Codec codec = new Base64Codec();
+			private DoubleBuffer peaks = null;
+			private DoubleBuffer masses = null;
+			private DoubleBuffer intensities = null;
+			
+			private DoubleBuffer decode(Node node, boolean bigendian, Node precision, DoubleBuffer reuse) throws XmlParserException
+			{
+				try {
+					return codec.decodeDoubles(
+							node.getTextContent(),
+							(bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN),
+							Integer.parseInt(precision.getNodeValue()),
+							reuse
+						);
+				} catch (IllegalArgumentException e) {
+					throw new XmlParserException(e.getMessage());
+				}
+			}
+			
 			public void onDocument(Document document, String xpath) throws XmlParserException
 			{
 				// mzXml interface
@@ -120,18 +141,18 @@ public abstract class MzXmlParser
 						Node node_peaks = nodes_peaks.item(i);
 						NamedNodeMap attributes_peaks = node_peaks.getAttributes();
 						
-						double[] massintensity = ByteArray.toDoubleArray(
-								Base64.decode(node_peaks.getTextContent()),
-								(attributes_peaks.getNamedItem("byteOrder").getNodeValue().equals("network") ? ByteArray.ENDIAN_BIG : ByteArray.ENDIAN_LITTLE),
-								Integer.parseInt(attributes_peaks.getNamedItem("precision").getNodeValue())
+						peaks = decode(
+								node_peaks,
+								attributes_peaks.getNamedItem("byteOrder").getNodeValue().equals("network"),
+								attributes_peaks.getNamedItem("precision"),
+								peaks
 							);
 						
 						// create the spectrum
-						int size = massintensity.length/2;
+						int size = peaks.remaining()/2;
 						PeakData<Centroid> peakdata = new PeakData<Centroid>(new Centroid.Factory(), size);
-						int index = 0;
-						for (int j=0; j<massintensity.length; j+=2)
-							peakdata.set(index++, -1, -1, massintensity[j], massintensity[j+1]);
+						for (int j=0; j<size; ++j)
+							peakdata.set(j, -1, -1, peaks.get(2*j), peaks.get(2*j+1));
 							
 						Spectrum<Centroid> spectrum = new Spectrum<Centroid>(peakdata, (i==0?Spectrum.Type.MS1:Spectrum.Type.MSn), polarity, -1);
 						spectrum.setRetentionTime(retentiontime);
@@ -184,10 +205,11 @@ public abstract class MzXmlParser
 					Node node_masses_data = XmlTools.getNodeByTagName(node_masses, "data");
 					NamedNodeMap attributes_masses = node_masses_data.getAttributes();
 					
-					double[] masses = ByteArray.toDoubleArray(
-							Base64.decode(node_masses_data.getTextContent()),
-							(attributes_masses.getNamedItem("endian").getNodeValue().equals("little") ? ByteArray.ENDIAN_LITTLE : ByteArray.ENDIAN_BIG),
-							Integer.parseInt(attributes_masses.getNamedItem("precision").getNodeValue())
+					masses = decode(
+							node_masses_data,
+							!attributes_masses.getNamedItem("endian").getNodeValue().equals("little"),
+							attributes_masses.getNamedItem("precision"),
+							masses
 						);
 					
 					// retrieve the intensities
@@ -195,20 +217,21 @@ public abstract class MzXmlParser
 					Node node_intensities_data = XmlTools.getNodeByTagName(node_intensities, "data");
 					NamedNodeMap attributes_intensities = node_intensities_data.getAttributes();
 					
-					double[] intensities = ByteArray.toDoubleArray(
-							Base64.decode(node_intensities_data.getTextContent()),
-							(attributes_intensities.getNamedItem("endian").getNodeValue().equals("little") ? ByteArray.ENDIAN_LITTLE : ByteArray.ENDIAN_BIG),
-							Integer.parseInt(attributes_intensities.getNamedItem("precision").getNodeValue())
+					intensities = decode(
+							node_intensities_data,
+							!attributes_intensities.getNamedItem("endian").getNodeValue().equals("little"),
+							attributes_intensities.getNamedItem("precision"),
+							intensities
 						);
 					
 					// sanity check
-					if (masses.length != intensities.length)
+					if (masses.remaining() != intensities.remaining())
 						System.err.print("Strange, the masses differ in length from the intensities"); // should be exceptino
 					
 					// create the spectrum
-					PeakData<Centroid> peakdata = new PeakData<Centroid>(Centroid.factory, masses.length);
-					for (int i=0; i<masses.length; ++i)
-						peakdata.set(i, -1, -1, masses[i], intensities[i]);
+					PeakData<Centroid> peakdata = new PeakData<Centroid>(Centroid.factory, masses.remaining());
+					for (int i=0; i<masses.remaining(); ++i)
+						peakdata.set(i, -1, -1, masses.get(i), intensities.get(i));
 					
 					Spectrum<Centroid> spectrum = new Spectrum<Centroid>(peakdata, polarity);
 					spectrum.setRetentionTime(retentiontime);
@@ -23,6 +23,7 @@ package peakml.io.mzxml;
 
 // java
 import java.io.*;
+import java.nio.*;
 
 // libraries
 import domsax.*;
@@ -135,6 +136,8 @@ public class MzXmlWriter
 		xml.writeBreak();
 		
 		// write the scans
+		Base64Codec codec = new Base64Codec();
+		StringBuilder base64 = new StringBuilder();
 		for (Spectrum<Centroid> scan : cms.getScans())
 		{
 			// TODO include ms>1
@@ -173,9 +176,11 @@ public class MzXmlWriter
 			// dump the precursorMz for ms>1 spectra
 			
 			// dump the peaks
+			base64.setLength(0);
+			codec.encodeDoubles(DoubleBuffer.wrap(array), ByteOrder.BIG_ENDIAN, 32, base64);
 			xml.writeElement(
 					"peaks",
-					Base64.encodeBytes(ByteArray.toByteArray(array, ByteArray.ENDIAN_BIG, 32), Base64.DONT_BREAK_LINES),
+					base64.toString(),
 					new XmlAttribute("precision", "32"),
 					new XmlAttribute("byteOrder", "network"),
 					new XmlAttribute("pairOrder", "m/z-int")
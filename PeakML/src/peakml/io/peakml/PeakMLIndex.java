@@ -0,0 +1,423 @@
+/* Copyright (C) 2008, Groningen Bioinformatics Centre (http://gbic.biol.rug.nl/)
+ * This file is part of PeakML.
+ *
+ * PeakML is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * PeakML is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with PeakML; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+
+package peakml.io.peakml;
+
+
+// java
+import java.io.*;
+import java.util.*;
+
+
+
+
+
+/**
+ * Sidecar index of a PeakML file, written next to the file by {@link PeakMLWriter}. For
+ * each top-level peak the index stores where its element starts and how long it is in
+ * the (unzipped) file, together with its mass, retention time and intensity. This allows
+ * the peaks in a mass or retention time window to be found without parsing the file,
+ * after which {@link PeakMLIndexedFile} loads only those peaks.
+ * <p />
+ * For gzipped files the index can also store the start of each gzip member in the file
+ * together with the position in the unzipped data it starts at. A peak can then be read
+ * by inflating from the closest member before it, instead of from the start of the file.
+ */
+public class PeakMLIndex
+{
+	// constructor(s)
+	/**
+	 * Constructs an empty index.
+	 */
+	public PeakMLIndex()
+	{
+	}
+
+
+	// access
+	/**
+	 * Returns the number of bytes before the first peak in the unzipped file, which holds
+	 * the xml-declaration, the header and the opening tag of the peaks.
+	 *
+	 * @return					The length of the header.
+	 */
+	public long getHeaderLength()
+	{
+		return headerlength;
+	}
+
+	/**
+	 * Returns the number of top-level peaks in the index.
+	 *
+	 * @return					The number of peaks.
+	 */
+	public int getNrPeaks()
+	{
+		return nrpeaks;
+	}
+
+	/**
+	 * Returns the position in the unzipped file where the element of the given peak starts.
+	 *
+	 * @param index				The index of the peak, in the order of the file.
+	 * @return					The offset of the peak.
+	 */
+	public long getOffset(int index)
+	{
+		return offsets[index];
+	}
+
+	/**
+	 * Returns the number of bytes the element of the given peak takes up in the unzipped file.
+	 *
+	 * @param index				The index of the peak, in the order of the file.
+	 * @return					The length of the peak.
+	 */
+	public int getLength(int index)
+	{
+		return lengths[index];
+	}
+
+	/**
+	 * Returns the mass of the given peak, as returned by {@link peakml.IPeak#getMass()}.
+	 *
+	 * @param index				The index of the peak, in the order of the file.
+	 * @return					The mass of the peak.
+	 */
+	public double getMass(int index)
+	{
+		return masses[index];
+	}
+
+	/**
+	 * Returns the retention time of the given peak, as returned by {@link peakml.IPeak#getRetentionTime()}.
+	 *
+	 * @param index				The index of the peak, in the order of the file.
+	 * @return					The retention time of the peak.
+	 */
+	public double getRetentionTime(int index)
+	{
+		return retentiontimes[index];
+	}
+
+	/**
+	 * Returns the intensity of the given peak, as returned by {@link peakml.IPeak#getIntensity()}.
+	 *
+	 * @param index				The index of the peak, in the order of the file.
+	 * @return					The intensity of the peak.
+	 */
+	public double getIntensity(int index)
+	{
+		return intensities[index];
+	}
+
+	/**
+	 * Returns the number of gzip members recorded for the file, which is 0 for files that
+	 * are not gzipped or were written as a single member.
+	 *
+	 * @return					The number of gzip members.
+	 */
+	public int getNrBlocks()
+	{
+		return nrblocks;
+	}
+
+	/**
+	 * Returns the position in the gzipped file where the given member starts.
+	 *
+	 * @param index				The index of the member.
+	 * @return					The offset of the member in the gzipped file.
+	 */
+	public long getBlockOffset(int index)
+	{
+		return blockoffsets[index];
+	}
+
+	/**
+	 * Returns the position in the unzipped file of the first byte in the given member.
+	 *
+	 * @param index				The index of the member.
+	 * @return					The offset of the member in the unzipped file.
+	 */
+	public long getBlockPosition(int index)
+	{
+		return blockpositions[index];
+	}
+
+	/**
+	 * Returns the index of the last gzip member starting at or before the given position
+	 * in the unzipped file, or -1 when no members are recorded.
+	 *
+	 * @param position			The position in the unzipped file.
+	 * @return					The index of the member containing the position.
+	 */
+	public int findBlock(long position)
+	{
+		int low = 0;
+		int high = nrblocks - 1;
+		int found = -1;
+		while (low <= high)
+		{
+			int mid = (low+high) >>> 1;
+			if (blockpositions[mid] <= position)
+			{
+				found = mid;
+				low = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the indices of the peaks with a mass in [minmass..maxmass] and a retention time
+	 * in [minrt..maxrt], in the order of the file. The peaks are searched by mass, so the query
+	 * is fast for narrow mass windows. Use {@link Double#NEGATIVE_INFINITY} and
+	 * {@link Double#POSITIVE_INFINITY} to leave out a bound.
+	 *
+	 * @param minmass			The minimum mass.
+	 * @param maxmass			The maximum mass.
+	 * @param minrt				The minimum retention time.
+	 * @param maxrt				The maximum retention time.
+	 * @return					The indices of the matching peaks.
+	 */
+	public int[] query(double minmass, double maxmass, double minrt, double maxrt)
+	{
+		int order[] = getMassOrder();
+
+		// binary search for the first peak with a mass of at least minmass
+		int low = 0;
+		int high = nrpeaks;
+		while (low < high)
+		{
+			int mid = (low+high) >>> 1;
+			if (masses[order[mid]] < minmass)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		int found[] = new int[16];
+		int nrfound = 0;
+		for (int i=low; i<nrpeaks && masses[order[i]]<=maxmass; ++i)
+		{
+			int index = order[i];
+			if (retentiontimes[index]<minrt || retentiontimes[index]>maxrt)
+				continue;
+			if (nrfound == found.length)
+				found = Arrays.copyOf(found, 2*found.length);
+			found[nrfound++] = index;
+		}
+
+		found = Arrays.copyOf(found, nrfound);
+		Arrays.sort(found);
+		return found;
+	}
+
+
+	// building the index
+	void setHeaderLength(long headerlength)
+	{
+		this.headerlength = headerlength;
+	}
+
+	void addPeak(long offset, int length, double mass, double retentiontime, double intensity)
+	{
+		if (nrpeaks == offsets.length)
+		{
+			int capacity = Math.max(16, 2*nrpeaks);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			masses = Arrays.copyOf(masses, capacity);
+			retentiontimes = Arrays.copyOf(retentiontimes, capacity);
+			intensities = Arrays.copyOf(intensities, capacity);
+		}
+		offsets[nrpeaks] = offset;
+		lengths[nrpeaks] = length;
+		masses[nrpeaks] = mass;
+		retentiontimes[nrpeaks] = retentiontime;
+		intensities[nrpeaks] = intensity;
+		nrpeaks++;
+		massorder = null;
+	}
+
+	void addBlock(long offset, long position)
+	{
+		if (nrblocks == blockoffsets.length)
+		{
+			int capacity = Math.max(16, 2*nrblocks);
+			blockoffsets = Arrays.copyOf(blockoffsets, capacity);
+			blockpositions = Arrays.copyOf(blockpositions, capacity);
+		}
+		blockoffsets[nrblocks] = offset;
+		blockpositions[nrblocks] = position;
+		nrblocks++;
+	}
+
+	private synchronized int[] getMassOrder()
+	{
+		if (massorder != null)
+			return massorder;
+
+		// the sort is stable, so peaks with the same mass keep the order of the file
+		Integer boxed[] = new Integer[nrpeaks];
+		for (int i=0; i<nrpeaks; ++i)
+			boxed[i] = i;
+		Arrays.sort(boxed, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(masses[a], masses[b]);
+			}
+		});
+		int order[] = new int[nrpeaks];
+		for (int i=0; i<nrpeaks; ++i)
+			order[i] = boxed[i];
+
+		massorder = order;
+		return massorder;
+	}
+
+
+	// static file access
+	/**
+	 * Returns the name of the sidecar index for the given PeakML file.
+	 *
+	 * @param filename			The name of the PeakML file.
+	 * @return					The name of the index file.
+	 */
+	public static String getFilename(String filename)
+	{
+		return filename + EXTENSION;
+	}
+
+	/**
+	 * Reads an index from the given stream, which is closed afterwards.
+	 *
+	 * @param in				The input-stream to read the index from.
+	 * @return					The index.
+	 * @throws IOException		Thrown on an I/O error or when the stream does not contain an index.
+	 */
+	public static PeakMLIndex read(InputStream in) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64*1024));
+		try {
+			if (data.readInt() != MAGIC)
+				throw new IOException("Not a PeakML index.");
+			int version = data.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported PeakML index version: " + version);
+
+			PeakMLIndex index = new PeakMLIndex();
+			index.headerlength = data.readLong();
+
+			int nrpeaks = data.readInt();
+			index.offsets = new long[nrpeaks];
+			index.lengths = new int[nrpeaks];
+			index.masses = new double[nrpeaks];
+			index.retentiontimes = new double[nrpeaks];
+			index.intensities = new double[nrpeaks];
+			for (int i=0; i<nrpeaks; ++i)
+			{
+				index.offsets[i] = data.readLong();
+				index.lengths[i] = data.readInt();
+				index.masses[i] = data.readDouble();
+				index.retentiontimes[i] = data.readDouble();
+				index.intensities[i] = data.readDouble();
+			}
+			index.nrpeaks = nrpeaks;
+
+			int nrblocks = data.readInt();
+			index.blockoffsets = new long[nrblocks];
+			index.blockpositions = new long[nrblocks];
+			for (int i=0; i<nrblocks; ++i)
+			{
+				index.blockoffsets[i] = data.readLong();
+				index.blockpositions[i] = data.readLong();
+			}
+			index.nrblocks = nrblocks;
+
+			return index;
+		} catch (EOFException e) {
+			throw new IOException("The PeakML index is truncated.");
+		} finally {
+			data.close();
+		}
+	}
+
+	/**
+	 * Writes the index to the given stream, which is closed afterwards.
+	 *
+	 * @param out				The output-stream to write the index to.
+	 * @throws IOException		Thrown on an I/O error.
+	 */
+	public void write(OutputStream out) throws IOException
+	{
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64*1024));
+		try {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(headerlength);
+
+			data.writeInt(nrpeaks);
+			for (int i=0; i<nrpeaks; ++i)
+			{
+				data.writeLong(offsets[i]);
+				data.writeInt(lengths[i]);
+				data.writeDouble(masses[i]);
+				data.writeDouble(retentiontimes[i]);
+				data.writeDouble(intensities[i]);
+			}
+
+			data.writeInt(nrblocks);
+			for (int i=0; i<nrblocks; ++i)
+			{
+				data.writeLong(blockoffsets[i]);
+				data.writeLong(blockpositions[i]);
+			}
+		} finally {
+			data.close();
+		}
+	}
+
+
+	// data
+	protected long headerlength = 0;
+
+	protected int nrpeaks = 0;
+	protected long offsets[] = new long[0];
+	protected int lengths[] = new int[0];
+	protected double masses[] = new double[0];
+	protected double retentiontimes[] = new double[0];
+	protected double intensities[] = new double[0];
+
+	protected int nrblocks = 0;
+	protected long blockoffsets[] = new long[0];
+	protected long blockpositions[] = new long[0];
+
+	/** The indices of the peaks sorted on mass, made on the first query */
+	private int massorder[] = null;
+
+	/** The extension added to the name of a PeakML file for its index */
+	public static final String EXTENSION			= ".idx";
+
+	private static final int MAGIC					= 0x504d4c58;	// "PMLX"
+	private static final int VERSION				= 1;
+}
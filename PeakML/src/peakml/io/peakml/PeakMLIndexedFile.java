@@ -0,0 +1,333 @@
+/* Copyright (C) 2008, Groningen Bioinformatics Centre (http://gbic.biol.rug.nl/)
+ * This file is part of PeakML.
+ *
+ * PeakML is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * PeakML is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with PeakML; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+
+package peakml.io.peakml;
+
+
+// java
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+// libraries
+import domsax.*;
+
+// peakml
+import peakml.*;
+import peakml.io.*;
+
+
+
+
+
+/**
+ * Random access to the peaks of a PeakML file with a {@link PeakMLIndex}. The index is used
+ * to find the peaks in a mass and retention time window, after which only the elements of
+ * those peaks are read from the file and parsed. The header is parsed on first use.
+ * <p />
+ * For a file that is not gzipped the elements are read directly at their offset. For a
+ * gzipped file the data is inflated from the closest gzip member before the peak when the
+ * index records the members, and from the start of the file otherwise; when several peaks
+ * are read at once the file is inflated only once, in a single pass.
+ */
+public class PeakMLIndexedFile
+{
+	// constructor(s)
+	/**
+	 * Opens the given PeakML file with the sidecar index written next to it (see
+	 * {@link PeakMLIndex#getFilename(String)}).
+	 *
+	 * @param filename			The name of the PeakML file.
+	 * @throws IOException		Thrown on an I/O error or when the index can't be read.
+	 */
+	public PeakMLIndexedFile(String filename) throws IOException
+	{
+		this(filename, PeakMLIndex.read(new FileInputStream(PeakMLIndex.getFilename(filename))));
+	}
+
+	/**
+	 * Opens the given PeakML file with the given index.
+	 *
+	 * @param filename			The name of the PeakML file.
+	 * @param index				The index of the file.
+	 * @throws IOException		Thrown on an I/O error.
+	 */
+	public PeakMLIndexedFile(String filename, PeakMLIndex index) throws IOException
+	{
+		this.filename = filename;
+		this.file = new RandomAccessFile(filename, "r");
+		this.index = index;
+
+		// check for the gzip magic number
+		gzipped = file.length()>=2 && file.read()==0x1f && file.read()==0x8b;
+	}
+
+
+	// access
+	/**
+	 * Returns the index of the file.
+	 *
+	 * @return					The index.
+	 */
+	public PeakMLIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Returns the header of the file, which is parsed on the first call.
+	 *
+	 * @return					The header, null when the file has no header.
+	 * @throws IOException		Thrown on an I/O error.
+	 * @throws XmlParserException
+	 * 							Thrown when the header can't be parsed.
+	 */
+	public synchronized Header getHeader() throws IOException, XmlParserException
+	{
+		if (encoding == null)
+			parseHeader();
+		return header;
+	}
+
+	/**
+	 * Returns the indices of the peaks with a mass in [minmass..maxmass] and a retention
+	 * time in [minrt..maxrt], in the order of the file. See
+	 * {@link PeakMLIndex#query(double, double, double, double)}.
+	 */
+	public int[] query(double minmass, double maxmass, double minrt, double maxrt)
+	{
+		return index.query(minmass, maxmass, minrt, maxrt);
+	}
+
+	/**
+	 * Reads and parses a single peak from the file.
+	 *
+	 * @param peak				The index of the peak in the index.
+	 * @return					The peak.
+	 * @throws IOException		Thrown on an I/O error or when the index does not match the file.
+	 * @throws XmlParserException
+	 * 							Thrown when the peak can't be parsed.
+	 */
+	public IPeak read(int peak) throws IOException, XmlParserException
+	{
+		return read(new int[] { peak }).firstElement();
+	}
+
+	/**
+	 * Reads and parses the given peaks from the file. The file is read in the order of the
+	 * offsets of the peaks, the peaks are returned in the order they are given in.
+	 *
+	 * @param peaks				The indices of the peaks in the index.
+	 * @return					The peaks.
+	 * @throws IOException		Thrown on an I/O error or when the index does not match the file.
+	 * @throws XmlParserException
+	 * 							Thrown when a peak can't be parsed.
+	 */
+	public synchronized Vector<IPeak> read(int peaks[]) throws IOException, XmlParserException
+	{
+		if (encoding == null)
+			parseHeader();
+
+		// read the elements in the order of the file, so a gzipped file is inflated only once
+		Integer order[] = new Integer[peaks.length];
+		for (int i=0; i<peaks.length; ++i)
+			order[i] = i;
+		final int sorted[] = peaks;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				long offset_a = index.getOffset(sorted[a]);
+				long offset_b = index.getOffset(sorted[b]);
+				return offset_a<offset_b ? -1 : (offset_a==offset_b ? 0 : 1);
+			}
+		});
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		batch.write(PeakMLPipelinedParser.OPENDOCUMENT);
+		for (Integer i : order)
+		{
+			byte element[] = readBytes(index.getOffset(peaks[i]), index.getLength(peaks[i]));
+			if (!isPeak(element))
+				throw new IOException("The index does not match the file, no peak at offset " + index.getOffset(peaks[i]));
+			batch.write(element);
+		}
+		batch.write(PeakMLPipelinedParser.CLOSEDOCUMENT);
+		closeInflater();
+
+		// the peaks come out of the batch in the order of the file
+		IPeak result[] = new IPeak[peaks.length];
+		PeakMLStreamReader reader = new PeakMLStreamReader(new ByteArrayInputStream(batch.toByteArray()), encoding);
+		try {
+			int nrpeaks = 0;
+			int event;
+			while ((event=reader.next()) != PeakMLStreamReader.END)
+			{
+				if (event != PeakMLStreamReader.PEAK)
+					reader.skip();
+				else if (nrpeaks < peaks.length)
+					result[order[nrpeaks++]] = PeakMLParser.ipeakreader.read(reader);
+				else
+					throw new IOException("The index does not match the file, more peaks than expected.");
+			}
+			if (nrpeaks != peaks.length)
+				throw new IOException("The index does not match the file, fewer peaks than expected.");
+		} finally {
+			reader.close();
+		}
+
+		return new Vector<IPeak>(Arrays.asList(result));
+	}
+
+	/**
+	 * Loads the header and the peaks with a mass in [minmass..maxmass] and a retention
+	 * time in [minrt..maxrt], in the order of the file.
+	 *
+	 * @param minmass			The minimum mass.
+	 * @param maxmass			The maximum mass.
+	 * @param minrt				The minimum retention time.
+	 * @param maxrt				The maximum retention time.
+	 * @return					The header and the matching peaks, the measurement is null when no peak matches.
+	 * @throws IOException		Thrown on an I/O error or when the index does not match the file.
+	 * @throws XmlParserException
+	 * 							Thrown when a peak can't be parsed.
+	 */
+	public ParseResult parse(double minmass, double maxmass, double minrt, double maxrt) throws IOException, XmlParserException
+	{
+		ParseResult result = new ParseResult();
+		result.header = getHeader();
+		
+		int peaks[] = query(minmass, maxmass, minrt, maxrt);
+		if (peaks.length != 0)
+			result.measurement = new IPeakSet<IPeak>(read(peaks));
+		return result;
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException		Thrown on an I/O error.
+	 */
+	public synchronized void close() throws IOException
+	{
+		closeInflater();
+		file.close();
+	}
+
+
+	// implementation
+	private void parseHeader() throws IOException, XmlParserException
+	{
+		InputStream prologue = new SequenceInputStream(
+				new ByteArrayInputStream(readBytes(0, (int) index.getHeaderLength())),
+				new ByteArrayInputStream(PeakMLPipelinedParser.CLOSEDOCUMENT)
+			);
+		closeInflater();
+
+		PeakMLStreamReader reader = new PeakMLStreamReader(prologue);
+		try {
+			String enc = reader.getEncoding();
+			int event;
+			while ((event=reader.next()) != PeakMLStreamReader.END)
+			{
+				if (event == PeakMLStreamReader.HEADER)
+					header = reader.readHeader();
+				else
+					reader.skip();
+			}
+
+			// the peaks are wrapped in ascii tags
+			if (enc!=null && enc.toUpperCase().startsWith("UTF-16"))
+				throw new IOException("Random access is not supported for files in " + enc);
+			encoding = (enc!=null ? enc : "UTF-8");
+		} finally {
+			reader.close();
+		}
+	}
+
+	private byte[] readBytes(long offset, int length) throws IOException
+	{
+		byte bytes[] = new byte[length];
+		if (!gzipped)
+		{
+			file.seek(offset);
+			file.readFully(bytes);
+			return bytes;
+		}
+
+		// restart from the closest gzip member when it is past the current position
+		int block = index.findBlock(offset);
+		long blockposition = (block==-1 ? 0 : index.getBlockPosition(block));
+		if (inflater==null || position>offset || blockposition>position)
+		{
+			closeInflater();
+			FileInputStream in = new FileInputStream(filename);
+			try {
+				in.getChannel().position(block==-1 ? 0 : index.getBlockOffset(block));
+				inflater = new GZIPInputStream(new BufferedInputStream(in, 64*1024), 64*1024);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			position = blockposition;
+		}
+
+		while (position < offset)
+		{
+			long skipped = inflater.skip(offset-position);
+			if (skipped <= 0)
+				throw new EOFException("The index does not match the file, offset " + offset + " is past the end.");
+			position += skipped;
+		}
+		new DataInputStream(inflater).readFully(bytes);
+		position += length;
+		return bytes;
+	}
+
+	private void closeInflater() throws IOException
+	{
+		if (inflater == null)
+			return;
+		inflater.close();
+		inflater = null;
+	}
+
+	private static boolean isPeak(byte element[])
+	{
+		int i = 0;
+		while (i<element.length && (element[i]==' ' || element[i]=='\t' || element[i]=='\n' || element[i]=='\r'))
+			i++;
+		return element.length-i>=5 && element[i]=='<' && element[i+1]=='p' && element[i+2]=='e' && element[i+3]=='a' && element[i+4]=='k';
+	}
+
+
+	// data
+	protected final String filename;
+	protected final RandomAccessFile file;
+	protected final PeakMLIndex index;
+	protected final boolean gzipped;
+
+	protected Header header = null;
+	/** The encoding of the file, set when the header is parsed */
+	protected String encoding = null;
+
+	/** The stream inflating a gzipped file and its position in the unzipped data */
+	private InputStream inflater = null;
+	private long position = 0;
+}
@@ -26,16 +26,12 @@ import java.io.*;
 import java.util.*;
 import java.util.zip.*;
 
-import org.w3c.dom.*;
-
 //libraries
 import domsax.*;
 
 // peakml
 import peakml.*;
 import peakml.io.*;
-import peakml.util.*;
-import peakml.util.Base64;
 import peakml.chemistry.*;
 
 
@@ -73,23 +69,19 @@ public class PeakMLParser
 	// static access
 	public static Header parseHeader(InputStream in) throws IOException, XmlParserException
 	{
-		final ParseResult result = new ParseResult();
-		class myListener implements XmlParserListener
-		{
-			public void onDocument(Document document, String xpath) throws XmlParserException
+		PeakMLStreamReader reader = new PeakMLStreamReader(detect(in));
+		try {
+			int event;
+			while ((event=reader.next()) != PeakMLStreamReader.END)
 			{
-				if (xpath.equals(XPATH_HEADER))
-				{
-					result.header = parseHeader(document.getFirstChild());
-					throw new XmlParserException("finished");
-				}
-			}			
+				if (event == PeakMLStreamReader.HEADER)
+					return reader.readHeader();
+				reader.skip();
+			}
+			return null;
+		} finally {
+			reader.close();
 		}
-		try {
-			run(in, new myListener());
-		} catch (XmlParserException e) { ; }
-
-		return result.header;
 	}
 	
 	/**
@@ -136,46 +128,28 @@ public class PeakMLParser
 	 */
 	public static ParseResult parse(InputStream in, ParserProgressListener listener, boolean loadall) throws IOException, XmlParserException
 	{
-//		final boolean _loadall = loadall;
-		final ParserProgressListener _listener = listener;
-		
-		final ParseResult result = new ParseResult();
-		final Vector<IPeak> peaks = new Vector<IPeak>();
-		
-		class myListener implements XmlParserListener
-		{
-			int index = 0;
-			public void onDocument(Document document, String xpath) throws XmlParserException
-			{
-				if (xpath.equals(XPATH_IPEAK))
-				{
-					Node node = document.getChildNodes().item(0);
-					
-					// check whether we're getting the correct ipeak
-					Node typeattribute = node.getAttributes().getNamedItem(PeakMLWriter.TYPE);
-					if (typeattribute == null)
-						throw new XmlParserException("Failed to locate a type attribute.");
-					
-					// ...
-//					IPeak peak = (_loadall ? parseIPeak(node) : parseCentroid(node));
-					IPeak peak = parseIPeak(node);
-					if (peak != null)
-						peaks.add(peak);
-					
-					//
-					if (_listener!=null && result.header!=null && result.header.getNrPeaks()!=0)
-						_listener.update((100.*index++)/result.header.getNrPeaks());
-				}
-				else if (xpath.equals(XPATH_HEADER))
-				{
-					result.header = parseHeader(document.getFirstChild());
-				}
-			}
-		}
-		run(in, new myListener());
-		
-		result.measurement = new IPeakSet<IPeak>(peaks);
-		return result;
+		return parse(in, listener, loadall, 1);
+	}
+	
+	/**
+	 * Parse function for blindly loading data from a PeakML file on multiple threads. The result
+	 * is the same as that of {@link PeakMLParser#parse(InputStream, ParserProgressListener, boolean)},
+	 * but the file is read in a pipeline: one thread inflates the data, the calling thread splits
+	 * it into batches of peaks and a pool of threads decodes the batches. The peaks are
+	 * returned in the order of the file and the progress is reported from the calling thread.
+	 * 
+	 * @param in				The input-stream to load the data from.
+	 * @param listener			The progress listener.
+	 * @param loadall			If set to false only the data known to IPeak is loaded as class Peak.
+	 * @param nrthreads			The number of threads decoding peaks, with 1 the file is parsed on the calling thread.
+	 * @return					The header and peak information stored in the file.
+	 * @throws IOException		Thrown on an IOException.
+	 * @throws XmlParserException
+	 * 							Thrown when an unknown IPeak object is encountered.
+	 */
+	public static ParseResult parse(InputStream in, ParserProgressListener listener, boolean loadall, int nrthreads) throws IOException, XmlParserException
+	{
+		return run(in, listener, ipeakreader, nrthreads);
 	}
 	
 	/**
@@ -194,36 +168,23 @@ public class PeakMLParser
 	 */
 	public static void parse(InputStream in, PeakMLProgressListener listener, boolean loadall) throws IOException, XmlParserException
 	{
-//		final boolean _loadall = loadall;
-		final PeakMLProgressListener _listener = listener;
-		
-		class myListener implements XmlParserListener
-		{
-			public void onDocument(Document document, String xpath) throws XmlParserException
+		PeakMLStreamReader reader = new PeakMLStreamReader(detect(in));
+		try {
+			int event;
+			while ((event=reader.next()) != PeakMLStreamReader.END)
 			{
-				if (xpath.equals(XPATH_IPEAK))
+				if (event == PeakMLStreamReader.PEAK)
 				{
-					Node node = document.getChildNodes().item(0);
-					
-					// check whether we're getting the correct ipeak
-					Node typeattribute = node.getAttributes().getNamedItem(PeakMLWriter.TYPE);
-					if (typeattribute == null)
-						throw new XmlParserException("Failed to locate a type attribute.");
-					
-					// ...
-//					IPeak peak = (_loadall ? parseIPeak(node) : parseCentroid(node));
-					IPeak peak = parseIPeak(node);
+					IPeak peak = ipeakreader.read(reader);
 					if (peak != null)
-						_listener.onIPeak(peak);
-				}
-				else if (xpath.equals(XPATH_HEADER))
-				{
-					Header header = parseHeader(document.getFirstChild());
-					_listener.onHeader(header);
+						listener.onIPeak(peak);
 				}
+				else if (event == PeakMLStreamReader.HEADER)
+					listener.onHeader(reader.readHeader());
 			}
+		} finally {
+			reader.close();
 		}
-		run(in, new myListener());
 		
 		listener.onFinish();
 	}
@@ -241,45 +202,24 @@ public class PeakMLParser
 	 */
 	public static ParseResult parseMassChromatograms(InputStream in, ParserProgressListener listener) throws IOException, XmlParserException
 	{
-		final ParseResult result = new ParseResult();
-		final Vector<MassChromatogram<? extends Peak>> peaks = new Vector<MassChromatogram<? extends Peak>>();
-		final ParserProgressListener _listener = listener;
-		
-		class myListener implements XmlParserListener
-		{
-			int index = 0;
-			public void onDocument(Document document, String xpath) throws XmlParserException
-			{
-				if (xpath.equals(XPATH_IPEAK))
-				{
-					Node node = document.getChildNodes().item(0);
-					
-					// check whether we're getting the correct ipeak
-					Node typeattribute = node.getAttributes().getNamedItem(PeakMLWriter.TYPE);
-					if (typeattribute==null)
-						throw new XmlParserException("Failed to locate the type attribute.");
-					if (!typeattribute.getNodeValue().equals(PeakMLWriter.TYPE_MASSCHROMATOGRAM))
-						throw new XmlParserException("IPeak (" + typeattribute.getNodeValue() + ") is not of type: '" + PeakMLWriter.TYPE_MASSCHROMATOGRAM + "'");
-					
-					// parse this node as a mass chromatogram
-					MassChromatogram<? extends Peak> masschromatogram = parseMassChromatogram(node);
-					if (masschromatogram != null)
-						peaks.add(masschromatogram);
-					
-					//
-					if (_listener!=null && result.header!=null && result.header.getNrPeaks()!=0)
-						_listener.update((100.*index++)/result.header.getNrPeaks());
-				}
-				else if (xpath.equals(XPATH_HEADER))
-				{
-					result.header = parseHeader(document.getFirstChild());
-				}
-			}
-		}
-		run(in, new myListener());
-		
-		result.measurement = new IPeakSet<MassChromatogram<? extends Peak>>(peaks);
-		return result;
+		return parseMassChromatograms(in, listener, 1);
+	}
+	
+	/**
+	 * Parse function for loading a PeakML file containing only masschromatogram entries on multiple
+	 * threads. See {@link PeakMLParser#parse(InputStream, ParserProgressListener, boolean, int)}
+	 * for the way the threads are used.
+	 * 
+	 * @param in				The input-stream to load the data from.
+	 * @param nrthreads			The number of threads decoding peaks, with 1 the file is parsed on the calling thread.
+	 * @return					The header and peak information stored in the file.
+	 * @throws IOException		Thrown on an IOException.
+	 * @throws XmlParserException
+	 * 							Thrown when an unknown IPeak object is encountered.
+	 */
+	public static ParseResult parseMassChromatograms(InputStream in, ParserProgressListener listener, int nrthreads) throws IOException, XmlParserException
+	{
+		return run(in, listener, masschromatogramreader, nrthreads);
 	}
 	
 	/**
@@ -295,45 +235,7 @@ public class PeakMLParser
 	 */
 	public static ParseResult parseBackgroundIons(InputStream in, ParserProgressListener listener) throws IOException, XmlParserException
 	{
-		final ParseResult result = new ParseResult();
-		final Vector<BackgroundIon<? extends Peak>> peaks = new Vector<BackgroundIon<? extends Peak>>();
-		final ParserProgressListener _listener = listener;
-		
-		class myListener implements XmlParserListener
-		{
-			int index = 0;
-			public void onDocument(Document document, String xpath) throws XmlParserException
-			{
-				if (xpath.equals(XPATH_IPEAK))
-				{
-					Node node = document.getFirstChild();
-					
-					// check whether we're getting the correct ipeak
-					Node typeattribute = node.getAttributes().getNamedItem(PeakMLWriter.TYPE);
-					if (typeattribute==null)
-						throw new XmlParserException("Failed to locate the type attribute.");
-					if (!typeattribute.getNodeValue().equals(PeakMLWriter.TYPE_BACKGROUNDION))
-						throw new XmlParserException("IPeak (" + typeattribute.getNodeValue() + ") is not of type: '" + PeakMLWriter.TYPE_BACKGROUNDION + "'");
-					
-					// parse this node as a mass chromatogram
-					BackgroundIon<? extends Peak> backgroundion = parseBackgroundIon(node);
-					if (backgroundion != null)
-						peaks.add(backgroundion);
-					
-					//
-					if (_listener!=null && result.header!=null && result.header.getNrPeaks()!=0)
-						_listener.update((100.*index++)/result.header.getNrPeaks());
-				}
-				else if (xpath.equals(XPATH_HEADER))
-				{
-					result.header = parseHeader(document.getFirstChild());
-				}
-			}
-		}
-		run(in, new myListener());
-		
-		result.measurement = new IPeakSet<BackgroundIon<? extends Peak>>(peaks);
-		return result;
+		return run(in, listener, backgroundionreader, 1);
 	}
 	
 	/**
@@ -349,591 +251,187 @@ public class PeakMLParser
 	 */
 	public static ParseResult parseIPeakSet(InputStream in, ParserProgressListener listener) throws IOException, XmlParserException
 	{
-		final ParseResult result = new ParseResult();
-		final Vector<IPeakSet<? extends IPeak>> peaks = new Vector<IPeakSet<? extends IPeak>>();
-		final ParserProgressListener _listener = listener;
-		
-		class myListener implements XmlParserListener
-		{
-			int index = 0;
-			public void onDocument(Document document, String xpath) throws XmlParserException
-			{
-				if (xpath.equals(XPATH_IPEAK))
-				{
-					Node node = document.getChildNodes().item(0);
-					
-					// check whether we're getting the correct ipeak
-					Node typeattribute = node.getAttributes().getNamedItem(PeakMLWriter.TYPE);
-					if (typeattribute==null || !typeattribute.getNodeValue().equals(PeakMLWriter.TYPE_PEAKSET))
-						throw new XmlParserException("Failed to locate a type attribute.");
-					
-					// parse this node as a mass chromatogram
-					IPeakSet<? extends IPeak> peakset = parsePeakSet(node);
-					if (peakset != null)
-						peaks.add(peakset);
-					
-					//
-					if (_listener!=null && result.header!=null && result.header.getNrPeaks()!=0)
-						_listener.update((100.*index++)/result.header.getNrPeaks());
-				}
-				else if (xpath.equals(XPATH_HEADER))
-				{
-					result.header = parseHeader(document.getFirstChild());
-				}
-			}
-		}
-		run(in, new myListener());
-		
-		result.measurement = new IPeakSet<IPeakSet<? extends IPeak>>(peaks);
-		return result;
-	}
-	
-	
-	// implementation of the parse functions
-	private PeakMLParser()
-	{
+		return parseIPeakSet(in, listener, 1);
 	}
 	
-	private static void run(InputStream in, XmlParserListener listener) throws IOException, XmlParserException
-	{
-		XmlParser parser = new XmlParser();
-		parser.addListener(listener, XPATH_IPEAK);
-		parser.addListener(listener, XPATH_HEADER);
-		
-		parser.parse(detect(in));
-	}
-	
-	private static InputStream detect(InputStream input) throws IOException
+	/**
+	 * Parse function for loading a PeakML file containing only peakset entries on multiple
+	 * threads. See {@link PeakMLParser#parse(InputStream, ParserProgressListener, boolean, int)}
+	 * for the way the threads are used.
+	 * 
+	 * @param in				The input-stream to load the data from.
+	 * @param nrthreads			The number of threads decoding peaks, with 1 the file is parsed on the calling thread.
+	 * @return					The header and peak information stored in the file.
+	 * @throws XmlParserException
+	 * 							Thrown when an unknown IPeak object is encountered.
+	 */
+	public static ParseResult parseIPeakSet(InputStream in, ParserProgressListener listener, int nrthreads) throws IOException, XmlParserException
 	{
-		BufferedInputStream reader = new BufferedInputStream(input, 1024*1024);
-		reader.mark(1000);
-		try {
-			return new GZIPInputStream(reader);
-		} catch (Exception e) { ; }
-		reader.reset();
-		return reader;
+		return run(in, listener, peaksetreader, nrthreads);
 	}
 	
-	private static Header parseHeader(Node parent) throws XmlParserException
+	/**
+	 * Parse function for loading only the peaks in a mass and retention time window from a
+	 * PeakML file. When the file has an up to date sidecar index (see {@link PeakMLIndex}) the
+	 * peaks are found in the index and only those peaks are read and parsed with a
+	 * {@link PeakMLIndexedFile}. Otherwise the whole file is parsed and the peaks outside the
+	 * window are dropped. In both cases the window applies to the mass and retention time
+	 * of the top-level peaks, which are returned in the order of the file.
+	 *
+	 * @param filename			The name of the PeakML file.
+	 * @param minmass			The minimum mass.
+	 * @param maxmass			The maximum mass.
+	 * @param minrt				The minimum retention time.
+	 * @param maxrt				The maximum retention time.
+	 * @return					The header and the peaks in the window, the measurement is null when no peak is in the window.
+	 * @throws IOException		Thrown on an IOException.
+	 * @throws XmlParserException
+	 * 							Thrown when an unknown IPeak object is encountered.
+	 */
+	@SuppressWarnings("unchecked")
+	public static ParseResult parse(String filename, double minmass, double maxmass, double minrt, double maxrt) throws IOException, XmlParserException
 	{
-		Header header = new Header();
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
+		// the index is written after the file, so an older index belongs to a previous version
+		File datafile = new File(filename);
+		File indexfile = new File(PeakMLIndex.getFilename(filename));
+		if (indexfile.exists() && indexfile.lastModified()>=datafile.lastModified())
 		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
+			PeakMLIndexedFile file = new PeakMLIndexedFile(filename);
 			try {
-				if (element.getTagName().equals("nrpeaks"))
-					header.setNrPeaks(Integer.parseInt(element.getTextContent()));
-				else if (element.getTagName().equals("date"))
-					header.setDate(element.getTextContent());
-				else if (element.getTagName().equals("owner"))
-					header.setOwner(element.getTextContent());
-				else if (element.getTagName().equals("description"))
-					header.setDescription(element.getTextContent());
-				else if (element.getTagName().equals("sets"))
-					header.addSetInfos(parseSets(element));
-				else if (element.getTagName().equals("measurements"))
-					header.addMeasurementInfos(parseMeasurements(element));
-				else if (element.getTagName().equals("annotations"))
-				{
-					Vector<Annotation> annotations = parseAnnotations(element);
-					if (annotations != null)
-						for (Annotation annotation : annotations) header.addAnnotation(annotation);
-				}
+				return file.parse(minmass, maxmass, minrt, maxrt);
+			} finally {
+				file.close();
 			}
-			catch (Exception e) {
-				throw new XmlParserException("Invalid value in header (" + element.getTagName() + "): '" + e.getMessage() + "'.");
-			}
-		}
-		
-		return header;
-	}
-	
-	private static Vector<SetInfo> parseSets(Node parent) throws XmlParserException
-	{
-		Vector<SetInfo> setinfos = new Vector<SetInfo>();
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("set"))
-				setinfos.add(parseSet(node));
 		}
 		
-		return setinfos;
-	}
-	
-	private static SetInfo parseSet(Node parent) throws XmlParserException
-	{
-		String id = "";
-		String type = "";
-		String measurementids = null;
-		
-		NodeList nodes = parent.getChildNodes();
-		Vector<SetInfo> sets = new Vector<SetInfo>();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("id"))
-				id = element.getTextContent();
-			else if (element.getTagName().equals("set"))
-				sets.add(parseSet(element));
-			else if (element.getTagName().equals("type"))
-				type = element.getTextContent();
-			else if (element.getTagName().equals("measurementids"))
-				measurementids = element.getTextContent();
+		ParseResult result;
+		InputStream in = new FileInputStream(datafile);
+		try {
+			result = parse(in, true);
+		} finally {
+			in.close();
 		}
 		
-		// create the set
-		SetInfo set = new SetInfo(id, Integer.parseInt(type));
-		if (measurementids != null)
+		Vector<IPeak> peaks = new Vector<IPeak>();
+		for (IPeak peak : (IPeakSet<IPeak>) result.measurement)
 		{
-			int mids[] = ByteArray.toIntArray(Base64.decode(measurementids), ByteArray.ENDIAN_LITTLE, 32);
-			for (int mid : mids)
-				set.addMeasurementID(mid);
+			if (peak.getMass()>=minmass && peak.getMass()<=maxmass && peak.getRetentionTime()>=minrt && peak.getRetentionTime()<=maxrt)
+				peaks.add(peak);
 		}
-		
-		// add the children
-		for (SetInfo s : sets)
-			set.addChild(s);
-		
-		return set;
+		result.measurement = (peaks.size()!=0 ? new IPeakSet<IPeak>(peaks) : null);
+		return result;
 	}
+
 	
-	private static Vector<MeasurementInfo> parseMeasurements(Node parent) throws XmlParserException
+	// implementation of the parse functions
+	private PeakMLParser()
 	{
-		Vector<MeasurementInfo> measurements = new Vector<MeasurementInfo>();
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("measurement"))
-				measurements.add(parseMeasurement(node));
-		}
-		
-		return measurements;
 	}
 	
-	private static MeasurementInfo parseMeasurement(Node parent) throws XmlParserException
+	/**
+	 * Reads a single top-level peak, after checking that it is of the type the parse
+	 * function expects.
+	 */
+	interface PeakReader<T extends IPeak>
 	{
-		String id = "";
-		String label = "";
-		String sampleid = "";
-		Vector<FileInfo> files = null;
-		Vector<ScanInfo> scans = null;
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("id"))
-				id = element.getTextContent();
-			else if (element.getTagName().equals("label"))
-				label = element.getTextContent();
-			else if (element.getTagName().equals("sampleid"))
-				sampleid = element.getTextContent();
-			else if (element.getTagName().equals("scans"))
-				scans = parseScans(node);
-			else if (element.getTagName().equals("files"))
-				files = parseFiles(node);
-		}
-		
-		MeasurementInfo measurement = new MeasurementInfo(Integer.parseInt(id), sampleid);
-		measurement.setLabel(label);
-		measurement.addFileInfos(files);
-		if (scans != null)
-			measurement.addScanInfos(scans);
-		
-		return measurement;
+		public T read(PeakMLStreamReader reader) throws IOException, XmlParserException;
 	}
 	
-	private static Vector<ScanInfo> parseScans(Node parent) throws XmlParserException
-	{
-		Vector<ScanInfo> scans = new Vector<ScanInfo>();
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
+	static final PeakReader<IPeak> ipeakreader = new PeakReader<IPeak>() {
+		public IPeak read(PeakMLStreamReader reader) throws IOException, XmlParserException
 		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("scan"))
-				scans.add(parseScan(node));
+			if (reader.getType() == null)
+				throw new XmlParserException("Failed to locate a type attribute.");
+			return reader.readIPeak();
 		}
-		
-		return scans;
-	}
+	};
 	
-	private static ScanInfo parseScan(Node parent) throws XmlParserException
-	{
-		double retentiontime = 0;
-		Polarity polarity = Polarity.NEUTRAL;
-		Vector<Annotation> annotations = null;
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
+	private static final PeakReader<MassChromatogram<? extends Peak>> masschromatogramreader = new PeakReader<MassChromatogram<? extends Peak>>() {
+		public MassChromatogram<? extends Peak> read(PeakMLStreamReader reader) throws IOException, XmlParserException
 		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("polarity"))
-				polarity = Polarity.valueOf(element.getTextContent());
-			else if (element.getTagName().equals("retentiontime"))
-				retentiontime = Double.parseDouble(element.getTextContent());
-			else if (element.getTagName().equals("annotations"))
-				annotations = parseAnnotations(element);
+			String type = reader.getType();
+			if (type == null)
+				throw new XmlParserException("Failed to locate the type attribute.");
+			if (!type.equals(PeakMLWriter.TYPE_MASSCHROMATOGRAM))
+				throw new XmlParserException("IPeak (" + type + ") is not of type: '" + PeakMLWriter.TYPE_MASSCHROMATOGRAM + "'");
+			return reader.readMassChromatogram();
 		}
-		
-		ScanInfo scan = new ScanInfo(retentiontime, polarity);
-		if (annotations != null)
-			scan.addAnnotations(annotations);
-		return scan;
-	}
+	};
 	
-	private static Vector<FileInfo> parseFiles(Node parent) throws XmlParserException
-	{
-		Vector<FileInfo> files = new Vector<FileInfo>();
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
+	private static final PeakReader<BackgroundIon<? extends Peak>> backgroundionreader = new PeakReader<BackgroundIon<? extends Peak>>() {
+		public BackgroundIon<? extends Peak> read(PeakMLStreamReader reader) throws IOException, XmlParserException
 		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("file"))
-				files.add(parseFile(node));
+			String type = reader.getType();
+			if (type == null)
+				throw new XmlParserException("Failed to locate the type attribute.");
+			if (!type.equals(PeakMLWriter.TYPE_BACKGROUNDION))
+				throw new XmlParserException("IPeak (" + type + ") is not of type: '" + PeakMLWriter.TYPE_BACKGROUNDION + "'");
+			return reader.readBackgroundIon();
 		}
-		
-		return files;
-	}
+	};
 	
-	private static FileInfo parseFile(Node parent) throws XmlParserException
-	{
-		String label = "";
-		String name = "";
-		String location = "";
-		Vector<Annotation> annotations = null;
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
+	private static final PeakReader<IPeakSet<? extends IPeak>> peaksetreader = new PeakReader<IPeakSet<? extends IPeak>>() {
+		public IPeakSet<? extends IPeak> read(PeakMLStreamReader reader) throws IOException, XmlParserException
 		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("label"))
-				label = element.getTextContent();
-			else if (element.getTagName().equals("name"))
-				name = element.getTextContent();
-			else if (element.getTagName().equals("location"))
-				location = element.getTextContent();
-			else if (element.getTagName().equals("annotations"))
-				annotations = parseAnnotations(node);
+			String type = reader.getType();
+			if (type==null || !type.equals(PeakMLWriter.TYPE_PEAKSET))
+				throw new XmlParserException("Failed to locate a type attribute.");
+			return reader.readPeakSet();
 		}
-		
-		FileInfo file = new FileInfo(label, name, location);
-		if (annotations != null)
-			file.addAnnotations(annotations);
-		return file;
-	}
+	};
 	
-	private static IPeak parseIPeak(Node parent) throws XmlParserException
+	private static <T extends IPeak> ParseResult run(InputStream in, ParserProgressListener listener, PeakReader<T> peakreader, int nrthreads) throws IOException, XmlParserException
 	{
-		Node type = parent.getAttributes().getNamedItem(PeakMLWriter.TYPE);
-		if (type == null)
-			return null;
-		
-		else if (type.getNodeValue().equals(PeakMLWriter.TYPE_PEAKSET))
-			return parsePeakSet(parent);
-		else if (type.getNodeValue().equals(PeakMLWriter.TYPE_BACKGROUNDION))
-			return parseBackgroundIon(parent);
-		else if (type.getNodeValue().equals(PeakMLWriter.TYPE_MASSCHROMATOGRAM))
-			return parseMassChromatogram(parent);
-		else
-			return null;
+		if (nrthreads > 1)
+			return PeakMLPipelinedParser.parse(detect(in), listener, peakreader, nrthreads);
+		return run(detect(in), listener, peakreader);
 	}
 	
-	private static void parseIPeak(Node parent, IPeak peak) throws XmlParserException
-	{
-		// retrieve all the properties
-		int scan = -1;
-		double retentiontime = -1;
-		double mass = -1;
-		double intensity = -1;
-		int patternid = -1;
-		int measurementid = -1;
-//		String sha1 = null;
-		Vector<Annotation> annotations = null;
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("patternid"))
-				patternid = Integer.parseInt(element.getTextContent());
-			else if (element.getTagName().equals("measurementid"))
-				measurementid = Integer.parseInt(element.getTextContent());
-			else if (element.getTagName().equals("annotations"))
-				annotations = parseAnnotations(element);
-			else if (element.getTagName().equals("scan"))
-				scan = Integer.parseInt(element.getTextContent());
-			else if (element.getTagName().equals("retentiontime"))
-				retentiontime = Double.parseDouble(element.getTextContent());
-			else if (element.getTagName().equals("mass"))
-				mass = Double.parseDouble(element.getTextContent());
-			else if (element.getTagName().equals("intensity"))
-				intensity = Double.parseDouble(element.getTextContent());
-//			else if (element.getTagName().equals("sha1sum"))
-//				sha1 = element.getTextContent();
-		}
-		
-		// check whether obligatory values are missing
-		if (mass==-1 || intensity==-1)
-			throw new XmlParserException("Mass and/or intensity information is missing for IPeak.");
-		
-		peak.setScanID(scan);
-		peak.setRetentionTime(retentiontime);
-		peak.setMass(mass);
-		peak.setIntensity(intensity);
-		peak.setPatternID(patternid);
-		peak.setMeasurementID(measurementid);
-		
-		if (annotations != null)
-			for (Annotation annotation : annotations) peak.addAnnotation(annotation);
-		
-		// check whether 
-//		if (sha1!=null && !sha1.equals(peak.sha1()))
-//			throw new XmlParserException("SHA1-sum for individual ipeak element does not match.");
-	}
-	
-	
-	@SuppressWarnings("unchecked")
-	private static MassChromatogram<? extends Peak> parseMassChromatogram(Node parent) throws XmlParserException
-	{
-		// retrieve the separate peaks
-		PeakData<? extends Peak> peakdata = null;
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("peakdata"))
-			{
-				peakdata = parsePeakData(element);
-			}
-		}
-		
-		// create the bugger
-		MassChromatogram<? extends Peak> masschromatogram = null;
-		if (peakdata.getFactory().getPeakClass().equals(Centroid.class))
-			masschromatogram = new MassChromatogram<Centroid>((PeakData<Centroid>) peakdata);
-		parseIPeak(parent, masschromatogram);
-		return masschromatogram;
-	}
-	
-	@SuppressWarnings("unchecked")
-	private static BackgroundIon<? extends Peak> parseBackgroundIon(Node parent) throws XmlParserException
-	{
-		// retrieve the separate peaks
-		PeakData<? extends Peak> peakdata = null;
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("peakdata"))
-			{
-				peakdata = parsePeakData(element);
-			}
-		}
-		
-		// create the bugger
-		BackgroundIon<? extends Peak> backgroundion = null;
-		if (peakdata.getFactory().getPeakClass().equals(Centroid.class))
-			backgroundion = new BackgroundIon<Centroid>((PeakData<Centroid>) peakdata);
-		parseIPeak(parent, backgroundion);
-		return backgroundion;
-	}
-	
-	private static IPeakSet<? extends IPeak> parsePeakSet(Node parent) throws XmlParserException
+	/**
+	 * Parses the (already unzipped) input on the calling thread.
+	 */
+	static <T extends IPeak> ParseResult run(InputStream in, ParserProgressListener listener, PeakReader<T> peakreader) throws IOException, XmlParserException
 	{
-		// retrieve all the properties
-		Vector<IPeak> peaks = new Vector<IPeak>();
+		ParseResult result = new ParseResult();
+		Vector<T> peaks = new Vector<T>();
 		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("peaks"))
+		PeakMLStreamReader reader = new PeakMLStreamReader(in);
+		try {
+			int event;
+			int index = 0;
+			while ((event=reader.next()) != PeakMLStreamReader.END)
 			{
-				NodeList nodes2 = node.getChildNodes();
-				for (int nodeid2=0; nodeid2<nodes2.getLength(); ++nodeid2)
+				if (event == PeakMLStreamReader.PEAK)
 				{
-					Node node2 = nodes2.item(nodeid2);
-					if (node2.getNodeType() != Node.ELEMENT_NODE)
-						continue;
-					
-					IPeak peak = parseIPeak(node2);
+					T peak = peakreader.read(reader);
 					if (peak != null)
 						peaks.add(peak);
-				}				
-			}
-		}
-		
-		// create the bugger
-		IPeakSet<IPeak> peakset = new IPeakSet<IPeak>(peaks);
-		parseIPeak(parent, peakset);
-		return peakset;
-	}
-	
-	private static PeakData<? extends Peak> parsePeakData(Node parent) throws XmlParserException
-	{
-		// get the attributes
-		Node typeattribute = parent.getAttributes().getNamedItem(PeakMLWriter.TYPE);
-		if (typeattribute == null)
-			throw new XmlParserException("Failed to locate a type attribute.");
-		Node sizeattribute = parent.getAttributes().getNamedItem(PeakMLWriter.SIZE);
-		if (sizeattribute == null)
-			throw new XmlParserException("Failed to locate a size attribute.");
-		
-		int size = Integer.parseInt(sizeattribute.getNodeValue());
-		String type = typeattribute.getNodeValue();
-		
-		// create the arrays
-		int scanids[]					= null;
-		int patternids[]				= null;
-		int measurementids[]			= null;
-		double masses[]					= null;
-		double intensities[]			= null;
-		double retentiontimes[]			= null;
-		
-		// retrieve all the data
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("scanids"))
-				scanids = ByteArray.toIntArray(Base64.decode(element.getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
-			else if (element.getTagName().equals("patternids"))
-				patternids = ByteArray.toIntArray(Base64.decode(element.getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
-			else if (element.getTagName().equals("measurementids"))
-				measurementids = ByteArray.toIntArray(Base64.decode(element.getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
-			else if (element.getTagName().equals("masses"))
-				masses = ByteArray.toDoubleArray(Base64.decode(element.getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
-			else if (element.getTagName().equals("intensities"))
-				intensities = ByteArray.toDoubleArray(Base64.decode(element.getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
-			else if (element.getTagName().equals("retentiontimes"))
-				retentiontimes = ByteArray.toDoubleArray(Base64.decode(element.getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
-		}
-		
-		// create the PeakData instance
-		if (type.equals("centroid"))
-			return new PeakData<Centroid>(Centroid.factory, size, scanids, patternids, measurementids, masses, intensities, retentiontimes);
-		return null;
-	}
-	
-	private static Vector<Annotation> parseAnnotations(Node parent) throws XmlParserException
-	{
-		Vector<Annotation> annotations = new Vector<Annotation>();
-		
-		NodeList nodes = parent.getChildNodes();
-		for (int nodeid=0; nodeid<nodes.getLength(); ++nodeid)
-		{
-			Node node = nodes.item(nodeid);
-			if (node.getNodeType() != Node.ELEMENT_NODE)
-				continue;
-			
-			Element element = (Element) node;
-			if (element.getTagName().equals("annotation"))
-			{
-				String label=null, value=null, valuetype=null, unit=null;
-				NodeList annotation_nodes = element.getChildNodes();
-				for (int annotationid=0; annotationid<annotation_nodes.getLength(); ++annotationid)
-				{
-					Node annotation_node = annotation_nodes.item(annotationid);
-					if (annotation_node.getNodeType() != Node.ELEMENT_NODE)
-						continue;
 					
-					Element annotation_element = (Element) annotation_node;
-					if (annotation_element.getTagName().equals("label"))
-						label = annotation_element.getTextContent();
-					else if (annotation_element.getTagName().equals("value"))
-						value = annotation_element.getTextContent();
-					else if (annotation_element.getTagName().equals("valuetype"))
-						valuetype = annotation_element.getTextContent();
+					//
+					if (listener!=null && result.header!=null && result.header.getNrPeaks()!=0)
+						listener.update((100.*index++)/result.header.getNrPeaks());
 				}
-				
-				if (label==null || value==null || valuetype==null)
-					throw new XmlParserException("Annotation is missing either: label, value or valuetype");
-				
-				Annotation annotation = new Annotation(label, value, Annotation.ValueType.valueOf(valuetype));
-				annotation.setUnit(unit);
-				if (annotation.getValueType() == Annotation.ValueType.ONTOLOGY)
-					annotation.setOntologyRef(element.getAttribute("ontologyref"));
-				if (element.getAttribute("unit") != null)
-					annotation.setUnit(element.getAttribute("unit"));
-				annotations.add(annotation);
+				else if (event == PeakMLStreamReader.HEADER)
+					result.header = reader.readHeader();
 			}
+		} finally {
+			reader.close();
 		}
 		
-		return annotations;
+		result.measurement = new IPeakSet<T>(peaks);
+		return result;
 	}
 	
-	
-	// fixed names
-	private static final String XPATH_IPEAK		= "/peakml/peaks/peak";
-	private static final String XPATH_HEADER	= "/peakml/header";
-	
+	private static InputStream detect(InputStream input) throws IOException
+	{
+		BufferedInputStream reader = new BufferedInputStream(input, 1024*1024);
+		reader.mark(1000);
+		try {
+			return new GZIPInputStream(reader);
+		} catch (Exception e) { ; }
+		reader.reset();
+		return reader;
+	}
 	
 	// automatic version check
 	static {
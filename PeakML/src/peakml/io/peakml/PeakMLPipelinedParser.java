@@ -0,0 +1,435 @@
+/* Copyright (C) 2008, Groningen Bioinformatics Centre (http://gbic.biol.rug.nl/)
+ * This file is part of PeakML.
+ *
+ * PeakML is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * PeakML is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with PeakML; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+
+package peakml.io.peakml;
+
+
+// java
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// libraries
+import domsax.*;
+
+// peakml
+import peakml.*;
+import peakml.io.*;
+
+
+
+
+
+/**
+ * Parses a PeakML file in a pipeline of threads. One thread reads (and for gzipped
+ * files inflates) the input in blocks. The calling thread scans the blocks for the
+ * boundaries of the top-level peak elements and cuts the data into batches of
+ * complete peaks, which are decoded by a pool of threads with a {@link PeakMLStreamReader}
+ * each. The calling thread collects the decoded batches in the order of the file and
+ * reports the progress.
+ * <p />
+ * The boundaries are found on the raw bytes by matching the peak start- and end-tags,
+ * which relies on the layout written by {@link PeakMLWriter}: an ascii-compatible
+ * encoding and no comments or CDATA sections around the peaks. Files in UTF-16 are
+ * parsed on the calling thread.
+ */
+class PeakMLPipelinedParser<T extends IPeak>
+{
+	// static access
+	/**
+	 * Parses the (already unzipped) input with the given number of decoding threads.
+	 *
+	 * @param in				The input-stream to load the data from.
+	 * @param listener			The progress listener, called from the calling thread.
+	 * @param peakreader		Reads each top-level peak.
+	 * @param nrthreads			The number of threads decoding the peaks.
+	 * @return					The header and peak information stored in the file.
+	 */
+	public static <T extends IPeak> ParseResult parse(InputStream in, ParserProgressListener listener, PeakMLParser.PeakReader<T> peakreader, int nrthreads) throws IOException, XmlParserException
+	{
+		// the tags can't be matched byte by byte in utf-16
+		BufferedInputStream input = new BufferedInputStream(in, BLOCKSIZE);
+		input.mark(2);
+		int b0 = input.read();
+		int b1 = input.read();
+		input.reset();
+		if (b0==0 || b1==0 || (b0==0xFE && b1==0xFF) || (b0==0xFF && b1==0xFE))
+			return PeakMLParser.run(input, listener, peakreader);
+
+		ExecutorService pool = Executors.newFixedThreadPool(nrthreads + 1);
+		try {
+			return new PeakMLPipelinedParser<T>(listener, peakreader, nrthreads, pool).run(input);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while parsing");
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+	// implementation
+	private PeakMLPipelinedParser(ParserProgressListener listener, PeakMLParser.PeakReader<T> peakreader, int nrthreads, ExecutorService pool)
+	{
+		this.listener = listener;
+		this.peakreader = peakreader;
+		this.maxpending = 2*nrthreads;
+		this.pool = pool;
+	}
+
+	private ParseResult run(InputStream input) throws IOException, XmlParserException, InterruptedException
+	{
+		// reading and inflating runs on its own thread
+		BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(NRBLOCKS);
+		Future<Void> reader = pool.submit(new BlockReader(input, blocks));
+
+		boolean eof = false;
+		while (true)
+		{
+			int found = scan(eof);
+			if (found == PEAKS_START)
+			{
+				parseHeader(position, false);
+				discard(position);
+				prologue = false;
+				continue;
+			}
+			else if (found == PEAKS_END)
+			{
+				if (prologue)
+					parseHeader(position, false);
+				else if (batchend > 0)
+					submit();
+				break;
+			}
+
+			// the batch is big enough to hand to the pool
+			if (batchend >= BATCHSIZE)
+			{
+				submit();
+				collect(false);
+			}
+
+			if (eof)
+			{
+				// without any peaks the whole document is parsed as is
+				if (prologue)
+				{
+					parseHeader(length, true);
+					break;
+				}
+				throw new XmlParserException("Unexpected end of file, the peaks are not closed.");
+			}
+
+			// append the next block
+			byte block[] = blocks.take();
+			if (block.length == 0)
+			{
+				eof = true;
+				get(reader);
+				continue;
+			}
+			if (length+block.length > data.length)
+				data = Arrays.copyOf(data, Math.max(2*data.length, length+block.length));
+			System.arraycopy(block, 0, data, length, block.length);
+			length += block.length;
+		}
+		collect(true);
+
+		result.measurement = new IPeakSet<T>(peaks);
+		return result;
+	}
+
+	/**
+	 * Scans the data from the current position for the tags of peak elements, until the
+	 * data runs out, the first top-level peak is found in the prologue or the end of
+	 * the peaks is found. Every time a top-level peak is closed, batchend is moved past it.
+	 *
+	 * @param eof				True when no more data will be appended.
+	 * @return					One of MORE, PEAKS_START or PEAKS_END, for the latter two the position is at the tag.
+	 */
+	private int scan(boolean eof)
+	{
+		while (position < length)
+		{
+			if (data[position] != '<')
+			{
+				position++;
+				continue;
+			}
+
+			// make sure the tag can be recognised
+			if (!eof && length-position<CLOSEPEAKS.length)
+				return MORE;
+
+			if (depth==0 && matches(position, CLOSEPEAKS))
+				return PEAKS_END;
+			else if (matches(position, OPENPEAK) && isNameEnd(position+OPENPEAK.length))
+			{
+				if (depth==0 && prologue)
+					return PEAKS_START;
+
+				int end = indexOf('>', position+OPENPEAK.length);
+				if (end == -1)
+					return MORE;
+				if (data[end-1] != '/')
+					depth++;
+				else if (depth == 0)
+					batchend = end + 1;
+				position = end + 1;
+			}
+			else if (matches(position, CLOSEPEAK) && isNameEnd(position+CLOSEPEAK.length))
+			{
+				int end = indexOf('>', position+CLOSEPEAK.length);
+				if (end == -1)
+					return MORE;
+				if (--depth == 0)
+					batchend = end + 1;
+				position = end + 1;
+			}
+			else
+				position++;
+		}
+		return MORE;
+	}
+
+	private boolean matches(int pos, byte tag[])
+	{
+		if (pos+tag.length > length)
+			return false;
+		for (int i=0; i<tag.length; ++i)
+			if (data[pos+i] != tag[i]) return false;
+		return true;
+	}
+
+	private boolean isNameEnd(int pos)
+	{
+		if (pos >= length)
+			return false;
+		byte b = data[pos];
+		return b=='>' || b=='/' || b==' ' || b=='\t' || b=='\n' || b=='\r';
+	}
+
+	private int indexOf(char c, int from)
+	{
+		for (int i=from; i<length; ++i)
+			if (data[i] == c) return i;
+		return -1;
+	}
+
+	/**
+	 * Removes the first bytes of the data, which have been handled.
+	 */
+	private void discard(int nrbytes)
+	{
+		System.arraycopy(data, nrbytes, data, 0, length-nrbytes);
+		length -= nrbytes;
+		position -= nrbytes;
+		batchend = Math.max(0, batchend-nrbytes);
+	}
+
+	/**
+	 * Parses the header from the first bytes of the data, which hold everything before the
+	 * first peak. The elements still open at that point are closed, unless complete is set.
+	 */
+	private void parseHeader(int nrbytes, boolean complete) throws IOException, XmlParserException
+	{
+		InputStream prologue = new ByteArrayInputStream(data, 0, nrbytes);
+		if (!complete)
+			prologue = new SequenceInputStream(prologue, new ByteArrayInputStream(CLOSEDOCUMENT));
+
+		PeakMLStreamReader reader = new PeakMLStreamReader(prologue);
+		try {
+			encoding = reader.getEncoding();
+			int event;
+			while ((event=reader.next()) != PeakMLStreamReader.END)
+			{
+				if (event == PeakMLStreamReader.HEADER)
+					result.header = reader.readHeader();
+				else if (event == PeakMLStreamReader.PEAK)
+				{
+					T peak = peakreader.read(reader);
+					if (peak != null)
+						peaks.add(peak);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Hands the complete peaks at the start of the data to the pool.
+	 */
+	private void submit()
+	{
+		byte batch[] = new byte[OPENDOCUMENT.length + batchend + CLOSEDOCUMENT.length];
+		System.arraycopy(OPENDOCUMENT, 0, batch, 0, OPENDOCUMENT.length);
+		System.arraycopy(data, 0, batch, OPENDOCUMENT.length, batchend);
+		System.arraycopy(CLOSEDOCUMENT, 0, batch, OPENDOCUMENT.length+batchend, CLOSEDOCUMENT.length);
+		pending.add(pool.submit(new BatchDecoder(batch)));
+		discard(batchend);
+	}
+
+	/**
+	 * Adds the decoded batches to the result, in order. Without wait only the batches that
+	 * are done are added, or the oldest ones when too many batches are pending.
+	 */
+	private void collect(boolean wait) throws IOException, XmlParserException, InterruptedException
+	{
+		while (!pending.isEmpty() && (wait || pending.size()>maxpending || pending.peek().isDone()))
+		{
+			for (T peak : get(pending.poll()))
+			{
+				if (peak != null)
+					peaks.add(peak);
+
+				//
+				if (listener!=null && result.header!=null && result.header.getNrPeaks()!=0)
+					listener.update((100.*index++)/result.header.getNrPeaks());
+			}
+		}
+	}
+
+	private static <V> V get(Future<V> future) throws IOException, XmlParserException, InterruptedException
+	{
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof XmlParserException)
+				throw (XmlParserException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new XmlParserException(cause);
+		}
+	}
+
+	/** Reads the input in blocks, an empty block marks the end of the input */
+	private static class BlockReader implements Callable<Void>
+	{
+		public BlockReader(InputStream input, BlockingQueue<byte[]> blocks)
+		{
+			this.input = input;
+			this.blocks = blocks;
+		}
+
+		public Void call() throws IOException, InterruptedException
+		{
+			try {
+				while (true)
+				{
+					byte block[] = new byte[BLOCKSIZE];
+					int nrbytes = 0;
+					int read;
+					while (nrbytes<BLOCKSIZE && (read=input.read(block, nrbytes, BLOCKSIZE-nrbytes))!=-1)
+						nrbytes += read;
+					if (nrbytes == 0)
+						break;
+					blocks.put(nrbytes==BLOCKSIZE ? block : Arrays.copyOf(block, nrbytes));
+				}
+			} finally {
+				blocks.put(new byte[0]);
+			}
+			return null;
+		}
+
+		private final InputStream input;
+		private final BlockingQueue<byte[]> blocks;
+	}
+
+	/** Decodes the peaks in one batch */
+	private class BatchDecoder implements Callable<Vector<T>>
+	{
+		public BatchDecoder(byte batch[])
+		{
+			this.batch = batch;
+		}
+
+		public Vector<T> call() throws IOException, XmlParserException
+		{
+			Vector<T> decoded = new Vector<T>();
+			PeakMLStreamReader reader = new PeakMLStreamReader(new ByteArrayInputStream(batch), encoding);
+			try {
+				int event;
+				while ((event=reader.next()) != PeakMLStreamReader.END)
+				{
+					if (event == PeakMLStreamReader.PEAK)
+						decoded.add(peakreader.read(reader));
+					else
+						reader.skip();
+				}
+			} finally {
+				reader.close();
+			}
+			return decoded;
+		}
+
+		private final byte batch[];
+	}
+
+
+	// data
+	private final ParserProgressListener listener;
+	private final PeakMLParser.PeakReader<T> peakreader;
+	private final int maxpending;
+	private final ExecutorService pool;
+
+	private final ParseResult result = new ParseResult();
+	private final Vector<T> peaks = new Vector<T>();
+	private final Queue<Future<Vector<T>>> pending = new ArrayDeque<Future<Vector<T>>>();
+	private int index = 0;
+	private volatile String encoding = null;
+
+	/** The data which has not been handed to the pool yet, starting at the first peak of the next batch */
+	private byte data[] = new byte[2*BATCHSIZE];
+	private int length = 0;
+	private int position = 0;
+	private int depth = 0;
+	/** The end of the last complete top-level peak in data */
+	private int batchend = 0;
+	private boolean prologue = true;
+
+	private static final int MORE			= 0;
+	private static final int PEAKS_START	= 1;
+	private static final int PEAKS_END		= 2;
+
+	private static final int BLOCKSIZE		= 64*1024;
+	private static final int NRBLOCKS		= 16;
+	private static final int BATCHSIZE		= 256*1024;
+
+	private static final byte OPENPEAK[]		= ascii("<peak");
+	private static final byte CLOSEPEAK[]		= ascii("</peak");
+	private static final byte CLOSEPEAKS[]		= ascii("</peaks>");
+	/** Wrapped around a batch of peaks to make it a document, also used by {@link PeakMLIndexedFile} */
+	static final byte OPENDOCUMENT[]			= ascii("<peakml><peaks>");
+	static final byte CLOSEDOCUMENT[]			= ascii("</peaks></peakml>");
+
+	private static byte[] ascii(String str)
+	{
+		try {
+			return str.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,805 @@
+/* Copyright (C) 2008, Groningen Bioinformatics Centre (http://gbic.biol.rug.nl/)
+ * This file is part of PeakML.
+ *
+ * PeakML is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * PeakML is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with PeakML; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+
+package peakml.io.peakml;
+
+
+// java
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+// libraries
+import domsax.*;
+
+// peakml
+import peakml.*;
+import peakml.io.*;
+import peakml.util.*;
+import peakml.util.Base64;
+import peakml.chemistry.*;
+
+
+
+
+
+/**
+ * Pull-parser for the PeakML format, used by {@link PeakMLParser}. The parser walks
+ * the file with a StAX stream-reader and builds the header and peaks straight from
+ * the events, without building a DOM-tree per peak. The Base64 encoded arrays of the
+ * {@link PeakData} are decoded from the character-buffer of the reader into a scratch
+ * buffer, which is reused for every array in the file, so the only allocation per
+ * array is the array handed to the {@link PeakData}.
+ * <p />
+ * Usage is a loop over {@link PeakMLStreamReader#next()}, which stops at the header and
+ * at each of the top-level peaks. At these positions the element has to be consumed
+ * with one of the read functions or skipped with {@link PeakMLStreamReader#skip()}.
+ */
+class PeakMLStreamReader
+{
+	// event types
+	/** Returned by next at the end of the file */
+	public static final int END				= 0;
+	/** Returned by next at the start of the header */
+	public static final int HEADER			= 1;
+	/** Returned by next at the start of a top-level peak */
+	public static final int PEAK			= 2;
+
+
+	// constructor(s)
+	public PeakMLStreamReader(InputStream in) throws IOException, XmlParserException
+	{
+		this(in, null);
+	}
+
+	/**
+	 * Creates a reader for data in the given encoding, which is used for data without
+	 * an xml-declaration (e.g. the batches of peaks split off by {@link PeakMLPipelinedParser}).
+	 */
+	public PeakMLStreamReader(InputStream in, String encoding) throws IOException, XmlParserException
+	{
+		try {
+			synchronized (factory) {
+				xml = (encoding!=null ? factory.createXMLStreamReader(in, encoding) : factory.createXMLStreamReader(in));
+			}
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+
+	// access
+	/**
+	 * Moves the reader to the next header or top-level peak element, skipping everything
+	 * else. The element found has to be consumed before next is called again.
+	 *
+	 * @return					One of {@link PeakMLStreamReader#HEADER}, {@link PeakMLStreamReader#PEAK} or {@link PeakMLStreamReader#END}.
+	 */
+	public int next() throws IOException, XmlParserException
+	{
+		try {
+			while (xml.hasNext())
+			{
+				int event = xml.next();
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = xml.getLocalName();
+					if (depth==0 && name.equals("peakml"))
+						depth = 1;
+					else if (depth==1 && name.equals("header"))
+						return HEADER;
+					else if (depth==1 && name.equals("peaks"))
+						depth = 2;
+					else if (depth==2 && name.equals("peak"))
+						return PEAK;
+					else
+						skipElement();
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+					depth--;
+			}
+			return END;
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+	/**
+	 * Returns the encoding of the input, as declared or detected by the stream-reader.
+	 */
+	public String getEncoding()
+	{
+		return xml.getEncoding();
+	}
+
+	/**
+	 * Returns the type attribute of the current peak element, or null when it is missing.
+	 */
+	public String getType()
+	{
+		return xml.getAttributeValue(null, PeakMLWriter.TYPE);
+	}
+
+	/**
+	 * Skips the current element, including all its children.
+	 */
+	public void skip() throws IOException, XmlParserException
+	{
+		try {
+			skipElement();
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+	public void close() throws XmlParserException
+	{
+		try {
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new XmlParserException(e);
+		}
+	}
+
+	/**
+	 * Reads the header the reader is positioned at.
+	 */
+	public Header readHeader() throws IOException, XmlParserException
+	{
+		try {
+			Header header = new Header();
+			while (nextChild())
+			{
+				String name = xml.getLocalName();
+				try {
+					if (name.equals("nrpeaks"))
+						header.setNrPeaks(Integer.parseInt(readString()));
+					else if (name.equals("date"))
+						header.setDate(readString());
+					else if (name.equals("owner"))
+						header.setOwner(readString());
+					else if (name.equals("description"))
+						header.setDescription(readString());
+					else if (name.equals("sets"))
+						header.addSetInfos(readSets());
+					else if (name.equals("measurements"))
+						header.addMeasurementInfos(readMeasurements());
+					else if (name.equals("annotations"))
+					{
+						for (Annotation annotation : readAnnotations())
+							header.addAnnotation(annotation);
+					}
+					else
+						skipElement();
+				}
+				catch (XMLStreamException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					throw new XmlParserException("Invalid value in header (" + name + "): '" + e.getMessage() + "'.");
+				}
+			}
+			return header;
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+	/**
+	 * Reads the peak the reader is positioned at. Peaks of an unknown type, or without
+	 * a type, are skipped and null is returned.
+	 */
+	public IPeak readIPeak() throws IOException, XmlParserException
+	{
+		try {
+			return readPeakElement();
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+	/**
+	 * Reads the mass chromatogram the reader is positioned at.
+	 */
+	public MassChromatogram<? extends Peak> readMassChromatogram() throws IOException, XmlParserException
+	{
+		try {
+			return readMassChromatogramElement();
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+	/**
+	 * Reads the background ion the reader is positioned at.
+	 */
+	public BackgroundIon<? extends Peak> readBackgroundIon() throws IOException, XmlParserException
+	{
+		try {
+			return readBackgroundIonElement();
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+	/**
+	 * Reads the peakset the reader is positioned at.
+	 */
+	public IPeakSet<? extends IPeak> readPeakSet() throws IOException, XmlParserException
+	{
+		try {
+			return readPeakSetElement();
+		} catch (XMLStreamException e) {
+			throw wrap(e);
+		}
+	}
+
+
+	// header
+	private Vector<SetInfo> readSets() throws XMLStreamException, XmlParserException
+	{
+		Vector<SetInfo> setinfos = new Vector<SetInfo>();
+		while (nextChild())
+		{
+			if (xml.getLocalName().equals("set"))
+				setinfos.add(readSet());
+			else
+				skipElement();
+		}
+		return setinfos;
+	}
+
+	private SetInfo readSet() throws XMLStreamException, XmlParserException
+	{
+		String id = "";
+		String type = "";
+		int measurementids[] = null;
+
+		Vector<SetInfo> sets = new Vector<SetInfo>();
+		while (nextChild())
+		{
+			String name = xml.getLocalName();
+			if (name.equals("id"))
+				id = readString();
+			else if (name.equals("set"))
+				sets.add(readSet());
+			else if (name.equals("type"))
+				type = readString();
+			else if (name.equals("measurementids"))
+				measurementids = readInts();
+			else
+				skipElement();
+		}
+
+		// create the set
+		SetInfo set = new SetInfo(id, Integer.parseInt(type));
+		if (measurementids != null)
+		{
+			for (int mid : measurementids)
+				set.addMeasurementID(mid);
+		}
+
+		// add the children
+		for (SetInfo s : sets)
+			set.addChild(s);
+
+		return set;
+	}
+
+	private Vector<MeasurementInfo> readMeasurements() throws XMLStreamException, XmlParserException
+	{
+		Vector<MeasurementInfo> measurements = new Vector<MeasurementInfo>();
+		while (nextChild())
+		{
+			if (xml.getLocalName().equals("measurement"))
+				measurements.add(readMeasurement());
+			else
+				skipElement();
+		}
+		return measurements;
+	}
+
+	private MeasurementInfo readMeasurement() throws XMLStreamException, XmlParserException
+	{
+		String id = "";
+		String label = "";
+		String sampleid = "";
+		Vector<FileInfo> files = null;
+		Vector<ScanInfo> scans = null;
+
+		while (nextChild())
+		{
+			String name = xml.getLocalName();
+			if (name.equals("id"))
+				id = readString();
+			else if (name.equals("label"))
+				label = readString();
+			else if (name.equals("sampleid"))
+				sampleid = readString();
+			else if (name.equals("scans"))
+				scans = readScans();
+			else if (name.equals("files"))
+				files = readFiles();
+			else
+				skipElement();
+		}
+
+		MeasurementInfo measurement = new MeasurementInfo(Integer.parseInt(id), sampleid);
+		measurement.setLabel(label);
+		measurement.addFileInfos(files);
+		if (scans != null)
+			measurement.addScanInfos(scans);
+
+		return measurement;
+	}
+
+	private Vector<ScanInfo> readScans() throws XMLStreamException, XmlParserException
+	{
+		Vector<ScanInfo> scans = new Vector<ScanInfo>();
+		while (nextChild())
+		{
+			if (xml.getLocalName().equals("scan"))
+				scans.add(readScan());
+			else
+				skipElement();
+		}
+		return scans;
+	}
+
+	private ScanInfo readScan() throws XMLStreamException, XmlParserException
+	{
+		double retentiontime = 0;
+		Polarity polarity = Polarity.NEUTRAL;
+		Vector<Annotation> annotations = null;
+
+		while (nextChild())
+		{
+			String name = xml.getLocalName();
+			if (name.equals("polarity"))
+				polarity = Polarity.valueOf(readString());
+			else if (name.equals("retentiontime"))
+				retentiontime = Double.parseDouble(readString());
+			else if (name.equals("annotations"))
+				annotations = readAnnotations();
+			else
+				skipElement();
+		}
+
+		ScanInfo scan = new ScanInfo(retentiontime, polarity);
+		if (annotations != null)
+			scan.addAnnotations(annotations);
+		return scan;
+	}
+
+	private Vector<FileInfo> readFiles() throws XMLStreamException, XmlParserException
+	{
+		Vector<FileInfo> files = new Vector<FileInfo>();
+		while (nextChild())
+		{
+			if (xml.getLocalName().equals("file"))
+				files.add(readFile());
+			else
+				skipElement();
+		}
+		return files;
+	}
+
+	private FileInfo readFile() throws XMLStreamException, XmlParserException
+	{
+		String label = "";
+		String name = "";
+		String location = "";
+		Vector<Annotation> annotations = null;
+
+		while (nextChild())
+		{
+			String tag = xml.getLocalName();
+			if (tag.equals("label"))
+				label = readString();
+			else if (tag.equals("name"))
+				name = readString();
+			else if (tag.equals("location"))
+				location = readString();
+			else if (tag.equals("annotations"))
+				annotations = readAnnotations();
+			else
+				skipElement();
+		}
+
+		FileInfo file = new FileInfo(label, name, location);
+		if (annotations != null)
+			file.addAnnotations(annotations);
+		return file;
+	}
+
+
+	// peaks
+	private IPeak readPeakElement() throws XMLStreamException, XmlParserException
+	{
+		String type = getType();
+		if (type == null)
+		{
+			skipElement();
+			return null;
+		}
+		else if (type.equals(PeakMLWriter.TYPE_PEAKSET))
+			return readPeakSetElement();
+		else if (type.equals(PeakMLWriter.TYPE_BACKGROUNDION))
+			return readBackgroundIonElement();
+		else if (type.equals(PeakMLWriter.TYPE_MASSCHROMATOGRAM))
+			return readMassChromatogramElement();
+
+		skipElement();
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private MassChromatogram<? extends Peak> readMassChromatogramElement() throws XMLStreamException, XmlParserException
+	{
+		PeakProperties properties = new PeakProperties();
+		PeakData<? extends Peak> peakdata = null;
+		while (nextChild())
+		{
+			if (xml.getLocalName().equals("peakdata"))
+				peakdata = readPeakData();
+			else
+				readProperty(properties);
+		}
+		if (peakdata == null)
+			throw new XmlParserException("Failed to locate the peakdata of a mass chromatogram.");
+
+		// create the bugger
+		MassChromatogram<? extends Peak> masschromatogram = null;
+		if (peakdata.getFactory().getPeakClass().equals(Centroid.class))
+			masschromatogram = new MassChromatogram<Centroid>((PeakData<Centroid>) peakdata);
+		properties.apply(masschromatogram);
+		return masschromatogram;
+	}
+
+	@SuppressWarnings("unchecked")
+	private BackgroundIon<? extends Peak> readBackgroundIonElement() throws XMLStreamException, XmlParserException
+	{
+		PeakProperties properties = new PeakProperties();
+		PeakData<? extends Peak> peakdata = null;
+		while (nextChild())
+		{
+			if (xml.getLocalName().equals("peakdata"))
+				peakdata = readPeakData();
+			else
+				readProperty(properties);
+		}
+		if (peakdata == null)
+			throw new XmlParserException("Failed to locate the peakdata of a background ion.");
+
+		// create the bugger
+		BackgroundIon<? extends Peak> backgroundion = null;
+		if (peakdata.getFactory().getPeakClass().equals(Centroid.class))
+			backgroundion = new BackgroundIon<Centroid>((PeakData<Centroid>) peakdata);
+		properties.apply(backgroundion);
+		return backgroundion;
+	}
+
+	private IPeakSet<? extends IPeak> readPeakSetElement() throws XMLStreamException, XmlParserException
+	{
+		PeakProperties properties = new PeakProperties();
+		Vector<IPeak> peaks = new Vector<IPeak>();
+		while (nextChild())
+		{
+			if (xml.getLocalName().equals("peaks"))
+			{
+				while (nextChild())
+				{
+					IPeak peak = readPeakElement();
+					if (peak != null)
+						peaks.add(peak);
+				}
+			}
+			else
+				readProperty(properties);
+		}
+
+		// create the bugger
+		IPeakSet<IPeak> peakset = new IPeakSet<IPeak>(peaks);
+		properties.apply(peakset);
+		return peakset;
+	}
+
+	/**
+	 * Reads one of the elements defined by {@link IPeak} into the properties, unknown
+	 * elements (e.g. the sha1sum) are skipped.
+	 */
+	private void readProperty(PeakProperties properties) throws XMLStreamException, XmlParserException
+	{
+		String name = xml.getLocalName();
+		if (name.equals("patternid"))
+			properties.patternid = Integer.parseInt(readString());
+		else if (name.equals("measurementid"))
+			properties.measurementid = Integer.parseInt(readString());
+		else if (name.equals("annotations"))
+			properties.annotations = readAnnotations();
+		else if (name.equals("scan"))
+			properties.scan = Integer.parseInt(readString());
+		else if (name.equals("retentiontime"))
+			properties.retentiontime = Double.parseDouble(readString());
+		else if (name.equals("mass"))
+			properties.mass = Double.parseDouble(readString());
+		else if (name.equals("intensity"))
+			properties.intensity = Double.parseDouble(readString());
+		else
+			skipElement();
+	}
+
+	private PeakData<? extends Peak> readPeakData() throws XMLStreamException, XmlParserException
+	{
+		// get the attributes
+		String type = xml.getAttributeValue(null, PeakMLWriter.TYPE);
+		if (type == null)
+			throw new XmlParserException("Failed to locate a type attribute.");
+		String sizeattribute = xml.getAttributeValue(null, PeakMLWriter.SIZE);
+		if (sizeattribute == null)
+			throw new XmlParserException("Failed to locate a size attribute.");
+		int size = Integer.parseInt(sizeattribute);
+
+		// create the arrays
+		int scanids[]					= null;
+		int patternids[]				= null;
+		int measurementids[]			= null;
+		double masses[]					= null;
+		double intensities[]			= null;
+		double retentiontimes[]			= null;
+
+		// retrieve all the data
+		while (nextChild())
+		{
+			String name = xml.getLocalName();
+			if (name.equals("scanids"))
+				scanids = readInts();
+			else if (name.equals("patternids"))
+				patternids = readInts();
+			else if (name.equals("measurementids"))
+				measurementids = readInts();
+			else if (name.equals("masses"))
+				masses = readFloats();
+			else if (name.equals("intensities"))
+				intensities = readFloats();
+			else if (name.equals("retentiontimes"))
+				retentiontimes = readFloats();
+			else
+				skipElement();
+		}
+
+		// create the PeakData instance
+		if (type.equals("centroid"))
+			return new PeakData<Centroid>(Centroid.factory, size, scanids, patternids, measurementids, masses, intensities, retentiontimes);
+		return null;
+	}
+
+	private Vector<Annotation> readAnnotations() throws XMLStreamException, XmlParserException
+	{
+		Vector<Annotation> annotations = new Vector<Annotation>();
+		while (nextChild())
+		{
+			if (!xml.getLocalName().equals("annotation"))
+			{
+				skipElement();
+				continue;
+			}
+
+			// a missing attribute is an empty string, as it was with the dom-tree
+			String unit = xml.getAttributeValue(null, "unit");
+			String ontologyref = xml.getAttributeValue(null, "ontologyref");
+
+			String label=null, value=null, valuetype=null;
+			while (nextChild())
+			{
+				String name = xml.getLocalName();
+				if (name.equals("label"))
+					label = readString();
+				else if (name.equals("value"))
+					value = readString();
+				else if (name.equals("valuetype"))
+					valuetype = readString();
+				else
+					skipElement();
+			}
+
+			if (label==null || value==null || valuetype==null)
+				throw new XmlParserException("Annotation is missing either: label, value or valuetype");
+
+			Annotation annotation = new Annotation(label, value, Annotation.ValueType.valueOf(valuetype));
+			if (annotation.getValueType() == Annotation.ValueType.ONTOLOGY)
+				annotation.setOntologyRef(ontologyref!=null ? ontologyref : "");
+			annotation.setUnit(unit!=null ? unit : "");
+			annotations.add(annotation);
+		}
+		return annotations;
+	}
+
+
+	// xml helpers
+	/**
+	 * Moves to the next child element of the current element.
+	 *
+	 * @return					True when positioned at the start of a child, false at the end of the current element.
+	 */
+	private boolean nextChild() throws XMLStreamException
+	{
+		while (true)
+		{
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				return true;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				return false;
+		}
+	}
+
+	/**
+	 * Skips the rest of the current element, from its start-tag up to and including its end-tag.
+	 */
+	private void skipElement() throws XMLStreamException
+	{
+		int level = 1;
+		while (level > 0)
+		{
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				level++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				level--;
+		}
+	}
+
+	/**
+	 * Collects the text of the current element (and its children) into the text-buffer,
+	 * leaving the reader at the end-tag.
+	 */
+	private void readText() throws XMLStreamException
+	{
+		textlength = 0;
+		int level = 1;
+		while (level > 0)
+		{
+			int event = xml.next();
+			if (event==XMLStreamConstants.CHARACTERS || event==XMLStreamConstants.CDATA || event==XMLStreamConstants.SPACE)
+			{
+				int length = xml.getTextLength();
+				if (textlength+length > text.length)
+					text = Arrays.copyOf(text, Math.max(2*text.length, textlength+length));
+				System.arraycopy(xml.getTextCharacters(), xml.getTextStart(), text, textlength, length);
+				textlength += length;
+			}
+			else if (event == XMLStreamConstants.START_ELEMENT)
+				level++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				level--;
+		}
+	}
+
+	private String readString() throws XMLStreamException
+	{
+		// the xml-escaping of the writer has already been undone by the stream-reader
+		readText();
+		return new String(text, 0, textlength);
+	}
+
+	/**
+	 * Reads the Base64 encoded 32-bit integers in the current element, with the byte-order
+	 * of {@link ByteArray#toIntArray(byte[], int, int)} for {@link ByteArray#ENDIAN_LITTLE}
+	 * (which is most significant byte first).
+	 */
+	private int[] readInts() throws XMLStreamException, XmlParserException
+	{
+		ByteBuffer data = readBase64();
+		int values[] = new int[data.remaining() / 4];
+		Base64Codec.getInts(data, ByteOrder.BIG_ENDIAN, IntBuffer.wrap(values));
+		return values;
+	}
+
+	/**
+	 * Reads the Base64 encoded 32-bit little-endian floats in the current element, as
+	 * {@link ByteArray#toDoubleArray(byte[], int, int)} does.
+	 */
+	private double[] readFloats() throws XMLStreamException, XmlParserException
+	{
+		ByteBuffer data = readBase64();
+		double values[] = new double[data.remaining() / 4];
+		Base64Codec.getDoubles(data, ByteOrder.LITTLE_ENDIAN, 32, DoubleBuffer.wrap(values));
+		return values;
+	}
+
+	/**
+	 * Decodes the Base64 data in the current element with the codec.
+	 */
+	private ByteBuffer readBase64() throws XMLStreamException, XmlParserException
+	{
+		readText();
+
+		ByteBuffer data;
+		try {
+			data = codec.decode(text, 0, textlength);
+		} catch (IllegalArgumentException e) {
+			throw new XmlParserException(e.getMessage());
+		}
+
+		// Base64.decode transparently unzips gzip-compressed data, which the writer never produces
+		if (data.remaining()>=4 && (data.get(0)&0xFF)==0x1f && (data.get(1)&0xFF)==0x8b)
+			data = ByteBuffer.wrap(Base64.decode(new String(text, 0, textlength)));
+
+		return data;
+	}
+
+	/**
+	 * Rethrows I/O errors of the underlying stream as such (like the sax-parser did), all
+	 * other errors are returned as an {@link XmlParserException}.
+	 */
+	private static XmlParserException wrap(XMLStreamException e) throws IOException
+	{
+		Throwable cause = (e.getNestedException()!=null ? e.getNestedException() : e.getCause());
+		if (cause instanceof IOException)
+			throw (IOException) cause;
+		return new XmlParserException(e);
+	}
+
+
+	// the properties defined by IPeak, which are applied after the peak has been created
+	private static class PeakProperties
+	{
+		int scan = -1;
+		double retentiontime = -1;
+		double mass = -1;
+		double intensity = -1;
+		int patternid = -1;
+		int measurementid = -1;
+		Vector<Annotation> annotations = null;
+
+		void apply(IPeak peak) throws XmlParserException
+		{
+			// check whether obligatory values are missing
+			if (mass==-1 || intensity==-1)
+				throw new XmlParserException("Mass and/or intensity information is missing for IPeak.");
+
+			peak.setScanID(scan);
+			peak.setRetentionTime(retentiontime);
+			peak.setMass(mass);
+			peak.setIntensity(intensity);
+			peak.setPatternID(patternid);
+			peak.setMeasurementID(measurementid);
+
+			if (annotations != null)
+				for (Annotation annotation : annotations) peak.addAnnotation(annotation);
+		}
+	}
+
+
+	// data
+	private XMLStreamReader xml;
+	private int depth = 0;
+
+	/** Text of the current element, reused for all elements */
+	private char text[] = new char[1024];
+	private int textlength = 0;
+	/** Decodes the Base64 data, reused for all arrays */
+	private final Base64Codec codec = new Base64Codec();
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+}
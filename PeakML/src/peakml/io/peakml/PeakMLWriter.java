@@ -5,6 +5,7 @@ package peakml.io.peakml;
 
 // java
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.text.*;
 
@@ -15,7 +16,6 @@ import domsax.*;
 import peakml.*;
 import peakml.io.*;
 import peakml.util.*;
-import peakml.util.Base64;
 
 
 
@@ -51,19 +51,42 @@ public class PeakMLWriter
 	 * @param stylesheet		The stylesheet to include (filename, can be null).
 	 * @throws IOException		Thrown when an I/O error is encountered.
 	 */
-	@SuppressWarnings("unchecked")
 	public static void write(Header header, Vector<? extends IPeak> peaks, WriterProgressListener listener, OutputStream out, String stylesheet) throws IOException
+	{
+		write(header, peaks, listener, out, stylesheet, null);
+	}
+	
+	/**
+	 * Generic method for writing a set of {@link IPeak} elements (the real class unknown), which
+	 * also writes a {@link PeakMLIndex} of the peaks. The index records where each top-level peak
+	 * is found in the data written to out, so it needs to be stored next to the file (see
+	 * {@link PeakMLIndex#getFilename(String)}) for {@link PeakMLIndexedFile} and
+	 * {@link PeakMLParser#parse(String, double, double, double, double)} to find it. When out is a
+	 * {@link ParallelGZIPOutputStream} the start of each gzip member is recorded as well, so a
+	 * peak can be read without inflating the file up to it.
+	 * 
+	 * @param header			The header to be written to the file.
+	 * @param peaks				The peaks to be written to the file.
+	 * @param listener			The listener for tracking the progress of the write-process.
+	 * @param out				The output-stream to write to.
+	 * @param stylesheet		The stylesheet to include (filename, can be null).
+	 * @param indexout			The output-stream to write the index to (can be null for no index).
+	 * @throws IOException		Thrown when an I/O error is encountered.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void write(Header header, Vector<? extends IPeak> peaks, WriterProgressListener listener, OutputStream out, String stylesheet, OutputStream indexout) throws IOException
 	{
 		if (header != null)
 			header.setNrPeaks(peaks.size());
 		
 		int index = 0;
-		PeakMLWriter writer = new PeakMLWriter(header, out, stylesheet);
+		PeakMLWriter writer = new PeakMLWriter(header, out, stylesheet, indexout!=null);
 		for (IPeak peak : peaks)
 		{
 			if (listener != null)
 				listener.update((100.*index++)/peaks.size());
 			
+			writer.beginIndexEntry();
 			Class<? extends IPeak> c = peak.getClass();
 			if (c.equals(Peak.class))
 				writer.write((Peak) peak, true);
@@ -75,8 +98,21 @@ public class PeakMLWriter
 				writer.write((IPeakSet<? extends IPeak>) peak, true);
 			else
 				throw new IOException("Unknown IPeak-type: " + c.getName());
+			writer.endIndexEntry(peak);
 		}
 		writer.close();
+		
+		if (indexout != null)
+		{
+			// a block-compressed file can be inflated from the start of any of its members
+			if (out instanceof ParallelGZIPOutputStream)
+			{
+				ParallelGZIPOutputStream gzip = (ParallelGZIPOutputStream) out;
+				for (int i=0; i<gzip.getNrBlocks(); ++i)
+					writer.index.addBlock(gzip.getBlockOffset(i), gzip.getBlockPosition(i));
+			}
+			writer.index.write(indexout);
+		}
 	}
 	
 	/**
@@ -219,7 +255,20 @@ public class PeakMLWriter
 	
 	protected PeakMLWriter(Header header, OutputStream out, String stylesheet) throws IOException
 	{
-		xml = new XmlWriter(new BufferedOutputStream(out, 1024*1024), stylesheet);
+		this(header, out, stylesheet, false);
+	}
+	
+	protected PeakMLWriter(Header header, OutputStream out, String stylesheet, boolean indexed) throws IOException
+	{
+		if (indexed)
+		{
+			// the bytes are counted after encoding, so the index holds byte offsets
+			counter = new ByteCounter(new BufferedOutputStream(out, 1024*1024));
+			index = new PeakMLIndex();
+			xml = new XmlWriter(new OutputStreamWriter(counter), stylesheet);
+		}
+		else
+			xml = new XmlWriter(new BufferedOutputStream(out, 1024*1024), stylesheet);
 		
 		// write the opening tag
 		xml.writeTag("peakml", XmlWriter.Tag.OPEN, new XmlAttribute("version", "1.0.0"));
@@ -286,6 +335,9 @@ public class PeakMLWriter
 		xml.writeBreak();
 		xml.writeTag("peaks", XmlWriter.Tag.OPEN);
 //		xml.flush();
+		
+		if (index != null)
+			index.setHeaderLength(getPosition());
 	}
 	
 	protected void finalize()
@@ -307,6 +359,27 @@ public class PeakMLWriter
 		xml.close();
 	}
 	
+	protected long getPosition() throws IOException
+	{
+		// push the characters through the encoder, the counter keeps them from the output
+		xml.flush();
+		return counter.count;
+	}
+	
+	protected void beginIndexEntry() throws IOException
+	{
+		if (index != null)
+			entrystart = getPosition();
+	}
+	
+	protected void endIndexEntry(IPeak peak) throws IOException
+	{
+		if (index == null)
+			return;
+		long end = getPosition();
+		index.addPeak(entrystart, (int) (end-entrystart), peak.getMass(), peak.getRetentionTime(), peak.getIntensity());
+	}
+	
 	protected void write(IPeak peak, boolean sha1) throws IOException
 	{
 		if (peak.getScanID() != -1)
@@ -419,23 +492,37 @@ public class PeakMLWriter
 				new XmlAttribute("type", factory.getName()),
 				new XmlAttribute("size", Integer.toString(peakdata.size()))
 			);
-		xml.writeElement("scanids",
-				Base64.encodeBytes(ByteArray.toByteArray(peakdata.getScanIDs(), ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES));
-		xml.writeElement("retentiontimes",
-				Base64.encodeBytes(ByteArray.toByteArray(peakdata.getRetentionTimes(), ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES));
-		xml.writeElement("masses",
-				Base64.encodeBytes(ByteArray.toByteArray(peakdata.getMasses(), ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES));
-		xml.writeElement("intensities",
-				Base64.encodeBytes(ByteArray.toByteArray(peakdata.getIntensities(), ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES));
-		xml.writeElement("relativeintensities",
-				Base64.encodeBytes(ByteArray.toByteArray(peakdata.getIntensities(), ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES));
-		xml.writeElement("patternids",
-				Base64.encodeBytes(ByteArray.toByteArray(peakdata.getPatternIDs(), ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES));
-		xml.writeElement("measurementids",
-				Base64.encodeBytes(ByteArray.toByteArray(peakdata.getMeasurementIDs(), ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES));
+		xml.writeElement("scanids",				encodeInts(peakdata.getScanIDs()));
+		xml.writeElement("retentiontimes",		encodeFloats(peakdata.getRetentionTimes()));
+		xml.writeElement("masses",				encodeFloats(peakdata.getMasses()));
+		xml.writeElement("intensities",			encodeFloats(peakdata.getIntensities()));
+		xml.writeElement("relativeintensities",	encodeFloats(peakdata.getIntensities()));
+		xml.writeElement("patternids",			encodeInts(peakdata.getPatternIDs()));
+		xml.writeElement("measurementids",		encodeInts(peakdata.getMeasurementIDs()));
 		xml.writeTag("peakdata", XmlWriter.Tag.CLOSE);
 	}
 	
+	/**
+	 * Encodes 32-bit integers as {@link ByteArray#toByteArray(int[], int, int)} does for
+	 * {@link ByteArray#ENDIAN_LITTLE}, which stores them most significant byte first.
+	 */
+	protected String encodeInts(int values[])
+	{
+		base64.setLength(0);
+		codec.encodeInts(IntBuffer.wrap(values), ByteOrder.BIG_ENDIAN, base64);
+		return base64.toString();
+	}
+	
+	/**
+	 * Encodes the values as 32-bit little-endian floats.
+	 */
+	protected String encodeFloats(double values[])
+	{
+		base64.setLength(0);
+		codec.encodeDoubles(DoubleBuffer.wrap(values), ByteOrder.LITTLE_ENDIAN, 32, base64);
+		return base64.toString();
+	}
+	
 	protected void writeAnnotations(Collection<peakml.Annotation> annotations) throws IOException
 	{
 		if (annotations!=null && annotations.size()!=0)
@@ -473,17 +560,53 @@ public class PeakMLWriter
 		xml.writeTag("set", XmlWriter.Tag.OPEN);
 		xml.writeElement("id", set.getID());
 		xml.writeElement("type", Integer.toString(set.getType()));
-		xml.writeElement("measurementids",
-				Base64.encodeBytes(ByteArray.toByteArray(measurementids, ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES)
-			);
+		xml.writeElement("measurementids", encodeInts(measurementids));
 		for (SetInfo s : set.getChildren())
 			writeSet(s);
 		xml.writeTag("set", XmlWriter.Tag.CLOSE);
 	}
 	
 	
+	/**
+	 * Counts the bytes written through it. Flushing is left to close, as the writer flushes
+	 * the encoder for every indexed peak and would otherwise break up the output in small writes.
+	 */
+	protected static class ByteCounter extends FilterOutputStream
+	{
+		public ByteCounter(OutputStream out)
+		{
+			super(out);
+		}
+		
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+		
+		public void write(byte b[], int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+		
+		public void flush()
+		{
+		}
+		
+		public long count = 0;
+	}
+	
+	
 	// data
 	protected XmlWriter xml;
+	/** The index of the peaks written, null when no index is written */
+	protected PeakMLIndex index = null;
+	protected ByteCounter counter = null;
+	protected long entrystart = 0;
+	/** Encodes the arrays of the peakdata, reused for all arrays */
+	protected Base64Codec codec = new Base64Codec();
+	protected StringBuilder base64 = new StringBuilder();
 	
 	protected static final String TYPE						= "type";
 	protected static final String SIZE						= "size";
@@ -0,0 +1,474 @@
+/* Copyright (C) 2008, Groningen Bioinformatics Centre (http://gbic.biol.rug.nl/)
+ * This file is part of PeakML.
+ *
+ * PeakML is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * PeakML is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with PeakML; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+
+package peakml.util;
+
+
+// java
+import java.nio.*;
+import java.util.*;
+
+
+
+
+
+/**
+ * Codec for the Base64 encoded arrays of numbers found in PeakML, mzXML and mzML files.
+ * Where {@link Base64} and {@link ByteArray} produce a new array for every step, this
+ * class decodes the characters into a scratch buffer of bytes, which is reused for
+ * every array, and reads the numbers from it through {@link ByteBuffer} views in the
+ * byte-order of the file. The numbers end up in a buffer given by the caller. Encoding
+ * works the other way around and appends the characters to a {@link StringBuilder}
+ * given by the caller.
+ * <p />
+ * Unlike {@link ByteArray}, the byte-order is always the real one. The integer arrays
+ * that {@link ByteArray} writes for {@link ByteArray#ENDIAN_LITTLE} are stored most
+ * significant byte first, so they are read and written here with {@link ByteOrder#BIG_ENDIAN}.
+ * <p />
+ * An instance holds the scratch buffers and is not thread-safe; use one per parser or
+ * writer.
+ */
+public class Base64Codec
+{
+	// constructor(s)
+	/**
+	 * Constructs a new codec with empty scratch buffers.
+	 */
+	public Base64Codec()
+	{
+	}
+
+
+	// decoding
+	/**
+	 * Decodes the given Base64 data into the scratch buffer of the codec. Whitespace is
+	 * skipped and decoding stops at the padding, as in {@link Base64#decode(String)}. The
+	 * returned buffer holds the bytes between its position and limit and is only valid
+	 * until the next call to the codec.
+	 *
+	 * @param src				The Base64 encoded data.
+	 * @return					The decoded bytes.
+	 * @throws IllegalArgumentException
+	 * 							Thrown when the data contains a character outside the Base64 alphabet.
+	 */
+	public ByteBuffer decode(CharSequence src) throws IllegalArgumentException
+	{
+		// take the characters from the backing array when there is one
+		if (src instanceof CharBuffer && ((CharBuffer) src).hasArray())
+		{
+			CharBuffer buffer = (CharBuffer) src;
+			return decode(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+		}
+
+		int length = src.length();
+		if (chars.length < length)
+			chars = new char[Math.max(2*chars.length, length)];
+		if (src instanceof String)
+			((String) src).getChars(0, length, chars, 0);
+		else if (src instanceof StringBuilder)
+			((StringBuilder) src).getChars(0, length, chars, 0);
+		else
+			for (int i=0; i<length; ++i) chars[i] = src.charAt(i);
+		return decode(chars, 0, length);
+	}
+
+	/**
+	 * Decodes the given Base64 data into the scratch buffer of the codec. See
+	 * {@link Base64Codec#decode(CharSequence)}.
+	 *
+	 * @param src				The array with the Base64 encoded data.
+	 * @param off				The index of the first character.
+	 * @param len				The number of characters.
+	 * @return					The decoded bytes.
+	 * @throws IllegalArgumentException
+	 * 							Thrown when the data contains a character outside the Base64 alphabet.
+	 */
+	public ByteBuffer decode(char src[], int off, int len) throws IllegalArgumentException
+	{
+		int capacity = len/4*3 + 3;
+		if (bytes.capacity() < capacity)
+			bytes = ByteBuffer.allocate(Math.max(2*bytes.capacity(), capacity));
+		byte out[] = bytes.array();
+
+		int length = 0;
+		int quartet = 0;
+		int nrchars = 0;
+		for (int i=off; i<off+len; ++i)
+		{
+			char c = src[i];
+			int value = (c<128 ? DECODE[c] : INVALID);
+			if (value == WHITESPACE)
+				continue;
+			else if (value == INVALID)
+				throw new IllegalArgumentException("Bad Base64 input character at " + (i-off) + ": " + (int) c + "(decimal)");
+			else if (value == PADDING)
+			{
+				// "xx==" holds one byte, "xxx=" holds two
+				if (nrchars == 2)
+				{
+					out[length++] = (byte) (quartet >>> 4);
+					break;
+				}
+				else if (nrchars == 3)
+				{
+					out[length++] = (byte) (quartet >>> 10);
+					out[length++] = (byte) (quartet >>> 2);
+					break;
+				}
+				continue;
+			}
+
+			quartet = (quartet << 6) | value;
+			if (++nrchars == 4)
+			{
+				out[length++] = (byte) (quartet >>> 16);
+				out[length++] = (byte) (quartet >>>  8);
+				out[length++] = (byte) (quartet       );
+				quartet = 0;
+				nrchars = 0;
+			}
+		}
+
+		bytes.clear();
+		bytes.limit(length);
+		return bytes;
+	}
+
+	/**
+	 * Decodes the given Base64 data into 32-bit integers.
+	 *
+	 * @param src				The Base64 encoded data.
+	 * @param order				The byte-order of the integers.
+	 * @param reuse				The buffer to decode into when it is large enough, can be null.
+	 * @return					The buffer with the integers between position and limit, which is reuse or a larger buffer.
+	 */
+	public IntBuffer decodeInts(CharSequence src, ByteOrder order, IntBuffer reuse)
+	{
+		ByteBuffer data = decode(src);
+		int size = data.remaining() / 4;
+		IntBuffer dst = (reuse!=null && reuse.capacity()>=size ? reuse : IntBuffer.allocate(size));
+		dst.clear();
+		getInts(data, order, dst);
+		dst.flip();
+		return dst;
+	}
+
+	/**
+	 * Decodes the given Base64 data into 32-bit floats.
+	 *
+	 * @param src				The Base64 encoded data.
+	 * @param order				The byte-order of the floats.
+	 * @param reuse				The buffer to decode into when it is large enough, can be null.
+	 * @return					The buffer with the floats between position and limit, which is reuse or a larger buffer.
+	 */
+	public FloatBuffer decodeFloats(CharSequence src, ByteOrder order, FloatBuffer reuse)
+	{
+		ByteBuffer data = decode(src);
+		int size = data.remaining() / 4;
+		FloatBuffer dst = (reuse!=null && reuse.capacity()>=size ? reuse : FloatBuffer.allocate(size));
+		dst.clear();
+		getFloats(data, order, dst);
+		dst.flip();
+		return dst;
+	}
+
+	/**
+	 * Decodes the given Base64 data into doubles, which are stored with the given precision
+	 * (32-bit floats are widened).
+	 *
+	 * @param src				The Base64 encoded data.
+	 * @param order				The byte-order of the values.
+	 * @param precision			The number of bits of each value, either 32 or 64.
+	 * @param reuse				The buffer to decode into when it is large enough, can be null.
+	 * @return					The buffer with the doubles between position and limit, which is reuse or a larger buffer.
+	 */
+	public DoubleBuffer decodeDoubles(CharSequence src, ByteOrder order, int precision, DoubleBuffer reuse)
+	{
+		checkPrecision(precision);
+		ByteBuffer data = decode(src);
+		int size = data.remaining() / (precision/8);
+		DoubleBuffer dst = (reuse!=null && reuse.capacity()>=size ? reuse : DoubleBuffer.allocate(size));
+		dst.clear();
+		getDoubles(data, order, precision, dst);
+		dst.flip();
+		return dst;
+	}
+
+	/**
+	 * Puts the 32-bit integers stored in the bytes between the position and limit of src
+	 * into dst. Trailing bytes that don't make up an integer are ignored. The position of
+	 * src is left alone, the position of dst is advanced.
+	 *
+	 * @param src				The bytes.
+	 * @param order				The byte-order of the integers.
+	 * @param dst				The buffer to put the integers in.
+	 * @return					The number of integers.
+	 * @throws BufferOverflowException
+	 * 							Thrown when dst doesn't have room for all the integers.
+	 */
+	public static int getInts(ByteBuffer src, ByteOrder order, IntBuffer dst) throws BufferOverflowException
+	{
+		ByteOrder previous = src.order();
+		try {
+			IntBuffer view = src.order(order).asIntBuffer();
+			int size = view.remaining();
+			dst.put(view);
+			return size;
+		} finally {
+			src.order(previous);
+		}
+	}
+
+	/**
+	 * Puts the 32-bit floats stored in the bytes between the position and limit of src
+	 * into dst. See {@link Base64Codec#getInts(ByteBuffer, ByteOrder, IntBuffer)}.
+	 */
+	public static int getFloats(ByteBuffer src, ByteOrder order, FloatBuffer dst) throws BufferOverflowException
+	{
+		ByteOrder previous = src.order();
+		try {
+			FloatBuffer view = src.order(order).asFloatBuffer();
+			int size = view.remaining();
+			dst.put(view);
+			return size;
+		} finally {
+			src.order(previous);
+		}
+	}
+
+	/**
+	 * Puts the values of the given precision stored in the bytes between the position and
+	 * limit of src into dst, widening 32-bit floats to doubles. See
+	 * {@link Base64Codec#getInts(ByteBuffer, ByteOrder, IntBuffer)}.
+	 */
+	public static int getDoubles(ByteBuffer src, ByteOrder order, int precision, DoubleBuffer dst) throws BufferOverflowException
+	{
+		checkPrecision(precision);
+		ByteOrder previous = src.order();
+		try {
+			src.order(order);
+			if (precision == 64)
+			{
+				DoubleBuffer view = src.asDoubleBuffer();
+				int size = view.remaining();
+				dst.put(view);
+				return size;
+			}
+
+			FloatBuffer view = src.asFloatBuffer();
+			int size = view.remaining();
+			if (size > dst.remaining())
+				throw new BufferOverflowException();
+			if (dst.hasArray())
+			{
+				double values[] = dst.array();
+				int offset = dst.arrayOffset() + dst.position();
+				for (int i=0; i<size; ++i)
+					values[offset+i] = view.get(i);
+				dst.position(dst.position()+size);
+			}
+			else
+			{
+				for (int i=0; i<size; ++i)
+					dst.put(view.get(i));
+			}
+			return size;
+		} finally {
+			src.order(previous);
+		}
+	}
+
+
+	// encoding
+	/**
+	 * Appends the Base64 encoding of the bytes between the position and limit of src to
+	 * dst, without line-breaks, as {@link Base64#encodeBytes(byte[], int)} does with
+	 * {@link Base64#DONT_BREAK_LINES}. The position of src is left alone.
+	 *
+	 * @param src				The bytes to encode.
+	 * @param dst				The builder the characters are appended to.
+	 */
+	public void encode(ByteBuffer src, StringBuilder dst)
+	{
+		if (src.hasArray())
+			encode(src.array(), src.arrayOffset()+src.position(), src.remaining(), dst);
+		else
+		{
+			int length = src.remaining();
+			ByteBuffer copy = scratch(length);
+			copy.put(src.duplicate());
+			encode(copy.array(), 0, length, dst);
+		}
+	}
+
+	/**
+	 * Appends the Base64 encoding of the 32-bit integers between the position and limit of
+	 * src to dst. The position of src is left alone.
+	 *
+	 * @param src				The integers to encode.
+	 * @param order				The byte-order to store the integers in.
+	 * @param dst				The builder the characters are appended to.
+	 */
+	public void encodeInts(IntBuffer src, ByteOrder order, StringBuilder dst)
+	{
+		int size = src.remaining();
+		ByteBuffer data = scratch(4*size);
+		data.order(order).asIntBuffer().put(src.duplicate());
+		encode(data.array(), 0, 4*size, dst);
+	}
+
+	/**
+	 * Appends the Base64 encoding of the 32-bit floats between the position and limit of
+	 * src to dst. The position of src is left alone.
+	 *
+	 * @param src				The floats to encode.
+	 * @param order				The byte-order to store the floats in.
+	 * @param dst				The builder the characters are appended to.
+	 */
+	public void encodeFloats(FloatBuffer src, ByteOrder order, StringBuilder dst)
+	{
+		int size = src.remaining();
+		ByteBuffer data = scratch(4*size);
+		data.order(order).asFloatBuffer().put(src.duplicate());
+		encode(data.array(), 0, 4*size, dst);
+	}
+
+	/**
+	 * Appends the Base64 encoding of the doubles between the position and limit of src to
+	 * dst, stored with the given precision (narrowed to 32-bit floats for 32). The position
+	 * of src is left alone.
+	 *
+	 * @param src				The doubles to encode.
+	 * @param order				The byte-order to store the values in.
+	 * @param precision			The number of bits to store each value in, either 32 or 64.
+	 * @param dst				The builder the characters are appended to.
+	 */
+	public void encodeDoubles(DoubleBuffer src, ByteOrder order, int precision, StringBuilder dst)
+	{
+		checkPrecision(precision);
+		int size = src.remaining();
+		int nrbytes = size * (precision/8);
+		ByteBuffer data = scratch(nrbytes);
+		data.order(order);
+		if (precision == 64)
+			data.asDoubleBuffer().put(src.duplicate());
+		else
+		{
+			FloatBuffer view = data.asFloatBuffer();
+			int position = src.position();
+			for (int i=0; i<size; ++i)
+				view.put(i, (float) src.get(position+i));
+		}
+		encode(data.array(), 0, nrbytes, dst);
+	}
+
+
+	// implementation
+	private void encode(byte src[], int off, int len, StringBuilder dst)
+	{
+		int length = (len+2)/3 * 4;
+		if (chars.length < length)
+			chars = new char[Math.max(2*chars.length, length)];
+
+		int pos = 0;
+		int end = off + len/3*3;
+		for (int i=off; i<end; i+=3)
+		{
+			int triplet = (src[i]&0xFF)<<16 | (src[i+1]&0xFF)<<8 | (src[i+2]&0xFF);
+			chars[pos++] = ENCODE[(triplet>>>18) & 0x3F];
+			chars[pos++] = ENCODE[(triplet>>>12) & 0x3F];
+			chars[pos++] = ENCODE[(triplet>>> 6) & 0x3F];
+			chars[pos++] = ENCODE[(triplet     ) & 0x3F];
+		}
+
+		// the last one or two bytes are padded to a full quartet
+		int remaining = off + len - end;
+		if (remaining == 1)
+		{
+			int triplet = (src[end]&0xFF)<<16;
+			chars[pos++] = ENCODE[(triplet>>>18) & 0x3F];
+			chars[pos++] = ENCODE[(triplet>>>12) & 0x3F];
+			chars[pos++] = '=';
+			chars[pos++] = '=';
+		}
+		else if (remaining == 2)
+		{
+			int triplet = (src[end]&0xFF)<<16 | (src[end+1]&0xFF)<<8;
+			chars[pos++] = ENCODE[(triplet>>>18) & 0x3F];
+			chars[pos++] = ENCODE[(triplet>>>12) & 0x3F];
+			chars[pos++] = ENCODE[(triplet>>> 6) & 0x3F];
+			chars[pos++] = '=';
+		}
+
+		dst.append(chars, 0, pos);
+	}
+
+	/**
+	 * Returns the scratch buffer of bytes, cleared and with room for at least the given
+	 * number of bytes.
+	 */
+	private ByteBuffer scratch(int capacity)
+	{
+		if (bytes.capacity() < capacity)
+			bytes = ByteBuffer.allocate(Math.max(2*bytes.capacity(), capacity));
+		bytes.clear();
+		return bytes;
+	}
+
+	private static void checkPrecision(int precision)
+	{
+		if (precision!=32 && precision!=64)
+			throw new IllegalArgumentException("only 32 and 64 bits precision supported");
+	}
+
+
+	// data
+	/** Scratch buffer for the bytes, reused for all arrays */
+	private ByteBuffer bytes = ByteBuffer.allocate(1024);
+	/** Scratch buffer for the characters, reused for all arrays */
+	private char chars[] = new char[1024];
+
+	private static final int INVALID		= -1;
+	private static final int WHITESPACE		= -2;
+	private static final int PADDING		= -3;
+	private static final int DECODE[] = new int[128];
+	private static final char ENCODE[] = new char[64];
+	static {
+		Arrays.fill(DECODE, INVALID);
+		for (int i=0; i<26; ++i)
+		{
+			DECODE['A'+i] = i;
+			DECODE['a'+i] = 26+i;
+			ENCODE[i] = (char) ('A'+i);
+			ENCODE[26+i] = (char) ('a'+i);
+		}
+		for (int i=0; i<10; ++i)
+		{
+			DECODE['0'+i] = 52+i;
+			ENCODE[52+i] = (char) ('0'+i);
+		}
+		DECODE['+'] = 62;
+		DECODE['/'] = 63;
+		ENCODE[62] = '+';
+		ENCODE[63] = '/';
+		DECODE['='] = PADDING;
+		DECODE[' '] = DECODE['\t'] = DECODE['\n'] = DECODE['\r'] = WHITESPACE;
+	}
+}
@@ -0,0 +1,291 @@
+/* Copyright (C) 2008, Groningen Bioinformatics Centre (http://gbic.biol.rug.nl/)
+ * This file is part of PeakML.
+ *
+ * PeakML is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * PeakML is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with PeakML; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+
+package peakml.util;
+
+
+// java
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import java.util.concurrent.*;
+
+
+
+
+
+/**
+ * Drop-in replacement for {@link GZIPOutputStream}, which compresses the data on a pool
+ * of threads. The data is cut into blocks of a fixed size and each block is compressed
+ * into a gzip member of its own. The members are written in order, which makes the
+ * output a multi-member gzip file that {@link GZIPInputStream} and gunzip read as a
+ * whole.
+ * <p />
+ * Because every member starts with a fresh dictionary, inflating can start at the
+ * beginning of any member. The stream records where each member starts in the output
+ * and at which position in the uncompressed data, which is what the
+ * {@link peakml.io.peakml.PeakMLIndex} uses to seek in a gzipped file.
+ * <p />
+ * The stream is not thread-safe; it needs to be closed to write the last block and to
+ * release the threads.
+ */
+public class ParallelGZIPOutputStream extends OutputStream
+{
+	// constructor(s)
+	/**
+	 * Constructs a new stream with a thread for every available processor.
+	 *
+	 * @param out				The output-stream to write the compressed data to.
+	 */
+	public ParallelGZIPOutputStream(OutputStream out)
+	{
+		this(out, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a new stream with the given number of threads and blocks of the
+	 * default size.
+	 *
+	 * @param out				The output-stream to write the compressed data to.
+	 * @param nrthreads			The number of threads compressing blocks.
+	 */
+	public ParallelGZIPOutputStream(OutputStream out, int nrthreads)
+	{
+		this(out, nrthreads, BLOCKSIZE);
+	}
+
+	/**
+	 * Constructs a new stream with the given number of threads and block size.
+	 *
+	 * @param out				The output-stream to write the compressed data to.
+	 * @param nrthreads			The number of threads compressing blocks.
+	 * @param blocksize			The number of uncompressed bytes in each gzip member.
+	 */
+	public ParallelGZIPOutputStream(OutputStream out, int nrthreads, int blocksize)
+	{
+		if (nrthreads < 1)
+			throw new IllegalArgumentException("At least 1 thread is needed: " + nrthreads);
+		if (blocksize < 1)
+			throw new IllegalArgumentException("The block size needs to be positive: " + blocksize);
+
+		this.out = out;
+		this.blocksize = blocksize;
+		this.maxpending = 2*nrthreads;
+		this.block = new byte[blocksize];
+		this.pool = Executors.newFixedThreadPool(nrthreads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable)
+			{
+				// don't keep the vm alive when the stream is never closed
+				Thread thread = new Thread(runnable, "ParallelGZIPOutputStream");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	// OutputStream overrides
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (closed)
+			throw new IOException("Stream closed");
+		block[length++] = (byte) b;
+		if (length == blocksize)
+			submit();
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException
+	{
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0)
+		{
+			int n = Math.min(len, blocksize-length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+			if (length == blocksize)
+				submit();
+		}
+	}
+
+	/**
+	 * Writes the blocks that have been handed to the pool and flushes the underlying
+	 * stream. The block being filled is not cut short, as that would make the members
+	 * and thus the compression depend on when flush is called.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if (closed)
+			return;
+		collect(0);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		try {
+			// an empty stream still needs a member to be a valid gzip file
+			if (length>0 || nrblocks==0)
+				submit();
+			collect(0);
+			out.close();
+		} finally {
+			closed = true;
+			pool.shutdownNow();
+		}
+	}
+
+
+	// access
+	/**
+	 * Returns the number of gzip members written so far.
+	 *
+	 * @return					The number of members.
+	 */
+	public int getNrBlocks()
+	{
+		return nrblocks - pending.size();
+	}
+
+	/**
+	 * Returns the position in the compressed output where the given member starts.
+	 *
+	 * @param index				The index of the member.
+	 * @return					The offset of the member in the output.
+	 */
+	public long getBlockOffset(int index)
+	{
+		if (index >= getNrBlocks())
+			throw new IndexOutOfBoundsException("Block " + index + " has not been written yet");
+		return blockoffsets[index];
+	}
+
+	/**
+	 * Returns the position in the uncompressed data of the first byte of the given member.
+	 *
+	 * @param index				The index of the member.
+	 * @return					The offset of the member in the uncompressed data.
+	 */
+	public long getBlockPosition(int index)
+	{
+		if (index >= getNrBlocks())
+			throw new IndexOutOfBoundsException("Block " + index + " has not been written yet");
+		return (long) index * blocksize;
+	}
+
+
+	// implementation
+	private void submit() throws IOException
+	{
+		pending.add(pool.submit(new Compressor(block, length)));
+		nrblocks++;
+		block = new byte[blocksize];
+		length = 0;
+
+		// keep the memory bounded when the output can't keep up
+		collect(maxpending);
+	}
+
+	/**
+	 * Writes the compressed blocks in order until at most the given number of blocks is
+	 * pending, also writing the blocks that are already done.
+	 */
+	private void collect(int maxpending) throws IOException
+	{
+		while (!pending.isEmpty() && (pending.size()>maxpending || pending.peek().isDone()))
+		{
+			byte member[];
+			try {
+				member = pending.peek().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				else if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new IOException(cause);
+			}
+			pending.poll();
+
+			int index = nrblocks - pending.size() - 1;
+			if (index == blockoffsets.length)
+				blockoffsets = Arrays.copyOf(blockoffsets, 2*blockoffsets.length);
+			blockoffsets[index] = written;
+
+			out.write(member);
+			written += member.length;
+		}
+	}
+
+	/** Compresses one block into a complete gzip member */
+	private static class Compressor implements Callable<byte[]>
+	{
+		public Compressor(byte block[], int length)
+		{
+			this.block = block;
+			this.length = length;
+		}
+
+		public byte[] call() throws IOException
+		{
+			ByteArrayOutputStream member = new ByteArrayOutputStream(length/4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(member, 64*1024);
+			gzip.write(block, 0, length);
+			gzip.close();
+			return member.toByteArray();
+		}
+
+		private final byte block[];
+		private final int length;
+	}
+
+
+	// data
+	private final OutputStream out;
+	private final int blocksize;
+	private final int maxpending;
+	private final ExecutorService pool;
+	private final Queue<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private boolean closed = false;
+
+	/** The block being filled */
+	private byte block[];
+	private int length = 0;
+
+	/** The number of blocks handed to the pool */
+	private int nrblocks = 0;
+	/** The number of compressed bytes written to out */
+	private long written = 0;
+	private long blockoffsets[] = new long[16];
+
+	/** The default number of uncompressed bytes in a gzip member */
+	public static final int BLOCKSIZE		= 256*1024;
+}
@@ -0,0 +1,140 @@
+package snippets;
+
+// java
+import java.nio.*;
+import java.util.Random;
+
+// peakml
+import peakml.util.*;
+
+
+
+/**
+ * Compares the time it takes to encode and decode binary arrays with {@link Base64Codec}
+ * and with the combination of {@link ByteArray} and {@link Base64}, as used for the
+ * binary data in PeakML, mzXML and mzML files. Both paths are checked to give the same
+ * result before they are timed. Run with the number of values per array as the optional
+ * argument (default 1000).
+ */
+public class Base64Benchmark
+{
+	public static void main(String args[])
+	{
+		int size = (args.length>0 ? Integer.parseInt(args[0]) : 1000);
+		int iterations = Math.max(100, 20000000 / size);
+
+		// a retention time like array
+		Random random = new Random(0);
+		double values[] = new double[size];
+		for (int i=0; i<size; ++i)
+			values[i] = 1000 * random.nextDouble();
+
+		for (int precision : new int[] { 32, 64 })
+		{
+			System.out.println(precision + "-bit, " + size + " values, " + iterations + " iterations");
+			check(values, precision);
+
+			// warm up both paths before measuring
+			for (int round=0; round<2; ++round)
+			{
+				long encode_old = encodeOld(values, precision, iterations);
+				long encode_new = encodeNew(values, precision, iterations);
+				long decode_old = decodeOld(values, precision, iterations);
+				long decode_new = decodeNew(values, precision, iterations);
+				if (round == 0)
+					continue;
+
+				double nrvalues = (double) iterations * size;
+				System.out.printf("  encode: ByteArray+Base64 %6.2f ns/value, Base64Codec %6.2f ns/value\n", encode_old/nrvalues, encode_new/nrvalues);
+				System.out.printf("  decode: ByteArray+Base64 %6.2f ns/value, Base64Codec %6.2f ns/value\n", decode_old/nrvalues, decode_new/nrvalues);
+			}
+		}
+	}
+
+
+	// checks
+	private static void check(double values[], int precision)
+	{
+		String encoded_old = Base64.encodeBytes(ByteArray.toByteArray(values, ByteArray.ENDIAN_LITTLE, precision), Base64.DONT_BREAK_LINES);
+
+		StringBuilder encoded_new = new StringBuilder();
+		new Base64Codec().encodeDoubles(DoubleBuffer.wrap(values), ByteOrder.LITTLE_ENDIAN, precision, encoded_new);
+		if (!encoded_old.equals(encoded_new.toString()))
+			throw new RuntimeException("The encoded data differs");
+
+		double decoded_old[] = ByteArray.toDoubleArray(Base64.decode(encoded_old), ByteArray.ENDIAN_LITTLE, precision);
+		DoubleBuffer decoded_new = new Base64Codec().decodeDoubles(encoded_old, ByteOrder.LITTLE_ENDIAN, precision, null);
+		if (decoded_new.remaining() != decoded_old.length)
+			throw new RuntimeException("The decoded data differs in length");
+		for (int i=0; i<decoded_old.length; ++i)
+			if (Double.compare(decoded_old[i], decoded_new.get(i)) != 0)
+				throw new RuntimeException("The decoded data differs at " + i);
+	}
+
+
+	// timing
+	private static long encodeOld(double values[], int precision, int iterations)
+	{
+		long length = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<iterations; ++i)
+			length += Base64.encodeBytes(ByteArray.toByteArray(values, ByteArray.ENDIAN_LITTLE, precision), Base64.DONT_BREAK_LINES).length();
+		long time = System.nanoTime() - start;
+		sink += length;
+		return time;
+	}
+
+	private static long encodeNew(double values[], int precision, int iterations)
+	{
+		Base64Codec codec = new Base64Codec();
+		StringBuilder base64 = new StringBuilder();
+
+		long length = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<iterations; ++i)
+		{
+			base64.setLength(0);
+			codec.encodeDoubles(DoubleBuffer.wrap(values), ByteOrder.LITTLE_ENDIAN, precision, base64);
+			length += base64.length();
+		}
+		long time = System.nanoTime() - start;
+		sink += length;
+		return time;
+	}
+
+	private static long decodeOld(double values[], int precision, int iterations)
+	{
+		String encoded = Base64.encodeBytes(ByteArray.toByteArray(values, ByteArray.ENDIAN_LITTLE, precision), Base64.DONT_BREAK_LINES);
+
+		double sum = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<iterations; ++i)
+			sum += ByteArray.toDoubleArray(Base64.decode(encoded), ByteArray.ENDIAN_LITTLE, precision)[0];
+		long time = System.nanoTime() - start;
+		sink += sum;
+		return time;
+	}
+
+	private static long decodeNew(double values[], int precision, int iterations)
+	{
+		String encoded = Base64.encodeBytes(ByteArray.toByteArray(values, ByteArray.ENDIAN_LITTLE, precision), Base64.DONT_BREAK_LINES);
+		Base64Codec codec = new Base64Codec();
+		DoubleBuffer decoded = null;
+
+		double sum = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<iterations; ++i)
+		{
+			decoded = codec.decodeDoubles(encoded, ByteOrder.LITTLE_ENDIAN, precision, decoded);
+			sum += decoded.get(0);
+		}
+		long time = System.nanoTime() - start;
+		sink += sum;
+		return time;
+	}
+
+
+	// data
+	/** Keeps the results alive, so the timed loops can't be optimized away */
+	private static double sink = 0;
+}
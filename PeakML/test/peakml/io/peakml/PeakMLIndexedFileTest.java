@@ -0,0 +1,217 @@
+package peakml.io.peakml;
+
+
+// java
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+// libraries
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+// peakml
+import peakml.*;
+import peakml.io.*;
+import peakml.util.*;
+
+
+
+
+/**
+ * Checks that the peaks read through a {@link PeakMLIndex} are the ones found by parsing the
+ * whole file, for plain and gzipped files.
+ */
+public class PeakMLIndexedFileTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		// written from parsed peaks, so the masses in the index are those of the peaks read back
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(41), NRPEAKS, false);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, false);
+		ParseResult result = PeakMLParser.parse(new ByteArrayInputStream(data), true);
+		header = result.header;
+		this.peaks = PeakMLTestData.getPeaks(result);
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File file : files)
+			file.delete();
+	}
+
+	@Test
+	public void testIndexRoundTrip() throws Exception
+	{
+		for (boolean gzip : new boolean[] { false, true })
+		{
+			String filename = writeFile(gzip);
+			PeakMLIndex index = PeakMLIndex.read(new FileInputStream(PeakMLIndex.getFilename(filename)));
+			assertEquals(NRPEAKS, index.getNrPeaks());
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			index.write(out);
+			PeakMLIndex copy = PeakMLIndex.read(new ByteArrayInputStream(out.toByteArray()));
+			assertEquals(index.getHeaderLength(), copy.getHeaderLength());
+			assertEquals(index.getNrPeaks(), copy.getNrPeaks());
+			for (int i=0; i<index.getNrPeaks(); ++i)
+			{
+				assertEquals(index.getOffset(i), copy.getOffset(i));
+				assertEquals(index.getLength(i), copy.getLength(i));
+				assertEquals(index.getMass(i), copy.getMass(i), 0);
+				assertEquals(index.getRetentionTime(i), copy.getRetentionTime(i), 0);
+				assertEquals(index.getIntensity(i), copy.getIntensity(i), 0);
+				assertEquals(peaks.get(i).getMass(), index.getMass(i), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteUnchanged() throws Exception
+	{
+		// writing the index does not change the file itself
+		for (boolean gzip : new boolean[] { false, true })
+		{
+			String filename = writeFile(gzip);
+			InputStream in = new FileInputStream(filename);
+			if (gzip)
+				in = new GZIPInputStream(in);
+			assertEquals(PeakMLTestData.toXml(header, peaks), PeakMLTestData.toXml(PeakMLParser.parse(in, true)));
+		}
+	}
+
+	@Test
+	public void testRead() throws Exception
+	{
+		for (boolean gzip : new boolean[] { false, true })
+		{
+			PeakMLIndexedFile file = new PeakMLIndexedFile(writeFile(gzip));
+			try {
+				assertEquals(
+						PeakMLTestData.toXml(header, new Vector<IPeak>()),
+						PeakMLTestData.toXml(file.getHeader(), new Vector<IPeak>())
+					);
+
+				// single peaks
+				for (int i : new int[] { 0, NRPEAKS/2, NRPEAKS-1 })
+					assertEquals(toXml(peaks.get(i)), toXml(file.read(i)));
+
+				// all peaks at once, in reverse order
+				int indices[] = new int[NRPEAKS];
+				for (int i=0; i<NRPEAKS; ++i)
+					indices[i] = NRPEAKS-1-i;
+				Vector<IPeak> read = file.read(indices);
+				Collections.reverse(read);
+				assertEquals(PeakMLTestData.toXml(header, peaks), PeakMLTestData.toXml(header, read));
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	@Test
+	public void testQuery() throws Exception
+	{
+		Random random = new Random(43);
+		for (boolean gzip : new boolean[] { false, true })
+		{
+			String filename = writeFile(gzip);
+			PeakMLIndexedFile file = new PeakMLIndexedFile(filename);
+			try {
+				assertEquals(NRPEAKS, file.query(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY).length);
+				assertNull(file.parse(5000, 6000, 0, 1).measurement);
+
+				for (int q=0; q<20; ++q)
+				{
+					double minmass = 100 + 900*random.nextDouble();
+					double minrt = 100*random.nextDouble();
+					double maxmass = minmass + 100*random.nextDouble();
+					double maxrt = minrt + 50*random.nextDouble();
+
+					Vector<IPeak> expected = new Vector<IPeak>();
+					for (IPeak peak : peaks)
+						if (peak.getMass()>=minmass && peak.getMass()<=maxmass && peak.getRetentionTime()>=minrt && peak.getRetentionTime()<=maxrt)
+							expected.add(peak);
+
+					ParseResult result = file.parse(minmass, maxmass, minrt, maxrt);
+					Vector<IPeak> found = (result.measurement==null ? new Vector<IPeak>() : PeakMLTestData.getPeaks(result));
+					assertEquals(PeakMLTestData.toXml(header, expected), PeakMLTestData.toXml(header, found));
+				}
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	@Test
+	public void testParseWithIndex() throws Exception
+	{
+		String filename = writeFile(true);
+		ParseResult indexed = PeakMLParser.parse(filename, 200, 600, 0, 50);
+		new File(PeakMLIndex.getFilename(filename)).delete();
+		ParseResult full = PeakMLParser.parse(filename, 200, 600, 0, 50);
+		assertEquals(PeakMLTestData.toXml(full), PeakMLTestData.toXml(indexed));
+	}
+
+	@Test
+	public void testReadBlocks() throws Exception
+	{
+		// small members, so most peaks are inflated from a member in the middle of the file
+		String filename = newFile(".peakml.gz");
+		OutputStream out = new ParallelGZIPOutputStream(new FileOutputStream(filename), 2, 8*1024);
+		PeakMLWriter.write(header, peaks, null, out, null, new FileOutputStream(PeakMLIndex.getFilename(filename)));
+
+		PeakMLIndexedFile file = new PeakMLIndexedFile(filename);
+		try {
+			assertTrue(file.getIndex().getNrBlocks() > 1);
+			for (int i=0; i<NRPEAKS; i+=7)
+				assertEquals(toXml(peaks.get(i)), toXml(file.read(i)));
+
+			int indices[] = new int[NRPEAKS];
+			for (int i=0; i<NRPEAKS; ++i)
+				indices[i] = i;
+			assertEquals(PeakMLTestData.toXml(header, peaks), PeakMLTestData.toXml(header, file.read(indices)));
+		} finally {
+			file.close();
+		}
+	}
+
+
+	// helpers
+	private String writeFile(boolean gzip) throws IOException
+	{
+		String filename = newFile(gzip ? ".peakml.gz" : ".peakml");
+		OutputStream out = new FileOutputStream(filename);
+		PeakMLWriter.write(header, peaks, null, gzip ? new GZIPOutputStream(out) : out, null, new FileOutputStream(PeakMLIndex.getFilename(filename)));
+		return filename;
+	}
+
+	/**
+	 * Creates a temporary file, which is deleted with its index after the test.
+	 */
+	private String newFile(String extension) throws IOException
+	{
+		File file = File.createTempFile("peakml", extension);
+		files.add(file);
+		files.add(new File(PeakMLIndex.getFilename(file.getPath())));
+		return file.getPath();
+	}
+
+	private String toXml(IPeak peak) throws IOException
+	{
+		Vector<IPeak> peaks = new Vector<IPeak>();
+		peaks.add(peak);
+		return PeakMLTestData.toXml(null, peaks);
+	}
+
+
+	// data
+	private Header header;
+	private Vector<IPeak> peaks;
+	private List<File> files = new ArrayList<File>();
+
+	private static final int NRPEAKS = 300;
+}
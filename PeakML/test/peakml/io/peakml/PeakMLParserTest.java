@@ -0,0 +1,252 @@
+package peakml.io.peakml;
+
+
+// java
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+// libraries
+import domsax.*;
+import org.junit.*;
+import org.w3c.dom.*;
+
+import static org.junit.Assert.*;
+
+// peakml
+import peakml.*;
+import peakml.io.*;
+import peakml.util.*;
+import peakml.util.Base64;
+
+
+
+
+/**
+ * Checks the streaming {@link PeakMLParser} against a DOM reading of the same files and
+ * against files written from what it parsed, and the pipelined parsing on several threads
+ * against parsing on the calling thread.
+ */
+public class PeakMLParserTest
+{
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(7), 200, false);
+		for (boolean gzip : new boolean[] { false, true })
+		{
+			// the peak data is stored as floats, so only the second write has to match exactly
+			byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, gzip);
+			ParseResult result = PeakMLParser.parse(new ByteArrayInputStream(data), true);
+			assertEquals(peaks.size(), PeakMLTestData.getPeaks(result).size());
+
+			String second = PeakMLTestData.toXml(result);
+			result = PeakMLParser.parse(new ByteArrayInputStream(second.getBytes("UTF-8")), true);
+			assertEquals(second, PeakMLTestData.toXml(result));
+		}
+	}
+
+	@Test
+	public void testMatchesDocument() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(11), 200, false);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, false);
+		ParseResult result = PeakMLParser.parse(new ByteArrayInputStream(data), true);
+
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(data));
+		Element root = document.getDocumentElement();
+
+		Element header = getChild(root, "header");
+		assertEquals(getChild(header, "owner").getTextContent(), result.header.getOwner());
+		assertEquals(getChild(header, "description").getTextContent(), result.header.getDescription());
+		assertEquals(Integer.parseInt(getChild(header, "nrpeaks").getTextContent()), result.header.getNrPeaks());
+		assertEquals(PeakMLTestData.NRMEASUREMENTS, result.header.getNrMeasurementInfos());
+		assertAnnotations(getChild(header, "annotations"), result.header);
+
+		assertPeaks(getChild(root, "peaks"), PeakMLTestData.getPeaks(result));
+	}
+
+	@Test
+	public void testParseIPeakSet() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(13), 100, true);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, true);
+		ParseResult all = PeakMLParser.parse(new ByteArrayInputStream(data), true);
+		ParseResult sets = PeakMLParser.parseIPeakSet(new ByteArrayInputStream(data), null);
+		assertEquals(PeakMLTestData.toXml(all), PeakMLTestData.toXml(sets));
+	}
+
+	@Test
+	public void testParseHeader() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(17), 20, false);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, true);
+		Header header = PeakMLParser.parseHeader(new ByteArrayInputStream(data));
+		ParseResult result = PeakMLParser.parse(new ByteArrayInputStream(data), true);
+		assertEquals(
+				PeakMLTestData.toXml(result.header, new Vector<IPeak>()),
+				PeakMLTestData.toXml(header, new Vector<IPeak>())
+			);
+	}
+
+	@Test(expected=XmlParserException.class)
+	public void testTruncated() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(19), 20, false);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, false);
+		PeakMLParser.parse(new ByteArrayInputStream(Arrays.copyOf(data, data.length*2/3)), true);
+	}
+
+	@Test
+	public void testPipelinedMatchesSequential() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(23), 500, false);
+		for (boolean gzip : new boolean[] { false, true })
+		{
+			byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, gzip);
+			String expected = PeakMLTestData.toXml(PeakMLParser.parse(new ByteArrayInputStream(data), true));
+			for (int nrthreads : new int[] { 2, 4 })
+			{
+				final int updates[] = new int[1];
+				ParserProgressListener listener = new ParserProgressListener() {
+						public void update(double percentage) { updates[0]++; }
+					};
+				ParseResult result = PeakMLParser.parse(new ByteArrayInputStream(data), listener, true, nrthreads);
+				assertEquals(expected, PeakMLTestData.toXml(result));
+				assertTrue(updates[0] > 0);
+			}
+		}
+	}
+
+	@Test
+	public void testPipelinedIPeakSet() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(29), 300, true);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, true);
+		String expected = PeakMLTestData.toXml(PeakMLParser.parseIPeakSet(new ByteArrayInputStream(data), null));
+		assertEquals(expected, PeakMLTestData.toXml(PeakMLParser.parseIPeakSet(new ByteArrayInputStream(data), null, 4)));
+	}
+
+	@Test
+	public void testPipelinedMassChromatograms() throws Exception
+	{
+		Vector<IPeak> peaks = new Vector<IPeak>();
+		for (IPeak peak : PeakMLTestData.createPeaks(new Random(31), 600, false))
+			if (peak.getClass().equals(MassChromatogram.class))
+				peaks.add(peak);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, false);
+		String expected = PeakMLTestData.toXml(PeakMLParser.parseMassChromatograms(new ByteArrayInputStream(data), null));
+		assertEquals(expected, PeakMLTestData.toXml(PeakMLParser.parseMassChromatograms(new ByteArrayInputStream(data), null, 4)));
+	}
+
+	@Test(expected=XmlParserException.class)
+	public void testPipelinedTruncated() throws Exception
+	{
+		Vector<IPeak> peaks = PeakMLTestData.createPeaks(new Random(37), 200, false);
+		byte data[] = PeakMLTestData.write(PeakMLTestData.createHeader(), peaks, false);
+		PeakMLParser.parse(new ByteArrayInputStream(Arrays.copyOf(data, data.length*2/3)), null, true, 4);
+	}
+
+
+	// DOM comparison
+	private static void assertPeaks(Element element, List<? extends IPeak> peaks)
+	{
+		List<Element> children = getChildren(element, "peak");
+		assertEquals(children.size(), peaks.size());
+		for (int i=0; i<peaks.size(); ++i)
+			assertPeak(children.get(i), peaks.get(i));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertPeak(Element element, IPeak peak)
+	{
+		String type = element.getAttribute("type");
+		// the mass, intensity, retention time and scan are derived from the peak data
+		assertEquals(getTextAsInteger(element, "patternid", -1), peak.getPatternID());
+		assertEquals(getTextAsInteger(element, "measurementid", -1), peak.getMeasurementID());
+		assertAnnotations(getChild(element, "annotations"), peak);
+
+		if (type.equals("masschromatogram"))
+		{
+			assertEquals(MassChromatogram.class, peak.getClass());
+			assertPeakData(getChild(element, "peakdata"), ((MassChromatogram<? extends Peak>) peak).getPeakData());
+		}
+		else if (type.equals("backgroundion"))
+		{
+			assertEquals(BackgroundIon.class, peak.getClass());
+			assertPeakData(getChild(element, "peakdata"), ((BackgroundIon<? extends Peak>) peak).getPeakData());
+		}
+		else if (type.equals("peakset"))
+		{
+			assertEquals(IPeakSet.class, peak.getClass());
+			assertPeaks(getChild(element, "peaks"), ((IPeakSet<IPeak>) peak).getPeaks());
+		}
+		else
+			fail("Unexpected peak type: " + type);
+	}
+
+	/** Decodes the arrays the way the DOM parser did */
+	private static void assertPeakData(Element element, PeakData<? extends Peak> peakdata)
+	{
+		assertEquals(Integer.parseInt(element.getAttribute("size")), peakdata.size());
+		assertArrayEquals(decodeInts(element, "scanids"), peakdata.getScanIDs());
+		assertArrayEquals(decodeInts(element, "patternids"), peakdata.getPatternIDs());
+		assertArrayEquals(decodeInts(element, "measurementids"), peakdata.getMeasurementIDs());
+		assertArrayEquals(decodeDoubles(element, "masses"), peakdata.getMasses(), 0);
+		assertArrayEquals(decodeDoubles(element, "intensities"), peakdata.getIntensities(), 0);
+		assertArrayEquals(decodeDoubles(element, "retentiontimes"), peakdata.getRetentionTimes(), 0);
+	}
+
+	private static void assertAnnotations(Element element, Annotatable annotatable)
+	{
+		Map<String,Annotation> annotations = annotatable.getAnnotations();
+		if (element == null)
+		{
+			assertTrue(annotations==null || annotations.isEmpty());
+			return;
+		}
+
+		List<Element> children = getChildren(element, "annotation");
+		assertEquals(children.size(), annotations.size());
+		for (Element child : children)
+		{
+			Annotation annotation = annotations.get(getChild(child, "label").getTextContent());
+			assertNotNull(annotation);
+			assertEquals(getChild(child, "value").getTextContent(), annotation.getValue());
+			assertEquals(getChild(child, "valuetype").getTextContent(), annotation.getValueType().toString());
+			assertEquals(child.getAttribute("unit"), annotation.getUnit());
+		}
+	}
+
+	private static double[] decodeDoubles(Element element, String name)
+	{
+		return ByteArray.toDoubleArray(Base64.decode(getChild(element, name).getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
+	}
+
+	private static int[] decodeInts(Element element, String name)
+	{
+		return ByteArray.toIntArray(Base64.decode(getChild(element, name).getTextContent()), ByteArray.ENDIAN_LITTLE, 32);
+	}
+
+	private static int getTextAsInteger(Element element, String name, int defaultvalue)
+	{
+		Element child = getChild(element, name);
+		return (child==null ? defaultvalue : Integer.parseInt(child.getTextContent()));
+	}
+
+	private static Element getChild(Element element, String name)
+	{
+		List<Element> children = getChildren(element, name);
+		return (children.isEmpty() ? null : children.get(0));
+	}
+
+	private static List<Element> getChildren(Element element, String name)
+	{
+		List<Element> children = new ArrayList<Element>();
+		for (Node node=element.getFirstChild(); node!=null; node=node.getNextSibling())
+			if (node.getNodeType()==Node.ELEMENT_NODE && node.getNodeName().equals(name))
+				children.add((Element) node);
+		return children;
+	}
+}
@@ -0,0 +1,182 @@
+package peakml.io.peakml;
+
+
+// java
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+// peakml
+import peakml.*;
+import peakml.io.*;
+import peakml.chemistry.*;
+
+
+
+
+/**
+ * Random headers and peaks for the PeakML tests, with the nesting of peak sets, the
+ * annotations and the characters that need escaping found in real files.
+ */
+class PeakMLTestData
+{
+	public static Header createHeader()
+	{
+		Header header = new Header();
+		header.setOwner("me & <you>");
+		header.setDescription("desc \"q\"");
+		header.setDate(new Date(1000000000000L));
+
+		SetInfo set1 = new SetInfo("set1", SetInfo.SET, 0, 1);
+		set1.addChild(new SetInfo("child", SetInfo.SET, 0));
+		header.addSetInfo(set1);
+		header.addSetInfo(new SetInfo("set2", SetInfo.SET, 2, 3));
+
+		for (int i=0; i<NRMEASUREMENTS; ++i)
+		{
+			MeasurementInfo measurement = new MeasurementInfo(i, "sample" + i);
+			measurement.setLabel("label" + i);
+			measurement.addFileInfo(new FileInfo("file" + i, "file" + i + ".mzXML", "/data/x&y"));
+			for (int j=0; j<3; ++j)
+			{
+				ScanInfo scan = new ScanInfo(j*1.5, Polarity.POSITIVE);
+				if (j == 1)
+					scan.addAnnotation("scan&", "v<");
+				measurement.addScanInfo(scan);
+			}
+			header.addMeasurementInfo(measurement);
+		}
+
+		header.addAnnotation("header", "value & value");
+		Annotation ontology = new Annotation("ontology", "x", Annotation.ValueType.ONTOLOGY);
+		ontology.setOntologyRef("PSI:1");
+		header.addAnnotation(ontology);
+		return header;
+	}
+
+	/**
+	 * Creates mass chromatograms, background ions and peak sets of those, up to two levels deep.
+	 * When onlysets is set every top-level peak is a peak set, as parseIPeakSet requires.
+	 */
+	public static Vector<IPeak> createPeaks(Random random, int nrpeaks, boolean onlysets)
+	{
+		Vector<IPeak> peaks = new Vector<IPeak>();
+		for (int i=0; i<nrpeaks; ++i)
+		{
+			IPeak peak = createPeak(random, 2);
+			if (onlysets && !(peak instanceof IPeakSet))
+			{
+				Vector<IPeak> children = new Vector<IPeak>();
+				children.add(peak);
+				peak = new IPeakSet<IPeak>(children);
+				setProperties(random, peak);
+			}
+			peaks.add(peak);
+		}
+		return peaks;
+	}
+
+	/**
+	 * Writes the peaks to memory, optionally gzipped.
+	 */
+	public static byte[] write(Header header, Vector<? extends IPeak> peaks, boolean gzip) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = (gzip ? new GZIPOutputStream(bytes) : bytes);
+		PeakMLWriter.write(header, peaks, null, out, null);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes the peaks to a string without the sha1sum elements, which differ between runs for
+	 * peak sets (their hash includes the identities of the arrays of the peaks they contain).
+	 */
+	public static String toXml(Header header, Vector<? extends IPeak> peaks) throws IOException
+	{
+		String xml = new String(write(header, peaks, false), "UTF-8");
+		return xml.replaceAll("<sha1sum>[^<]*</sha1sum>", "");
+	}
+
+	public static String toXml(ParseResult result) throws IOException
+	{
+		return toXml(result.header, getPeaks(result));
+	}
+
+	/**
+	 * Returns the top-level peaks of a parse result.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Vector<IPeak> getPeaks(ParseResult result)
+	{
+		return ((IPeakSet<IPeak>) result.measurement).getPeaks();
+	}
+
+
+	// helpers
+	private static IPeak createPeak(Random random, int depth)
+	{
+		IPeak peak;
+		int type = random.nextInt(depth>0 ? 3 : 2);
+		if (type == 0)
+			peak = new MassChromatogram<Centroid>(createPeakData(random, 2+random.nextInt(40)));
+		else if (type == 1)
+			peak = new BackgroundIon<Centroid>(createPeakData(random, 2+random.nextInt(40)));
+		else
+		{
+			Vector<IPeak> children = new Vector<IPeak>();
+			int nrchildren = 1 + random.nextInt(4);
+			for (int i=0; i<nrchildren; ++i)
+				children.add(createPeak(random, depth-1));
+			peak = new IPeakSet<IPeak>(children);
+		}
+		setProperties(random, peak);
+		return peak;
+	}
+
+	private static PeakData<Centroid> createPeakData(Random random, int size)
+	{
+		int scanids[] = new int[size];
+		int patternids[] = new int[size];
+		int measurementids[] = new int[size];
+		double masses[] = new double[size];
+		double intensities[] = new double[size];
+		double retentiontimes[] = new double[size];
+		for (int i=0; i<size; ++i)
+		{
+			// negative scan ids make encoded arrays starting with the gzip magic number
+			scanids[i] = 3*i - (random.nextInt(5)==0 ? 0x1f8b0000 : 0);
+			patternids[i] = random.nextInt();
+			measurementids[i] = random.nextInt(NRMEASUREMENTS);
+			masses[i] = 100 + 900*random.nextDouble();
+			intensities[i] = 1e6 * random.nextDouble();
+			retentiontimes[i] = 3000 * random.nextDouble();
+		}
+		return new PeakData<Centroid>(Centroid.factory, size, scanids, patternids, measurementids, masses, intensities, retentiontimes);
+	}
+
+	private static void setProperties(Random random, IPeak peak)
+	{
+		peak.setMass(100 + 900*random.nextDouble());
+		peak.setIntensity(1e5 * random.nextDouble());
+		peak.setRetentionTime(100 * random.nextDouble());
+		if (random.nextBoolean())
+			peak.setPatternID(random.nextInt(100));
+		peak.setMeasurementID(random.nextInt(NRMEASUREMENTS));
+		peak.setScanID(random.nextInt(1000));
+
+		if (random.nextBoolean())
+			peak.addAnnotation("id", "C6H12O6 <&> &amp; \"x\" 'y'");
+		if (random.nextBoolean())
+			peak.addAnnotation("d", random.nextDouble());
+		if (random.nextBoolean())
+		{
+			Annotation annotation = new Annotation("u", "3", Annotation.ValueType.INTEGER);
+			annotation.setUnit("sec");
+			peak.addAnnotation(annotation);
+		}
+	}
+
+
+	// data
+	public static final int NRMEASUREMENTS = 4;
+}
@@ -0,0 +1,212 @@
+package peakml.util;
+
+
+// java
+import java.nio.*;
+import java.util.Random;
+
+// libraries
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+
+
+/**
+ * Checks {@link Base64Codec} against the combination of {@link Base64} and {@link ByteArray}
+ * it replaces in the readers and writers.
+ */
+public class Base64CodecTest
+{
+	@Test
+	public void testEncode()
+	{
+		Random random = new Random(1);
+		Base64Codec codec = new Base64Codec();
+		StringBuilder encoded = new StringBuilder();
+		for (int i=0; i<2000; ++i)
+		{
+			byte data[] = createBytes(random);
+			encoded.setLength(0);
+			codec.encode(ByteBuffer.wrap(data), encoded);
+			assertEquals(Base64.encodeBytes(data, Base64.DONT_BREAK_LINES), encoded.toString());
+		}
+	}
+
+	@Test
+	public void testDecode()
+	{
+		Random random = new Random(2);
+		Base64Codec codec = new Base64Codec();
+		for (int i=0; i<2000; ++i)
+		{
+			byte data[] = createBytes(random);
+
+			// with the line breaks Base64 writes by default
+			assertArrayEquals(data, toArray(codec.decode(Base64.encodeBytes(data))));
+
+			// from the middle of a char array, with whitespace around the data
+			String encoded = "  " + Base64.encodeBytes(data, Base64.DONT_BREAK_LINES) + "\n";
+			assertArrayEquals(data, toArray(codec.decode(encoded.toCharArray(), 1, encoded.length()-1)));
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testDecodeInvalid()
+	{
+		new Base64Codec().decode("ab*d");
+	}
+
+	@Test
+	public void testInts()
+	{
+		// ByteArray stores integers most significant byte first for ENDIAN_LITTLE
+		Random random = new Random(3);
+		Base64Codec codec = new Base64Codec();
+		StringBuilder encoded = new StringBuilder();
+		IntBuffer decoded = null;
+		for (int i=0; i<500; ++i)
+		{
+			int values[] = new int[random.nextInt(100)];
+			for (int j=0; j<values.length; ++j)
+				values[j] = random.nextInt();
+
+			String expected = Base64.encodeBytes(ByteArray.toByteArray(values, ByteArray.ENDIAN_LITTLE, 32), Base64.DONT_BREAK_LINES);
+			encoded.setLength(0);
+			codec.encodeInts(IntBuffer.wrap(values), ByteOrder.BIG_ENDIAN, encoded);
+			assertEquals(expected, encoded.toString());
+
+			decoded = codec.decodeInts(expected, ByteOrder.BIG_ENDIAN, decoded);
+			int array[] = new int[decoded.remaining()];
+			decoded.get(array);
+			assertArrayEquals(ByteArray.toIntArray(Base64.decode(expected), ByteArray.ENDIAN_LITTLE, 32), array);
+		}
+	}
+
+	@Test
+	public void testLittleEndianDoubles()
+	{
+		Random random = new Random(4);
+		Base64Codec codec = new Base64Codec();
+		StringBuilder encoded = new StringBuilder();
+		DoubleBuffer decoded = null;
+		for (int precision : new int[] { 32, 64 })
+		{
+			for (int i=0; i<500; ++i)
+			{
+				double values[] = createDoubles(random);
+
+				String expected = Base64.encodeBytes(ByteArray.toByteArray(values, ByteArray.ENDIAN_LITTLE, precision), Base64.DONT_BREAK_LINES);
+				encoded.setLength(0);
+				codec.encodeDoubles(DoubleBuffer.wrap(values), ByteOrder.LITTLE_ENDIAN, precision, encoded);
+				assertEquals(expected, encoded.toString());
+
+				decoded = codec.decodeDoubles(expected, ByteOrder.LITTLE_ENDIAN, precision, decoded);
+				assertArrayEquals(ByteArray.toDoubleArray(Base64.decode(expected), ByteArray.ENDIAN_LITTLE, precision), toArray(decoded), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testBigEndianDoubles()
+	{
+		// ByteArray swaps the words of 64-bit big-endian values, so these are checked against ByteBuffer
+		Random random = new Random(5);
+		Base64Codec codec = new Base64Codec();
+		StringBuilder encoded = new StringBuilder();
+		DoubleBuffer decoded = null;
+		for (int precision : new int[] { 32, 64 })
+		{
+			for (int i=0; i<500; ++i)
+			{
+				double values[] = createDoubles(random);
+				ByteBuffer bytes = ByteBuffer.allocate(values.length*precision/8).order(ByteOrder.BIG_ENDIAN);
+				for (double value : values)
+				{
+					if (precision == 32)
+						bytes.putFloat((float) value);
+					else
+						bytes.putDouble(value);
+				}
+
+				String expected = Base64.encodeBytes(bytes.array(), Base64.DONT_BREAK_LINES);
+				encoded.setLength(0);
+				codec.encodeDoubles(DoubleBuffer.wrap(values), ByteOrder.BIG_ENDIAN, precision, encoded);
+				assertEquals(expected, encoded.toString());
+
+				decoded = codec.decodeDoubles(expected, ByteOrder.BIG_ENDIAN, precision, decoded);
+				double array[] = toArray(decoded);
+				assertEquals(values.length, array.length);
+				for (int j=0; j<values.length; ++j)
+					assertEquals(precision==32 ? (float) values[j] : values[j], array[j], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testFloats()
+	{
+		Random random = new Random(6);
+		Base64Codec codec = new Base64Codec();
+		StringBuilder encoded = new StringBuilder();
+		float values[] = new float[100];
+		for (int i=0; i<values.length; ++i)
+			values[i] = 1000 * random.nextFloat();
+
+		codec.encodeFloats(FloatBuffer.wrap(values), ByteOrder.LITTLE_ENDIAN, encoded);
+		FloatBuffer decoded = codec.decodeFloats(encoded, ByteOrder.LITTLE_ENDIAN, null);
+		float array[] = new float[decoded.remaining()];
+		decoded.get(array);
+		assertArrayEquals(values, array, 0);
+	}
+
+	@Test
+	public void testReuse()
+	{
+		Base64Codec codec = new Base64Codec();
+		String small = Base64.encodeBytes(ByteArray.toByteArray(new double[] { 1, 2 }, ByteArray.ENDIAN_LITTLE, 64), Base64.DONT_BREAK_LINES);
+		String large = Base64.encodeBytes(ByteArray.toByteArray(new double[] { 1, 2, 3, 4, 5 }, ByteArray.ENDIAN_LITTLE, 64), Base64.DONT_BREAK_LINES);
+
+		// a buffer that is too small is replaced, a large enough one is reused
+		DoubleBuffer reuse = DoubleBuffer.allocate(3);
+		DoubleBuffer decoded = codec.decodeDoubles(large, ByteOrder.LITTLE_ENDIAN, 64, reuse);
+		assertNotSame(reuse, decoded);
+		assertArrayEquals(new double[] { 1, 2, 3, 4, 5 }, toArray(decoded), 0);
+
+		DoubleBuffer again = codec.decodeDoubles(small, ByteOrder.LITTLE_ENDIAN, 64, decoded);
+		assertSame(decoded, again);
+		assertArrayEquals(new double[] { 1, 2 }, toArray(again), 0);
+	}
+
+
+	// helpers
+	private static byte[] createBytes(Random random)
+	{
+		byte data[] = new byte[random.nextInt(200)];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private static double[] createDoubles(Random random)
+	{
+		double values[] = new double[random.nextInt(100)];
+		for (int i=0; i<values.length; ++i)
+			values[i] = 1000 * random.nextDouble();
+		return values;
+	}
+
+	private static byte[] toArray(ByteBuffer buffer)
+	{
+		byte array[] = new byte[buffer.remaining()];
+		buffer.duplicate().get(array);
+		return array;
+	}
+
+	private static double[] toArray(DoubleBuffer buffer)
+	{
+		double array[] = new double[buffer.remaining()];
+		buffer.duplicate().get(array);
+		return array;
+	}
+}
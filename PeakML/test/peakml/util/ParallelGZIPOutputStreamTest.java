@@ -0,0 +1,128 @@
+package peakml.util;
+
+
+// java
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+// libraries
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+
+
+/**
+ * Checks that the members written by {@link ParallelGZIPOutputStream} read back as one stream
+ * with {@link GZIPInputStream}, and from the start of every member.
+ */
+public class ParallelGZIPOutputStreamTest
+{
+	@Test
+	public void testReadBack() throws Exception
+	{
+		Random random = new Random(1);
+		for (int length : LENGTHS)
+		{
+			byte data[] = createData(random, length);
+			byte compressed[] = compress(random, data, 3);
+			assertArrayEquals(data, gunzip(compressed, 0));
+		}
+	}
+
+	@Test
+	public void testBlockOffsets() throws Exception
+	{
+		Random random = new Random(2);
+		for (int length : LENGTHS)
+		{
+			byte data[] = createData(random, length);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(bytes, 3, BLOCKSIZE);
+			out.write(data);
+			out.close();
+
+			byte compressed[] = bytes.toByteArray();
+			assertEquals(Math.max(1, (length+BLOCKSIZE-1)/BLOCKSIZE), out.getNrBlocks());
+			for (int i=0; i<out.getNrBlocks(); ++i)
+			{
+				int position = (int) out.getBlockPosition(i);
+				assertEquals((long) i*BLOCKSIZE, position);
+				assertArrayEquals(Arrays.copyOfRange(data, position, length), gunzip(compressed, (int) out.getBlockOffset(i)));
+			}
+		}
+	}
+
+	@Test
+	public void testDeterministic() throws Exception
+	{
+		// the output depends on neither the number of threads nor on when flush is called
+		byte data[] = createData(new Random(3), 200000);
+		byte expected[] = compress(new Random(4), data, 1);
+		for (int nrthreads : new int[] { 2, 4 })
+			assertArrayEquals(expected, compress(new Random(5+nrthreads), data, nrthreads));
+	}
+
+	@Test(expected=IOException.class)
+	public void testWriteAfterClose() throws Exception
+	{
+		ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(new ByteArrayOutputStream(), 2, BLOCKSIZE);
+		out.close();
+		out.close();
+		out.write(0);
+	}
+
+
+	// helpers
+	private static byte[] createData(Random random, int length)
+	{
+		// compressible, like xml
+		byte data[] = new byte[length];
+		for (int i=0; i<length; ++i)
+			data[i] = (byte) ('a' + random.nextInt(20));
+		return data;
+	}
+
+	/**
+	 * Compresses the data with a random mix of single bytes, arrays and flushes.
+	 */
+	private static byte[] compress(Random random, byte data[], int nrthreads) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(bytes, nrthreads, BLOCKSIZE);
+		int i = 0;
+		while (i < data.length)
+		{
+			if (random.nextInt(4) == 0)
+				out.write(data[i++]);
+			else
+			{
+				int n = Math.min(data.length-i, random.nextInt(40000));
+				out.write(data, i, n);
+				i += n;
+			}
+			if (random.nextInt(10) == 0)
+				out.flush();
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] gunzip(byte compressed[], int offset) throws IOException
+	{
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed, offset, compressed.length-offset));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte buffer[] = new byte[64*1024];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+
+	// data
+	private static final int BLOCKSIZE = 16384;
+	private static final int LENGTHS[] = { 0, 1, 1000, BLOCKSIZE, BLOCKSIZE+1, 500000 };
+}
@@ -28,7 +28,6 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Vector;
-import java.util.zip.GZIPOutputStream;
 
 import mzmatch.util.Tool;
 import peakml.IPeak;
@@ -40,6 +39,7 @@ import peakml.io.ParseResult;
 import peakml.io.SetInfo;
 import peakml.io.peakml.PeakMLParser;
 import peakml.io.peakml.PeakMLWriter;
+import peakml.util.ParallelGZIPOutputStream;
 import cmdline.CmdLineParser;
 import cmdline.Option;
 import cmdline.OptionsClass;
@@ -303,7 +303,7 @@ public class Join
 			// write the result
 			if (options.verbose)
 				System.out.println("Writing the results");
-			PeakMLWriter.write(header, data, null, new GZIPOutputStream(output), null);
+			PeakMLWriter.write(header, data, null, new ParallelGZIPOutputStream(output), null);
 		}
 		catch (Exception e)
 		{